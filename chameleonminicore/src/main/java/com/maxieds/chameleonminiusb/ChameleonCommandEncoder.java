@@ -0,0 +1,258 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet;
+import com.maxieds.chameleonminiusb.ChameleonProtocolConfig.ChameleonBoardType_t;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * <h1>Chameleon Command Encoder</h1>
+ * Turns StandardCommandSet commands into the bytes sent to one revision of the Chameleon
+ * firmware. The table is compiled once per board type from ChameleonCommands.getCommandFormatString:
+ * each command keeps its pre-encoded ASCII prefix (everything before the argument placeholder),
+ * the kind of argument it takes and the line terminator of the revision. Encoding a command
+ * then only copies bytes into a reusable CommandBuffer (integers, UID bytes and config names
+ * are written directly as ASCII), so that issuing commands does not go through String.format,
+ * string concatenation and getBytes every time.
+ *
+ * @ref ChameleonCommands.getCommandFormatString
+ */
+public class ChameleonCommandEncoder {
+
+    /**
+     * A growable byte buffer which is reused for every command sent to a device.
+     */
+    public static class CommandBuffer {
+
+        private byte[] buf;
+        private int length;
+
+        public CommandBuffer() {
+            this(64);
+        }
+
+        public CommandBuffer(int initialCapacity) {
+            buf = new byte[initialCapacity];
+        }
+
+        public void reset() { length = 0; }
+        public int length() { return length; }
+        public byte[] array() { return buf; }
+
+        private void ensureCapacity(int extraBytes) {
+            if(length + extraBytes > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(length + extraBytes, 2 * buf.length));
+            }
+        }
+
+        public void write(byte b) {
+            ensureCapacity(1);
+            buf[length++] = b;
+        }
+
+        public void write(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buf, length, bytes.length);
+            length += bytes.length;
+        }
+
+        /**
+         * Writes the decimal representation of the value.
+         */
+        public void writeDecimal(long value) {
+            if(value == Long.MIN_VALUE) {
+                writeAscii(String.valueOf(value));
+                return;
+            }
+            else if(value < 0) {
+                write((byte) '-');
+                value = -value;
+            }
+            int numDigits = 1;
+            for(long v = value / 10; v != 0; v /= 10) {
+                numDigits++;
+            }
+            ensureCapacity(numDigits);
+            for(int d = numDigits - 1; d >= 0; d--) {
+                buf[length + d] = (byte) ('0' + (value % 10));
+                value /= 10;
+            }
+            length += numDigits;
+        }
+
+        private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+        /**
+         * Writes the bytes as two-digit (lowercase) hex, without separators
+         * (the same format as ProtocolUtils.byteArrayToString).
+         */
+        public void writeHex(byte[] bytes) {
+            ensureCapacity(2 * bytes.length);
+            for(byte b : bytes) {
+                buf[length++] = HEX_DIGITS[(b >> 4) & 0x0f];
+                buf[length++] = HEX_DIGITS[b & 0x0f];
+            }
+        }
+
+        /**
+         * Writes the characters of the string (ASCII directly, anything else as UTF-8).
+         */
+        public void writeAscii(CharSequence text) {
+            int textLength = text.length();
+            ensureCapacity(textLength);
+            for(int c = 0; c < textLength; c++) {
+                char ch = text.charAt(c);
+                if(ch >= 0x80) {
+                    write(text.subSequence(c, textLength).toString().getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                buf[length++] = (byte) ch;
+            }
+        }
+
+        /**
+         * @return the buffer contents from fromIndex to toIndex as a (command) String.
+         */
+        public String toString(int fromIndex, int toIndex) {
+            return new String(buf, fromIndex, toIndex - fromIndex, StandardCharsets.UTF_8);
+        }
+
+    }
+
+    private static enum ArgumentType {
+        NONE,
+        DECIMAL,
+        TEXT,
+    };
+
+    private static class CommandTemplate {
+        final byte[] prefixBytes;
+        final byte[] suffixBytes;
+        final ArgumentType argType;
+
+        CommandTemplate(String formatStr) {
+            int argIndex = formatStr.indexOf('%');
+            if(argIndex < 0) {
+                prefixBytes = formatStr.getBytes(StandardCharsets.US_ASCII);
+                suffixBytes = new byte[0];
+                argType = ArgumentType.NONE;
+            }
+            else {
+                prefixBytes = formatStr.substring(0, argIndex).getBytes(StandardCharsets.US_ASCII);
+                suffixBytes = formatStr.substring(argIndex + 2).getBytes(StandardCharsets.US_ASCII);
+                argType = formatStr.charAt(argIndex + 1) == 'd' ? ArgumentType.DECIMAL : ArgumentType.TEXT;
+            }
+        }
+    }
+
+    private static final Map<ChameleonBoardType_t, ChameleonCommandEncoder> BOARD_ENCODERS =
+            new EnumMap<ChameleonBoardType_t, ChameleonCommandEncoder>(ChameleonBoardType_t.class);
+
+    /**
+     * @param boardType
+     * @return the (shared) encoder for the command dialect of the board revision.
+     */
+    public static synchronized ChameleonCommandEncoder forBoard(ChameleonBoardType_t boardType) {
+        ChameleonCommandEncoder boardEncoder = BOARD_ENCODERS.get(boardType);
+        if(boardEncoder == null) {
+            boardEncoder = new ChameleonCommandEncoder(boardType);
+            BOARD_ENCODERS.put(boardType, boardEncoder);
+        }
+        return boardEncoder;
+    }
+
+    public static boolean isRevisionEBoard(ChameleonBoardType_t boardType) {
+        return boardType == ChameleonBoardType_t.REVE_REBOOTED || boardType == ChameleonBoardType_t.REVE_OTHER;
+    }
+
+    private final CommandTemplate[] commandTemplates;
+    private final byte[] lineTerminator;
+
+    private ChameleonCommandEncoder(ChameleonBoardType_t boardType) {
+        int RevEGBoardIndex = isRevisionEBoard(boardType) ? 0 : 1;
+        lineTerminator = (RevEGBoardIndex == 0 ? "\r\n" : "\n\r").getBytes(StandardCharsets.US_ASCII);
+        StandardCommandSet[] allCmds = StandardCommandSet.values();
+        commandTemplates = new CommandTemplate[allCmds.length];
+        for(StandardCommandSet cmd : allCmds) {
+            String[] cmdFormatStrs = ChameleonCommands.getCommandFormatString(cmd);
+            if(cmdFormatStrs != null && cmdFormatStrs[RevEGBoardIndex] != null) {
+                commandTemplates[cmd.ordinal()] = new CommandTemplate(cmdFormatStrs[RevEGBoardIndex]);
+            }
+        }
+    }
+
+    /**
+     * @return whether the command exists on this firmware revision.
+     */
+    public boolean supports(StandardCommandSet cmd) {
+        return commandTemplates[cmd.ordinal()] != null;
+    }
+
+    public byte[] getLineTerminator() {
+        return lineTerminator;
+    }
+
+    /**
+     * Appends the command line (including the line terminator) to the buffer.
+     * @param cmd
+     * @param cmdArg : an Integer/Long (for the numeric arguments), a byte[] (written as hex, e.g. UIDs),
+     *                 an enum value (written by name, e.g. config types), any other object is written
+     *                 as its toString(); ignored if the command takes no argument.
+     * @param outBuf
+     * @return the length of the command text (without the line terminator), or -1 if the
+     *         command is not supported by this revision.
+     */
+    public int encode(StandardCommandSet cmd, Object cmdArg, CommandBuffer outBuf) {
+        CommandTemplate cmdTemplate = commandTemplates[cmd.ordinal()];
+        if(cmdTemplate == null) {
+            return -1;
+        }
+        int startIndex = outBuf.length();
+        outBuf.write(cmdTemplate.prefixBytes);
+        if(cmdTemplate.argType != ArgumentType.NONE) {
+            writeArgument(cmdArg, outBuf);
+            outBuf.write(cmdTemplate.suffixBytes);
+        }
+        int cmdLength = outBuf.length() - startIndex;
+        outBuf.write(lineTerminator);
+        return cmdLength;
+    }
+
+    public int encode(StandardCommandSet cmd, CommandBuffer outBuf) {
+        return encode(cmd, null, outBuf);
+    }
+
+    /**
+     * Appends an arbitrary (raw) command line to the buffer.
+     * @return the length of the command text (without the line terminator).
+     */
+    public int encodeRaw(CharSequence cmdString, CommandBuffer outBuf) {
+        int startIndex = outBuf.length();
+        outBuf.writeAscii(cmdString);
+        int cmdLength = outBuf.length() - startIndex;
+        outBuf.write(lineTerminator);
+        return cmdLength;
+    }
+
+    private static void writeArgument(Object cmdArg, CommandBuffer outBuf) {
+        if(cmdArg instanceof Integer || cmdArg instanceof Long || cmdArg instanceof Short || cmdArg instanceof Byte) {
+            outBuf.writeDecimal(((Number) cmdArg).longValue());
+        }
+        else if(cmdArg instanceof byte[]) {
+            outBuf.writeHex((byte[]) cmdArg);
+        }
+        else if(cmdArg instanceof Enum) {
+            outBuf.writeAscii(((Enum<?>) cmdArg).name());
+        }
+        else if(cmdArg instanceof CharSequence) {
+            outBuf.writeAscii((CharSequence) cmdArg);
+        }
+        else {
+            outBuf.writeAscii(String.valueOf(cmdArg));
+        }
+    }
+
+}
@@ -1,9 +1,7 @@
 package com.maxieds.chameleonminiusb;
 
-import android.annotation.TargetApi;
-import android.util.Log;
-
-import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
@@ -41,6 +39,8 @@ public class ChameleonCommands {
      * Note that by "format string" we mean that if there are (any) parameters to be appended to the
      * command, then this should be done by a call to:
      * String.format(Locale.ENGLISH, cmdFormatStr, IntOrStringCmdArgument);
+     * (The device sessions do not format these strings per command: ChameleonCommandEncoder
+     * compiles this table once per board revision.)
      * @param cmd
      * @return Array of distinct format strings for each device revision.
      * @ref (RevE) https://github.com/iceman1001/ChameleonMini-rebooted/wiki/Terminal-Commands
@@ -81,13 +81,13 @@ public class ChameleonCommands {
             case GET_RSSI_VOLTAGE:
                 return new String[] {"rssimy?", "RSSI?"};
             case UPLOAD_ENCRYPTED:
-                return new String[] {"UPLOAD_ENCRYPTED", null};
+                return new String[] {"UPLOAD_ENCRYPTED %s", null};
             case KEYAUTH:
-                return new String[] {"KEYAUTH", null};
+                return new String[] {"KEYAUTH %s", null};
             case SETKEY:
-                return new String[] {"SETKEY", null};
+                return new String[] {"SETKEY %s", null};
             case GENKEY:
-                return new String[] {"GENKEY", null};
+                return new String[] {"GENKEY %s", null};
             default:
                 return null;
         }
@@ -129,33 +129,40 @@ public class ChameleonCommands {
         }
 
         /**
-         * Stores a map of integer-valued response codes to their corresponding enum value.
+         * Direct lookup table of the enum values indexed by their (three digit) response code.
          */
-        private static final Map<Integer, SerialRespCode> RESP_CODE_MAP = new HashMap<>();
+        private static final SerialRespCode[] RESP_CODE_TABLE = new SerialRespCode[1000];
 
-        static {
-            for (SerialRespCode respCode : values()) {
-                int rcode = respCode.toInteger();
-                Integer aRespCode = Integer.valueOf(rcode);
-                RESP_CODE_MAP.put(aRespCode, respCode);
-            }
-        }
+        /**
+         * The standard status line of each response code (e.g., "101:OK WITH TEXT").
+         */
+        private String statusLine;
+        private byte[] statusLineBytes;
 
         /**
-         * Lookup table of String response codes prefixing command return data sent by the device.
+         * Lookup tables of the status lines ("101:OK WITH TEXT") and of the three digit codes
+         * ("101") of the response codes.
          *
-         * @ref ChameleonIO.isCommandResponse
+         * @deprecated read-only views of the response code table, kept for existing callers:
+         *             use lookupByResponseCode / ChameleonResponseParser instead.
          */
-        public static final Map<String, SerialRespCode> RESP_CODE_TEXT_MAP = new HashMap<>();
-        public static final Map<String, SerialRespCode> RESP_CODE_TEXT_MAP2 = new HashMap<>();
+        @Deprecated
+        public static final Map<String, SerialRespCode> RESP_CODE_TEXT_MAP;
+        @Deprecated
+        public static final Map<String, SerialRespCode> RESP_CODE_TEXT_MAP2;
 
         static {
+            Map<String, SerialRespCode> statusLineMap = new HashMap<String, SerialRespCode>();
+            Map<String, SerialRespCode> codeMap = new HashMap<String, SerialRespCode>();
             for (SerialRespCode respCode : values()) {
-                String rcode = String.valueOf(respCode.toInteger());
-                String rcodeText = respCode.name().replace("_", " ");
-                RESP_CODE_TEXT_MAP.put(rcode + ":" + rcodeText, respCode);
-                RESP_CODE_TEXT_MAP2.put(rcode, respCode);
+                RESP_CODE_TABLE[respCode.toInteger()] = respCode;
+                respCode.statusLine = respCode.toInteger() + ":" + respCode.name().replace("_", " ");
+                respCode.statusLineBytes = respCode.statusLine.getBytes(StandardCharsets.US_ASCII);
+                statusLineMap.put(respCode.statusLine, respCode);
+                codeMap.put(String.valueOf(respCode.toInteger()), respCode);
             }
+            RESP_CODE_TEXT_MAP = Collections.unmodifiableMap(statusLineMap);
+            RESP_CODE_TEXT_MAP2 = Collections.unmodifiableMap(codeMap);
         }
 
         /**
@@ -174,7 +181,15 @@ public class ChameleonCommands {
          * @return SerialRespCode enum value associated with the integer code
          */
         public static SerialRespCode lookupByResponseCode(int rcode) {
-            return RESP_CODE_MAP.get(rcode);
+            return rcode >= 0 && rcode < RESP_CODE_TABLE.length ? RESP_CODE_TABLE[rcode] : null;
+        }
+
+        public String getStatusLine() {
+            return statusLine;
+        }
+
+        byte[] getStatusLineBytes() {
+            return statusLineBytes;
         }
 
     }
@@ -188,6 +203,7 @@ public class ChameleonCommands {
         public String cmdResponseData;
         public int cmdResponseCode;
         public boolean isValid;
+        boolean timedOut; // no response arrived within the command timeout
 
         ChameleonCommandResult() {
             issuingCmd = NODATA;
@@ -205,6 +221,17 @@ public class ChameleonCommands {
             isValid = false;
         }
 
+        ChameleonCommandResult(ChameleonCommandResult otherResult) {
+            issuingCmd = otherResult.issuingCmd;
+            cmdResponseMsg = otherResult.cmdResponseMsg;
+            cmdResponseData = otherResult.cmdResponseData;
+            cmdResponseCode = otherResult.cmdResponseCode;
+            isValid = otherResult.isValid;
+            timedOut = otherResult.timedOut;
+        }
+
+        public boolean isTimedOut() { return timedOut; }
+
         public String toString() {
             return String.format(Locale.ENGLISH, "CMD(%s) => [%d] : %s", issuingCmd, cmdResponseCode, cmdResponseData);
         }
@@ -216,13 +243,7 @@ public class ChameleonCommands {
          * @return boolean whether the log data is a response to an issued command
          */
         public static boolean isCommandResponse(byte[] liveLogData) {
-            String respText = (new String(liveLogData)).split("[\n\r]+")[0];
-            if(SerialRespCode.RESP_CODE_TEXT_MAP.get(respText) != null)
-                return true;
-            respText = (new String(liveLogData)).split(":")[0];
-            if(respText != null && respText.length() >= 3 && SerialRespCode.RESP_CODE_TEXT_MAP2.get(respText.substring(respText.length() - 3)) != null)
-                return true;
-            return false;
+            return liveLogData != null && ChameleonResponseParser.isCommandResponse(liveLogData, 0, liveLogData.length);
         }
 
         /**
@@ -234,23 +255,37 @@ public class ChameleonCommands {
          * @return boolean-valued truth of whether the input is a valid command response.
          */
         public boolean processCommandResponse(byte[] responseBytes) {
-            if(!isCommandResponse(responseBytes)) {
+            ChameleonResponseParser responseParser = new ChameleonResponseParser();
+            if(responseBytes == null || !responseParser.parse(responseBytes, 0, responseBytes.length)) {
                 isValid = false;
                 return false;
             }
-            String[] splitCmdResp = (new String(responseBytes)).split("[\n\r]+");
-            cmdResponseMsg = splitCmdResp[0];
-            cmdResponseCode = Integer.parseInt(splitCmdResp[0].split(":")[0]);
-            if(splitCmdResp.length >= 2) {
-                cmdResponseData = Utils.stringJoin("\n", Arrays.copyOfRange(splitCmdResp, 1, splitCmdResp.length));
-            }
-            else {
-                cmdResponseData = NODATA;
-            }
-            isValid = (cmdResponseCode == SerialRespCode.OK.toInteger()) || (cmdResponseCode == SerialRespCode.OK_WITH_TEXT.toInteger());
+            setCommandResponse(responseParser);
             return true;
         }
 
+        /**
+         * Fills in the response fields from a successfully parsed response.
+         * @param responseParser
+         */
+        void setCommandResponse(ChameleonResponseParser responseParser) {
+            cmdResponseMsg = responseParser.getStatusMessage();
+            cmdResponseCode = responseParser.getResponseCode();
+            cmdResponseData = responseParser.hasData() ? responseParser.getDataString() : NODATA;
+            isValid = responseParser.isSuccess();
+        }
+
+        /**
+         * Takes over the response fields of a result parsed elsewhere (e.g., by the serial reader thread).
+         * @param parsedResult
+         */
+        void setCommandResponse(ChameleonCommandResult parsedResult) {
+            cmdResponseMsg = parsedResult.cmdResponseMsg;
+            cmdResponseCode = parsedResult.cmdResponseCode;
+            cmdResponseData = parsedResult.cmdResponseData;
+            isValid = parsedResult.isValid;
+        }
+
     }
 
 }
@@ -0,0 +1,177 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.ChameleonCommands.ChameleonCommandResult;
+import com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+
+/**
+ * <h1>Chameleon Device Property Cache</h1>
+ * Remembers the responses to the device queries whose answers only change when we change them
+ * ourselves (VERSION, MEMSIZE, UIDSIZE, CONFIG, SETTING, READONLY and UID), so that the
+ * provisioning loop does not pay a serial round trip to re-read them before every upload.
+ * Every command issued through the owning ChameleonDeviceSession is passed to
+ * invalidateAfterCommand, which drops the entries the command may have changed
+ * (e.g., SETTING=n invalidates everything which depends on the active slot).
+ *
+ * @ref ChameleonDeviceSession.getPropertyCache
+ */
+public class ChameleonDevicePropertyCache {
+
+    /**
+     * The queries whose results are cached.
+     */
+    public static final EnumSet<StandardCommandSet> CACHED_QUERIES = EnumSet.of(
+            StandardCommandSet.GET_VERSION,
+            StandardCommandSet.GET_MEMORY_SIZE,
+            StandardCommandSet.GET_UID_SIZE,
+            StandardCommandSet.QUERY_CONFIG,
+            StandardCommandSet.GET_ACTIVE_SLOT,
+            StandardCommandSet.QUERY_READONLY,
+            StandardCommandSet.QUERY_UID
+    );
+
+    /**
+     * The properties which belong to the contents of the active slot.
+     */
+    private static final EnumSet<StandardCommandSet> SLOT_PROPERTIES = EnumSet.of(
+            StandardCommandSet.GET_UID_SIZE,
+            StandardCommandSet.QUERY_CONFIG,
+            StandardCommandSet.QUERY_READONLY,
+            StandardCommandSet.QUERY_UID
+    );
+
+    private final Map<StandardCommandSet, ChameleonCommandResult> cachedResults =
+            new EnumMap<StandardCommandSet, ChameleonCommandResult>(StandardCommandSet.class);
+    private volatile boolean cacheEnabled = true;
+    private long cacheHits, cacheMisses, cacheInvalidations;
+
+    public static boolean isCachedQuery(StandardCommandSet cmd) {
+        return CACHED_QUERIES.contains(cmd);
+    }
+
+    /**
+     * Whether the command may change any of the cached properties.
+     * @ref invalidateAfterCommand
+     */
+    public static boolean changesDeviceProperties(StandardCommandSet cmd) {
+        switch(cmd) {
+            case SET_ACTIVE_SLOT:
+            case SET_CONFIG:
+            case CLEAR_ACTIVE_SLOT:
+            case SET_UID:
+            case UPLOAD_XMODEM:
+            case UPLOAD_ENCRYPTED:
+            case SET_READONLY:
+            case RESET_DEVICE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public boolean isEnabled() { return cacheEnabled; }
+
+    public void setEnabled(boolean enable) {
+        cacheEnabled = enable;
+        if(!enable) {
+            invalidateAll();
+        }
+    }
+
+    /**
+     * Looks up the cached result of a query (counting a hit or a miss).
+     * @param cmd
+     * @return a copy of the cached result, or null if the query has to be sent to the device.
+     */
+    public synchronized ChameleonCommandResult lookup(StandardCommandSet cmd) {
+        if(!cacheEnabled || !isCachedQuery(cmd)) {
+            return null;
+        }
+        ChameleonCommandResult cachedResult = cachedResults.get(cmd);
+        if(cachedResult == null) {
+            cacheMisses++;
+            return null;
+        }
+        cacheHits++;
+        return new ChameleonCommandResult(cachedResult);
+    }
+
+    /**
+     * Stores the result of a query just received from the device (invalid results are ignored).
+     * @param cmd
+     * @param cmdResult
+     */
+    public synchronized void store(StandardCommandSet cmd, ChameleonCommandResult cmdResult) {
+        if(!cacheEnabled || !isCachedQuery(cmd) || cmdResult == null || !cmdResult.isValid) {
+            return;
+        }
+        cachedResults.put(cmd, new ChameleonCommandResult(cmdResult));
+    }
+
+    /**
+     * Drops the cached properties which may have been changed by the passed command.
+     * @param cmd
+     */
+    public synchronized void invalidateAfterCommand(StandardCommandSet cmd) {
+        switch(cmd) {
+            case SET_ACTIVE_SLOT:
+                invalidate(StandardCommandSet.GET_ACTIVE_SLOT);
+                invalidateSlotProperties();
+                break;
+            case SET_CONFIG:
+            case CLEAR_ACTIVE_SLOT:
+                invalidateSlotProperties();
+                break;
+            case SET_UID:
+            case UPLOAD_XMODEM:
+            case UPLOAD_ENCRYPTED:
+                invalidate(StandardCommandSet.QUERY_UID);
+                break;
+            case SET_READONLY:
+                invalidate(StandardCommandSet.QUERY_READONLY);
+                break;
+            case RESET_DEVICE:
+                invalidateAll();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void invalidateSlotProperties() {
+        for(StandardCommandSet slotProperty : SLOT_PROPERTIES) {
+            invalidate(slotProperty);
+        }
+    }
+
+    private void invalidate(StandardCommandSet cmd) {
+        if(cachedResults.remove(cmd) != null) {
+            cacheInvalidations++;
+        }
+    }
+
+    /**
+     * Forgets everything (e.g., after a raw command string whose effect we do not know).
+     */
+    public synchronized void invalidateAll() {
+        cacheInvalidations += cachedResults.size();
+        cachedResults.clear();
+    }
+
+    public synchronized long getCacheHits() { return cacheHits; }
+    public synchronized long getCacheMisses() { return cacheMisses; }
+    public synchronized long getCacheInvalidations() { return cacheInvalidations; }
+
+    public synchronized void resetCounters() {
+        cacheHits = cacheMisses = cacheInvalidations = 0;
+    }
+
+    public synchronized String toString() {
+        return "PropertyCache(entries=" + cachedResults.size() + ", hits=" + cacheHits + ", misses=" + cacheMisses +
+                ", invalidations=" + cacheInvalidations + ")";
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.maxieds.chameleonminiusb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <h1>Chameleon Device Registry</h1>
+ * Keeps track of the open ChameleonDeviceSession for every attached Chameleon board, keyed by
+ * the USB serial number of the device. Since each session owns its own serial port, state and
+ * port lock, boards in the registry can be driven concurrently (e.g., one worker thread per
+ * session) when several of them are attached to the same host.
+ *
+ * @ref ChameleonDeviceSession
+ * @ref ChameleonDeviceConfig.openAllChameleonDevices
+ */
+public class ChameleonDeviceRegistry {
+
+    private static final ConcurrentMap<String, ChameleonDeviceSession> deviceSessions = new ConcurrentHashMap<String, ChameleonDeviceSession>();
+
+    public static void registerSession(ChameleonDeviceSession session) {
+        ChameleonDeviceSession priorSession = deviceSessions.put(session.getSerialNumber(), session);
+        if(priorSession != null && priorSession != session) {
+            priorSession.close();
+        }
+    }
+
+    /**
+     * Removes the session from the registry, unless a newer session (e.g., of the same board after
+     * it was reconnected) has been registered under its serial number in the meantime.
+     * @param session
+     */
+    public static void unregisterSession(ChameleonDeviceSession session) {
+        deviceSessions.remove(session.getSerialNumber(), session);
+    }
+
+    public static ChameleonDeviceSession getSession(String deviceSerialNumber) {
+        if(deviceSerialNumber == null) {
+            return null;
+        }
+        return deviceSessions.get(deviceSerialNumber);
+    }
+
+    public static List<ChameleonDeviceSession> getSessions() {
+        return new ArrayList<ChameleonDeviceSession>(deviceSessions.values());
+    }
+
+    public static int getSessionCount() {
+        return deviceSessions.size();
+    }
+
+    public static void closeSession(String deviceSerialNumber) {
+        ChameleonDeviceSession session = deviceSessions.remove(deviceSerialNumber);
+        if(session != null) {
+            session.close();
+        }
+    }
+
+    public static void closeAllSessions() {
+        for(ChameleonDeviceSession session : getSessions()) {
+            if(deviceSessions.remove(session.getSerialNumber(), session)) {
+                session.close();
+            }
+        }
+    }
+
+}
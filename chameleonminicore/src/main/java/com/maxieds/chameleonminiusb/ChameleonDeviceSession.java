@@ -0,0 +1,1366 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.ChameleonCommands.ChameleonCommandResult;
+import com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet;
+import com.maxieds.chameleonminiusb.ChameleonProtocolConfig.ChameleonBoardType_t;
+import com.maxieds.chameleonminiusb.ChameleonProtocolConfig.ChameleonEmulatedConfigType_t;
+import com.maxieds.chameleonminiusb.ChameleonProtocolConfig.ChameleonUIDTypeSpec_t;
+import com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates;
+import com.maxieds.chameleonminiusb.SerialUSBStateMachine.PortLease;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.CLEAR_ACTIVE_SLOT;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.GET_ACTIVE_SLOT;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.GET_MEMORY_SIZE;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.GET_RSSI_VOLTAGE;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.GET_UID_SIZE;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.GET_VERSION;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.QUERY_CONFIG;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.QUERY_READONLY;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.QUERY_UID;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.SET_ACTIVE_SLOT;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.SET_CONFIG;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.SET_UID;
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.DOWNLOAD;
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.EXPECTING_BINARY_DATA;
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.IDLE;
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.UPLOAD;
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.WAITING_FOR_RESPONSE;
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.WAITING_FOR_XMODEM_DOWNLOAD;
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.WAITING_FOR_XMODEM_UPLOAD;
+import static com.maxieds.chameleonminiusb.ProtocolUtils.BYTE;
+
+/**
+ * <h1>Chameleon Device Session</h1>
+ * All of the state needed to talk to one attached Chameleon board: its serial transport, the
+ * serial USB state machine and port lock, the command response buffers and the XModem transfer
+ * state. Each attached board gets its own session (see ChameleonDeviceRegistry), so that several
+ * boards can be queried and uploaded to in parallel from separate threads without contending on
+ * shared static state. The session only talks to the board through the SerialTransport
+ * interface, so it runs unchanged on Android (over USB) or on a plain JVM.
+ *
+ * @ref ChameleonDeviceRegistry
+ * @ref SerialTransport
+ */
+public class ChameleonDeviceSession {
+
+    private static final String TAG = ChameleonDeviceSession.class.getSimpleName();
+
+    /**** Per-device serial connection: ****/
+    private final String deviceSerialNumber;
+    private final boolean hardwareSerialNumber; // whether deviceSerialNumber is the board's USB serial number
+    private final ChameleonBoardType_t chameleonBoardRev;
+    private volatile SerialTransport serialTransport;
+
+    /**** Per-device serial USB state and command handling: ****/
+    private final SerialUSBStateMachine serialStateMachine = new SerialUSBStateMachine();
+    private volatile byte[] serialUSBBinaryDataResponse;
+    private volatile ChameleonCommandResult parsedSerialUSBCmdResponse;
+    private volatile String lastChameleonCmd = "";
+    private final ChameleonResponseFramer serialResponseFramer = new ChameleonResponseFramer();
+    private final ChameleonResponseParser serialResponseParser = new ChameleonResponseParser(); // reader thread only
+    private final XModem xmodem;
+    private final ChameleonDevicePropertyCache propertyCache = new ChameleonDevicePropertyCache();
+    private final ChameleonSlotDigestCache slotDigestCache;
+    private final ChameleonUploadCipherCache uploadCipherCache = new ChameleonUploadCipherCache();
+    private final CommandTimingStats commandTimingStats = new CommandTimingStats();
+    private int chameleonUIDNumBytes = 8;
+
+    /**
+     * The precompiled command table for the firmware revision, and the buffer the command lines
+     * are encoded into (only touched while holding the serial port lock).
+     * @ref ChameleonCommandEncoder
+     */
+    private final ChameleonCommandEncoder commandEncoder;
+    private final ChameleonCommandEncoder.CommandBuffer commandBuffer = new ChameleonCommandEncoder.CommandBuffer();
+
+    /**
+     * Completion signal for the command currently in flight. A fresh latch is armed by
+     * sendEncodedCommand before the command bytes are written, and the reader callback
+     * counts it down as soon as the response has been parsed, so that the issuing thread wakes
+     * up immediately instead of polling the serial state.
+     */
+    private volatile CountDownLatch serialUSBResponseLatch = new CountDownLatch(0);
+
+    /**
+     * Raw responses collected for a pipelined batch of commands (null when no batch is in flight).
+     * @ref sendCommandsToChameleon
+     */
+    private volatile List<ChameleonCommandResult> pendingBatchResponses;
+    private int pendingBatchSize;
+
+    /**
+     * Set when a response times out: its late frame may still be on the way, and must not be
+     * taken for the response to the next command. Until resyncSerialChannel has seen the port
+     * stay quiet, no further command is written.
+     */
+    private volatile boolean serialChannelDirty;
+    private volatile long serialChannelDirtyNanos;
+    private volatile long lastReceivedNanos;
+
+    /**
+     * Runs the *Async operations of this session one after another on a dedicated thread, so that
+     * callers never block on the device (and operations on one board stay in issue order).
+     * @ref submitAsync
+     */
+    private final ExecutorService ioExecutor;
+
+    /**
+     * Runs the timers, the upload steps (which read the caller's upload source) and the
+     * completion stages of this device's XModem transfers. The transfers
+     * get a thread of their own rather than the I/O executor, which may itself be blocked waiting
+     * for the transfer, and each device gets its own so that a completion stage waiting on one
+     * board never delays the timers of another.
+     * @ref XModemSession
+     */
+    private final ScheduledExecutorService transferExecutor;
+
+    /**
+     * Constructor: binds the session to an open serial connection to the device.
+     * @param transport : the (already opened) serial connection to the board.
+     * @param boardRev : the board revision, which selects the command dialect.
+     * @param serialNumber : the key for the device in the ChameleonDeviceRegistry (its USB serial number).
+     */
+    public ChameleonDeviceSession(SerialTransport transport, ChameleonBoardType_t boardRev, String serialNumber) {
+        this(transport, boardRev, serialNumber, true);
+    }
+
+    /**
+     * Constructor for a board which may not report a USB serial number (the device is then keyed
+     * by something else, like its USB device name, which does not follow the board around). The
+     * slot digest cache and the XModem stats of such a board are only kept for this session.
+     * @param transport : the (already opened) serial connection to the board.
+     * @param boardRev : the board revision, which selects the command dialect.
+     * @param serialNumber : the key for the device in the ChameleonDeviceRegistry.
+     * @param isHardwareSerialNumber : whether serialNumber is the board's USB serial number.
+     */
+    public ChameleonDeviceSession(SerialTransport transport, ChameleonBoardType_t boardRev, String serialNumber, boolean isHardwareSerialNumber) {
+        serialTransport = transport;
+        chameleonBoardRev = boardRev;
+        deviceSerialNumber = serialNumber;
+        hardwareSerialNumber = isHardwareSerialNumber;
+        commandEncoder = ChameleonCommandEncoder.forBoard(boardRev);
+        slotDigestCache = new ChameleonSlotDigestCache(serialNumber, isHardwareSerialNumber);
+        xmodem = new XModem(this);
+        ioExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread ioThread = new Thread(r, "ChameleonIO-" + deviceSerialNumber);
+                ioThread.setDaemon(true);
+                return ioThread;
+            }
+        });
+        transferExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread transferThread = new Thread(r, "ChameleonXModem-" + deviceSerialNumber);
+                transferThread.setDaemon(true);
+                return transferThread;
+            }
+        });
+        serialTransport.setReadListener(serialReadListener);
+    }
+
+    public boolean close() {
+        SerialTransport activeTransport = serialTransport;
+        serialTransport = null;
+        if(activeTransport != null) {
+            activeTransport.close();
+        }
+        serialStateMachine.forceIdle();
+        serialStateMachine.revokePort();
+        signalCommandResponseReceived(); // wakes up the command in flight, which then sees the session closed
+        serialResponseFramer.reset();
+        xmodem.abortTransfer();
+        transferExecutor.shutdown(); // after the completion stage of the aborted transfer
+        ioExecutor.shutdownNow();
+        return true;
+    }
+
+    public boolean isConfigured() {
+        return serialTransport != null;
+    }
+
+    public String getSerialNumber() { return deviceSerialNumber; }
+    public boolean hasHardwareSerialNumber() { return hardwareSerialNumber; }
+    public SerialTransport getSerialTransport() { return serialTransport; }
+    public SerialUSBStates getSerialUSBState() { return serialStateMachine.getState(); }
+    public SerialUSBStateMachine getSerialStateMachine() { return serialStateMachine; }
+    public ChameleonResponseFramer getResponseFramer() { return serialResponseFramer; }
+    public XModem getXModem() { return xmodem; }
+    ScheduledExecutorService getTransferExecutor() { return transferExecutor; }
+    public ChameleonDevicePropertyCache getPropertyCache() { return propertyCache; }
+    public ChameleonSlotDigestCache getSlotDigestCache() { return slotDigestCache; }
+    public ChameleonUploadCipherCache getUploadCipherCache() { return uploadCipherCache; }
+    public CommandTimingStats getCommandTimingStats() { return commandTimingStats; }
+    public XModemDeviceStats getXModemStats() { return xmodem.getDeviceStats(); }
+    public byte[] getLastBinaryDataResponse() { return serialUSBBinaryDataResponse; }
+    public ChameleonCommandResult getLastParsedCommandResponse() { return parsedSerialUSBCmdResponse; }
+
+    public ChameleonBoardType_t getChameleonBoardType() { return chameleonBoardRev; }
+
+    public boolean isRevisionEDevice() {
+        return ChameleonCommandEncoder.isRevisionEBoard(chameleonBoardRev);
+    }
+
+    public boolean isRevisionGDevice() {
+        return chameleonBoardRev == ChameleonBoardType_t.REVG;
+    }
+
+    void writeSerialData(byte[] txData) {
+        writeSerialData(txData, txData.length);
+    }
+
+    /**
+     * Writes the first length bytes of txData (the transport is done with the array on return,
+     * see SerialTransport.write, so the buffer may be reused right away).
+     */
+    void writeSerialData(byte[] txData, int length) {
+        SerialTransport activeTransport = serialTransport;
+        if(activeTransport != null) {
+            activeTransport.write(txData, length);
+        }
+    }
+
+    private void signalCommandResponseReceived() {
+        serialUSBResponseLatch.countDown();
+    }
+
+    private synchronized void collectBatchCommandResponse(ChameleonCommandResult cmdResponse) {
+        if(pendingBatchResponses == null) {
+            return;
+        }
+        else if(pendingBatchResponses.size() >= pendingBatchSize) {
+            ProtocolLogging.e(TAG, "UNEXPECTED_RXDATA: Extra batch response [" + cmdResponse.cmdResponseMsg + "]");
+            return;
+        }
+        pendingBatchResponses.add(cmdResponse);
+        if(pendingBatchResponses.size() >= pendingBatchSize && serialStateMachine.transition(WAITING_FOR_RESPONSE, IDLE)) {
+            signalCommandResponseReceived();
+        }
+    }
+
+    private synchronized List<ChameleonCommandResult> finishBatchCommandResponses() {
+        List<ChameleonCommandResult> batchResponses = pendingBatchResponses;
+        pendingBatchResponses = null;
+        pendingBatchSize = 0;
+        return batchResponses;
+    }
+
+    /**
+     * Sets up the handling of the serial data responses received from the device
+     * (command responses and spontaneous LIVE log data).
+     */
+    private final SerialTransport.ReadListener serialReadListener = new SerialTransport.ReadListener() {
+
+        @Override
+        public void onReceivedData(byte[] liveRxData) {
+
+            lastReceivedNanos = System.nanoTime();
+
+            // typically generate logs of the bytes in human-readable format for parsing and/or verifying in realtime
+            // (only rendered when verbose logging is enabled, since this runs for every XModem frame):
+            if(ProtocolLogging.isLoggable(ProtocolLogging.Level.VERBOSE)) {
+                logReceivedData(liveRxData);
+            }
+
+            if(liveRxData.length == 0) {
+                return;
+            }
+            SerialUSBStates rxState = serialStateMachine.getState();
+            if(rxState == IDLE && ChameleonResponseFramer.isLineBreakOnly(liveRxData)) {
+                // the end of the last response's line break, split off into its own packet
+                return;
+            }
+            switch(rxState) {
+                case PAUSED:
+                    return;
+                case DOWNLOAD:
+                    xmodem.performXModemSerialDownload(liveRxData);
+                    return;
+                case UPLOAD:
+                    xmodem.performXModemSerialUpload(liveRxData);
+                    return;
+                case WAITING_FOR_XMODEM_UPLOAD:
+                case WAITING_FOR_XMODEM_DOWNLOAD:
+                case WAITING_FOR_RESPONSE:
+                case EXPECTING_BINARY_DATA:
+                    serialResponseFramer.onReceivedData(liveRxData, commandResponseFrameHandler);
+                    return;
+                default:
+                    ProtocolLogging.e(TAG, "UNEXPECTED_RXDATA: [" + ProtocolUtils.byteArrayToString(liveRxData) + "] (Current State = " + rxState.name() + ")");
+                    return;
+            }
+        }
+    };
+
+    private void logReceivedData(byte[] liveRxData) {
+        String hexDataStr = ProtocolUtils.trimString(ProtocolUtils.byteArrayToString(liveRxData), 48);
+        String asciiDataStr = ProtocolUtils.trimString(ProtocolUtils.bytes2Ascii(liveRxData), 48);
+        String summaryByteStr = String.format(Locale.ENGLISH, "[%s]\n[%s]",
+                hexDataStr.length() == 0 ? "NO-DATA" : hexDataStr,
+                asciiDataStr.length() == 0 ? "NO-DATA" : asciiDataStr);
+        SerialUSBStates rxState = serialStateMachine.getState();
+        if(rxState == WAITING_FOR_RESPONSE || rxState == EXPECTING_BINARY_DATA) {
+            summaryByteStr = "ISSUING CMD: \"" + lastChameleonCmd + "\"\n" + summaryByteStr;
+        }
+        else {
+            summaryByteStr = "SERIAL USB STATE: \"" + rxState.name() + "\"\n" + summaryByteStr;
+        }
+        ProtocolLogging.v(TAG, summaryByteStr);
+    }
+
+    /**
+     * Handles each complete command response frame according to the current serial USB state.
+     */
+    private final ChameleonResponseFramer.ResponseFrameListener commandResponseFrameHandler = new ChameleonResponseFramer.ResponseFrameListener() {
+
+        @Override
+        public void onResponseFrame(byte[] frameBuf, int frameLength) {
+            SerialUSBStates rxState = serialStateMachine.getState();
+            switch(rxState) {
+                case WAITING_FOR_XMODEM_UPLOAD:
+                case WAITING_FOR_XMODEM_DOWNLOAD:
+                    if(!isXModemWaitingResponse(frameBuf, frameLength)) {
+                        return;
+                    }
+                    SerialUSBStates transferState = (rxState == WAITING_FOR_XMODEM_UPLOAD) ? UPLOAD : DOWNLOAD;
+                    // the receiver's first NAK / 'C' may have come in the same packet as the status line:
+                    byte[] transferData = serialResponseFramer.takeBufferedBytes();
+                    parsedSerialUSBCmdResponse = parseCommandResponse(frameBuf, frameLength);
+                    if(!serialStateMachine.transition(rxState, transferState)) {
+                        return; // the command has already timed out
+                    }
+                    ProtocolLogging.d(TAG, "Now ready to transfer card data -> STATE:" + transferState.name() + ".");
+                    signalCommandResponseReceived();
+                    xmodem.beginTransferHandshake(transferState);
+                    if(transferData.length > 0) {
+                        if(transferState == UPLOAD) {
+                            xmodem.performXModemSerialUpload(transferData);
+                        }
+                        else {
+                            xmodem.performXModemSerialDownload(transferData);
+                        }
+                    }
+                    return;
+                case WAITING_FOR_RESPONSE:
+                    if(pendingBatchResponses != null) {
+                        collectBatchCommandResponse(parseCommandResponse(frameBuf, frameLength));
+                    }
+                    else {
+                        completeCommandResponse(rxState, frameBuf, frameLength);
+                    }
+                    return;
+                case EXPECTING_BINARY_DATA:
+                    completeCommandResponse(rxState, frameBuf, frameLength);
+                    return;
+                default:
+                    ProtocolLogging.e(TAG, "UNEXPECTED_RXDATA: [" + ProtocolUtils.byteArrayToString(Arrays.copyOf(frameBuf, frameLength)) + "] (Current State = " + rxState.name() + ")");
+                    return;
+            }
+        }
+    };
+
+    /**
+     * Publishes the response to a single command and wakes up its sender (called on the reader thread).
+     */
+    private void completeCommandResponse(SerialUSBStates rxState, byte[] frameBuf, int frameLength) {
+        parsedSerialUSBCmdResponse = parseCommandResponse(frameBuf, frameLength);
+        serialUSBBinaryDataResponse = serialResponseParser.hasData() ? serialResponseParser.copyData() : null;
+        if(serialStateMachine.transition(rxState, IDLE)) {
+            signalCommandResponseReceived();
+        }
+    }
+
+    /**
+     * Parses a response frame straight out of the framer's buffer (called on the reader thread).
+     */
+    private ChameleonCommandResult parseCommandResponse(byte[] frameBuf, int frameLength) {
+        ChameleonCommandResult parsedCmdResult = new ChameleonCommandResult();
+        if(serialResponseParser.parse(frameBuf, 0, frameLength)) {
+            parsedCmdResult.setCommandResponse(serialResponseParser);
+        }
+        return parsedCmdResult;
+    }
+
+    private static final byte[] XMODEM_WAITING_RESPONSE = "110:WAITING".getBytes(StandardCharsets.US_ASCII);
+
+    private static boolean isXModemWaitingResponse(byte[] frameBuf, int frameLength) {
+        if(frameLength < XMODEM_WAITING_RESPONSE.length) {
+            return false;
+        }
+        for(int b = 0; b < XMODEM_WAITING_RESPONSE.length; b++) {
+            if(frameBuf[b] != XMODEM_WAITING_RESPONSE[b]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Re-reads all of the cached device properties in one pipelined batch (called when the
+     * device is first connected, so that the provisioning loop starts with a warm cache).
+     * @return whether all of the properties were read successfully.
+     */
+    public boolean refreshDeviceProperties() {
+        propertyCache.invalidateAll();
+        List<StandardCommandSet> propertyQueries = new ArrayList<StandardCommandSet>(ChameleonDevicePropertyCache.CACHED_QUERIES);
+        List<ChameleonCommandResult> queryResults = sendCommandsToChameleon(propertyQueries, null);
+        if(queryResults == null) {
+            return false;
+        }
+        for(ChameleonCommandResult queryResult : queryResults) {
+            if(!queryResult.isValid) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * We seek to generate an exhaustive list of the settings reported by the attached
+     * Chameleon device for verbose debugging and error-checking purposes:
+     */
+    public String[] getChameleonMiniDeviceParams() {
+        if(!isConfigured()) {
+            ProtocolLogging.i(TAG, "The chameleon device is not configured!");
+            return new String[] { "CHAMELEON DEVICE NOT CONFIGURED!" };
+        }
+        List<ChameleonCommandResult> deviceQueries = sendCommandsToChameleon(Arrays.asList(
+                GET_VERSION, QUERY_CONFIG, QUERY_UID, QUERY_READONLY,
+                GET_MEMORY_SIZE, GET_UID_SIZE, GET_ACTIVE_SLOT, GET_RSSI_VOLTAGE), null);
+        if(deviceQueries == null) {
+            return new String[] { "CHAMELEON DEVICE QUERIES FAILED!" };
+        }
+        return new String[] {
+                "SUSB Version:" + deviceQueries.get(0).cmdResponseData,
+                "SUSB Config: " + deviceQueries.get(1).cmdResponseData,
+                "SUSB UID: " + deviceQueries.get(2).cmdResponseData,
+                "SUSB Readonly: " + deviceQueries.get(3).cmdResponseData,
+                "SUSB MemSize: " + deviceQueries.get(4).cmdResponseData,
+                "SUSB UIDSize: " + deviceQueries.get(5).cmdResponseData,
+                "SUSB ActiveSlot: " + deviceQueries.get(6).cmdResponseData,
+                "SUSB RSSI: " + deviceQueries.get(7).cmdResponseData,
+        };
+    }
+
+    /**** Handle actual communicating with the Chameleon Mini over serial USB. This includes
+     **** providing an easy-to-use mechanism for translating between the RevE versus RevG
+     **** variants of the common RevE command set. ****/
+
+    /**
+     * Sends an arbitrary command string to the device. Since we cannot tell which settings the
+     * command changes, this drops all of the cached device properties (and the slot record of
+     * the active slot).
+     * @param heldLease : the lease on the port the caller holds (see SerialUSBStateMachine.acquirePort),
+     *                    or null to take (and give back) a lease for this command.
+     * @ref sendCommandToChameleon
+     */
+    public ChameleonCommandResult sendRawStringToChameleon(String cmdString, PortLease heldLease) {
+        propertyCache.invalidateAll();
+        ChameleonCommandResult cmdResult = sendEncodedCommand(null, null, cmdString, heldLease);
+        slotDigestCache.onCommand(null, cmdString, cmdResult);
+        return cmdResult;
+    }
+
+    /**
+     * @deprecated a caller which already holds the port has to pass its PortLease instead
+     *             (without acquireSerialPortLock, the command fails).
+     * @ref sendRawStringToChameleon(String, PortLease)
+     */
+    @Deprecated
+    public ChameleonCommandResult sendRawStringToChameleon(String cmdString, boolean acquireSerialPortLock) {
+        if(!acquireSerialPortLock) {
+            return failWithoutHeldLease(cmdString);
+        }
+        return sendRawStringToChameleon(cmdString, (PortLease) null);
+    }
+
+    /**
+     * Sends one command and waits for its response (for at most the adaptive timeout of the
+     * command, and the round trip time is recorded in the command timing stats). The command
+     * line is encoded into the session's reusable command buffer while the port lock is held.
+     * @param cmd : the command being sent (null for raw command strings).
+     * @param cmdArg : the argument of cmd (see ChameleonCommandEncoder.encode).
+     * @param rawCmdString : the raw command string (only used when cmd is null).
+     * @param heldLease : the caller's lease on the port (e.g., for the command starting an XModem
+     *                    transfer), or null to take (and give back) a lease for this command.
+     *                    The command fails if heldLease is not the current lease.
+     */
+    private ChameleonCommandResult sendEncodedCommand(StandardCommandSet cmd, Object cmdArg, String rawCmdString, PortLease heldLease) {
+        ChameleonCommandResult cmdResult = new ChameleonCommands.ChameleonCommandResult();
+        String cmdName = cmd == null ? rawCmdString : cmd.name();
+        if(!isConfigured()) {
+            ProtocolLogging.e(TAG, "Chameleon device not configured for command \"" + cmdName + "\"");
+            return cmdResult;
+        }
+        else if(heldLease != null && !serialStateMachine.holdsPort(heldLease)) {
+            ProtocolLogging.e(TAG, "Command \"" + cmdName + "\" issued under " + heldLease + ", which does not hold the serial port");
+            return cmdResult;
+        }
+        else if(cmd != null && !commandEncoder.supports(cmd)) {
+            ProtocolLogging.e(TAG, "Command " + cmdName + " is not supported by the " + chameleonBoardRev.name() + " firmware");
+            return cmdResult;
+        }
+        PortLease portLease = heldLease != null ? heldLease : serialStateMachine.acquirePort(ChameleonProtocolConfig.SERIAL_USB_COMMAND_TIMEOUT);
+        if(portLease == null) {
+            ProtocolLogging.e(TAG, "Timed out waiting for the serial port to issue command: \"" + cmdName + "\"");
+            return cmdResult;
+        }
+        try {
+            if(serialChannelDirty && !resyncSerialChannel()) {
+                ProtocolLogging.e(TAG, "Serial channel not resynchronized after a lost response, unable to issue command: \"" + cmdName + "\"");
+                return cmdResult;
+            }
+            commandBuffer.reset();
+            int cmdLength = cmd == null ? commandEncoder.encodeRaw(rawCmdString, commandBuffer) :
+                    commandEncoder.encode(cmd, cmdArg, commandBuffer);
+            cmdResult.issuingCmd = cmd == null ? rawCmdString : commandBuffer.toString(0, cmdLength);
+            lastChameleonCmd = cmdResult.issuingCmd;
+            SerialUSBStates nextSerialUSBState = getCommandSerialUSBState(cmd, cmdResult.issuingCmd);
+            CountDownLatch responseLatch = new CountDownLatch(1);
+            serialUSBResponseLatch = responseLatch;
+            if(!serialStateMachine.beginOperation(portLease, nextSerialUSBState)) {
+                ProtocolLogging.e(TAG, "Serial port busy (" + serialStateMachine.getState().name() + "), unable to issue command: \"" + cmdResult.issuingCmd + "\"");
+                return cmdResult;
+            }
+            int responseTimeout = commandTimingStats.getTimeoutMillis(cmd);
+            long cmdStartTime = System.nanoTime();
+            writeSerialData(commandBuffer.array(), commandBuffer.length());
+            try {
+                responseLatch.await(responseTimeout, TimeUnit.MILLISECONDS);
+            } catch(InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            if(!isConfigured()) {
+                ProtocolLogging.e(TAG, "Session closed while waiting for the response to command: \"" + cmdResult.issuingCmd + "\"");
+                return cmdResult;
+            }
+            // the reader publishes the response before it moves the state on, so the response
+            // is complete if the timeout loses the race for the state:
+            if(responseLatch.getCount() != 0 && serialStateMachine.transition(nextSerialUSBState, IDLE)) {
+                ProtocolLogging.e(TAG, "Unable to get response for command: \"" + cmdResult.issuingCmd + "\" (timeout " + responseTimeout + "ms)");
+                markSerialChannelDirty();
+                cmdResult.isValid = false;
+                cmdResult.timedOut = true;
+                if(cmd != null) {
+                    commandTimingStats.recordTimeout(cmd);
+                }
+                return cmdResult;
+            }
+            if(cmd != null) {
+                commandTimingStats.recordResponse(cmd, System.nanoTime() - cmdStartTime);
+            }
+            cmdResult.setCommandResponse(parsedSerialUSBCmdResponse);
+            return cmdResult;
+        } finally {
+            if(heldLease == null) {
+                serialStateMachine.releasePort(portLease);
+            }
+        }
+    }
+
+    /**
+     * Records that a response was lost (called by the sender once it has moved the state back
+     * to IDLE, where the reader drops whatever still arrives).
+     */
+    private void markSerialChannelDirty() {
+        serialResponseFramer.requestReset();
+        serialChannelDirtyNanos = System.nanoTime();
+        serialChannelDirty = true;
+    }
+
+    /**
+     * Waits (holding the port lease) until no data has been received for
+     * CommandTimingStats.RESYNC_QUIET_PERIOD since the last lost response, so that the late
+     * response to the timed out command has been discarded before the next command is written.
+     * The reader drops everything it receives in the IDLE state meanwhile.
+     * @return whether the channel is clean; false if the device kept sending for
+     *         SERIAL_USB_COMMAND_TIMEOUT (the channel then stays marked for the next command).
+     */
+    private boolean resyncSerialChannel() {
+        long quietNanos = TimeUnit.MILLISECONDS.toNanos(CommandTimingStats.RESYNC_QUIET_PERIOD);
+        long resyncDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ChameleonProtocolConfig.SERIAL_USB_COMMAND_TIMEOUT);
+        while(true) {
+            long currentTime = System.nanoTime();
+            long quietSince = Math.max(serialChannelDirtyNanos, lastReceivedNanos);
+            long quietRemaining = quietSince + quietNanos - currentTime;
+            if(quietRemaining <= 0) {
+                break;
+            }
+            else if(currentTime - resyncDeadline >= 0 || !isConfigured()) {
+                return false;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(quietRemaining);
+            } catch(InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        serialResponseFramer.requestReset();
+        serialChannelDirty = false;
+        ProtocolLogging.d(TAG, "Serial channel resynchronized after a lost response.");
+        return true;
+    }
+
+    /**
+     * The result for a command issued without acquireSerialPortLock through the deprecated API:
+     * there is no way to tell which lease the caller holds, so the command is not sent (another
+     * thread's lease must not be borrowed).
+     */
+    private ChameleonCommandResult failWithoutHeldLease(String cmdName) {
+        ProtocolLogging.e(TAG, "Command \"" + cmdName + "\" issued without the port lock and without the caller's PortLease");
+        return new ChameleonCommands.ChameleonCommandResult();
+    }
+
+    /**
+     * The serial USB state to wait in for the response to a command (raw command strings are
+     * recognized by their prefix).
+     */
+    private static SerialUSBStates getCommandSerialUSBState(StandardCommandSet cmd, String cmdString) {
+        if(cmd != null) {
+            switch(cmd) {
+                case UPLOAD_XMODEM:
+                case UPLOAD_ENCRYPTED:
+                    return WAITING_FOR_XMODEM_UPLOAD;
+                case DOWNLOAD_XMODEM:
+                    return WAITING_FOR_XMODEM_DOWNLOAD;
+                default:
+                    return WAITING_FOR_RESPONSE;
+            }
+        }
+        else if(cmdString.regionMatches(true, 0, "upload", 0, 6)) {
+            return WAITING_FOR_XMODEM_UPLOAD;
+        }
+        else if(cmdString.regionMatches(true, 0, "download", 0, 8)) {
+            return WAITING_FOR_XMODEM_DOWNLOAD;
+        }
+        return WAITING_FOR_RESPONSE;
+    }
+
+    public ChameleonCommandResult sendRawStringToChameleon(String cmdString) {
+        return sendRawStringToChameleon(cmdString, (PortLease) null);
+    }
+
+    /**
+     * Sends a command to the device. The queries listed in ChameleonDevicePropertyCache are
+     * answered from the cache when possible, and the commands which change the device settings
+     * invalidate the cached properties they affect. Queries are retried (up to
+     * CommandTimingStats.MAX_QUERY_RETRIES times) when their response is lost; other commands
+     * are never re-sent, since they may have taken effect on the device.
+     * @param cmdArg : the argument of the command (see ChameleonCommandEncoder.encode), e.g., an
+     *                 Integer slot number or the byte[] of a UID.
+     * @deprecated a caller which already holds the port has to pass its PortLease instead
+     *             (without acquireSerialPortLock, the command fails).
+     */
+    @Deprecated
+    public <CmdArgType> ChameleonCommandResult sendCommandToChameleon(StandardCommandSet cmd, CmdArgType cmdArg, boolean acquireSerialPortLock) {
+        if(!acquireSerialPortLock) {
+            return failWithoutHeldLease(cmd.name());
+        }
+        return sendCommandToChameleon(cmd, cmdArg, (PortLease) null);
+    }
+
+    /**
+     * Sends a command under a lease on the port which the caller already holds (or under a
+     * lease of its own if heldLease is null). The command fails if heldLease is not the
+     * current lease on the port.
+     * @ref sendCommandToChameleon
+     */
+    public <CmdArgType> ChameleonCommandResult sendCommandToChameleon(StandardCommandSet cmd, CmdArgType cmdArg, PortLease heldLease) {
+        ChameleonCommandResult cachedResult = propertyCache.lookup(cmd);
+        if(cachedResult != null) {
+            return cachedResult;
+        }
+        ChameleonCommandResult cmdResult = sendEncodedCommand(cmd, cmdArg, null, heldLease);
+        // queries fail fast on their adaptive timeouts, so a lost response is simply asked for
+        // again (sendEncodedCommand first resynchronizes the channel, and refuses to send on one
+        // which does not go quiet):
+        for(int retry = 0; cmdResult.timedOut && retry < CommandTimingStats.MAX_QUERY_RETRIES && CommandTimingStats.isRetryable(cmd); retry++) {
+            ProtocolLogging.w(TAG, "Retrying command \"" + cmdResult.issuingCmd + "\" after a lost response");
+            cmdResult = sendEncodedCommand(cmd, cmdArg, null, heldLease);
+        }
+        propertyCache.invalidateAfterCommand(cmd);
+        propertyCache.store(cmd, cmdResult);
+        slotDigestCache.onCommand(cmd, cmdArg, cmdResult);
+        return cmdResult;
+    }
+
+    public <CmdArgType> ChameleonCommandResult sendCommandToChameleon(StandardCommandSet cmd, CmdArgType cmdArg) {
+        return sendCommandToChameleon(cmd, cmdArg, (PortLease) null);
+    }
+
+    /**
+     * Issues a pipelined batch of commands to the Chameleon: all of the command strings are
+     * written back-to-back in a single USB write, and the ordered responses are then split
+     * apart and parsed into one result per command. Reading several device settings this way
+     * costs roughly a single round trip instead of one round trip per command. The XModem
+     * transfer and reset commands change the serial state of the device and so cannot be batched.
+     * Queries which can be answered from the ChameleonDevicePropertyCache are not sent at all.
+     * When responses are lost, a batch made up only of queries is sent again (up to
+     * CommandTimingStats.MAX_QUERY_RETRIES times).
+     * @param cmds : the commands to issue, in order.
+     * @param cmdArgs : the argument for each command (may be null if none of the commands take arguments).
+     * @return List of command results in the same order as the commands, or null on error.
+     */
+    public List<ChameleonCommandResult> sendCommandsToChameleon(List<StandardCommandSet> cmds, List<?> cmdArgs) {
+        if(cmds == null || cmds.isEmpty() || (cmdArgs != null && cmdArgs.size() != cmds.size())) {
+            ProtocolLogging.e(TAG, "Invalid list of batch commands / arguments.");
+            return null;
+        }
+        else if(!isConfigured()) {
+            ProtocolLogging.e(TAG, "Chameleon device not configured for batch commands.");
+            return null;
+        }
+        List<ChameleonCommandResult> cmdResults = new ArrayList<ChameleonCommandResult>(cmds.size());
+        List<StandardCommandSet> sentCmds = new ArrayList<StandardCommandSet>(cmds.size());
+        List<ChameleonCommandResult> sentCmdResults = new ArrayList<ChameleonCommandResult>(cmds.size());
+        List<Object> sentCmdArgs = new ArrayList<Object>(cmds.size());
+        for(int c = 0; c < cmds.size(); c++) {
+            StandardCommandSet cmd = cmds.get(c);
+            if(cmd == StandardCommandSet.UPLOAD_XMODEM || cmd == StandardCommandSet.DOWNLOAD_XMODEM ||
+                    cmd == StandardCommandSet.UPLOAD_ENCRYPTED || cmd == StandardCommandSet.RESET_DEVICE) {
+                ProtocolLogging.e(TAG, "Command " + cmd.name() + " cannot be issued as part of a batch.");
+                return null;
+            }
+            else if(!commandEncoder.supports(cmd)) {
+                ProtocolLogging.e(TAG, "Command " + cmd.name() + " is not supported by the " + chameleonBoardRev.name() + " firmware");
+                return null;
+            }
+        }
+        boolean settingsChangedInBatch = false;
+        for(int c = 0; c < cmds.size(); c++) {
+            StandardCommandSet cmd = cmds.get(c);
+            // a cached answer is only good if no earlier command in the batch changes the settings:
+            ChameleonCommandResult cachedResult = settingsChangedInBatch ? null : propertyCache.lookup(cmd);
+            settingsChangedInBatch |= ChameleonDevicePropertyCache.changesDeviceProperties(cmd);
+            if(cachedResult != null) {
+                cmdResults.add(cachedResult);
+                continue;
+            }
+            ChameleonCommandResult cmdResult = new ChameleonCommandResult();
+            cmdResults.add(cmdResult);
+            sentCmds.add(cmd);
+            sentCmdArgs.add(cmdArgs == null ? null : cmdArgs.get(c));
+            sentCmdResults.add(cmdResult);
+        }
+        if(sentCmds.isEmpty()) {
+            return cmdResults;
+        }
+        PortLease portLease = serialStateMachine.acquirePort(ChameleonProtocolConfig.SERIAL_USB_COMMAND_TIMEOUT);
+        if(portLease == null) {
+            ProtocolLogging.e(TAG, "Timed out waiting for the serial port to issue batch commands.");
+            return cmdResults;
+        }
+        try {
+            for(int retry = 0; ; retry++) {
+                int answeredCmds = issueCommandBatch(portLease, sentCmds, sentCmdArgs, sentCmdResults);
+                if(answeredCmds < 0 || answeredCmds == sentCmds.size()) {
+                    break;
+                }
+                ProtocolLogging.e(TAG, "Only received " + answeredCmds + " of " + sentCmds.size() + " batch command responses.");
+                // the responses are matched to the commands by their order, so a response lost in
+                // the middle shifts the later ones: like single queries, a batch is only sent again
+                // (whole, once the channel has been resynchronized) if it is nothing but queries
+                if(retry >= CommandTimingStats.MAX_QUERY_RETRIES || !areRetryable(sentCmds)) {
+                    break;
+                }
+                ProtocolLogging.w(TAG, "Retrying the batch of " + sentCmds.size() + " queries after a lost response");
+            }
+        } finally {
+            serialStateMachine.releasePort(portLease);
+        }
+        for(int c = 0; c < sentCmds.size(); c++) {
+            propertyCache.invalidateAfterCommand(sentCmds.get(c));
+            slotDigestCache.onCommand(sentCmds.get(c), sentCmdArgs.get(c), sentCmdResults.get(c));
+        }
+        for(int c = 0; c < sentCmds.size(); c++) {
+            if(!laterCommandInvalidates(sentCmds, c)) {
+                propertyCache.store(sentCmds.get(c), sentCmdResults.get(c));
+            }
+        }
+        return cmdResults;
+    }
+
+    /**
+     * Writes a batch of commands in one USB write under the caller's lease and waits for their
+     * responses (for at most the batch timeout of the commands).
+     * @return the number of commands answered (their results filled in, in order, and the rest
+     *         marked as timed out), or -1 if the batch could not be issued.
+     */
+    private int issueCommandBatch(PortLease portLease, List<StandardCommandSet> batchCmds, List<Object> batchCmdArgs,
+                                  List<ChameleonCommandResult> batchCmdResults) {
+        if(serialChannelDirty && !resyncSerialChannel()) {
+            ProtocolLogging.e(TAG, "Serial channel not resynchronized after a lost response, unable to issue batch commands.");
+            return -1;
+        }
+        // all of the command lines go back-to-back into the reusable command buffer:
+        commandBuffer.reset();
+        for(int c = 0; c < batchCmds.size(); c++) {
+            int cmdStart = commandBuffer.length();
+            int cmdLength = commandEncoder.encode(batchCmds.get(c), batchCmdArgs.get(c), commandBuffer);
+            batchCmdResults.get(c).issuingCmd = commandBuffer.toString(cmdStart, cmdStart + cmdLength);
+        }
+        lastChameleonCmd = batchCmdResults.get(0).issuingCmd + (batchCmds.size() > 1 ? " ..." : "");
+        CountDownLatch responseLatch = new CountDownLatch(1);
+        serialUSBResponseLatch = responseLatch;
+        synchronized(this) {
+            pendingBatchResponses = new ArrayList<ChameleonCommandResult>(batchCmds.size());
+            pendingBatchSize = batchCmds.size();
+        }
+        if(!serialStateMachine.beginOperation(portLease, WAITING_FOR_RESPONSE)) {
+            ProtocolLogging.e(TAG, "Serial port busy (" + serialStateMachine.getState().name() + "), unable to issue batch commands.");
+            finishBatchCommandResponses();
+            return -1;
+        }
+        writeSerialData(commandBuffer.array(), commandBuffer.length());
+        try {
+            responseLatch.await(commandTimingStats.getBatchTimeoutMillis(batchCmds), TimeUnit.MILLISECONDS);
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        if(responseLatch.getCount() != 0 && serialStateMachine.transition(WAITING_FOR_RESPONSE, IDLE)) {
+            markSerialChannelDirty();
+        }
+        List<ChameleonCommandResult> batchResponses = finishBatchCommandResponses();
+        for(int c = 0; c < batchCmds.size(); c++) {
+            ChameleonCommandResult cmdResult = batchCmdResults.get(c);
+            cmdResult.timedOut = c >= batchResponses.size();
+            if(!cmdResult.timedOut) {
+                cmdResult.setCommandResponse(batchResponses.get(c));
+            }
+        }
+        return batchResponses.size();
+    }
+
+    private static boolean areRetryable(List<StandardCommandSet> cmds) {
+        for(StandardCommandSet cmd : cmds) {
+            if(!CommandTimingStats.isRetryable(cmd)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether a query result in the batch may already be stale because a later command in the
+     * same batch changes the setting (e.g., CONFIG? followed by SETTING=2).
+     */
+    private static boolean laterCommandInvalidates(List<StandardCommandSet> batchCmds, int queryIndex) {
+        for(int c = queryIndex + 1; c < batchCmds.size(); c++) {
+            if(ChameleonDevicePropertyCache.changesDeviceProperties(batchCmds.get(c))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**** Chameleon Board UID configuration and real-time / live setting functions ****/
+
+    public boolean changeChameleonUID(ChameleonUIDTypeSpec_t uidOperation, String suffixBytes) {
+
+        byte[] chameleonUIDPrefixBytes = ChameleonProtocolConfig.chameleonUIDPrefixBytes;
+        if(!isConfigured()) {
+            return false;
+        }
+        else if(uidOperation == ChameleonUIDTypeSpec_t.SPECIFY_SUFFIX_BYTES && suffixBytes == null) {
+            return false;
+        }
+        List<ChameleonCommandResult> uidQueries = sendCommandsToChameleon(Arrays.asList(GET_UID_SIZE, QUERY_UID), null);
+        if(uidQueries == null) {
+            return false;
+        }
+        try {
+            chameleonUIDNumBytes = Integer.parseInt(uidQueries.get(0).cmdResponseData);
+        } catch(Exception nfe) {}
+        if(uidOperation == ChameleonUIDTypeSpec_t.SPECIFY_SUFFIX_BYTES &&
+                chameleonUIDNumBytes != chameleonUIDPrefixBytes.length + suffixBytes.length() / 2) {
+            return false;
+        }
+
+        byte[] nextUIDBytes = new byte[chameleonUIDNumBytes];
+        if(uidOperation == ChameleonUIDTypeSpec_t.INCREMENT_EXISTING) {
+            String priorUIDString = uidQueries.get(1).isValid ? uidQueries.get(1).cmdResponseData : null;
+            if(priorUIDString == null) {
+                return false;
+            }
+            byte[] priorBytes = ProtocolUtils.byteArrayFromString(priorUIDString);
+            boolean searchingForNoCarry = true;
+            for(int b = priorBytes.length - 1; b >= 0; b--) {
+                byte lsb = priorBytes[b];
+                if(lsb == BYTE(0xff))
+                    continue;
+                priorBytes[b] = BYTE(lsb + BYTE(0x01));
+                searchingForNoCarry = false;
+            }
+            if(searchingForNoCarry) {
+                Arrays.fill(priorBytes, BYTE(0x00));
+            }
+            nextUIDBytes = priorBytes;
+        }
+        else if(uidOperation == ChameleonUIDTypeSpec_t.TRULY_RANDOM) {
+            nextUIDBytes = ProtocolUtils.generateRandomBytes(chameleonUIDNumBytes);
+        }
+        else if(uidOperation == ChameleonUIDTypeSpec_t.PREFIXED_RANDOMIZED) {
+            nextUIDBytes = ProtocolUtils.generateRandomBytes(chameleonUIDPrefixBytes, chameleonUIDNumBytes - chameleonUIDPrefixBytes.length);
+        }
+
+        ChameleonCommandResult uidSetCmdResult = sendCommandToChameleon(SET_UID, nextUIDBytes);
+        if(ProtocolLogging.isLoggable(ProtocolLogging.Level.INFO)) {
+            ProtocolLogging.i(TAG, "UID Reset to:\n" + uidSetCmdResult.toString());
+        }
+        return true;
+
+    }
+
+    /**** Slot preparation, uploads and downloads for this device: ****/
+
+    public boolean prepareChameleonEmulationSlot(int slotNumber, boolean clearSlot,
+                                                 ChameleonEmulatedConfigType_t chameleonConfigType) {
+        List<StandardCommandSet> prepCmds = new ArrayList<StandardCommandSet>();
+        List<Object> prepCmdArgs = new ArrayList<Object>();
+        prepCmds.add(SET_ACTIVE_SLOT);
+        prepCmdArgs.add(slotNumber);
+        if(clearSlot) {
+            prepCmds.add(CLEAR_ACTIVE_SLOT);
+            prepCmdArgs.add(null);
+        }
+        if(chameleonConfigType != null) {
+            prepCmds.add(SET_CONFIG);
+            prepCmdArgs.add(chameleonConfigType);
+        }
+        List<ChameleonCommandResult> prepResults = sendCommandsToChameleon(prepCmds, prepCmdArgs);
+        if(prepResults == null) {
+            return false;
+        }
+        for(ChameleonCommandResult cmdResult : prepResults) {
+            if(!cmdResult.isValid) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the transfer to complete: this returns as soon as the final EOT exchange is over
+     * and the transfer has given back the serial port.
+     * @param transfer
+     * @return whether the transfer succeeded.
+     */
+    boolean awaitTransfer(XModemSession transfer) {
+        if(transfer == null) {
+            return false;
+        }
+        try {
+            return transfer.getCompletion().get();
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            transfer.abort();
+            return false;
+        } catch(ExecutionException ee) {
+            return false;
+        }
+    }
+
+    /**
+     * Waits for the upload and verifies it: by reading back the slot and comparing its digest
+     * against the digest of the uploaded bytes, or else by the CRC-16 frames (XModem-CRC) or the
+     * UID of the dump.
+     * @param transfer
+     * @param readBack
+     * @return the verification report.
+     */
+    private UploadVerificationReport executeChameleonUpload(XModemSession transfer, boolean readBack) {
+        UploadVerificationReport verifyReport = new UploadVerificationReport(transfer);
+        verifyReport.setTransferSucceeded(awaitTransfer(transfer));
+        if(!verifyReport.transferSucceeded()) {
+            return verifyReport;
+        }
+        else if(readBack) {
+            // the slot is digested as it is received, so it is never held in memory:
+            TransferDigest uploadDigest = transfer.getUploadDigest();
+            XModemDownloadSink.DigestSink readbackSink = new XModemDownloadSink.DigestSink(uploadDigest.getByteCount(), uploadDigest.isSHA256Enabled());
+            boolean slotDownloaded = chameleonDownload(readbackSink);
+            verifyReport.setReadback(slotDownloaded, readbackSink.getDigest(), readbackSink.getBytesReceived());
+        }
+        else if(transfer.getTransferStats().isCRCMode()) {
+            verifyReport.setFrameCRCVerified(); // every frame was checked against its CRC-16, so no read-back is needed
+        }
+        else {
+            // the head of the data was kept as it was sent, so the source stream is never re-read
+            verifyReport.setUIDVerified(verifyChameleonUpload(transfer.getUploadHeadBytes()));
+        }
+        if(!verifyReport.isVerified()) {
+            ProtocolLogging.e(TAG, "Upload not verified: " + verifyReport.toString());
+        }
+        return verifyReport;
+    }
+
+    public boolean chameleonUpload(InputStream dumpDataStream) {
+        return executeChameleonUpload(xmodem.uploadCardFileByXModem(dumpDataStream), false).isVerified();
+    }
+
+    public boolean chameleonUpload(byte[] dumpDataBytes) {
+        return executeChameleonUpload(xmodem.uploadCardFileByXModem(dumpDataBytes), false).isVerified();
+    }
+
+    /**
+     * Uploads the dump and reports how it was verified, including the CRC32C (and SHA-256, if
+     * enabled by XModem.setUseSHA256Digest) of the uploaded bytes.
+     * @param dumpDataStream
+     * @param readBack : whether to read back the slot after the upload and compare its digest.
+     * @return the verification report.
+     */
+    public UploadVerificationReport chameleonUploadAndVerify(InputStream dumpDataStream, boolean readBack) {
+        return executeChameleonUpload(xmodem.uploadCardFileByXModem(dumpDataStream), readBack);
+    }
+
+    public UploadVerificationReport chameleonUploadAndVerify(byte[] dumpDataBytes, boolean readBack) {
+        return executeChameleonUpload(xmodem.uploadCardFileByXModem(dumpDataBytes), readBack);
+    }
+
+    /**
+     * The device decrypts the data as it is received, so the slot can not be compared against the
+     * digest of the (encrypted) upload: this is only verified by the UID or CRC-16 frames.
+     */
+    public boolean chameleonUploadEncrypted(byte[] dumpDataBytes, int keyIndex, long timeStampSaltData) {
+        return executeChameleonUpload(xmodem.uploadEncryptedCardFileByXModem(dumpDataBytes, keyIndex, timeStampSaltData), false).isVerified();
+    }
+
+    /**
+     * Uploads a plaintext dump with UPLOAD_ENCRYPTED, encrypting it on the fly with the host side
+     * copy of the key at keyIndex (see getUploadCipherCache, whose cipher scheme has to be
+     * selected first). The head of the plaintext is kept for verifying the UID, which the device
+     * reports after decrypting the data.
+     */
+    public boolean chameleonUploadAndEncrypt(InputStream plainDataStream, int keyIndex, long timeStampSaltData) {
+        return executeChameleonUpload(xmodem.uploadAndEncryptCardFileByXModem(plainDataStream, keyIndex, timeStampSaltData), false).isVerified();
+    }
+
+    public boolean chameleonUploadAndEncrypt(byte[] plainDataBytes, int keyIndex, long timeStampSaltData) {
+        return executeChameleonUpload(xmodem.uploadAndEncryptCardFileByXModem(plainDataBytes, keyIndex, timeStampSaltData), false).isVerified();
+    }
+
+    private int getChameleonUIDSize() {
+        int uidSize = 4;
+        try {
+            uidSize = Integer.parseInt(sendCommandToChameleon(GET_UID_SIZE, null).cmdResponseData);
+        } catch(NumberFormatException nfe) {
+            uidSize = 4;
+        }
+        return uidSize;
+    }
+
+    private byte[] getCardSourceUIDBytes(byte[] dumpInputBytes, int uidByteSize) {
+        if(dumpInputBytes == null || uidByteSize <= 0 || dumpInputBytes.length < uidByteSize) {
+            return null;
+        }
+        byte[] uidBytes = new byte[uidByteSize];
+        System.arraycopy(dumpInputBytes, 0, uidBytes, 0, uidByteSize);
+        return uidBytes;
+    }
+
+    private boolean diffChameleonUIDBytes(byte[] actualUIDBytes) {
+        try {
+            String actualUIDStr = ProtocolUtils.byteArrayToString(actualUIDBytes).replace(" ", "");
+            String reportedUIDStr = sendCommandToChameleon(QUERY_UID, null).cmdResponseData;
+            if(actualUIDStr.equalsIgnoreCase(reportedUIDStr)) {
+                return true;
+            }
+        } catch(Exception ioe) {
+            ProtocolLogging.e(TAG, "Unable to verify card upload: " + ioe.getMessage());
+            ioe.printStackTrace();
+        }
+        return false;
+    }
+
+    private boolean verifyChameleonUpload(byte[] dumpInputBytes) {
+        byte[] uidBytes = getCardSourceUIDBytes(dumpInputBytes, getChameleonUIDSize());
+        return diffChameleonUIDBytes(uidBytes);
+    }
+
+    /**
+     * Puts the card image into the slot (SETTING=, CLEAR, CONFIG= and the upload), unless the
+     * slot digest cache says the slot already holds it: the slot is then only made active, and the
+     * record is checked against CONFIG?, MEMSIZE?, UID? and READONLY? in the same pipelined batch
+     * (a single round trip). That is enough for a slot which has stayed read-only since the
+     * upload; a writable slot is read back and compared against the image digest instead.
+     * A verified upload is recorded in the cache for the next time.
+     * @param slotNumber
+     * @param chameleonConfigType : the configuration to upload with (null keeps the current one).
+     * @param dumpDataBytes
+     * @param readBack : whether to verify the upload by reading back the slot.
+     * @return the verification report (method SLOT_CACHE if the upload was skipped).
+     * @ref ChameleonSlotDigestCache
+     */
+    public UploadVerificationReport chameleonUploadToSlot(int slotNumber, ChameleonEmulatedConfigType_t chameleonConfigType,
+                                                          byte[] dumpDataBytes, boolean readBack) {
+        String configTypeName = chameleonConfigType == null ? "" : chameleonConfigType.name();
+        TransferDigest imageDigest = new TransferDigest(true);
+        imageDigest.update(dumpDataBytes, 0, dumpDataBytes.length);
+        ChameleonSlotDigestCache.SlotRecord slotRecord = slotDigestCache.lookup(slotNumber, configTypeName, imageDigest);
+        if(slotRecord != null) {
+            List<ChameleonCommandResult> slotQueries = sendCommandsToChameleon(Arrays.asList(SET_ACTIVE_SLOT, QUERY_CONFIG, GET_MEMORY_SIZE, QUERY_UID, QUERY_READONLY),
+                    Arrays.asList(slotNumber, null, null, null, null));
+            UploadVerificationReport verifyReport = slotQueries == null || !slotQueries.get(0).isValid ? null :
+                    confirmSlotRecord(slotNumber, slotQueries.get(4), imageDigest);
+            if(verifyReport != null) {
+                return verifyReport;
+            }
+        }
+        if(!prepareChameleonEmulationSlot(slotNumber, true, chameleonConfigType)) {
+            ProtocolLogging.e(TAG, "Unable to prepare slot " + slotNumber + " for the upload.");
+            return new UploadVerificationReport(null);
+        }
+        UploadVerificationReport verifyReport = chameleonUploadAndVerify(dumpDataBytes, readBack);
+        if(verifyReport.isVerified()) {
+            List<ChameleonCommandResult> slotQueries = sendCommandsToChameleon(Arrays.asList(QUERY_CONFIG, GET_MEMORY_SIZE, QUERY_UID, QUERY_READONLY), null);
+            if(slotQueries != null && slotQueries.get(0).isValid && slotQueries.get(1).isValid && slotQueries.get(2).isValid) {
+                slotDigestCache.store(new ChameleonSlotDigestCache.SlotRecord(slotNumber, configTypeName, slotQueries.get(0).cmdResponseData,
+                        slotQueries.get(1).cmdResponseData, slotQueries.get(2).cmdResponseData, XModem.isReadOnlyResponse(slotQueries.get(3)),
+                        imageDigest, System.currentTimeMillis()));
+            }
+        }
+        return verifyReport;
+    }
+
+    /**
+     * Decides whether the (now active) slot still holds the image of its record, once the record
+     * has been checked against CONFIG?, MEMSIZE?, UID? and READONLY? (the cache has dropped it if
+     * they no longer match, and marked it writable if READONLY? was 0). The queries are trusted
+     * for a slot which has been read-only since the upload. Otherwise the head of the slot is
+     * read back (as many bytes as the image) and compared against the image digest, and the
+     * record is dropped if it does not match.
+     * @param slotNumber
+     * @param readOnlyResult : the result of READONLY? from the batch with the other queries.
+     * @param imageDigest
+     * @return the verification report of the skipped upload, or null if the image has to be uploaded.
+     */
+    UploadVerificationReport confirmSlotRecord(int slotNumber, ChameleonCommandResult readOnlyResult, TransferDigest imageDigest) {
+        ChameleonSlotDigestCache.SlotRecord slotRecord = slotDigestCache.getRecord(slotNumber);
+        if(slotRecord == null || slotDigestCache.getActiveSlot() != slotNumber) {
+            return null;
+        }
+        UploadVerificationReport verifyReport = new UploadVerificationReport(null);
+        if(slotRecord.readOnly && XModem.isReadOnlyResponse(readOnlyResult)) {
+            verifyReport.setSlotCacheHit(imageDigest);
+            return verifyReport;
+        }
+        XModemDownloadSink.DigestSink readbackSink = new XModemDownloadSink.DigestSink(imageDigest.getByteCount(), imageDigest.isSHA256Enabled());
+        boolean slotDownloaded = chameleonDownload(readbackSink);
+        verifyReport.setSlotCacheReadback(imageDigest, slotDownloaded, readbackSink.getDigest(), readbackSink.getBytesReceived());
+        if(!verifyReport.isVerified()) {
+            ProtocolLogging.i(TAG, "Slot " + slotNumber + " of " + deviceSerialNumber + " no longer holds its recorded image: " + verifyReport);
+            slotDigestCache.invalidate(slotNumber);
+            return null;
+        }
+        return verifyReport;
+    }
+
+    /**
+     * Fills several slots in one pipelined pass over the connection (see ChameleonProvisioningBatch).
+     * @param slotImages : the (slot, configuration, image) items, in order.
+     * @param readBack : whether to verify every upload by reading back the slot.
+     * @param progressListener : receives the per-slot progress events (may be null).
+     * @return the per-slot results and the end-to-end throughput of the batch.
+     */
+    public ChameleonProvisioningBatch.Report provisionSlots(List<ChameleonProvisioningBatch.SlotImage> slotImages, boolean readBack,
+                                                           ChameleonProvisioningBatch.ProgressListener progressListener) {
+        return new ChameleonProvisioningBatch(this, slotImages, readBack, progressListener).run();
+    }
+
+    public boolean chameleonDownload(File cardOutFile) {
+        return awaitTransfer(xmodem.downloadCardFileByXModem(cardOutFile));
+    }
+
+    /**
+     * @param cardOutFile
+     * @param registerDownload : whether the completed file is passed on to the XModem.DownloadListener
+     *                           (e.g., registered with the Android DownloadManager).
+     */
+    public boolean chameleonDownload(File cardOutFile, boolean registerDownload) {
+        return awaitTransfer(xmodem.downloadCardFileByXModem(cardOutFile, registerDownload));
+    }
+
+    public boolean chameleonDownload(XModemDownloadSink downloadSink) {
+        return awaitTransfer(xmodem.downloadCardFileByXModem(downloadSink));
+    }
+
+    /**
+     * Downloads the active slot into memory (sized from the MEMSIZE of the device).
+     * @return a read-only view of the slot data, or null if the download failed.
+     */
+    public ByteBuffer chameleonDownloadToMemory() {
+        int memorySize;
+        try {
+            memorySize = Integer.parseInt(sendCommandToChameleon(GET_MEMORY_SIZE, null).cmdResponseData);
+        } catch(NumberFormatException nfe) {
+            memorySize = 0;
+        }
+        XModemDownloadSink.ByteBufferSink memorySink = new XModemDownloadSink.ByteBufferSink(memorySize);
+        return chameleonDownload(memorySink) ? memorySink.getData() : null;
+    }
+
+    /**** Asynchronous variants of the operations above (run on the session's I/O thread): ****/
+
+    /**
+     * Queues an operation on this device's I/O executor.
+     * @param asyncOperation
+     * @return a future for the result (failed with a RejectedExecutionException if the
+     *         session has already been closed).
+     */
+    public <T> ChameleonFuture<T> submitAsync(Callable<T> asyncOperation) {
+        ChameleonFuture<T> asyncResult = new ChameleonFuture<T>(asyncOperation);
+        try {
+            ioExecutor.execute(asyncResult);
+        } catch(RejectedExecutionException ree) {
+            asyncResult = new ChameleonFuture<T>(new Callable<T>() {
+                public T call() {
+                    throw new RejectedExecutionException("Chameleon device session " + deviceSerialNumber + " is closed.");
+                }
+            });
+            asyncResult.run();
+        }
+        return asyncResult;
+    }
+
+    public ChameleonFuture<ChameleonCommandResult> sendRawStringToChameleonAsync(final String cmdString) {
+        return submitAsync(new Callable<ChameleonCommandResult>() {
+            public ChameleonCommandResult call() {
+                return sendRawStringToChameleon(cmdString);
+            }
+        });
+    }
+
+    public <CmdArgType> ChameleonFuture<ChameleonCommandResult> sendCommandToChameleonAsync(final StandardCommandSet cmd, final CmdArgType cmdArg) {
+        return submitAsync(new Callable<ChameleonCommandResult>() {
+            public ChameleonCommandResult call() {
+                return sendCommandToChameleon(cmd, cmdArg);
+            }
+        });
+    }
+
+    public ChameleonFuture<List<ChameleonCommandResult>> sendCommandsToChameleonAsync(final List<StandardCommandSet> cmds, final List<?> cmdArgs) {
+        return submitAsync(new Callable<List<ChameleonCommandResult>>() {
+            public List<ChameleonCommandResult> call() {
+                return sendCommandsToChameleon(cmds, cmdArgs);
+            }
+        });
+    }
+
+    public ChameleonFuture<Boolean> changeChameleonUIDAsync(final ChameleonUIDTypeSpec_t uidOperation, final String suffixBytes) {
+        return submitAsync(new Callable<Boolean>() {
+            public Boolean call() {
+                return changeChameleonUID(uidOperation, suffixBytes);
+            }
+        });
+    }
+
+    public ChameleonFuture<Boolean> prepareChameleonEmulationSlotAsync(final int slotNumber, final boolean clearSlot,
+                                                                       final ChameleonEmulatedConfigType_t chameleonConfigType) {
+        return submitAsync(new Callable<Boolean>() {
+            public Boolean call() {
+                return prepareChameleonEmulationSlot(slotNumber, clearSlot, chameleonConfigType);
+            }
+        });
+    }
+
+    public ChameleonFuture<Boolean> chameleonUploadAsync(final InputStream dumpDataStream) {
+        return submitAsync(new Callable<Boolean>() {
+            public Boolean call() {
+                return chameleonUpload(dumpDataStream);
+            }
+        });
+    }
+
+    public ChameleonFuture<Boolean> chameleonUploadAsync(final byte[] dumpDataBytes) {
+        return submitAsync(new Callable<Boolean>() {
+            public Boolean call() {
+                return chameleonUpload(dumpDataBytes);
+            }
+        });
+    }
+
+    public ChameleonFuture<UploadVerificationReport> chameleonUploadAndVerifyAsync(final InputStream dumpDataStream, final boolean readBack) {
+        return submitAsync(new Callable<UploadVerificationReport>() {
+            public UploadVerificationReport call() {
+                return chameleonUploadAndVerify(dumpDataStream, readBack);
+            }
+        });
+    }
+
+    public ChameleonFuture<UploadVerificationReport> chameleonUploadAndVerifyAsync(final byte[] dumpDataBytes, final boolean readBack) {
+        return submitAsync(new Callable<UploadVerificationReport>() {
+            public UploadVerificationReport call() {
+                return chameleonUploadAndVerify(dumpDataBytes, readBack);
+            }
+        });
+    }
+
+    public ChameleonFuture<UploadVerificationReport> chameleonUploadToSlotAsync(final int slotNumber, final ChameleonEmulatedConfigType_t chameleonConfigType,
+                                                                           final byte[] dumpDataBytes, final boolean readBack) {
+        return submitAsync(new Callable<UploadVerificationReport>() {
+            public UploadVerificationReport call() {
+                return chameleonUploadToSlot(slotNumber, chameleonConfigType, dumpDataBytes, readBack);
+            }
+        });
+    }
+
+    public ChameleonFuture<ChameleonProvisioningBatch.Report> provisionSlotsAsync(final List<ChameleonProvisioningBatch.SlotImage> slotImages, final boolean readBack,
+                                                                                  final ChameleonProvisioningBatch.ProgressListener progressListener) {
+        return submitAsync(new Callable<ChameleonProvisioningBatch.Report>() {
+            public ChameleonProvisioningBatch.Report call() {
+                return provisionSlots(slotImages, readBack, progressListener);
+            }
+        });
+    }
+
+    public ChameleonFuture<Boolean> chameleonUploadEncryptedAsync(final byte[] dumpDataBytes, final int keyIndex, final long timeStampSaltData) {
+        return submitAsync(new Callable<Boolean>() {
+            public Boolean call() {
+                return chameleonUploadEncrypted(dumpDataBytes, keyIndex, timeStampSaltData);
+            }
+        });
+    }
+
+    public ChameleonFuture<Boolean> chameleonUploadAndEncryptAsync(final InputStream plainDataStream, final int keyIndex, final long timeStampSaltData) {
+        return submitAsync(new Callable<Boolean>() {
+            public Boolean call() {
+                return chameleonUploadAndEncrypt(plainDataStream, keyIndex, timeStampSaltData);
+            }
+        });
+    }
+
+    public ChameleonFuture<Boolean> chameleonDownloadAsync(final File cardOutFile) {
+        return submitAsync(new Callable<Boolean>() {
+            public Boolean call() {
+                return chameleonDownload(cardOutFile);
+            }
+        });
+    }
+
+    public ChameleonFuture<ByteBuffer> chameleonDownloadToMemoryAsync() {
+        return submitAsync(new Callable<ByteBuffer>() {
+            public ByteBuffer call() {
+                return chameleonDownloadToMemory();
+            }
+        });
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.maxieds.chameleonminiusb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * <h1>Chameleon Future</h1>
+ * The result of an asynchronous Chameleon command, upload or download which has been queued on
+ * the I/O executor of a ChameleonDeviceSession. Besides the usual blocking get() calls of a
+ * Future, callbacks can be attached that are invoked once the operation completes.
+ * Callbacks run on the device's I/O thread (or immediately on the calling thread if the
+ * operation has already completed), so an Android client should post back to its UI thread
+ * from within the callback as needed.
+ *
+ * @ref ChameleonDeviceSession.submitAsync
+ */
+public class ChameleonFuture<T> extends FutureTask<T> {
+
+    private static final String TAG = ChameleonFuture.class.getSimpleName();
+
+    /**
+     * Receives the outcome of an asynchronous operation.
+     */
+    public interface Callback<T> {
+        void onSuccess(T result);
+        void onFailure(Throwable error);
+    }
+
+    private final List<Callback<? super T>> callbacks = new ArrayList<Callback<? super T>>();
+    private boolean callbacksDispatched = false;
+
+    public ChameleonFuture(Callable<T> asyncOperation) {
+        super(asyncOperation);
+    }
+
+    /**
+     * Registers a callback for the outcome of this operation.
+     * @param callback
+     * @return this future (so that calls can be chained).
+     */
+    public ChameleonFuture<T> addCallback(Callback<? super T> callback) {
+        synchronized(callbacks) {
+            if(!callbacksDispatched) {
+                callbacks.add(callback);
+                return this;
+            }
+        }
+        dispatchCallback(callback);
+        return this;
+    }
+
+    @Override
+    protected void done() {
+        List<Callback<? super T>> pendingCallbacks;
+        synchronized(callbacks) {
+            callbacksDispatched = true;
+            pendingCallbacks = new ArrayList<Callback<? super T>>(callbacks);
+            callbacks.clear();
+        }
+        for(Callback<? super T> callback : pendingCallbacks) {
+            dispatchCallback(callback);
+        }
+    }
+
+    private void dispatchCallback(Callback<? super T> callback) {
+        T result;
+        try {
+            result = get();
+        } catch(ExecutionException ee) {
+            invokeFailure(callback, ee.getCause() != null ? ee.getCause() : ee);
+            return;
+        } catch(CancellationException ce) {
+            invokeFailure(callback, ce);
+            return;
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            invokeFailure(callback, ie);
+            return;
+        }
+        try {
+            callback.onSuccess(result);
+        } catch(RuntimeException rte) {
+            ProtocolLogging.e(TAG, "Exception thrown by an async success callback: " + rte.getMessage());
+        }
+    }
+
+    private void invokeFailure(Callback<? super T> callback, Throwable error) {
+        try {
+            callback.onFailure(error);
+        } catch(RuntimeException rte) {
+            ProtocolLogging.e(TAG, "Exception thrown by an async failure callback: " + rte.getMessage());
+        }
+    }
+
+}
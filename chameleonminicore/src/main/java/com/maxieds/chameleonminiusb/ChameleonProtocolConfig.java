@@ -0,0 +1,98 @@
+package com.maxieds.chameleonminiusb;
+
+/**
+ * <h1>Chameleon Protocol Config</h1>
+ * The Android-independent definitions shared by the protocol core and the Android library:
+ * board revisions, serial USB states, emulated tag configurations and timing constants.
+ * ChameleonDeviceConfig extends this class, so these remain accessible through it
+ * (e.g., ChameleonDeviceConfig.ChameleonEmulatedConfigType_t.MF_CLASSIC_1K).
+ */
+public class ChameleonProtocolConfig {
+
+    public static final int SHORT_PAUSE = 25;
+    public static final int MEDIUM_PAUSE = 1250;
+
+    /**** Constants and helper functions for determining the Chameleon Mini Revision types: ****/
+    public static final int CMUSB_REVG_VENDORID = 0x16d0;
+    public static final int CMUSB_REVG_PRODUCTID = 0x04b2;
+    public static final int CMUSB_REVE_VENDORID = 0x03eb;
+    public static final int CMUSB_REVE_PRODUCTID = 0x2044;
+
+    public static enum ChameleonBoardType_t {
+        REVE_REBOOTED,
+        REVG,
+        REVE_OTHER,
+        REV_CUSTOM_FIRMWARE,
+        REV_OLDER_FIRMWARE,
+    };
+
+    public static ChameleonBoardType_t getChameleonBoardRevision(int usbVendorID, int usbProductID) {
+        if(usbVendorID == CMUSB_REVE_VENDORID && usbProductID == CMUSB_REVE_PRODUCTID) {
+            return ChameleonBoardType_t.REVE_REBOOTED;
+        }
+        else if(usbVendorID == CMUSB_REVE_VENDORID) {
+            return ChameleonBoardType_t.REVE_OTHER;
+        }
+        else if(usbVendorID == CMUSB_REVG_VENDORID && usbProductID == CMUSB_REVG_PRODUCTID) {
+            return ChameleonBoardType_t.REVG;
+        }
+        else if(usbVendorID == CMUSB_REVG_VENDORID) {
+            return ChameleonBoardType_t.REV_CUSTOM_FIRMWARE;
+        }
+        else {
+            return ChameleonBoardType_t.REV_OLDER_FIRMWARE;
+        }
+    }
+
+    public static enum SerialUSBStates {
+        IDLE,
+        PAUSED,
+        WAITING_FOR_RESPONSE,
+        EXPECTING_BINARY_DATA,
+        UPLOAD,
+        WAITING_FOR_XMODEM_UPLOAD,
+        DOWNLOAD,
+        WAITING_FOR_XMODEM_DOWNLOAD,
+        ERROR_OCCURED,
+        UNEXPECTED_INCOMING_RXDATA,
+    };
+
+    public static int SERIAL_USB_COMMAND_TIMEOUT = 3000; // in milliseconds
+
+    /**** Chameleon Board UID configuration and real-time / live setting functions ****/
+    public static byte[] chameleonUIDPrefixBytes = ProtocolUtils.byteArrayFromString("BC5926C8");
+
+    public static enum ChameleonUIDTypeSpec_t {
+        TRULY_RANDOM,
+        PREFIXED_RANDOMIZED,
+        INCREMENT_EXISTING,
+        SPECIFY_SUFFIX_BYTES,
+    };
+
+    /**** NFC Tag Types that the Chameleon Boards can emulate (all may not be enabled by
+     **** default in the standard compile of the firmware...):
+     ****/
+
+    /**
+     * All possible emulated tag configurations that can be enabled in the RevE Rebooted source.
+     * @ref https://github.com/iceman1001/ChameleonMini-rebooted/blob/master/Firmware/Chameleon-Mini/Configuration.h
+     * @since 2018.08.08 (last access date of the RevE firmware source)
+     */
+    public static enum ChameleonEmulatedConfigType_t {
+        NONE,
+        MF_ULTRALIGHT,
+        MF_ULTRALIGHT_EV1_80B,
+        MF_ULTRALIGHT_EV1_164B,
+        MF_CLASSIC_1K,
+        MF_CLASSIC_1K_7B,
+        MF_CLASSIC_4K,
+        MF_CLASSIC_4K_7B,
+        MF_DETECTION,
+        ISO15693_GEN,
+        ISO14443A_SNIFF,
+        ISO14443A_READER,
+        ISO15693_SNIFF,
+        COUNT, // NOT an actual configuration, just here for convenience
+    }
+
+}
@@ -0,0 +1,474 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.ChameleonCommands.ChameleonCommandResult;
+import com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet;
+import com.maxieds.chameleonminiusb.ChameleonProtocolConfig.ChameleonEmulatedConfigType_t;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.CLEAR_ACTIVE_SLOT;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.GET_MEMORY_SIZE;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.GET_UID_SIZE;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.QUERY_CONFIG;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.QUERY_READONLY;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.QUERY_UID;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.SET_ACTIVE_SLOT;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.SET_CONFIG;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.SET_READONLY;
+
+/**
+ * <h1>Chameleon Provisioning Batch</h1>
+ * Fills several slots of one device in a single pass over its connection. Each slot costs one
+ * pipelined command batch besides its XModem transfer: the queries verifying the previous slot
+ * (CONFIG?, UIDSIZE?, UID?, MEMSIZE? and READONLY?) go out in the same write as the commands preparing the next one
+ * (SETTING=, READONLY?, READONLY=0, CLEAR and CONFIG=), and the digest of the next image is
+ * computed while the current one is being transferred (its XModem frames are only built during
+ * its own transfer, once the receiver has picked the checksum or CRC-16 trailer). Slots which
+ * already hold their image (see ChameleonSlotDigestCache) are only checked (or, if writable,
+ * read back), not uploaded.
+ * Per-slot results and the throughput of the whole batch are reported to the ProgressListener
+ * and in the Report; a batch which is interrupted still reports every slot it has uploaded.
+ *
+ * @ref ChameleonDeviceSession.provisionSlots
+ */
+public class ChameleonProvisioningBatch {
+
+    private static final String TAG = ChameleonProvisioningBatch.class.getSimpleName();
+
+    /**
+     * One card image to put into a slot.
+     */
+    public static class SlotImage {
+
+        public final int slotNumber;
+        public final ChameleonEmulatedConfigType_t configType; // null keeps the configuration of the slot
+        public final byte[] imageData;
+
+        public SlotImage(int slot, ChameleonEmulatedConfigType_t config, byte[] image) {
+            slotNumber = slot;
+            configType = config;
+            imageData = image;
+        }
+
+        public String toString() {
+            return "SlotImage(slot=" + slotNumber + ", " + (configType == null ? "-" : configType.name()) + ", bytes=" + imageData.length + ")";
+        }
+
+    }
+
+    /**
+     * The outcome of one slot of the batch.
+     */
+    public static class SlotResult {
+
+        private final int itemIndex;
+        private final SlotImage slotImage;
+        private final UploadVerificationReport verifyReport;
+        private final long elapsedNanos;
+
+        SlotResult(int index, SlotImage image, UploadVerificationReport report, long elapsed) {
+            itemIndex = index;
+            slotImage = image;
+            verifyReport = report;
+            elapsedNanos = elapsed;
+        }
+
+        public int getItemIndex() { return itemIndex; }
+        public SlotImage getSlotImage() { return slotImage; }
+        public UploadVerificationReport getVerificationReport() { return verifyReport; }
+        public boolean isVerified() { return verifyReport.isVerified(); }
+
+        /**
+         * @return whether the slot already held the image, so that nothing was uploaded.
+         */
+        public boolean wasSkipped() { return verifyReport.getMethod() == UploadVerificationReport.Method.SLOT_CACHE; }
+        public long getElapsedMillis() { return elapsedNanos / 1000000L; }
+
+        public String toString() {
+            return "SlotResult(#" + itemIndex + ", slot=" + slotImage.slotNumber + ", " + verifyReport.getMethod().name() + ", " +
+                    (isVerified() ? "verified" : "FAILED") + ", " + getElapsedMillis() + " ms)";
+        }
+
+    }
+
+    /**
+     * The results of the whole batch, and its end-to-end throughput.
+     */
+    public static class Report {
+
+        private final List<SlotResult> slotResults;
+        private final long elapsedNanos;
+
+        Report(List<SlotResult> results, long elapsed) {
+            slotResults = Collections.unmodifiableList(results);
+            elapsedNanos = elapsed;
+        }
+
+        public List<SlotResult> getSlotResults() { return slotResults; }
+        public long getElapsedMillis() { return elapsedNanos / 1000000L; }
+
+        public int getSlotsVerified() {
+            int verifiedCount = 0;
+            for(SlotResult slotResult : slotResults) {
+                verifiedCount += slotResult.isVerified() ? 1 : 0;
+            }
+            return verifiedCount;
+        }
+
+        public int getSlotsSkipped() {
+            int skippedCount = 0;
+            for(SlotResult slotResult : slotResults) {
+                skippedCount += slotResult.wasSkipped() ? 1 : 0;
+            }
+            return skippedCount;
+        }
+
+        public boolean allVerified() { return getSlotsVerified() == slotResults.size(); }
+
+        /**
+         * @return the image bytes of all verified slots (including the ones which were skipped).
+         */
+        public long getBytesProvisioned() {
+            long provisionedBytes = 0;
+            for(SlotResult slotResult : slotResults) {
+                provisionedBytes += slotResult.isVerified() ? slotResult.slotImage.imageData.length : 0;
+            }
+            return provisionedBytes;
+        }
+
+        /**
+         * @return the image bytes which actually went over XModem.
+         */
+        public long getBytesUploaded() {
+            long uploadedBytes = 0;
+            for(SlotResult slotResult : slotResults) {
+                TransferDigest uploadDigest = slotResult.verifyReport.getUploadDigest();
+                uploadedBytes += (uploadDigest != null && !slotResult.wasSkipped()) ? uploadDigest.getByteCount() : 0;
+            }
+            return uploadedBytes;
+        }
+
+        /**
+         * @return the end-to-end provisioning throughput in bytes per second.
+         */
+        public double getThroughputBytesPerSecond() {
+            return elapsedNanos <= 0 ? 0.0 : getBytesProvisioned() * 1.0e9 / elapsedNanos;
+        }
+
+        public double getSlotsPerMinute() {
+            return elapsedNanos <= 0 ? 0.0 : getSlotsVerified() * 60.0e9 / elapsedNanos;
+        }
+
+        public String toString() {
+            return String.format(Locale.ENGLISH, "ProvisioningReport(slots=%d, verified=%d, skipped=%d, %d ms, %.1f bytes/s, %.1f slots/min)",
+                    slotResults.size(), getSlotsVerified(), getSlotsSkipped(), getElapsedMillis(),
+                    getThroughputBytesPerSecond(), getSlotsPerMinute());
+        }
+
+    }
+
+    public interface ProgressListener {
+        void onSlotStarted(int itemIndex, SlotImage slotImage);
+        void onSlotFinished(int itemIndex, SlotResult slotResult);
+        void onBatchFinished(Report batchReport);
+    }
+
+    /**
+     * The digest of an image and the upload source over its bytes, prepared ahead of its turn.
+     * No XModem frames are built here: their trailer depends on the receiver's handshake.
+     */
+    private static class PreparedImage {
+        final TransferDigest imageDigest;
+        final XModemUploadSource uploadSource;
+
+        PreparedImage(byte[] imageData) {
+            imageDigest = new TransferDigest(true);
+            imageDigest.update(imageData, 0, imageData.length);
+            uploadSource = new XModemUploadSource(imageData);
+        }
+    }
+
+    /**
+     * A slot whose upload is done and which is verified by the queries at the head of the next
+     * command batch.
+     */
+    private static class PendingVerification {
+        int itemIndex;
+        SlotImage slotImage;
+        PreparedImage preparedImage;
+        XModemSession transfer;
+        UploadVerificationReport verifyReport;
+        long startTime;
+        boolean finished;
+    }
+
+    private static final List<StandardCommandSet> VERIFY_QUERIES = Arrays.asList(QUERY_CONFIG, GET_UID_SIZE, QUERY_UID, GET_MEMORY_SIZE, QUERY_READONLY);
+
+    private final ChameleonDeviceSession deviceSession;
+    private final List<SlotImage> slotImages;
+    private final boolean readBack;
+    private final ProgressListener progressListener;
+    private final List<SlotResult> slotResults = new ArrayList<SlotResult>();
+    private boolean useSlotCache = true;
+
+    /**
+     * @param session
+     * @param images : the slots to fill, in order.
+     * @param verifyByReadBack : whether to read back every uploaded slot and compare its digest.
+     * @param listener : receives the progress events (may be null).
+     */
+    public ChameleonProvisioningBatch(ChameleonDeviceSession session, List<SlotImage> images, boolean verifyByReadBack, ProgressListener listener) {
+        deviceSession = session;
+        slotImages = new ArrayList<SlotImage>(images);
+        readBack = verifyByReadBack;
+        progressListener = listener;
+    }
+
+    /**
+     * Whether slots which already hold their image are skipped (on by default).
+     */
+    public void setUseSlotCache(boolean enable) { useSlotCache = enable; }
+
+    private Callable<PreparedImage> prepareImage(final byte[] imageData) {
+        return new Callable<PreparedImage>() {
+            public PreparedImage call() {
+                return new PreparedImage(imageData);
+            }
+        };
+    }
+
+    /**
+     * Runs the batch on the calling thread.
+     * @return the per-slot results and the throughput of the batch.
+     */
+    public Report run() {
+        long batchStartTime = System.nanoTime();
+        ExecutorService prepExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread prepThread = new Thread(r, "ChameleonProvisioning-" + deviceSession.getSerialNumber());
+                prepThread.setDaemon(true);
+                return prepThread;
+            }
+        });
+        PendingVerification pendingVerify = null;
+        try {
+            Future<PreparedImage> nextImage = slotImages.isEmpty() ? null : prepExecutor.submit(prepareImage(slotImages.get(0).imageData));
+            for(int i = 0; i < slotImages.size(); i++) {
+                if(Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException();
+                }
+                SlotImage slotImage = slotImages.get(i);
+                long slotStartTime = System.nanoTime();
+                if(progressListener != null) {
+                    progressListener.onSlotStarted(i, slotImage);
+                }
+                PreparedImage preparedImage = nextImage.get();
+                nextImage = (i + 1 < slotImages.size()) ? prepExecutor.submit(prepareImage(slotImages.get(i + 1).imageData)) : null;
+                pendingVerify = provisionSlot(i, slotImage, preparedImage, slotStartTime, pendingVerify);
+            }
+            if(pendingVerify != null) {
+                List<ChameleonCommandResult> verifyResults = deviceSession.sendCommandsToChameleon(VERIFY_QUERIES, null);
+                finishVerification(pendingVerify, verifyResults);
+            }
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            ProtocolLogging.w(TAG, "Provisioning batch interrupted after " + slotResults.size() + " of " + slotImages.size() + " slots.");
+        } catch(ExecutionException ee) {
+            ProtocolLogging.e(TAG, "Unable to prepare a slot image: " + ee.getCause());
+        } finally {
+            prepExecutor.shutdownNow();
+            if(pendingVerify != null && !pendingVerify.finished) {
+                // the batch stopped before the queries verifying the last upload went out (they
+                // are still sent, unless the batch was interrupted):
+                finishVerification(pendingVerify, Thread.currentThread().isInterrupted() ? null :
+                        deviceSession.sendCommandsToChameleon(VERIFY_QUERIES, null));
+            }
+        }
+        Report batchReport = new Report(slotResults, System.nanoTime() - batchStartTime);
+        ProtocolLogging.i(TAG, batchReport.toString());
+        if(progressListener != null) {
+            progressListener.onBatchFinished(batchReport);
+        }
+        return batchReport;
+    }
+
+    /**
+     * Prepares the slot (in the same command batch which verifies the previous slot), and then
+     * uploads the image unless the slot already holds it.
+     * @return the verification left pending for the next command batch (or null).
+     */
+    private PendingVerification provisionSlot(int itemIndex, SlotImage slotImage, PreparedImage preparedImage, long slotStartTime,
+                                              PendingVerification pendingVerify) throws InterruptedException {
+        String configTypeName = slotImage.configType == null ? "" : slotImage.configType.name();
+        ChameleonSlotDigestCache slotDigestCache = deviceSession.getSlotDigestCache();
+        ChameleonSlotDigestCache.SlotRecord slotRecord = useSlotCache ? slotDigestCache.lookup(slotImage.slotNumber, configTypeName, preparedImage.imageDigest) : null;
+        List<StandardCommandSet> batchCmds = new ArrayList<StandardCommandSet>();
+        List<Object> batchArgs = new ArrayList<Object>();
+        if(pendingVerify != null) {
+            for(StandardCommandSet verifyQuery : VERIFY_QUERIES) {
+                batchCmds.add(verifyQuery);
+                batchArgs.add(null);
+            }
+        }
+        int prepIndex = batchCmds.size();
+        batchCmds.add(SET_ACTIVE_SLOT);
+        batchArgs.add(slotImage.slotNumber);
+        if(slotRecord != null) {
+            // the record is checked against the slot instead of uploading the image again:
+            batchCmds.add(QUERY_CONFIG);
+            batchArgs.add(null);
+            batchCmds.add(GET_MEMORY_SIZE);
+            batchArgs.add(null);
+            batchCmds.add(QUERY_UID);
+            batchArgs.add(null);
+            batchCmds.add(QUERY_READONLY);
+            batchArgs.add(null);
+        }
+        else {
+            addSlotPreparation(slotImage, batchCmds, batchArgs);
+        }
+        List<ChameleonCommandResult> batchResults = deviceSession.sendCommandsToChameleon(batchCmds, batchArgs);
+        if(pendingVerify != null) {
+            finishVerification(pendingVerify, batchResults == null ? null : batchResults.subList(0, prepIndex));
+        }
+        List<ChameleonCommandResult> prepResults = batchResults == null ? null : batchResults.subList(prepIndex, batchResults.size());
+        int readOnlyIndex = 1; // READONLY? follows SETTING=
+        UploadVerificationReport cachedReport = slotRecord == null || prepResults == null || !prepResults.get(0).isValid ? null :
+                deviceSession.confirmSlotRecord(slotImage.slotNumber, prepResults.get(4), preparedImage.imageDigest);
+        if(cachedReport != null) {
+            finishSlot(itemIndex, slotImage, cachedReport, slotStartTime);
+            return null;
+        }
+        else if(slotRecord != null && prepResults != null && prepResults.get(0).isValid) {
+            // the slot was changed since the record was made, so it is prepared after all:
+            batchCmds.clear();
+            batchArgs.clear();
+            addSlotPreparation(slotImage, batchCmds, batchArgs);
+            prepResults = deviceSession.sendCommandsToChameleon(batchCmds, batchArgs);
+            readOnlyIndex = 0;
+        }
+        if(prepResults == null || !allValid(prepResults)) {
+            ProtocolLogging.e(TAG, "Unable to prepare slot " + slotImage.slotNumber + " for the upload.");
+            finishSlot(itemIndex, slotImage, new UploadVerificationReport(null), slotStartTime);
+            return null;
+        }
+        boolean initiallyReadOnly = XModem.isReadOnlyResponse(prepResults.get(readOnlyIndex));
+        XModemSession transfer = deviceSession.getXModem().uploadPreparedSlotByXModem(preparedImage.uploadSource, initiallyReadOnly);
+        UploadVerificationReport verifyReport = new UploadVerificationReport(transfer);
+        verifyReport.setTransferSucceeded(deviceSession.awaitTransfer(transfer));
+        if(Thread.currentThread().isInterrupted()) {
+            verifyReport.setTransferSucceeded(false);
+            finishSlot(itemIndex, slotImage, verifyReport, slotStartTime);
+            throw new InterruptedException();
+        }
+        else if(!verifyReport.transferSucceeded()) {
+            finishSlot(itemIndex, slotImage, verifyReport, slotStartTime);
+            return null;
+        }
+        else if(readBack) {
+            TransferDigest uploadDigest = transfer.getUploadDigest();
+            XModemDownloadSink.DigestSink readbackSink = new XModemDownloadSink.DigestSink(uploadDigest.getByteCount(), uploadDigest.isSHA256Enabled());
+            boolean slotDownloaded = deviceSession.chameleonDownload(readbackSink);
+            verifyReport.setReadback(slotDownloaded, readbackSink.getDigest(), readbackSink.getBytesReceived());
+        }
+        else if(transfer.getTransferStats().isCRCMode()) {
+            verifyReport.setFrameCRCVerified();
+        }
+        // the UID check (and the slot record) waits for the queries at the head of the next batch:
+        PendingVerification nextVerify = new PendingVerification();
+        nextVerify.itemIndex = itemIndex;
+        nextVerify.slotImage = slotImage;
+        nextVerify.preparedImage = preparedImage;
+        nextVerify.transfer = transfer;
+        nextVerify.verifyReport = verifyReport;
+        nextVerify.startTime = slotStartTime;
+        return nextVerify;
+    }
+
+    /**
+     * The commands which make the active slot ready for the upload: READONLY? (restored after
+     * the upload), READONLY=0, CLEAR and CONFIG=.
+     */
+    private static void addSlotPreparation(SlotImage slotImage, List<StandardCommandSet> batchCmds, List<Object> batchArgs) {
+        batchCmds.add(QUERY_READONLY);
+        batchArgs.add(null);
+        batchCmds.add(SET_READONLY);
+        batchArgs.add(0);
+        batchCmds.add(CLEAR_ACTIVE_SLOT);
+        batchArgs.add(null);
+        if(slotImage.configType != null) {
+            batchCmds.add(SET_CONFIG);
+            batchArgs.add(slotImage.configType);
+        }
+    }
+
+    private static boolean allValid(List<ChameleonCommandResult> cmdResults) {
+        for(ChameleonCommandResult cmdResult : cmdResults) {
+            if(!cmdResult.isValid) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Completes the verification of an uploaded slot from the CONFIG?, UIDSIZE?, UID?, MEMSIZE? and READONLY? results
+     * (if it was not verified by its CRC-16 frames or a read-back), and records the slot in the
+     * ChameleonSlotDigestCache. Without the results (null), the UID check fails and no record is made.
+     */
+    private void finishVerification(PendingVerification pendingVerify, List<ChameleonCommandResult> verifyResults) {
+        pendingVerify.finished = true;
+        UploadVerificationReport verifyReport = pendingVerify.verifyReport;
+        boolean queriesValid = verifyResults != null && verifyResults.size() == VERIFY_QUERIES.size() && allValid(verifyResults);
+        if(verifyReport.getMethod() == UploadVerificationReport.Method.NONE) {
+            boolean uidMatches = queriesValid && uidMatches(pendingVerify.transfer.getUploadHeadBytes(),
+                    verifyResults.get(1).cmdResponseData, verifyResults.get(2).cmdResponseData);
+            verifyReport.setUIDVerified(uidMatches);
+        }
+        if(verifyReport.isVerified() && queriesValid) {
+            SlotImage slotImage = pendingVerify.slotImage;
+            deviceSession.getSlotDigestCache().store(new ChameleonSlotDigestCache.SlotRecord(slotImage.slotNumber,
+                    slotImage.configType == null ? "" : slotImage.configType.name(), verifyResults.get(0).cmdResponseData,
+                    verifyResults.get(3).cmdResponseData, verifyResults.get(2).cmdResponseData, XModem.isReadOnlyResponse(verifyResults.get(4)),
+                    pendingVerify.preparedImage.imageDigest, System.currentTimeMillis()));
+        }
+        finishSlot(pendingVerify.itemIndex, pendingVerify.slotImage, verifyReport, pendingVerify.startTime);
+    }
+
+    private static boolean uidMatches(byte[] headBytes, String uidSizeResponse, String reportedUID) {
+        int uidSize;
+        try {
+            uidSize = Integer.parseInt(uidSizeResponse.trim());
+        } catch(NumberFormatException nfe) {
+            uidSize = 4;
+        }
+        if(headBytes == null || uidSize <= 0 || headBytes.length < uidSize || reportedUID == null) {
+            return false;
+        }
+        byte[] uidBytes = new byte[uidSize];
+        System.arraycopy(headBytes, 0, uidBytes, 0, uidSize);
+        return ProtocolUtils.byteArrayToString(uidBytes).equalsIgnoreCase(reportedUID.trim());
+    }
+
+    private void finishSlot(int itemIndex, SlotImage slotImage, UploadVerificationReport verifyReport, long slotStartTime) {
+        SlotResult slotResult = new SlotResult(itemIndex, slotImage, verifyReport, System.nanoTime() - slotStartTime);
+        if(!slotResult.isVerified()) {
+            ProtocolLogging.e(TAG, "Provisioning failed: " + slotResult.toString() + " " + verifyReport.toString());
+        }
+        slotResults.add(slotResult);
+        if(progressListener != null) {
+            progressListener.onSlotFinished(itemIndex, slotResult);
+        }
+    }
+
+}
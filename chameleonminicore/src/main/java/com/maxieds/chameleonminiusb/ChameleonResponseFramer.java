@@ -0,0 +1,291 @@
+package com.maxieds.chameleonminiusb;
+
+/**
+ * <h1>Chameleon Response Framer</h1>
+ * Incrementally reassembles the command responses sent by the Chameleon over serial USB.
+ * The USB stack makes no promises that one read callback holds exactly one response: a
+ * response may be split across several packets, and several responses (e.g., for a pipelined
+ * batch of commands) may be coalesced into one packet. The received bytes are accumulated in
+ * a reusable ring buffer and complete "NNN:TEXT\r\n[data\r\n]" frames are handed to the
+ * listener as soon as their final line has arrived. A status line which does not start with
+ * a three digit response code and a colon (e.g., the tail of a response cut in half by a
+ * reset, or line noise) is discarded through its line break, so the framer resynchronizes on
+ * the next line instead of emitting garbage as a response. Control bytes in front of a line
+ * (such as the XModem handshake bytes the device sends until it leaves XModem mode) are dropped
+ * on their own.
+ *
+ * @ref ChameleonCommands.ChameleonCommandResult.processCommandResponse
+ */
+public class ChameleonResponseFramer {
+
+    private static final String TAG = ChameleonResponseFramer.class.getSimpleName();
+
+    public interface ResponseFrameListener {
+        /**
+         * Called once per complete response frame. The frame bytes are only valid for the
+         * duration of the call (the buffer is reused for the next frame).
+         * @param frameBuf
+         * @param frameLength
+         */
+        void onResponseFrame(byte[] frameBuf, int frameLength);
+    }
+
+    public static final int DEFAULT_RING_BUFFER_SIZE = 4096;
+
+    private final byte[] ringBuffer;
+    private final int ringMask;
+    private int ringHead;
+    private int ringCount;
+    private byte[] frameBuffer;
+    private volatile boolean resetRequested;
+    private boolean discardingLine;
+
+    /**
+     * Accounting of how the received USB packets lined up with the response frames:
+     */
+    private long packetsReceived;
+    private long framesEmitted;
+    private long partialPackets;
+    private long mergedPackets;
+    private long overflowResets;
+    private long discardedBytes;
+
+    public ChameleonResponseFramer() {
+        this(DEFAULT_RING_BUFFER_SIZE);
+    }
+
+    /**
+     * Constructor
+     * @param ringBufferSize : rounded up to the next power of two.
+     */
+    public ChameleonResponseFramer(int ringBufferSize) {
+        int ringSize = Integer.highestOneBit(Math.max(ringBufferSize, 64) - 1) << 1;
+        ringBuffer = new byte[ringSize];
+        ringMask = ringSize - 1;
+        frameBuffer = new byte[256];
+    }
+
+    public void reset() {
+        ringHead = 0;
+        ringCount = 0;
+        discardingLine = false;
+        resetRequested = false;
+    }
+
+    /**
+     * Removes and returns the bytes buffered after the frames emitted so far (e.g., the first
+     * XModem handshake byte which arrived in the same packet as the 110:WAITING FOR XMODEM
+     * line), and resets the framer. Called by the listener from within onResponseFrame.
+     * @return the buffered bytes (empty if there are none).
+     */
+    public byte[] takeBufferedBytes() {
+        byte[] bufferedBytes = new byte[ringCount];
+        int firstChunk = Math.min(ringCount, ringBuffer.length - ringHead);
+        System.arraycopy(ringBuffer, ringHead, bufferedBytes, 0, firstChunk);
+        System.arraycopy(ringBuffer, 0, bufferedBytes, firstChunk, ringCount - firstChunk);
+        reset();
+        return bufferedBytes;
+    }
+
+    /**
+     * Thread-safe variant of reset(): any buffered partial frame is discarded by the reader
+     * thread before it appends the next packet (e.g., after a command response timed out).
+     */
+    public void requestReset() {
+        resetRequested = true;
+    }
+
+    public int bufferedByteCount() { return ringCount; }
+    public long getPacketsReceived() { return packetsReceived; }
+    public long getFramesEmitted() { return framesEmitted; }
+    public long getPartialPacketCount() { return partialPackets; }
+    public long getMergedPacketCount() { return mergedPackets; }
+    public long getOverflowResetCount() { return overflowResets; }
+    public long getDiscardedByteCount() { return discardedBytes; }
+
+    /**
+     * Appends the newly received bytes and emits every response frame that is now complete.
+     * @param rxData
+     * @param frameListener
+     * @return number of complete frames emitted for this packet.
+     */
+    public int onReceivedData(byte[] rxData, ResponseFrameListener frameListener) {
+        if(rxData == null || rxData.length == 0) {
+            return 0;
+        }
+        packetsReceived++;
+        if(resetRequested) {
+            reset();
+        }
+        if(ringCount + rxData.length > ringBuffer.length) {
+            // a packet which does not fit the ring on its own is lost along with the buffered bytes:
+            int lostBytes = ringCount + (rxData.length > ringBuffer.length ? rxData.length : 0);
+            ProtocolLogging.e(TAG, "Response ring buffer overflow: discarding " + lostBytes + " unframed bytes.");
+            overflowResets++;
+            discardedBytes += lostBytes;
+            reset();
+            if(rxData.length > ringBuffer.length) {
+                return 0;
+            }
+        }
+        int ringTail = (ringHead + ringCount) & ringMask;
+        int firstChunk = Math.min(rxData.length, ringBuffer.length - ringTail);
+        System.arraycopy(rxData, 0, ringBuffer, ringTail, firstChunk);
+        System.arraycopy(rxData, firstChunk, ringBuffer, 0, rxData.length - firstChunk);
+        ringCount += rxData.length;
+
+        int numFrames = 0;
+        int frameLength;
+        while((frameLength = nextFrameLength()) > 0) {
+            copyFrameOut(frameLength);
+            ringHead = (ringHead + frameLength) & ringMask;
+            ringCount -= frameLength;
+            numFrames++;
+            framesEmitted++;
+            frameListener.onResponseFrame(frameBuffer, trimLineBreaks(frameLength));
+        }
+        if(numFrames > 1) {
+            mergedPackets++;
+        }
+        if(ringCount > 0) {
+            partialPackets++;
+        }
+        return numFrames;
+    }
+
+    private byte peek(int index) {
+        return ringBuffer[(ringHead + index) & ringMask];
+    }
+
+    private static boolean isLineBreak(byte b) {
+        return b == '\r' || b == '\n';
+    }
+
+    /**
+     * @return whether the packet holds nothing but line break bytes (e.g., the LF of a response
+     *         whose CR came at the end of the previous packet).
+     */
+    public static boolean isLineBreakOnly(byte[] rxData) {
+        for(byte b : rxData) {
+            if(!isLineBreak(b)) {
+                return false;
+            }
+        }
+        return rxData.length > 0;
+    }
+
+    /**
+     * Returns the index just past the end of the line starting at lineStart (including its
+     * line break), or -1 if the line is not yet complete.
+     */
+    private int findLineEnd(int lineStart) {
+        for(int pos = lineStart; pos < ringCount; pos++) {
+            byte nextByte = peek(pos);
+            if(isLineBreak(nextByte)) {
+                if(pos + 1 < ringCount && isLineBreak(peek(pos + 1)) && peek(pos + 1) != nextByte) {
+                    return pos + 2;
+                }
+                return pos + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isControlByte(byte b) {
+        return (b & 0xff) < 0x20 || (b & 0xff) >= 0x7f;
+    }
+
+    private void discardBytes(int numBytes) {
+        ringHead = (ringHead + numBytes) & ringMask;
+        ringCount -= numBytes;
+        discardedBytes += numBytes;
+    }
+
+    /**
+     * Whether the buffered bytes (so far) can be the start of an "NNN:" status line.
+     */
+    private boolean hasStatusLinePrefix() {
+        for(int pos = 0; pos < Math.min(ringCount, 4); pos++) {
+            byte nextByte = peek(pos);
+            if(pos < 3 ? (nextByte < '0' || nextByte > '9') : nextByte != ':') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int parseResponseCode() {
+        if(ringCount < 3) {
+            return -1;
+        }
+        int respCode = 0;
+        for(int d = 0; d < 3; d++) {
+            byte digit = peek(d);
+            if(digit < '0' || digit > '9') {
+                return -1;
+            }
+            respCode = 10 * respCode + (digit - '0');
+        }
+        return respCode;
+    }
+
+    /**
+     * Determines the length of the next complete frame in the ring buffer (stray line breaks
+     * left at the front of the buffer, and lines which are not status lines, are dropped first).
+     * @return length of the frame in bytes, or zero if no complete frame is buffered yet.
+     */
+    private int nextFrameLength() {
+        while(ringCount > 0) {
+            if(isLineBreak(peek(0))) {
+                ringHead = (ringHead + 1) & ringMask;
+                ringCount--;
+                discardingLine = false;
+            }
+            else if(!discardingLine && isControlByte(peek(0))) {
+                // e.g., an XModem NAK / CAN left over from a transfer just ended:
+                discardBytes(1);
+            }
+            else if(discardingLine || !hasStatusLinePrefix()) {
+                int garbageEnd = 0;
+                while(garbageEnd < ringCount && !isLineBreak(peek(garbageEnd))) {
+                    garbageEnd++;
+                }
+                if(!discardingLine) {
+                    ProtocolLogging.w(TAG, "Discarding a response line without a status code.");
+                }
+                // the rest of the line may still be on its way:
+                discardingLine = true;
+                discardBytes(garbageEnd);
+            }
+            else {
+                break;
+            }
+        }
+        int statusLineEnd = findLineEnd(0);
+        if(statusLineEnd < 0) {
+            return 0;
+        }
+        if(parseResponseCode() == ChameleonCommands.SerialRespCode.OK_WITH_TEXT.toInteger()) {
+            int dataLineEnd = findLineEnd(statusLineEnd);
+            return dataLineEnd < 0 ? 0 : dataLineEnd;
+        }
+        return statusLineEnd;
+    }
+
+    private void copyFrameOut(int frameLength) {
+        if(frameBuffer.length < frameLength) {
+            frameBuffer = new byte[Math.max(frameLength, 2 * frameBuffer.length)];
+        }
+        int firstChunk = Math.min(frameLength, ringBuffer.length - ringHead);
+        System.arraycopy(ringBuffer, ringHead, frameBuffer, 0, firstChunk);
+        System.arraycopy(ringBuffer, 0, frameBuffer, firstChunk, frameLength - firstChunk);
+    }
+
+    private int trimLineBreaks(int frameLength) {
+        while(frameLength > 0 && isLineBreak(frameBuffer[frameLength - 1])) {
+            frameLength--;
+        }
+        return frameLength;
+    }
+
+}
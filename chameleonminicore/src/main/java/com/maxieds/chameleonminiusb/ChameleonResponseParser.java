@@ -0,0 +1,189 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.ChameleonCommands.SerialRespCode;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <h1>Chameleon Response Parser</h1>
+ * Parses a "NNN:STATUS TEXT\r\n[data\r\n]" command response in a single pass over the raw
+ * bytes. The three digit status code is decoded arithmetically (and resolved to its
+ * SerialRespCode through SerialRespCode.lookupByResponseCode), and the status line and data
+ * section are only recorded as offsets into the passed buffer: Strings are created when (and
+ * if) getStatusMessage or getDataString is called. A parser instance is reusable, but only
+ * describes the buffer it was last given, so it must not be shared between threads.
+ *
+ * @ref ChameleonCommands.ChameleonCommandResult.processCommandResponse
+ * @ref ChameleonResponseFramer
+ */
+public class ChameleonResponseParser {
+
+    private byte[] responseBuf;
+    private int responseCode;
+    private SerialRespCode serialRespCode;
+    private int statusOffset, statusLength;
+    private int dataOffset, dataLength;
+
+    private static boolean isLineBreak(byte b) {
+        return b == '\r' || b == '\n';
+    }
+
+    /**
+     * Determines whether the bytes are a command response sent by the device, i.e., whether
+     * the text before the first ':' of the status line ends in a known three digit status code.
+     * @param buf
+     * @param offset
+     * @param length
+     * @return the offset of the ':' following the status code, or -1 if this is not a command response.
+     */
+    private static int findStatusCodeSeparator(byte[] buf, int offset, int length) {
+        int endIndex = offset + length;
+        for(int pos = offset; pos < endIndex; pos++) {
+            byte nextByte = buf[pos];
+            if(nextByte == ':') {
+                return pos - offset >= 3 && SerialRespCode.lookupByResponseCode(decodeStatusCode(buf, pos - 3)) != null ? pos : -1;
+            }
+            else if(isLineBreak(nextByte)) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the value of the three decimal digits at buf[pos], or -1 if they are not all digits.
+     */
+    private static int decodeStatusCode(byte[] buf, int pos) {
+        int d0 = buf[pos] - '0', d1 = buf[pos + 1] - '0', d2 = buf[pos + 2] - '0';
+        if((d0 | d1 | d2) < 0 || d0 > 9 || d1 > 9 || d2 > 9) {
+            return -1;
+        }
+        return 100 * d0 + 10 * d1 + d2;
+    }
+
+    public static boolean isCommandResponse(byte[] buf, int offset, int length) {
+        if(buf == null) {
+            return false;
+        }
+        int endIndex = offset + length;
+        while(offset < endIndex && isLineBreak(buf[offset])) {
+            offset++;
+        }
+        return findStatusCodeSeparator(buf, offset, endIndex - offset) >= 0;
+    }
+
+    /**
+     * Parses the response held in buf[offset, offset + length).
+     * @param buf
+     * @param offset
+     * @param length
+     * @return whether the bytes are a command response (the getters are only meaningful if so).
+     */
+    public boolean parse(byte[] buf, int offset, int length) {
+        responseBuf = buf;
+        responseCode = -1;
+        serialRespCode = null;
+        statusOffset = statusLength = dataOffset = dataLength = 0;
+        if(buf == null) {
+            return false;
+        }
+        int endIndex = offset + length;
+        while(offset < endIndex && isLineBreak(buf[offset])) {
+            offset++;
+        }
+        int codeSeparator = findStatusCodeSeparator(buf, offset, endIndex - offset);
+        if(codeSeparator < 0) {
+            return false;
+        }
+        responseCode = decodeStatusCode(buf, codeSeparator - 3);
+        serialRespCode = SerialRespCode.lookupByResponseCode(responseCode);
+        int statusEnd = codeSeparator;
+        while(statusEnd < endIndex && !isLineBreak(buf[statusEnd])) {
+            statusEnd++;
+        }
+        statusOffset = offset;
+        statusLength = statusEnd - offset;
+        int dataStart = statusEnd;
+        while(dataStart < endIndex && isLineBreak(buf[dataStart])) {
+            dataStart++;
+        }
+        int dataEnd = endIndex;
+        while(dataEnd > dataStart && isLineBreak(buf[dataEnd - 1])) {
+            dataEnd--;
+        }
+        dataOffset = dataStart;
+        dataLength = dataEnd - dataStart;
+        return true;
+    }
+
+    public int getResponseCode() { return responseCode; }
+    public SerialRespCode getSerialRespCode() { return serialRespCode; }
+    public byte[] getBuffer() { return responseBuf; }
+    public int getDataOffset() { return dataOffset; }
+    public int getDataLength() { return dataLength; }
+    public boolean hasData() { return dataLength > 0; }
+
+    public boolean isSuccess() {
+        return serialRespCode == SerialRespCode.OK || serialRespCode == SerialRespCode.OK_WITH_TEXT;
+    }
+
+    /**
+     * @return the status line (e.g., "101:OK WITH TEXT"). The standard status lines are
+     *         shared constants, so only non-standard status text is allocated.
+     */
+    public String getStatusMessage() {
+        if(serialRespCode == null) {
+            return "";
+        }
+        byte[] stdStatusLine = serialRespCode.getStatusLineBytes();
+        if(stdStatusLine.length == statusLength) {
+            boolean isStdStatusLine = true;
+            for(int b = 0; b < statusLength && isStdStatusLine; b++) {
+                isStdStatusLine = responseBuf[statusOffset + b] == stdStatusLine[b];
+            }
+            if(isStdStatusLine) {
+                return serialRespCode.getStatusLine();
+            }
+        }
+        return new String(responseBuf, statusOffset, statusLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the data section following the status line (runs of line breaks within the data
+     *         are returned as a single '\n'), or null if the response has no data.
+     */
+    public String getDataString() {
+        if(dataLength == 0) {
+            return null;
+        }
+        int dataEnd = dataOffset + dataLength;
+        int firstBreak = dataOffset;
+        while(firstBreak < dataEnd && !isLineBreak(responseBuf[firstBreak])) {
+            firstBreak++;
+        }
+        if(firstBreak == dataEnd) {
+            return new String(responseBuf, dataOffset, dataLength, StandardCharsets.UTF_8);
+        }
+        byte[] dataLines = new byte[dataLength];
+        int numBytes = 0;
+        for(int pos = dataOffset; pos < dataEnd; pos++) {
+            if(!isLineBreak(responseBuf[pos])) {
+                dataLines[numBytes++] = responseBuf[pos];
+            }
+            else if(!isLineBreak(responseBuf[pos - 1])) {
+                dataLines[numBytes++] = '\n';
+            }
+        }
+        return new String(dataLines, 0, numBytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a copy of the raw data section (e.g., binary data following the status line).
+     */
+    public byte[] copyData() {
+        byte[] dataBytes = new byte[dataLength];
+        System.arraycopy(responseBuf, dataOffset, dataBytes, 0, dataLength);
+        return dataBytes;
+    }
+
+}
@@ -0,0 +1,403 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.ChameleonCommands.ChameleonCommandResult;
+import com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * <h1>Chameleon Slot Digest Cache</h1>
+ * Remembers, per slot of one device, which card image the last verified upload put there: the
+ * SHA-256 / CRC32C and length of the image, the configuration it was uploaded with, and the
+ * CONFIG?, MEMSIZE?, UID? and READONLY? the device reported afterwards. Re-pushing an image a
+ * slot already holds can then be skipped (see ChameleonDeviceSession.chameleonUploadToSlot).
+ * CONFIG?, MEMSIZE? and UID? only fingerprint the slot: a reader writing to an emulated card
+ * changes its memory without changing any of them. So the queries alone confirm a record only
+ * while the slot has stayed read-only since the upload (READONLY? still 1); otherwise the slot
+ * is read back and compared against the image digest. Every command sent by the owning session
+ * is passed to onCommand, which tracks the active slot and drops its record whenever a command
+ * may change the slot contents (CLEAR, CONFIG=, UID=, UPLOAD, raw commands), or a CONFIG? /
+ * MEMSIZE? / UID? answer no longer matches the record (the slot was changed by someone else).
+ * A READONLY=0 or READONLY? answer of 0 keeps the record, but only a read-back can confirm it
+ * from then on. The records are kept in a properties file per device when a storage directory
+ * is set, so that they survive restarts of the app, but only for a board with a USB serial
+ * number: the USB device name used in its place changes with the port, and may be given to
+ * another board, whose slots the stored records would then be taken for.
+ *
+ * @ref ChameleonDeviceSession.getSlotDigestCache
+ */
+public class ChameleonSlotDigestCache {
+
+    private static final String TAG = ChameleonSlotDigestCache.class.getSimpleName();
+
+    public static final int UNKNOWN_SLOT = -1;
+
+    private static volatile File storageDirectory;
+
+    /**
+     * Sets the directory the slot records of all devices are stored in (null keeps them in memory
+     * only). This applies to the sessions opened afterwards.
+     * @param storageDir
+     */
+    public static void setStorageDirectory(File storageDir) {
+        storageDirectory = storageDir;
+    }
+
+    public static File getStorageDirectory() { return storageDirectory; }
+
+    /**
+     * What the last verified upload put into one slot.
+     */
+    public static class SlotRecord {
+
+        public final int slotNumber;
+        public final String configType;   // the ChameleonEmulatedConfigType_t uploaded with ("" if unchanged)
+        public final String deviceConfig; // CONFIG? after the upload
+        public final String deviceUID;    // UID? after the upload
+        public final String deviceMemorySize; // MEMSIZE? after the upload
+        public final boolean readOnly;    // READONLY? after the upload, and ever since
+        public final long imageLength;
+        public final int imageCRC32C;
+        public final String imageSHA256;
+        public final long uploadTime;
+
+        public SlotRecord(int slot, String config, String devConfig, String devMemSize, String devUID, boolean devReadOnly,
+                          TransferDigest imageDigest, long timestamp) {
+            this(slot, config, devConfig, devMemSize, devUID, devReadOnly, imageDigest.getByteCount(), imageDigest.getCRC32C(),
+                    imageDigest.isSHA256Enabled() ? ProtocolUtils.byteArrayToString(imageDigest.getSHA256()) : "", timestamp);
+        }
+
+        private SlotRecord(int slot, String config, String devConfig, String devMemSize, String devUID, boolean devReadOnly,
+                           long length, int crc32c, String sha256, long timestamp) {
+            slotNumber = slot;
+            configType = config == null ? "" : config;
+            deviceConfig = devConfig == null ? "" : devConfig;
+            deviceMemorySize = devMemSize == null ? "" : devMemSize;
+            deviceUID = devUID == null ? "" : devUID;
+            readOnly = devReadOnly;
+            imageLength = length;
+            imageCRC32C = crc32c;
+            imageSHA256 = sha256 == null ? "" : sha256;
+            uploadTime = timestamp;
+        }
+
+        /**
+         * @return whether this record is for the same image (and configuration): the SHA-256 has
+         *         to match when both sides have one.
+         */
+        public boolean matchesImage(String config, TransferDigest imageDigest) {
+            if(!configType.equals(config == null ? "" : config) || imageLength != imageDigest.getByteCount() ||
+                    imageCRC32C != imageDigest.getCRC32C()) {
+                return false;
+            }
+            else if(imageSHA256.length() > 0 && imageDigest.isSHA256Enabled()) {
+                return imageSHA256.equalsIgnoreCase(ProtocolUtils.byteArrayToString(imageDigest.getSHA256()));
+            }
+            return true;
+        }
+
+        /**
+         * @return the same record for a slot which may have been written to since the upload.
+         */
+        SlotRecord asWritable() {
+            return !readOnly ? this : new SlotRecord(slotNumber, configType, deviceConfig, deviceMemorySize, deviceUID, false,
+                    imageLength, imageCRC32C, imageSHA256, uploadTime);
+        }
+
+        public String toString() {
+            return String.format("SlotRecord(slot=%d, config=%s, memsize=%s, UID=%s, readonly=%b, bytes=%d, CRC32C=%08x)",
+                    slotNumber, deviceConfig, deviceMemorySize, deviceUID, readOnly, imageLength, imageCRC32C);
+        }
+
+    }
+
+    private final String deviceSerialNumber;
+    private final File storeFile;
+    private final TreeMap<Integer, SlotRecord> slotRecords = new TreeMap<Integer, SlotRecord>();
+    private int activeSlot = UNKNOWN_SLOT;
+    private long cacheHits, cacheMisses, cacheInvalidations;
+
+    /**
+     * Creates the cache for a device, loading its stored records (if a storage directory is set).
+     * @param serialNumber : the USB serial number of the board.
+     */
+    public ChameleonSlotDigestCache(String serialNumber) {
+        this(serialNumber, true);
+    }
+
+    /**
+     * @param serialNumber : the key of the device in the ChameleonDeviceRegistry.
+     * @param hardwareSerialNumber : whether the key is the board's USB serial number; otherwise
+     *                             the records are only kept in memory for this session.
+     */
+    public ChameleonSlotDigestCache(String serialNumber, boolean hardwareSerialNumber) {
+        deviceSerialNumber = serialNumber;
+        File storageDir = storageDirectory;
+        storeFile = (storageDir == null || !hardwareSerialNumber) ? null : new File(storageDir, "slotdigests-" + String.valueOf(serialNumber).replaceAll("[^A-Za-z0-9_.-]", "_") + ".properties");
+        loadRecords();
+    }
+
+    public String getSerialNumber() { return deviceSerialNumber; }
+
+    /**
+     * @return whether the records are kept in a file (and so outlive the session).
+     */
+    public boolean isPersistent() { return storeFile != null; }
+
+    /**
+     * @return the slot number last selected by (or read from) the device, or UNKNOWN_SLOT.
+     */
+    public synchronized int getActiveSlot() { return activeSlot; }
+
+    public synchronized SlotRecord getRecord(int slotNumber) {
+        return slotRecords.get(slotNumber);
+    }
+
+    /**
+     * Looks for a record of the image in the slot (counting a hit or a miss).
+     * @return the matching record, or null if the image has to be uploaded.
+     */
+    public synchronized SlotRecord lookup(int slotNumber, String configType, TransferDigest imageDigest) {
+        SlotRecord slotRecord = slotRecords.get(slotNumber);
+        if(slotRecord == null || !slotRecord.matchesImage(configType, imageDigest)) {
+            cacheMisses++;
+            return null;
+        }
+        cacheHits++;
+        return slotRecord;
+    }
+
+    /**
+     * Records the image just uploaded (and verified) into the slot.
+     */
+    public synchronized void store(SlotRecord slotRecord) {
+        slotRecords.put(slotRecord.slotNumber, slotRecord);
+        saveRecords();
+    }
+
+    /**
+     * Follows a command sent to the device: tracks the active slot, and drops the record of the
+     * slot if the command may have changed its contents, or if its answer shows that it has.
+     * @param cmd : the command (null for a raw command string).
+     * @param cmdArg
+     * @param cmdResult
+     */
+    public synchronized void onCommand(StandardCommandSet cmd, Object cmdArg, ChameleonCommandResult cmdResult) {
+        if(cmd == null) {
+            // a raw command string, which may have done anything to the active slot:
+            invalidateActiveSlot();
+            activeSlot = UNKNOWN_SLOT;
+            return;
+        }
+        boolean cmdSucceeded = cmdResult != null && cmdResult.isValid;
+        switch(cmd) {
+            case SET_ACTIVE_SLOT:
+                activeSlot = cmdSucceeded ? parseSlotNumber(cmdArg) : UNKNOWN_SLOT;
+                break;
+            case GET_ACTIVE_SLOT:
+                if(cmdSucceeded) {
+                    activeSlot = parseSlotNumber(cmdResult.cmdResponseData);
+                }
+                break;
+            case CLEAR_ACTIVE_SLOT:
+            case SET_CONFIG:
+            case SET_UID:
+            case UPLOAD_XMODEM:
+            case UPLOAD_ENCRYPTED:
+                invalidateActiveSlot();
+                break;
+            case QUERY_CONFIG:
+            case GET_MEMORY_SIZE:
+            case QUERY_UID:
+                SlotRecord slotRecord = slotRecords.get(activeSlot);
+                String expectedValue = slotRecord == null ? null : getFingerprintValue(slotRecord, cmd);
+                if(cmdSucceeded && expectedValue != null && !expectedValue.equalsIgnoreCase(cmdResult.cmdResponseData)) {
+                    ProtocolLogging.i(TAG, "Slot " + activeSlot + " of " + deviceSerialNumber + " was changed externally (" + cmd.name() + " => " + cmdResult.cmdResponseData + ")");
+                    invalidateActiveSlot();
+                }
+                break;
+            case SET_READONLY:
+                if("0".equals(String.valueOf(cmdArg).trim())) {
+                    markActiveSlotWritable();
+                }
+                break;
+            case QUERY_READONLY:
+                if(cmdSucceeded && !XModem.isReadOnlyResponse(cmdResult)) {
+                    markActiveSlotWritable();
+                }
+                break;
+            case RESET_DEVICE:
+                activeSlot = UNKNOWN_SLOT; // the slot contents survive a reset
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @return what the record says the query should answer (null if the record predates MEMSIZE?).
+     */
+    private static String getFingerprintValue(SlotRecord slotRecord, StandardCommandSet queryCmd) {
+        switch(queryCmd) {
+            case QUERY_UID:
+                return slotRecord.deviceUID;
+            case GET_MEMORY_SIZE:
+                return slotRecord.deviceMemorySize.length() == 0 ? null : slotRecord.deviceMemorySize;
+            default:
+                return slotRecord.deviceConfig;
+        }
+    }
+
+    /**
+     * Keeps the record of the active slot (every record, if we do not know which slot is active),
+     * but no longer as a read-only slot: it may be written to by a reader from now on.
+     */
+    private void markActiveSlotWritable() {
+        boolean recordsChanged = false;
+        for(SlotRecord slotRecord : slotRecords.values().toArray(new SlotRecord[slotRecords.size()])) {
+            if(slotRecord.readOnly && (activeSlot == UNKNOWN_SLOT || slotRecord.slotNumber == activeSlot)) {
+                slotRecords.put(slotRecord.slotNumber, slotRecord.asWritable());
+                recordsChanged = true;
+            }
+        }
+        if(recordsChanged) {
+            saveRecords();
+        }
+    }
+
+    private static int parseSlotNumber(Object slotValue) {
+        try {
+            return Integer.parseInt(String.valueOf(slotValue).trim());
+        } catch(NumberFormatException nfe) {
+            return UNKNOWN_SLOT;
+        }
+    }
+
+    /**
+     * Drops the record of the active slot, or every record if we do not know which slot is active.
+     */
+    private void invalidateActiveSlot() {
+        if(activeSlot == UNKNOWN_SLOT) {
+            invalidateAll();
+        }
+        else if(slotRecords.remove(activeSlot) != null) {
+            cacheInvalidations++;
+            saveRecords();
+        }
+    }
+
+    public synchronized void invalidate(int slotNumber) {
+        if(slotRecords.remove(slotNumber) != null) {
+            cacheInvalidations++;
+            saveRecords();
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        if(!slotRecords.isEmpty()) {
+            cacheInvalidations += slotRecords.size();
+            slotRecords.clear();
+            saveRecords();
+        }
+    }
+
+    public synchronized long getCacheHits() { return cacheHits; }
+    public synchronized long getCacheMisses() { return cacheMisses; }
+    public synchronized long getCacheInvalidations() { return cacheInvalidations; }
+
+    private void loadRecords() {
+        if(storeFile == null || !storeFile.isFile()) {
+            return;
+        }
+        Properties storedRecords = new Properties();
+        FileInputStream storeStream = null;
+        try {
+            storeStream = new FileInputStream(storeFile);
+            storedRecords.load(storeStream);
+        } catch(IOException ioe) {
+            ProtocolLogging.w(TAG, "Unable to load the slot records of " + deviceSerialNumber + ": " + ioe.getMessage());
+            return;
+        } finally {
+            if(storeStream != null) {
+                try {
+                    storeStream.close();
+                } catch(IOException ioe) {}
+            }
+        }
+        for(String recordKey : storedRecords.stringPropertyNames()) {
+            if(!recordKey.endsWith(".length")) {
+                continue;
+            }
+            String slotPrefix = recordKey.substring(0, recordKey.length() - ".length".length());
+            try {
+                int slotNumber = Integer.parseInt(slotPrefix.substring("slot".length()));
+                slotRecords.put(slotNumber, new SlotRecord(slotNumber,
+                        storedRecords.getProperty(slotPrefix + ".configType"),
+                        storedRecords.getProperty(slotPrefix + ".deviceConfig"),
+                        storedRecords.getProperty(slotPrefix + ".deviceMemSize"),
+                        storedRecords.getProperty(slotPrefix + ".deviceUID"),
+                        Boolean.parseBoolean(storedRecords.getProperty(slotPrefix + ".readOnly")),
+                        Long.parseLong(storedRecords.getProperty(slotPrefix + ".length")),
+                        (int) Long.parseLong(storedRecords.getProperty(slotPrefix + ".crc32c"), 16),
+                        storedRecords.getProperty(slotPrefix + ".sha256"),
+                        Long.parseLong(storedRecords.getProperty(slotPrefix + ".time", "0"))));
+            } catch(RuntimeException rte) {
+                ProtocolLogging.w(TAG, "Ignoring the malformed slot record " + slotPrefix + " of " + deviceSerialNumber);
+            }
+        }
+    }
+
+    private void saveRecords() {
+        if(storeFile == null) {
+            return;
+        }
+        Properties storedRecords = new Properties();
+        for(SlotRecord slotRecord : slotRecords.values()) {
+            String slotPrefix = "slot" + slotRecord.slotNumber;
+            storedRecords.setProperty(slotPrefix + ".configType", slotRecord.configType);
+            storedRecords.setProperty(slotPrefix + ".deviceConfig", slotRecord.deviceConfig);
+            storedRecords.setProperty(slotPrefix + ".deviceMemSize", slotRecord.deviceMemorySize);
+            storedRecords.setProperty(slotPrefix + ".deviceUID", slotRecord.deviceUID);
+            storedRecords.setProperty(slotPrefix + ".readOnly", String.valueOf(slotRecord.readOnly));
+            storedRecords.setProperty(slotPrefix + ".length", String.valueOf(slotRecord.imageLength));
+            storedRecords.setProperty(slotPrefix + ".crc32c", String.format("%08x", slotRecord.imageCRC32C));
+            storedRecords.setProperty(slotPrefix + ".sha256", slotRecord.imageSHA256);
+            storedRecords.setProperty(slotPrefix + ".time", String.valueOf(slotRecord.uploadTime));
+        }
+        // written to a temporary file first, so that a crash never leaves a half written store:
+        File tempFile = new File(storeFile.getPath() + ".tmp");
+        FileOutputStream tempStream = null;
+        try {
+            storeFile.getParentFile().mkdirs();
+            tempStream = new FileOutputStream(tempFile);
+            storedRecords.store(tempStream, "Chameleon slot digests for " + deviceSerialNumber);
+            tempStream.close();
+            tempStream = null;
+            if(!tempFile.renameTo(storeFile)) {
+                storeFile.delete();
+                if(!tempFile.renameTo(storeFile)) {
+                    throw new IOException("unable to replace " + storeFile.getPath());
+                }
+            }
+        } catch(IOException ioe) {
+            ProtocolLogging.w(TAG, "Unable to store the slot records of " + deviceSerialNumber + ": " + ioe.getMessage());
+        } finally {
+            if(tempStream != null) {
+                try {
+                    tempStream.close();
+                } catch(IOException ioe) {}
+            }
+        }
+    }
+
+    public synchronized String toString() {
+        return "SlotDigestCache(" + deviceSerialNumber + ", activeSlot=" + activeSlot + ", records=" + slotRecords.values() +
+                ", hits=" + cacheHits + ", misses=" + cacheMisses + ", invalidations=" + cacheInvalidations + ")";
+    }
+
+}
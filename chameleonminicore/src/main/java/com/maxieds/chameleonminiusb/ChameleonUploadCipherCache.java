@@ -0,0 +1,258 @@
+package com.maxieds.chameleonminiusb;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * <h1>Chameleon Upload Cipher Cache</h1>
+ * The host side copies of the upload keys of one board (by key index, as stored with SETKEY or
+ * returned by GENKEY), and the cipher state derived from them, for uploading plaintext dumps
+ * with UPLOAD_ENCRYPTED. The image is encrypted on the fly as the XModem frames are filled
+ * (see StreamEncryptor), so neither the plaintext nor the ciphertext of the whole image is ever
+ * staged in memory. Looking up the JCE provider and expanding the key is the expensive part of
+ * setting up a Cipher, so each key index keeps its Cipher between uploads, and only initializes
+ * it again with the parameters of the next upload.
+ * This library does not define how the board firmware decrypts UPLOAD_ENCRYPTED data, so there
+ * is no default scheme: the application selects the UploadCipherScheme of its firmware with
+ * setCipherScheme before the first upload. The data stream the firmware decrypts is the image
+ * followed by the BYTE_EOF padding of the final frame, and the padding is encrypted with it.
+ *
+ * @ref ChameleonDeviceSession.chameleonUploadAndEncrypt
+ * @ref XModem.uploadAndEncryptCardFileByXModem
+ */
+public class ChameleonUploadCipherCache {
+
+    /**
+     * The key of one key index, and its initialized cipher while no upload is using it.
+     */
+    private static class KeyEntry {
+        final int keyIndex;
+        final SecretKeySpec keySpec;
+        Cipher idleCipher;
+        KeyEntry(int keyIndex, SecretKeySpec keySpec) {
+            this.keyIndex = keyIndex;
+            this.keySpec = keySpec;
+        }
+    }
+
+    /**
+     * How the board firmware decrypts the data of UPLOAD_ENCRYPTED.
+     */
+    public interface UploadCipherScheme {
+
+        /**
+         * @return the JCE transformation (e.g., "AES/CTR/NoPadding"). It has to be length
+         *         preserving, so that the ciphertext fills the same frames as the plaintext:
+         *         stream modes work for any image size, ECB / CBC with NoPadding only for images
+         *         which are a multiple of the block size.
+         */
+        String getTransformation();
+
+        /**
+         * @return the parameters (e.g., the IV) of the upload with the key at keyIndex and the
+         *         given salt, or null if the transformation takes none.
+         */
+        AlgorithmParameterSpec getParameters(int keyIndex, long timestampSaltData);
+
+    }
+
+    private final Map<Integer, KeyEntry> uploadKeys = new ConcurrentHashMap<Integer, KeyEntry>();
+    private volatile UploadCipherScheme cipherScheme; // none until setCipherScheme
+    private long cipherCacheHits, cipherCacheMisses;
+
+    /**
+     * Stores the host side copy of the key at keyIndex (e.g., after updating it with SETKEY).
+     * @param keyIndex
+     * @param keyData : a 16, 24 or 32 byte AES key.
+     * @throws IllegalArgumentException for any other key length.
+     */
+    public void setKey(int keyIndex, byte[] keyData) {
+        if(keyData == null || (keyData.length != 16 && keyData.length != 24 && keyData.length != 32)) {
+            throw new IllegalArgumentException("Upload keys must be 16, 24 or 32 bytes long.");
+        }
+        uploadKeys.put(keyIndex, new KeyEntry(keyIndex, new SecretKeySpec(keyData, getAlgorithm())));
+    }
+
+    public boolean hasKey(int keyIndex) {
+        return uploadKeys.containsKey(keyIndex);
+    }
+
+    public void removeKey(int keyIndex) {
+        uploadKeys.remove(keyIndex);
+    }
+
+    public void clear() {
+        uploadKeys.clear();
+    }
+
+    /**
+     * Selects the scheme the board firmware decrypts the next uploads with.
+     * The keys are kept, while the cached cipher state of the old scheme is dropped.
+     * @param scheme
+     * @throws IllegalArgumentException if scheme is null.
+     */
+    public synchronized void setCipherScheme(UploadCipherScheme scheme) {
+        if(scheme == null) {
+            throw new IllegalArgumentException("No upload cipher scheme given.");
+        }
+        cipherScheme = scheme;
+        for(KeyEntry keyEntry : uploadKeys.values()) {
+            uploadKeys.put(keyEntry.keyIndex, new KeyEntry(keyEntry.keyIndex, new SecretKeySpec(keyEntry.keySpec.getEncoded(), getAlgorithm())));
+        }
+    }
+
+    public UploadCipherScheme getCipherScheme() { return cipherScheme; }
+
+    /**
+     * The algorithm of the selected scheme's transformation (AES until a scheme has been
+     * selected, since the key lengths accepted by setKey are those of AES).
+     */
+    private String getAlgorithm() {
+        UploadCipherScheme scheme = cipherScheme;
+        if(scheme == null) {
+            return "AES";
+        }
+        String cipherTransformation = scheme.getTransformation();
+        int modeIndex = cipherTransformation.indexOf('/');
+        return modeIndex < 0 ? cipherTransformation : cipherTransformation.substring(0, modeIndex);
+    }
+
+    public synchronized long getCipherCacheHits() { return cipherCacheHits; }
+    public synchronized long getCipherCacheMisses() { return cipherCacheMisses; }
+
+    /**
+     * Sets up the encryption of one upload with the key at keyIndex.
+     * @param keyIndex
+     * @param timestampSaltData
+     * @return the encryptor for the upload's data.
+     * @throws GeneralSecurityException if no scheme has been selected, there is no key at
+     *         keyIndex, or the scheme's transformation is not available.
+     */
+    public StreamEncryptor newEncryptor(int keyIndex, long timestampSaltData) throws GeneralSecurityException {
+        UploadCipherScheme uploadScheme = cipherScheme;
+        if(uploadScheme == null) {
+            throw new GeneralSecurityException("No upload cipher scheme selected (see setCipherScheme).");
+        }
+        KeyEntry keyEntry = uploadKeys.get(keyIndex);
+        if(keyEntry == null) {
+            throw new GeneralSecurityException("No host side copy of upload key #" + keyIndex + ".");
+        }
+        Cipher uploadCipher;
+        synchronized(this) {
+            uploadCipher = keyEntry.idleCipher;
+            keyEntry.idleCipher = null;
+            if(uploadCipher != null) {
+                cipherCacheHits++;
+            }
+            else {
+                cipherCacheMisses++;
+            }
+        }
+        if(uploadCipher == null) {
+            uploadCipher = Cipher.getInstance(uploadScheme.getTransformation());
+        }
+        AlgorithmParameterSpec uploadParameters = uploadScheme.getParameters(keyIndex, timestampSaltData);
+        if(uploadParameters == null) {
+            uploadCipher.init(Cipher.ENCRYPT_MODE, keyEntry.keySpec);
+        }
+        else {
+            uploadCipher.init(Cipher.ENCRYPT_MODE, keyEntry.keySpec, uploadParameters);
+        }
+        return new StreamEncryptor(keyEntry, uploadCipher);
+    }
+
+    /**
+     * Keeps the cipher for the next upload, unless the key (or scheme) has changed since.
+     */
+    private synchronized void releaseCipher(KeyEntry keyEntry, Cipher uploadCipher) {
+        if(uploadKeys.get(keyEntry.keyIndex) == keyEntry) {
+            keyEntry.idleCipher = uploadCipher;
+        }
+    }
+
+    /**
+     * Encrypts the data of one upload in place, as it is read into the XModem frames. The
+     * cipher goes back into the cache once the end of the data has been reached, or once the
+     * upload is abandoned before that (see release).
+     * @ref XModemUploadSource.setEncryptor
+     */
+    public class StreamEncryptor {
+
+        private final KeyEntry keyEntry;
+        private Cipher uploadCipher;
+
+        private StreamEncryptor(KeyEntry keyEntry, Cipher uploadCipher) {
+            this.keyEntry = keyEntry;
+            this.uploadCipher = uploadCipher;
+        }
+
+        /**
+         * Replaces buf[offset, offset + length) with its ciphertext.
+         * @throws IOException if the transformation does not return the ciphertext right away.
+         */
+        public void encrypt(byte[] buf, int offset, int length) throws IOException {
+            if(length <= 0) {
+                return;
+            }
+            else if(uploadCipher == null) {
+                throw new IOException("Upload data after the end of the encryption.");
+            }
+            try {
+                int encryptedLength = uploadCipher.update(buf, offset, length, buf, offset);
+                if(encryptedLength != length) {
+                    throw new IOException("Cipher " + uploadCipher.getAlgorithm() + " is not length preserving for the upload data.");
+                }
+            } catch(GeneralSecurityException gse) {
+                throw new IOException("Unable to encrypt the upload data: " + gse.getMessage());
+            }
+        }
+
+        /**
+         * Ends the encryption at the end of the data and gives the cipher back to the cache.
+         * @throws IOException if the cipher still holds data (e.g., a partial block in ECB / CBC mode).
+         */
+        public void finish() throws IOException {
+            if(uploadCipher == null) {
+                return;
+            }
+            Cipher finishedCipher = uploadCipher;
+            uploadCipher = null;
+            try {
+                if(finishedCipher.doFinal().length != 0) {
+                    throw new IOException("Cipher " + finishedCipher.getAlgorithm() + " did not encrypt the last partial block of the upload data.");
+                }
+            } catch(GeneralSecurityException gse) {
+                throw new IOException("Unable to encrypt the end of the upload data: " + gse.getMessage());
+            }
+            releaseCipher(keyEntry, finishedCipher);
+        }
+
+        /**
+         * Gives the cipher back to the cache when the upload ends before the end of its data
+         * (e.g., when it is aborted). Its partial state is discarded, as the next upload
+         * initializes it again. Does nothing once finish has been called.
+         */
+        public void release() {
+            if(uploadCipher == null) {
+                return;
+            }
+            Cipher abandonedCipher = uploadCipher;
+            uploadCipher = null;
+            releaseCipher(keyEntry, abandonedCipher);
+        }
+
+    }
+
+    public String toString() {
+        UploadCipherScheme scheme = cipherScheme;
+        return String.format("UploadCipherCache(%s, keys=%s, hits=%d, misses=%d)", scheme == null ? "no scheme" : scheme.getTransformation(),
+                uploadKeys.keySet().toString(), getCipherCacheHits(), getCipherCacheMisses());
+    }
+
+}
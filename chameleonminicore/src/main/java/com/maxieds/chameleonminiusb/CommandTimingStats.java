@@ -0,0 +1,237 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet;
+
+import java.util.EnumSet;
+import java.util.Locale;
+
+/**
+ * <h1>Command Timing Stats</h1>
+ * Tracks the round trip times of each StandardCommandSet command on one device and derives
+ * the response timeout for the next command from them, instead of waiting the full
+ * SERIAL_USB_COMMAND_TIMEOUT for every lost response. Each command keeps an exponentially
+ * weighted moving average (and mean deviation) of its RTT, in the style of the TCP
+ * retransmission timer, together with a small log-scale histogram from which the 99th
+ * percentile is read. The timeout is then
+ *     clamp(max(P99_TIMEOUT_FACTOR * p99, ewma + 4 * deviation), MIN_TIMEOUT, SERIAL_USB_COMMAND_TIMEOUT)
+ * once enough samples have been seen. Commands which make the firmware do real work
+ * (e.g., CLEAR or CONFIG=) always keep the full timeout.
+ *
+ * @ref ChameleonDeviceSession.getCommandTimingStats
+ */
+public class CommandTimingStats {
+
+    /**
+     * Tuning for the adaptive timeouts.
+     */
+    public static int MIN_ADAPTIVE_TIMEOUT = 200; // in milliseconds
+    public static int MIN_SAMPLES_FOR_ADAPTIVE_TIMEOUT = 20;
+    public static double P99_TIMEOUT_FACTOR = 3.0;
+    public static int MAX_QUERY_RETRIES = 2;
+    public static int RESYNC_QUIET_PERIOD = 250; // in milliseconds
+
+    /**
+     * Commands which are never given a shortened timeout.
+     */
+    private static final EnumSet<StandardCommandSet> SLOW_COMMANDS = EnumSet.of(
+            StandardCommandSet.SET_CONFIG,
+            StandardCommandSet.CLEAR_ACTIVE_SLOT,
+            StandardCommandSet.SET_ACTIVE_SLOT,
+            StandardCommandSet.RESET_DEVICE,
+            StandardCommandSet.UPLOAD_XMODEM,
+            StandardCommandSet.DOWNLOAD_XMODEM,
+            StandardCommandSet.UPLOAD_ENCRYPTED,
+            StandardCommandSet.KEYAUTH,
+            StandardCommandSet.SETKEY,
+            StandardCommandSet.GENKEY
+    );
+
+    /**
+     * Whether a command only reads device state, so that it can safely be re-sent after a
+     * lost response (once the serial channel has been resynchronized).
+     */
+    public static boolean isRetryable(StandardCommandSet cmd) {
+        return ChameleonDevicePropertyCache.isCachedQuery(cmd) || cmd == StandardCommandSet.GET_RSSI_VOLTAGE;
+    }
+
+    public static boolean isAdaptive(StandardCommandSet cmd) {
+        return !SLOW_COMMANDS.contains(cmd);
+    }
+
+    /**
+     * Log-scale RTT histogram: bucket i holds the samples up to HISTOGRAM_BASE_MICROS * 1.25^i.
+     */
+    private static final int HISTOGRAM_BUCKETS = 64;
+    private static final double HISTOGRAM_BASE_MICROS = 250.0;
+    private static final double HISTOGRAM_GROWTH = 1.25;
+    private static final int HISTOGRAM_AGING_COUNT = 1024;
+
+    /**
+     * A snapshot of the current estimates for one command.
+     */
+    public static class Estimate {
+        public final StandardCommandSet cmd;
+        public final long samples, timeouts;
+        public final double ewmaMillis, deviationMillis, p50Millis, p99Millis;
+        public final int timeoutMillis;
+
+        Estimate(StandardCommandSet cmd, long samples, long timeouts, double ewmaMillis, double deviationMillis,
+                 double p50Millis, double p99Millis, int timeoutMillis) {
+            this.cmd = cmd;
+            this.samples = samples;
+            this.timeouts = timeouts;
+            this.ewmaMillis = ewmaMillis;
+            this.deviationMillis = deviationMillis;
+            this.p50Millis = p50Millis;
+            this.p99Millis = p99Millis;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        public String toString() {
+            return String.format(Locale.ENGLISH, "%s: n=%d, lost=%d, ewma=%.2fms, dev=%.2fms, p50=%.2fms, p99=%.2fms, timeout=%dms",
+                    cmd.name(), samples, timeouts, ewmaMillis, deviationMillis, p50Millis, p99Millis, timeoutMillis);
+        }
+    }
+
+    private static class RTTEstimator {
+
+        private long samples, timeouts;
+        private double ewmaMicros, deviationMicros;
+        private final int[] histogram = new int[HISTOGRAM_BUCKETS];
+        private int histogramCount;
+
+        synchronized void addSample(long rttMicros) {
+            if(samples == 0) {
+                ewmaMicros = rttMicros;
+                deviationMicros = rttMicros / 2.0;
+            }
+            else {
+                double rttError = rttMicros - ewmaMicros;
+                ewmaMicros += rttError / 8.0;
+                deviationMicros += (Math.abs(rttError) - deviationMicros) / 4.0;
+            }
+            samples++;
+            histogram[bucketIndex(rttMicros)]++;
+            if(++histogramCount >= HISTOGRAM_AGING_COUNT) {
+                // age the histogram so that it follows changes in the link (e.g., a new cable):
+                histogramCount = 0;
+                for(int b = 0; b < HISTOGRAM_BUCKETS; b++) {
+                    histogram[b] >>= 1;
+                    histogramCount += histogram[b];
+                }
+            }
+        }
+
+        synchronized void addTimeout() {
+            timeouts++;
+        }
+
+        synchronized double percentileMicros(double fraction) {
+            if(histogramCount == 0) {
+                return 0.0;
+            }
+            int rank = (int) Math.ceil(fraction * histogramCount);
+            int cumulativeCount = 0;
+            for(int b = 0; b < HISTOGRAM_BUCKETS; b++) {
+                cumulativeCount += histogram[b];
+                if(cumulativeCount >= rank) {
+                    return bucketUpperBoundMicros(b);
+                }
+            }
+            return bucketUpperBoundMicros(HISTOGRAM_BUCKETS - 1);
+        }
+
+        private static int bucketIndex(long rttMicros) {
+            if(rttMicros <= HISTOGRAM_BASE_MICROS) {
+                return 0;
+            }
+            int bucket = (int) Math.ceil(Math.log(rttMicros / HISTOGRAM_BASE_MICROS) / Math.log(HISTOGRAM_GROWTH));
+            return Math.min(bucket, HISTOGRAM_BUCKETS - 1);
+        }
+
+        private static double bucketUpperBoundMicros(int bucket) {
+            return HISTOGRAM_BASE_MICROS * Math.pow(HISTOGRAM_GROWTH, bucket);
+        }
+
+    }
+
+    private final RTTEstimator[] estimators;
+
+    public CommandTimingStats() {
+        estimators = new RTTEstimator[StandardCommandSet.values().length];
+        for(int c = 0; c < estimators.length; c++) {
+            estimators[c] = new RTTEstimator();
+        }
+    }
+
+    public void recordResponse(StandardCommandSet cmd, long rttNanos) {
+        estimators[cmd.ordinal()].addSample(rttNanos / 1000L);
+    }
+
+    public void recordTimeout(StandardCommandSet cmd) {
+        estimators[cmd.ordinal()].addTimeout();
+    }
+
+    /**
+     * The response timeout to use for the next instance of the command.
+     * @param cmd : the command (or null for raw command strings, which get the full timeout).
+     * @return timeout in milliseconds
+     */
+    public int getTimeoutMillis(StandardCommandSet cmd) {
+        int maxTimeout = ChameleonProtocolConfig.SERIAL_USB_COMMAND_TIMEOUT;
+        if(cmd == null || !isAdaptive(cmd)) {
+            return maxTimeout;
+        }
+        RTTEstimator rttEstimator = estimators[cmd.ordinal()];
+        double p99Micros, boundMicros;
+        synchronized(rttEstimator) {
+            if(rttEstimator.samples < MIN_SAMPLES_FOR_ADAPTIVE_TIMEOUT) {
+                return maxTimeout;
+            }
+            p99Micros = rttEstimator.percentileMicros(0.99);
+            boundMicros = rttEstimator.ewmaMicros + 4 * rttEstimator.deviationMicros;
+        }
+        long timeoutMillis = (long) Math.ceil(Math.max(P99_TIMEOUT_FACTOR * p99Micros, boundMicros) / 1000.0);
+        return (int) Math.min(maxTimeout, Math.max(MIN_ADAPTIVE_TIMEOUT, timeoutMillis));
+    }
+
+    /**
+     * The response timeout for a pipelined batch: the sum of the timeouts of its commands,
+     * since the responses arrive one after another (so a batch of slow commands may wait
+     * several times SERIAL_USB_COMMAND_TIMEOUT).
+     */
+    public int getBatchTimeoutMillis(Iterable<StandardCommandSet> cmds) {
+        long batchTimeout = 0;
+        for(StandardCommandSet cmd : cmds) {
+            batchTimeout += getTimeoutMillis(cmd);
+        }
+        return (int) Math.min(Integer.MAX_VALUE, batchTimeout);
+    }
+
+    public Estimate getEstimate(StandardCommandSet cmd) {
+        RTTEstimator rttEstimator = estimators[cmd.ordinal()];
+        synchronized(rttEstimator) {
+            return new Estimate(cmd, rttEstimator.samples, rttEstimator.timeouts,
+                    rttEstimator.ewmaMicros / 1000.0, rttEstimator.deviationMicros / 1000.0,
+                    rttEstimator.percentileMicros(0.50) / 1000.0, rttEstimator.percentileMicros(0.99) / 1000.0,
+                    getTimeoutMillis(cmd));
+        }
+    }
+
+    /**
+     * @return the estimates for all of the commands which have been issued at least once.
+     */
+    public String[] getEstimateSummary() {
+        StringBuilder summary = new StringBuilder();
+        int numEstimates = 0;
+        for(StandardCommandSet cmd : StandardCommandSet.values()) {
+            Estimate cmdEstimate = getEstimate(cmd);
+            if(cmdEstimate.samples > 0 || cmdEstimate.timeouts > 0) {
+                summary.append(cmdEstimate.toString()).append('\n');
+                numEstimates++;
+            }
+        }
+        return numEstimates == 0 ? new String[0] : summary.toString().split("\n");
+    }
+
+}
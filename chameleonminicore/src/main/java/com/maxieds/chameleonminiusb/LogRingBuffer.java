@@ -0,0 +1,286 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.ProtocolLogging.Level;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <h1>Log Ring Buffer</h1>
+ * Bounded in-memory store for log entries, so that a long running host logging at VERBOSE
+ * (which renders every USB packet and XModem frame) keeps the recent history instead of
+ * growing without limit. The store is bounded both by a number of entries and by an estimate
+ * of the bytes they hold; once either budget is exceeded, the oldest entries of the lowest
+ * severity are evicted first, so that errors and warnings outlive the verbose and debug noise
+ * around them. Each severity keeps its reserved number of most recent entries while the
+ * budgets allow, so a burst of errors does not erase the verbose context which led up to it
+ * either.
+ * Each severity has its own ring of slots. Appending claims a ring index and stores the entry
+ * with atomic operations only, so the USB read thread never blocks on (or behind) a reader
+ * or another logging thread. Evicting an entry is a compare-and-set on its ring's tail. An
+ * entry whose appender has claimed its ring index but not stored it yet is stepped over, and
+ * discarded by whichever of the two threads comes second, so that a stalled appender does not
+ * hold the entries behind it over the budgets. The entries are returned in the order they were
+ * appended by snapshot().
+ *
+ * @ref LibraryLogging.LogEntry.loggingQueue
+ */
+public class LogRingBuffer<E> {
+
+    public static final int DEFAULT_ENTRY_BUDGET = 8192;
+    public static final long DEFAULT_BYTE_BUDGET = 4L * 1024L * 1024L;
+    public static final int DEFAULT_RESERVED_ENTRIES = 64;
+
+    private static final Level[] LEVELS = Level.values();
+
+    /**
+     * One stored entry: its position in the appended order (over all severities) and in the
+     * ring of its severity.
+     */
+    private static final class Slot<E> {
+        final long sequence;
+        final long ringIndex;
+        final E entry;
+        final int sizeBytes;
+        Slot(long sequence, long ringIndex, E entry, int sizeBytes) {
+            this.sequence = sequence;
+            this.ringIndex = ringIndex;
+            this.entry = entry;
+            this.sizeBytes = sizeBytes;
+        }
+    }
+
+    /**
+     * The entries of one severity, from the ring index tail (the oldest not yet evicted)
+     * up to head (the next one to be written).
+     */
+    private static final class Ring<E> {
+        final AtomicReferenceArray<Slot<E>> slots;
+        final AtomicLong head = new AtomicLong();
+        final AtomicLong tail = new AtomicLong();
+        Ring(int capacity) {
+            slots = new AtomicReferenceArray<Slot<E>>(capacity);
+        }
+        int slotIndex(long ringIndex) {
+            return (int) (ringIndex % slots.length());
+        }
+        void advanceTail(long ringIndex) {
+            long currentTail;
+            while((currentTail = tail.get()) < ringIndex && !tail.compareAndSet(currentTail, ringIndex)) {}
+        }
+    }
+
+    private final int entryBudget;
+    private final long byteBudget;
+    private final Ring<E>[] rings;
+    private final int[] reservedEntries = new int[LEVELS.length];
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong entryCount = new AtomicLong();
+    private final AtomicLong byteCount = new AtomicLong();
+    private final AtomicLong peakByteCount = new AtomicLong();
+    private final AtomicLongArray appendCounts = new AtomicLongArray(LEVELS.length);
+    private final AtomicLongArray evictionCounts = new AtomicLongArray(LEVELS.length);
+
+    public LogRingBuffer() {
+        this(DEFAULT_ENTRY_BUDGET, DEFAULT_BYTE_BUDGET);
+    }
+
+    /**
+     * @param maxEntries : the most entries held (over all severities).
+     * @param maxBytes : the most (estimated) bytes held by the entries.
+     * @throws IllegalArgumentException unless both budgets are positive.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public LogRingBuffer(int maxEntries, long maxBytes) {
+        if(maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("The log store budgets have to be positive.");
+        }
+        entryBudget = maxEntries;
+        byteBudget = maxBytes;
+        rings = new Ring[LEVELS.length];
+        for(int r = 0; r < rings.length; r++) {
+            rings[r] = new Ring<E>(maxEntries);
+            reservedEntries[r] = Math.min(DEFAULT_RESERVED_ENTRIES, maxEntries);
+        }
+    }
+
+    public int getEntryBudget() { return entryBudget; }
+    public long getByteBudget() { return byteBudget; }
+
+    /**
+     * Sets how many of the most recent entries of a severity are kept when making room for
+     * the entries of other severities (while the budgets allow).
+     * @param severity
+     * @param entries
+     */
+    public void setReservedEntries(Level severity, int entries) {
+        reservedEntries[severity.ordinal()] = Math.max(0, Math.min(entries, entryBudget));
+    }
+
+    public int getReservedEntries(Level severity) { return reservedEntries[severity.ordinal()]; }
+
+    /**
+     * Rough size of a log message in memory (the String object and its UTF-16 characters),
+     * for the byteSize of append().
+     */
+    public static int estimateStringBytes(String msg) {
+        return msg == null ? 0 : 40 + 2 * msg.length();
+    }
+
+    /**
+     * Adds an entry, evicting older entries as needed to stay within the budgets. Safe to
+     * call from any number of threads at once, and never blocks.
+     * @param entry
+     * @param severity
+     * @param sizeBytes : the estimated memory held by the entry.
+     */
+    public void append(E entry, Level severity, int sizeBytes) {
+        Ring<E> ring = rings[severity.ordinal()];
+        long ringIndex = ring.head.getAndIncrement();
+        Slot<E> newSlot = new Slot<E>(sequence.incrementAndGet(), ringIndex, entry, sizeBytes);
+        Slot<E> overwrittenSlot = ring.slots.getAndSet(ring.slotIndex(ringIndex), newSlot);
+        appendCounts.incrementAndGet(severity.ordinal());
+        entryCount.incrementAndGet();
+        long storedBytes = byteCount.addAndGet(sizeBytes);
+        long peakBytes;
+        while((peakBytes = peakByteCount.get()) < storedBytes && !peakByteCount.compareAndSet(peakBytes, storedBytes)) {}
+        if(overwrittenSlot != null) {
+            removeSlot(overwrittenSlot);
+            evictionCounts.incrementAndGet(severity.ordinal());
+        }
+        if(ring.tail.get() > ringIndex) {
+            discardSteppedOverSlot(ring, severity.ordinal(), ringIndex); // evicted while it was being stored
+        }
+        ring.advanceTail(ringIndex - ring.slots.length() + 1);
+        while((entryCount.get() > entryBudget || byteCount.get() > byteBudget) && evictOldest()) {}
+    }
+
+    /**
+     * Evicts the oldest entry of the lowest severity which holds more than its reserved entries
+     * (or, if every severity is down to its reserve, of the lowest severity holding any).
+     * @return false if there was nothing left to evict.
+     */
+    private boolean evictOldest() {
+        return evictOldest(true) || evictOldest(false);
+    }
+
+    private boolean evictOldest(boolean keepReservedEntries) {
+        for(int r = 0; r < rings.length; r++) {
+            Ring<E> ring = rings[r];
+            long tail = ring.tail.get();
+            if(ring.head.get() - tail <= (keepReservedEntries ? reservedEntries[r] : 0)) {
+                continue;
+            }
+            int slotIndex = ring.slotIndex(tail);
+            Slot<E> oldestSlot = ring.slots.get(slotIndex);
+            if(oldestSlot == null || oldestSlot.ringIndex != tail) {
+                // the appender which claimed this ring index has not stored its entry yet:
+                // step over it, and whichever of the two sees the other's step discards it.
+                if(ring.tail.compareAndSet(tail, tail + 1)) {
+                    discardSteppedOverSlot(ring, r, tail);
+                }
+                return true;
+            }
+            if(ring.tail.compareAndSet(tail, tail + 1) && ring.slots.compareAndSet(slotIndex, oldestSlot, null)) {
+                removeSlot(oldestSlot);
+                evictionCounts.incrementAndGet(r);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void discardSteppedOverSlot(Ring<E> ring, int ringNumber, long ringIndex) {
+        int slotIndex = ring.slotIndex(ringIndex);
+        Slot<E> steppedOverSlot = ring.slots.get(slotIndex);
+        if(steppedOverSlot != null && steppedOverSlot.ringIndex == ringIndex && ring.slots.compareAndSet(slotIndex, steppedOverSlot, null)) {
+            removeSlot(steppedOverSlot);
+            evictionCounts.incrementAndGet(ringNumber);
+        }
+    }
+
+    private void removeSlot(Slot<E> slot) {
+        entryCount.decrementAndGet();
+        byteCount.addAndGet(-slot.sizeBytes);
+    }
+
+    /**
+     * @return the stored entries, oldest first.
+     */
+    public List<E> snapshot() {
+        return snapshot(Level.VERBOSE);
+    }
+
+    /**
+     * @param minSeverity
+     * @return the stored entries of minSeverity and above, oldest first.
+     */
+    public List<E> snapshot(Level minSeverity) {
+        List<Slot<E>> storedSlots = new ArrayList<Slot<E>>();
+        for(int r = minSeverity.ordinal(); r < rings.length; r++) {
+            AtomicReferenceArray<Slot<E>> slots = rings[r].slots;
+            for(int s = 0; s < slots.length(); s++) {
+                Slot<E> slot = slots.get(s);
+                if(slot != null) {
+                    storedSlots.add(slot);
+                }
+            }
+        }
+        Collections.sort(storedSlots, new Comparator<Slot<E>>() {
+            public int compare(Slot<E> lhs, Slot<E> rhs) {
+                return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+            }
+        });
+        List<E> entries = new ArrayList<E>(storedSlots.size());
+        for(Slot<E> slot : storedSlots) {
+            entries.add(slot.entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Drops all stored entries (the append and eviction counts are kept).
+     */
+    public void clear() {
+        for(Ring<E> ring : rings) {
+            for(int s = 0; s < ring.slots.length(); s++) {
+                Slot<E> slot = ring.slots.getAndSet(s, null);
+                if(slot != null) {
+                    removeSlot(slot);
+                }
+            }
+            ring.advanceTail(ring.head.get());
+        }
+    }
+
+    public int size() { return (int) entryCount.get(); }
+    public long getByteCount() { return byteCount.get(); }
+    public long getPeakByteCount() { return peakByteCount.get(); }
+    public long getAppendCount(Level severity) { return appendCounts.get(severity.ordinal()); }
+    public long getEvictionCount(Level severity) { return evictionCounts.get(severity.ordinal()); }
+
+    public long getEvictionCount() {
+        long evictions = 0;
+        for(int r = 0; r < rings.length; r++) {
+            evictions += evictionCounts.get(r);
+        }
+        return evictions;
+    }
+
+    public String toString() {
+        StringBuilder evictionSummary = new StringBuilder();
+        for(Level severity : LEVELS) {
+            evictionSummary.append(evictionSummary.length() == 0 ? "" : ", ");
+            evictionSummary.append(severity.name()).append('=').append(getEvictionCount(severity));
+        }
+        return String.format(Locale.ENGLISH, "LogRingBuffer(entries=%d/%d, bytes=%d/%d (peak %d), evicted: %s)",
+                size(), entryBudget, getByteCount(), byteBudget, getPeakByteCount(), evictionSummary.toString());
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.maxieds.chameleonminiusb;
+
+/**
+ * <h1>Protocol Logging</h1>
+ * Minimal logging facade for the protocol core. The core does not know where its logs end up:
+ * the Android library installs a sink which forwards to LibraryLogging, and headless hosts
+ * can install their own (by default, only warnings and errors are printed to stderr).
+ */
+public class ProtocolLogging {
+
+    public static enum Level {
+        VERBOSE,
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR,
+    };
+
+    public interface LogSink {
+        boolean isLoggable(Level level);
+        void log(Level level, String TAG, String MSG);
+    }
+
+    public static final LogSink STDERR_LOG_SINK = new LogSink() {
+        public boolean isLoggable(Level level) {
+            return level.compareTo(Level.WARN) >= 0;
+        }
+        public void log(Level level, String TAG, String MSG) {
+            System.err.println(level.name() + " " + TAG + ": " + MSG);
+        }
+    };
+
+    private static volatile LogSink logSink = STDERR_LOG_SINK;
+
+    public static void setLogSink(LogSink sink) {
+        logSink = (sink == null) ? STDERR_LOG_SINK : sink;
+    }
+
+    public static boolean isLoggable(Level level) {
+        return logSink.isLoggable(level);
+    }
+
+    private static void log(Level level, String TAG, String MSG) {
+        LogSink sink = logSink;
+        if(sink.isLoggable(level)) {
+            sink.log(level, TAG, MSG);
+        }
+    }
+
+    public static void v(String TAG, String MSG) { log(Level.VERBOSE, TAG, MSG); }
+    public static void d(String TAG, String MSG) { log(Level.DEBUG, TAG, MSG); }
+    public static void i(String TAG, String MSG) { log(Level.INFO, TAG, MSG); }
+    public static void w(String TAG, String MSG) { log(Level.WARN, TAG, MSG); }
+    public static void e(String TAG, String MSG) { log(Level.ERROR, TAG, MSG); }
+
+}
@@ -0,0 +1,150 @@
+package com.maxieds.chameleonminiusb;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * <h1>ProtocolUtils</h1>
+ * <h3>Byte and string helpers shared by the protocol core and the Android library.</h3>
+ *
+ * @ref Utils
+ */
+public class ProtocolUtils {
+
+    private static final String TAG = ProtocolUtils.class.getSimpleName();
+
+    public static byte BYTE(int intFormat0xab) {
+        return (byte) intFormat0xab;
+    }
+
+    /**
+     * Get random bytes seeded by the time. For use with generating random UID's.
+     * @param numBytes
+     * @return
+     */
+    public static byte[] generateRandomBytes(int numBytes) {
+        Random rnGen = new Random(System.currentTimeMillis());
+        byte[] randomBytes = new byte[numBytes];
+        for(int b = 0; b < numBytes; b++)
+            randomBytes[b] = (byte) rnGen.nextInt(0xff);
+        return randomBytes;
+    }
+
+    /**
+     * Generates a semi-random array of UID bytes with a pre-spefecified prefix set of bytes.
+     * @param prefixBytes
+     * @param desiredArrayLength
+     * @return null (if parameters are non-sensical) or a prefixed byte array with randomly generated suffix bits
+     */
+    public static byte[] generateRandomBytes(byte[] prefixBytes, int desiredArrayLength) {
+        int numRandomBytes = desiredArrayLength - prefixBytes.length;
+        if(desiredArrayLength <= 0 || numRandomBytes < 0)
+            return null;
+        else if(numRandomBytes == 0)
+            return prefixBytes;
+        byte[] prefixedBytes = new byte[desiredArrayLength];
+        System.arraycopy(prefixBytes, 0, prefixedBytes, 0, prefixBytes.length);
+        System.arraycopy(generateRandomBytes(numRandomBytes), 0, prefixedBytes, prefixBytes.length, numRandomBytes);
+        return prefixedBytes;
+    }
+
+    /**
+     * Returns a space-separated string of the input bytes in their two-digit
+     * hexadecimal format.
+     *
+     * @param bytes
+     * @return String hex string representation
+     */
+    public static String byteArrayToString(byte[] bytes) {
+        if (bytes == null)
+            return null;
+        else if (bytes.length == 0)
+            return "";
+        StringBuilder hstr = new StringBuilder();
+        hstr.append(String.format(Locale.ENGLISH, "%02x", bytes[0]));
+        for (int b = 1; b < bytes.length; b++)
+            hstr.append(String.format(Locale.ENGLISH, "%02x", bytes[b]));
+        return hstr.toString();
+    }
+
+    /**
+     * Converts a string representation of a two-digit byte into a corresponding byte type.
+     * @param byteStr
+     * @return byte representation of the String
+     */
+    public static byte hexString2Byte(String byteStr) {
+        if (byteStr.length() != 2) {
+            return 0x00;
+        }
+        int lsb = Character.digit(byteStr.charAt(1), 16);
+        int msb = Character.digit(byteStr.charAt(0), 16);
+        return (byte) (lsb | msb << 4);
+    }
+
+    /**
+     * Transforms a hexadecimal string into a corresponding array of data bytes.
+     * @param byteStr
+     * @return Array of bytes of size (byteStr.length) / 2.
+     */
+    public static byte[] byteArrayFromString(String byteStr) {
+        if (byteStr.length() % 2 != 0) { // left-pad the string:
+            byteStr = "0" + byteStr;
+        }
+        byte[] byteRep = new byte[byteStr.length() / 2];
+        for(int b = 0; b < byteStr.length(); b += 2)
+            byteRep[b / 2] = hexString2Byte(byteStr.substring(b, b + 2));
+        return byteRep;
+    }
+
+    /**
+     * Returns an ascii print character (or '.' representation for non-print characters) of the input byte.
+     * @param b
+     * @return char print character (or '.')
+     */
+    public static char byte2Ascii(byte b) {
+        if (b >= 32 && b <= 127) {
+            char ch = (char) b;
+            return ch;
+        }
+        else
+            return '.';
+    }
+
+    /**
+     * Returns an ascii string representing the byte array.
+     * @param bytes
+     * @return String ascii representation of the byte array
+     */
+    public static String bytes2Ascii(byte[] bytes) {
+        char[] asciiChars = new char[bytes.length];
+        for(int b = 0; b < bytes.length; b++)
+            asciiChars[b] = byte2Ascii(bytes[b]);
+        return new String(asciiChars);
+    }
+
+    /**
+     * Truncates a long (hex or ascii string) so that it is more human readable while
+     * still giving the gist of the output it represents.
+     * @param str
+     * @param maxNumChars
+     * @return Truncated input string
+     */
+    public static String trimString(String str, int maxNumChars) {
+        if(str.length() <= maxNumChars)
+            return str;
+        return str.substring(0, maxNumChars) + "...";
+    }
+
+    public static String stringJoin(String delimiter, String[] strArray) {
+        if(strArray == null)
+            return null;
+        else if(strArray.length == 0)
+            return "";
+        StringBuilder joinedStr = new StringBuilder(strArray[0]);
+        for(int s = 1; s < strArray.length; s++) {
+            joinedStr.append(delimiter).append(strArray[s]);
+        }
+        return joinedStr.toString();
+    }
+
+}
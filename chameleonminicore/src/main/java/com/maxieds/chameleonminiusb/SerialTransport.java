@@ -0,0 +1,43 @@
+package com.maxieds.chameleonminiusb;
+
+/**
+ * <h1>Serial Transport</h1>
+ * The small service provider interface the protocol core uses to talk to a Chameleon board.
+ * The Android library implements it on top of the USB serial stack (UsbSerialTransport), and
+ * other hosts can plug in any byte-oriented serial connection (e.g., a tty on Linux, or a
+ * simulated device for throughput testing).
+ *
+ * @ref ChameleonDeviceSession
+ */
+public interface SerialTransport {
+
+    interface ReadListener {
+        /**
+         * Called from the transport's reader thread with each chunk of received bytes.
+         * @param rxData
+         */
+        void onReceivedData(byte[] rxData);
+    }
+
+    /**
+     * Writes the first length bytes of txData to the device. The transport is done with txData
+     * when write returns (anything it queues to send later, it copies first), and it never
+     * modifies the array: the callers reuse their buffers for the next write (the command buffer,
+     * the XModem frame buffers) and hand in shared constant arrays (the XModem control bytes).
+     * @param txData
+     * @param length
+     */
+    void write(byte[] txData, int length);
+
+    /**
+     * Registers the listener to be handed all subsequently received data.
+     * @param readListener
+     */
+    void setReadListener(ReadListener readListener);
+
+    /**
+     * Closes the underlying serial connection.
+     */
+    void close();
+
+}
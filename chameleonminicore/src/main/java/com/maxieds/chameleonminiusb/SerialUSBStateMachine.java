@@ -0,0 +1,209 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.DOWNLOAD;
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.ERROR_OCCURED;
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.EXPECTING_BINARY_DATA;
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.IDLE;
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.PAUSED;
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.UNEXPECTED_INCOMING_RXDATA;
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.UPLOAD;
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.WAITING_FOR_RESPONSE;
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.WAITING_FOR_XMODEM_DOWNLOAD;
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.WAITING_FOR_XMODEM_UPLOAD;
+
+/**
+ * <h1>Serial USB State Machine</h1>
+ * The serial USB state of one device session together with the lock on its serial port.
+ * The state is only changed by compare-and-set along the edges of an explicit transition
+ * table, so that the USB read thread, the thread issuing the command and the XModem
+ * completion timer cannot overwrite each other's updates (e.g., a late response racing the
+ * command timeout). Transitions which are not in the table are rejected and counted.
+ * The port lock is held as a lease: acquirePort() hands the operation which starts a command
+ * or transfer a PortLease token, and releasePort() only gives the lock back for the token of
+ * the current lease. Releasing a lease which has already been given back (or revoked when the
+ * session was closed) does nothing, however many of the completion, timeout and error paths
+ * end up calling it, so a late release can never free the lease of the next holder.
+ *
+ * @ref ChameleonDeviceSession.getSerialStateMachine
+ */
+public class SerialUSBStateMachine {
+
+    private static final String TAG = SerialUSBStateMachine.class.getSimpleName();
+
+    /**
+     * The legal transitions out of each state (any state may always be reset back to IDLE
+     * with forceIdle, e.g., when the device is detached).
+     */
+    private static final Map<SerialUSBStates, EnumSet<SerialUSBStates>> TRANSITIONS =
+            new EnumMap<SerialUSBStates, EnumSet<SerialUSBStates>>(SerialUSBStates.class);
+
+    static {
+        TRANSITIONS.put(IDLE, EnumSet.of(WAITING_FOR_RESPONSE, EXPECTING_BINARY_DATA,
+                WAITING_FOR_XMODEM_UPLOAD, WAITING_FOR_XMODEM_DOWNLOAD, PAUSED));
+        TRANSITIONS.put(PAUSED, EnumSet.of(IDLE));
+        TRANSITIONS.put(WAITING_FOR_RESPONSE, EnumSet.of(IDLE, EXPECTING_BINARY_DATA, ERROR_OCCURED));
+        TRANSITIONS.put(EXPECTING_BINARY_DATA, EnumSet.of(IDLE, ERROR_OCCURED));
+        TRANSITIONS.put(WAITING_FOR_XMODEM_UPLOAD, EnumSet.of(UPLOAD, IDLE, ERROR_OCCURED));
+        TRANSITIONS.put(UPLOAD, EnumSet.of(IDLE, ERROR_OCCURED));
+        TRANSITIONS.put(WAITING_FOR_XMODEM_DOWNLOAD, EnumSet.of(DOWNLOAD, IDLE, ERROR_OCCURED));
+        TRANSITIONS.put(DOWNLOAD, EnumSet.of(IDLE, ERROR_OCCURED));
+        TRANSITIONS.put(ERROR_OCCURED, EnumSet.of(IDLE));
+        TRANSITIONS.put(UNEXPECTED_INCOMING_RXDATA, EnumSet.of(IDLE));
+    }
+
+    public static boolean isLegalTransition(SerialUSBStates fromState, SerialUSBStates toState) {
+        EnumSet<SerialUSBStates> nextStates = TRANSITIONS.get(fromState);
+        return nextStates != null && nextStates.contains(toState);
+    }
+
+    /**
+     * The token for one lease on the serial port: the thread which took it (for the logs) and
+     * the number of the lease.
+     */
+    public static final class PortLease {
+        private final long generation;
+        private final String owner;
+        PortLease(long generation, String owner) {
+            this.generation = generation;
+            this.owner = owner;
+        }
+        public long getGeneration() { return generation; }
+        public String getOwner() { return owner; }
+        public String toString() {
+            return "PortLease(#" + generation + ", " + owner + ")";
+        }
+    }
+
+    private final AtomicReference<SerialUSBStates> serialUSBState = new AtomicReference<SerialUSBStates>(IDLE);
+    private final Semaphore serialPortLock = new Semaphore(1, true);
+    private final AtomicReference<PortLease> currentLease = new AtomicReference<PortLease>();
+    private final AtomicLong leaseGenerations = new AtomicLong(0);
+    private final AtomicLong illegalTransitions = new AtomicLong(0);
+    private final AtomicLong spuriousReleases = new AtomicLong(0);
+
+    public SerialUSBStates getState() {
+        return serialUSBState.get();
+    }
+
+    public boolean isInState(SerialUSBStates state) {
+        return serialUSBState.get() == state;
+    }
+
+    /**
+     * Atomically moves the state from fromState to toState.
+     * @param fromState : the state the caller expects the machine to be in.
+     * @param toState
+     * @return false if the transition is illegal (counted), or if the state was no longer
+     *         fromState (i.e., another thread got there first).
+     */
+    public boolean transition(SerialUSBStates fromState, SerialUSBStates toState) {
+        if(!isLegalTransition(fromState, toState)) {
+            illegalTransitions.incrementAndGet();
+            ProtocolLogging.w(TAG, "Rejected illegal serial USB state transition " + fromState.name() + " -> " + toState.name());
+            return false;
+        }
+        return serialUSBState.compareAndSet(fromState, toState);
+    }
+
+    /**
+     * Starts a command or transfer: IDLE -> nextState. Only the holder of the current port lease
+     * may start an operation.
+     * @param lease : the caller's lease on the port.
+     * @param nextState
+     * @return whether the operation was started.
+     */
+    public boolean beginOperation(PortLease lease, SerialUSBStates nextState) {
+        if(!holdsPort(lease)) {
+            illegalTransitions.incrementAndGet();
+            ProtocolLogging.w(TAG, "Serial USB operation " + nextState.name() + " started without holding the port lock (" + lease + ")");
+            return false;
+        }
+        return transition(IDLE, nextState);
+    }
+
+    /**
+     * Returns to IDLE unconditionally (when closing the session or resynchronizing after an error).
+     * @return the state the machine was in.
+     */
+    public SerialUSBStates forceIdle() {
+        return serialUSBState.getAndSet(IDLE);
+    }
+
+    /**
+     * Takes the lease on the serial port.
+     * @param timeoutMillis
+     * @return the token of the new lease, or null if the port was not obtained within the timeout.
+     */
+    public PortLease acquirePort(long timeoutMillis) {
+        try {
+            if(!serialPortLock.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                return null;
+            }
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        PortLease lease = new PortLease(leaseGenerations.incrementAndGet(), Thread.currentThread().getName());
+        currentLease.set(lease);
+        return lease;
+    }
+
+    /**
+     * Gives the lease on the serial port back. Safe to call from every path which may end an
+     * operation: only the first call with the token of the current lease releases the lock.
+     * @param lease
+     * @return whether this call released the lock.
+     */
+    public boolean releasePort(PortLease lease) {
+        if(lease != null && currentLease.compareAndSet(lease, null)) {
+            serialPortLock.release();
+            return true;
+        }
+        spuriousReleases.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Takes the port back from whichever operation holds it (when closing the session); the
+     * holder's own release of the revoked lease then does nothing.
+     * @return the revoked lease, or null if the port was free.
+     */
+    public PortLease revokePort() {
+        PortLease revokedLease = currentLease.getAndSet(null);
+        if(revokedLease != null) {
+            serialPortLock.release();
+        }
+        return revokedLease;
+    }
+
+    /**
+     * @return whether lease is the current lease on the port (a released or revoked lease, or
+     *         null, is not).
+     */
+    public boolean holdsPort(PortLease lease) {
+        return lease != null && currentLease.get() == lease;
+    }
+
+    public boolean isPortLeased() {
+        return currentLease.get() != null;
+    }
+
+    public long getIllegalTransitionCount() { return illegalTransitions.get(); }
+    public long getSpuriousReleaseCount() { return spuriousReleases.get(); }
+
+    public String toString() {
+        return "SerialUSBState(" + serialUSBState.get().name() + ", lease=" + currentLease.get() +
+                ", illegalTransitions=" + illegalTransitions.get() + ", spuriousReleases=" + spuriousReleases.get() + ")";
+    }
+
+}
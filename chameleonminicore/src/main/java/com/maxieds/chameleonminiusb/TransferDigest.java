@@ -0,0 +1,118 @@
+package com.maxieds.chameleonminiusb;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * <h1>Transfer Digest</h1>
+ * A running digest of transfer data: always a CRC32C (Castagnoli, as used by iSCSI and ext4),
+ * and optionally a SHA-256 of the same bytes. The digest is updated frame by frame while the
+ * data passes through, so the integrity of a whole card image can be checked without keeping
+ * or re-reading it. java.util.zip.CRC32C is not available before Java 9 (Android API 26 for the
+ * rest of java.util.zip), hence the lookup table below.
+ *
+ * @ref UploadVerificationReport
+ */
+public class TransferDigest {
+
+    public static final int CRC32C_INIT_VALUE = 0xffffffff;
+
+    /**
+     * Lookup table for the reflected CRC32C polynomial 0x82F63B78, one entry per value of the low byte.
+     */
+    private static final int[] CRC32C_TABLE = new int[256];
+    static {
+        for(int b = 0; b < 256; b++) {
+            int crc = b;
+            for(int bit = 0; bit < 8; bit++) {
+                crc = ((crc & 1) != 0) ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+            }
+            CRC32C_TABLE[b] = crc;
+        }
+    }
+
+    private int crc32c = CRC32C_INIT_VALUE;
+    private long byteCount;
+    private final MessageDigest sha256Digest;
+    private byte[] sha256Value;
+
+    /**
+     * @param computeSHA256 : whether to compute a SHA-256 in addition to the CRC32C.
+     */
+    public TransferDigest(boolean computeSHA256) {
+        if(computeSHA256) {
+            try {
+                sha256Digest = MessageDigest.getInstance("SHA-256");
+            } catch(NoSuchAlgorithmException nsae) {
+                throw new IllegalStateException("SHA-256 is not available: " + nsae.getMessage());
+            }
+        }
+        else {
+            sha256Digest = null;
+        }
+    }
+
+    public static int CalcCRC32C(int crc, byte[] buf, int offset, int length) {
+        for(int i = offset; i < offset + length; i++) {
+            crc = (crc >>> 8) ^ CRC32C_TABLE[(crc ^ buf[i]) & 0xff];
+        }
+        return crc;
+    }
+
+    public void update(byte[] buf, int offset, int length) {
+        if(length <= 0) {
+            return;
+        }
+        crc32c = CalcCRC32C(crc32c, buf, offset, length);
+        if(sha256Digest != null) {
+            sha256Digest.update(buf, offset, length);
+            sha256Value = null;
+        }
+        byteCount += length;
+    }
+
+    public long getByteCount() { return byteCount; }
+    public boolean isSHA256Enabled() { return sha256Digest != null; }
+
+    public int getCRC32C() {
+        return ~crc32c;
+    }
+
+    /**
+     * @return the SHA-256 of the bytes so far, or null if it is not being computed.
+     */
+    public byte[] getSHA256() {
+        if(sha256Digest == null) {
+            return null;
+        }
+        else if(sha256Value == null) {
+            try {
+                // digest the bytes so far without ending the running digest:
+                sha256Value = ((MessageDigest) sha256Digest.clone()).digest();
+            } catch(CloneNotSupportedException cnse) {
+                throw new IllegalStateException("SHA-256 digest can not be cloned.");
+            }
+        }
+        return sha256Value.clone();
+    }
+
+    /**
+     * @return whether both digests cover the same number of bytes with equal checksums.
+     */
+    public boolean matches(TransferDigest otherDigest) {
+        if(otherDigest == null || byteCount != otherDigest.byteCount || getCRC32C() != otherDigest.getCRC32C()) {
+            return false;
+        }
+        else if(sha256Digest != null && otherDigest.sha256Digest != null) {
+            return MessageDigest.isEqual(getSHA256(), otherDigest.getSHA256());
+        }
+        return true;
+    }
+
+    public String toString() {
+        byte[] sha256Bytes = getSHA256();
+        return String.format("TransferDigest(bytes=%d, CRC32C=%08x%s)", byteCount, getCRC32C(),
+                sha256Bytes == null ? "" : ", SHA-256=" + ProtocolUtils.byteArrayToString(sha256Bytes));
+    }
+
+}
@@ -0,0 +1,113 @@
+package com.maxieds.chameleonminiusb;
+
+/**
+ * <h1>Upload Verification Report</h1>
+ * How (and whether) an upload was verified. The digest of the upload covers exactly the data
+ * bytes of the frames the receiver ACKed (without the EOF padding of the final frame). With
+ * read-back verification the slot is downloaded after the upload and the same number of bytes
+ * is digested as they arrive, so the whole image is compared without keeping a copy of it or
+ * re-reading the source; otherwise the upload is trusted to its CRC-16 frames, or spot checked
+ * by comparing the UID of the dump against UID?.
+ *
+ * @ref ChameleonDeviceSession.chameleonUploadAndVerify
+ */
+public class UploadVerificationReport {
+
+    public static enum Method {
+        NONE,      // the upload failed, so nothing was verified
+        FRAME_CRC, // every frame was checked against its CRC-16 by the receiver
+        UID,       // the UID at the start of the dump matches UID?
+        READBACK,  // the digest of the slot read back matches the digest of the upload
+        SLOT_CACHE, // the slot already held the image, so the upload was skipped
+    };
+
+    private final int transferId;
+    private final XModemTransferStats transferStats;
+    private TransferDigest uploadDigest;
+    private boolean transferSucceeded;
+    private Method method = Method.NONE;
+    private boolean verified;
+    private TransferDigest readbackDigest;
+    private long readbackBytes;
+
+    UploadVerificationReport(XModemSession transfer) {
+        transferId = (transfer == null) ? 0 : transfer.getTransferId();
+        transferStats = (transfer == null) ? null : transfer.getTransferStats();
+        uploadDigest = (transfer == null) ? null : transfer.getUploadDigest();
+    }
+
+    public int getTransferId() { return transferId; }
+    public XModemTransferStats getTransferStats() { return transferStats; }
+    public boolean transferSucceeded() { return transferSucceeded; }
+    public Method getMethod() { return method; }
+
+    /**
+     * @return whether the upload succeeded and the verification method confirmed it.
+     */
+    public boolean isVerified() { return verified; }
+
+    /**
+     * @return the digest of the uploaded bytes (null if the upload never started).
+     */
+    public TransferDigest getUploadDigest() { return uploadDigest; }
+
+    /**
+     * @return the digest of the slot read back, or null without read-back verification.
+     */
+    public TransferDigest getReadbackDigest() { return readbackDigest; }
+
+    /**
+     * @return the number of bytes downloaded by the read-back (the whole slot, which may be
+     *         longer than the upload).
+     */
+    public long getReadbackBytes() { return readbackBytes; }
+
+    void setTransferSucceeded(boolean success) { transferSucceeded = success; }
+
+    void setFrameCRCVerified() {
+        method = Method.FRAME_CRC;
+        verified = transferSucceeded;
+    }
+
+    void setUIDVerified(boolean uidMatches) {
+        method = Method.UID;
+        verified = transferSucceeded && uidMatches;
+    }
+
+    /**
+     * The upload was skipped since the ChameleonSlotDigestCache has the image in the slot.
+     */
+    void setSlotCacheHit(TransferDigest imageDigest) {
+        method = Method.SLOT_CACHE;
+        uploadDigest = imageDigest;
+        transferSucceeded = verified = true;
+    }
+
+    /**
+     * The upload would be skipped since the ChameleonSlotDigestCache has the image in the slot,
+     * which is writable, so the slot was read back to confirm it: verified if the digests match.
+     */
+    void setSlotCacheReadback(TransferDigest imageDigest, boolean downloaded, TransferDigest slotDigest, long slotBytes) {
+        method = Method.SLOT_CACHE;
+        uploadDigest = imageDigest;
+        readbackDigest = slotDigest;
+        readbackBytes = slotBytes;
+        transferSucceeded = true;
+        verified = downloaded && imageDigest.matches(slotDigest);
+    }
+
+    void setReadback(boolean downloaded, TransferDigest slotDigest, long slotBytes) {
+        method = Method.READBACK;
+        readbackDigest = slotDigest;
+        readbackBytes = slotBytes;
+        verified = transferSucceeded && downloaded && uploadDigest != null && uploadDigest.matches(slotDigest);
+    }
+
+    public String toString() {
+        return "UploadVerification(#" + transferId + ", " + method.name() + ", " +
+                (verified ? "verified" : transferSucceeded ? "MISMATCH" : "upload failed") +
+                (uploadDigest == null ? "" : ", upload=" + uploadDigest) +
+                (readbackDigest == null ? "" : ", readback=" + readbackDigest + " of " + readbackBytes + " bytes") + ")";
+    }
+
+}
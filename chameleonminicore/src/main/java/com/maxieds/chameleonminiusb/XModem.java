@@ -0,0 +1,500 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.ChameleonCommands.ChameleonCommandResult;
+import com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet;
+import com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.Locale;
+
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.DOWNLOAD_XMODEM;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.QUERY_READONLY;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.SET_READONLY;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.UPLOAD_ENCRYPTED;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.UPLOAD_XMODEM;
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.DOWNLOAD;
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.UPLOAD;
+
+/**
+ * <h1>XModem</h1>
+ * The XModem class provides utilities for storing logs to file, downloading / uploading
+ * card data via XModem, and downloading the stored log data from the device.
+ * Each ChameleonDeviceSession owns its own XModem instance, which starts a new XModemSession
+ * holding the state of every transfer, so that transfers to different boards (and successive
+ * transfers to the same board) do not share any state.
+ * Parts of this code for the XModem connections are based on
+ * XModem.c/h in the Chameleon Mini firmware distribution.
+ *
+ * @author  Maxie D. Schmidt
+ * @since   2018.08.09 (originally coded on 1/11/18)
+ * @url http://rawgit.com/emsec/ChameleonMini/master/Doc/Doxygen/html/_x_modem_8h_source.html
+ */
+public class XModem {
+
+    private static final String TAG = XModem.class.getSimpleName();
+
+    /**
+     * Named XModem connection status bytes.
+     */
+    public static final byte BYTE_NAK = (byte) 0x15;
+    public static final byte BYTE_SOH = (byte) 0x01;
+    public static final byte BYTE_STX = (byte) 0x02;
+    public static final byte BYTE_ACK = (byte) 0x06;
+    public static final byte BYTE_CAN = (byte) 0x18;
+    public static final byte BYTE_EOF = (byte) 0x1A;
+    public static final byte BYTE_EOT = (byte) 0x04;
+    public static final byte BYTE_ESC = (byte) 0x1B;
+    public static final byte BYTE_CRC_REQUEST = (byte) 'C';
+
+    /**
+     * Single byte control messages, shared so that acknowledging a frame does not allocate
+     * (the transports are done with the data when write returns, and never modify it; see
+     * SerialTransport.write).
+     */
+    static final byte[] ACK_BYTES = new byte[] { BYTE_ACK };
+    static final byte[] NAK_BYTES = new byte[] { BYTE_NAK };
+    static final byte[] CAN_BYTES = new byte[] { BYTE_CAN };
+    static final byte[] EOT_BYTES = new byte[] { BYTE_EOT };
+    static final byte[] CRC_REQUEST_BYTES = new byte[] { BYTE_CRC_REQUEST };
+
+    /**
+     * XModem connection configuration.
+     */
+    public static final short XMODEM_BLOCK_SIZE = 128;
+    public static final short XMODEM_1K_BLOCK_SIZE = 1024;
+    public static final byte FIRST_FRAME_NUMBER = (byte) 1;
+    public static final byte CHECKSUM_INIT_VALUE = 0;
+    public static int MAX_NAK_COUNT = 20; // NAKs per frame, to match the Chameleon device standard
+
+    /**
+     * Whether uploads send XModem-1K (STX, 1024 byte) frames by default. Off, since the stock
+     * Chameleon firmware only receives 128 byte frames; a receiver which NAKs the first STX
+     * frame is fallen back to 128 byte frames in any case. Downloads accept both frame sizes.
+     * @ref setUse1KBlocks
+     */
+    public static boolean XMODEM_USE_1K_BLOCKS = false;
+
+    /**
+     * Whether transfers use XModem-CRC (frames protected by a CRC-16/XMODEM trailer instead of the
+     * additive checksum) by default. As the receiver, we ask for CRC mode with 'C' and fall back to
+     * the checksum mode after XMODEM_CRC_HANDSHAKE_ATTEMPTS unanswered requests; as the sender, we
+     * use the mode the receiver asks for. Off by default, since the stock firmware only speaks the
+     * checksum mode.
+     * @ref setUseCRC
+     */
+    public static boolean XMODEM_USE_CRC = false;
+    public static int XMODEM_CRC_HANDSHAKE_ATTEMPTS = 3;
+    public static int XMODEM_CRC_HANDSHAKE_TIMEOUT = 1000; // in milliseconds
+    public static final int CRC16_INIT_VALUE = 0;
+
+    /**
+     * Whether uploads compute a SHA-256 of the data by default (a CRC32C is always computed).
+     * @ref setUseSHA256Digest
+     * @ref UploadVerificationReport
+     */
+    public static boolean XMODEM_UPLOAD_SHA256_DIGEST = false;
+
+    /**
+     * How long an upload waits for the receiver to ACK its final EOT before ending anyway.
+     */
+    public static int XMODEM_EOT_ACK_TIMEOUT = 1000; // in milliseconds
+
+    /**
+     * How long a download waits for the rest of a partially received frame before NAKing it.
+     */
+    public static int XMODEM_FRAME_TIMEOUT = 1000; // in milliseconds
+
+    /**
+     * Lookup table for the CRC-16/XMODEM (polynomial 0x1021), one entry per value of the high byte.
+     */
+    private static final short[] CRC16_TABLE = new short[256];
+
+    static {
+        for(int tableIndex = 0; tableIndex < 256; tableIndex++) {
+            int crc = tableIndex << 8;
+            for(int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            CRC16_TABLE[tableIndex] = (short) crc;
+        }
+    }
+
+    /**
+     * Notified after a download has been written out to its destination file
+     * (the Android library uses this to register the file with the DownloadManager).
+     */
+    public interface DownloadListener {
+        void onDownloadComplete(File downloadFile);
+    }
+
+    private static volatile DownloadListener downloadListener;
+
+    public static void setDownloadListener(DownloadListener listener) {
+        downloadListener = listener;
+    }
+
+    static void notifyDownloadComplete(File downloadFile) {
+        DownloadListener listener = downloadListener;
+        if(listener != null) {
+            listener.onDownloadComplete(downloadFile);
+        }
+    }
+
+    /**
+     * The device session this instance belongs to, and its current (or most recent) transfer.
+     */
+    private final ChameleonDeviceSession deviceSession;
+    private final XModemDeviceStats deviceStats;
+    private volatile XModemSession currentTransfer;
+
+    /**
+     * The transfer options of this device, which may be changed from any thread; each transfer
+     * takes a snapshot of them when it is created.
+     */
+    private volatile boolean use1KBlocks = XMODEM_USE_1K_BLOCKS;
+    private volatile boolean useCRC = XMODEM_USE_CRC;
+    private volatile boolean useSHA256Digest = XMODEM_UPLOAD_SHA256_DIGEST;
+
+    public XModem(ChameleonDeviceSession session) {
+        deviceSession = session;
+        deviceStats = session.hasHardwareSerialNumber() ? XModemDeviceStats.forDevice(session.getSerialNumber()) :
+                XModemDeviceStats.forSession(session.getSerialNumber());
+    }
+
+    ChameleonDeviceSession getDeviceSession() { return deviceSession; }
+
+    /**
+     * @return the stats of all finished transfers of this board (kept across sessions when the
+     *         board has a USB serial number).
+     */
+    public XModemDeviceStats getDeviceStats() { return deviceStats; }
+
+    /**
+     * @return the transfer in progress (or the last one to have run), or null before the first transfer.
+     */
+    public XModemSession getCurrentTransfer() { return currentTransfer; }
+
+    public boolean isEOT() {
+        XModemSession transfer = currentTransfer;
+        return transfer == null || transfer.isEOT();
+    }
+
+    public boolean transmissionError() {
+        XModemSession transfer = currentTransfer;
+        return transfer != null && transfer.transmissionError();
+    }
+
+    /**
+     * @return the first bytes sent by the most recent upload (e.g., to verify the UID without
+     *         having to re-read the source stream), or null before the first upload.
+     */
+    public byte[] getUploadHeadBytes() {
+        XModemSession transfer = currentTransfer;
+        return transfer == null ? null : transfer.getUploadHeadBytes();
+    }
+
+    /**
+     * Selects the frame size for the next uploads: XModem-1K (STX) frames if enabled, and
+     * otherwise the classic 128 byte (SOH) frames.
+     * @param enable
+     */
+    public void setUse1KBlocks(boolean enable) { use1KBlocks = enable; }
+
+    public boolean isUsing1KBlocks() { return use1KBlocks; }
+
+    /**
+     * Selects XModem-CRC (CRC-16 frame trailers) or the classic additive checksum for the next
+     * transfers of this session.
+     * @param enable
+     */
+    public void setUseCRC(boolean enable) { useCRC = enable; }
+
+    public boolean isUsingCRC() { return useCRC; }
+
+    /**
+     * Selects whether uploads compute a SHA-256 of the data in addition to the CRC32C.
+     * @param enable
+     */
+    public void setUseSHA256Digest(boolean enable) { useSHA256Digest = enable; }
+
+    public boolean isUsingSHA256Digest() { return useSHA256Digest; }
+
+    /**
+     * @return what was negotiated for (and the timing of) the most recent transfer (null before
+     *         the first transfer).
+     */
+    public XModemTransferStats getLastTransferStats() {
+        XModemSession transfer = currentTransfer;
+        return transfer == null ? null : transfer.getTransferStats();
+    }
+
+    /**
+     * Stops any transfer in progress (e.g., when the device is detached).
+     */
+    public void abortTransfer() {
+        XModemSession transfer = currentTransfer;
+        if(transfer != null) {
+            transfer.abort();
+        }
+    }
+
+    /**
+     * Called once the device is waiting in XModem mode to start the current transfer.
+     * @param transferState : UPLOAD or DOWNLOAD
+     */
+    void beginTransferHandshake(SerialUSBStates transferState) {
+        XModemSession transfer = getTransferFor(transferState);
+        if(transfer != null) {
+            transfer.beginTransferHandshake();
+        }
+    }
+
+    /**
+     * @return the current transfer if it matches the direction of the serial USB state, and
+     *         otherwise null (the data belongs to no transfer of ours, and is dropped).
+     */
+    private XModemSession getTransferFor(SerialUSBStates transferState) {
+        XModemSession transfer = currentTransfer;
+        XModemTransferStats.Direction direction = (transferState == UPLOAD) ?
+                XModemTransferStats.Direction.UPLOAD : XModemTransferStats.Direction.DOWNLOAD;
+        if(transfer == null || transfer.getDirection() != direction) {
+            ProtocolLogging.w(TAG, "Dropping XModem data which belongs to no current " + direction.name() + " transfer.");
+            return null;
+        }
+        return transfer;
+    }
+
+    /**
+     * Calculates the checksum of the passed byte buffer.
+     * @param buffer
+     * @param byteCount
+     * @return byte checksum value
+     */
+    public static byte CalcChecksum(byte[] buffer, short byteCount) {
+        return CalcChecksum(buffer, 0, byteCount);
+    }
+
+    /**
+     * Calculates the checksum of byteCount bytes of the passed buffer starting at offset
+     * (so that the checksum can be taken in place over the payload of an XModem frame).
+     */
+    public static byte CalcChecksum(byte[] buffer, int offset, int byteCount) {
+        byte checksum = CHECKSUM_INIT_VALUE;
+        int bufPos = offset;
+        while(byteCount-- != 0) {
+            checksum += buffer[bufPos++];
+        }
+        return checksum;
+    }
+
+    /**
+     * Calculates the CRC-16/XMODEM of byteCount bytes of the passed buffer starting at offset
+     * (table-driven, one lookup per byte).
+     * @return the 16-bit CRC value
+     */
+    public static int CalcCRC16(byte[] buffer, int offset, int byteCount) {
+        int crc = CRC16_INIT_VALUE;
+        int endPos = offset + byteCount;
+        for(int bufPos = offset; bufPos < endPos; bufPos++) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >>> 8) ^ buffer[bufPos]) & 0xff]) & 0xffff;
+        }
+        return crc;
+    }
+
+    /**
+     * Hands the data received during an upload to the current upload session.
+     * @param liveLogData
+     */
+    public void performXModemSerialUpload(byte[] liveLogData) {
+        XModemSession transfer = getTransferFor(UPLOAD);
+        if(transfer != null) {
+            transfer.performXModemSerialUpload(liveLogData);
+        }
+    }
+
+    /**
+     * Hands the data received during a download to the current download session.
+     * @param liveLogData
+     */
+    public void performXModemSerialDownload(byte[] liveLogData) {
+        XModemSession transfer = getTransferFor(DOWNLOAD);
+        if(transfer != null) {
+            transfer.performXModemSerialDownload(liveLogData);
+        }
+    }
+
+    /**
+     * @return whether the READONLY? response says that the active slot is read-only.
+     */
+    static boolean isReadOnlyResponse(ChameleonCommandResult readOnlyResult) {
+        try {
+            return readOnlyResult.isValid && Integer.parseInt(readOnlyResult.cmdResponseData.trim()) != 0;
+        } catch(Exception nfe) {
+            return false;
+        }
+    }
+
+    private boolean queryInitiallyReadOnly() {
+        return isReadOnlyResponse(deviceSession.sendCommandToChameleon(QUERY_READONLY, null));
+    }
+
+    /**
+     * Called to initiate the card data upload process.
+     * @ref LiveLoggerActivity.actionButtonUploadCard
+     * @return the new upload session (null if the device is not configured).
+     */
+    private XModemSession uploadCardFileByXModemRunner(XModemUploadSource uploadSource, StandardCommandSet uploadCmd, Object uploadCmdArgs) {
+        if(!deviceSession.isConfigured())
+            return null;
+        boolean initiallyReadOnly = queryInitiallyReadOnly();
+        deviceSession.sendCommandToChameleon(SET_READONLY, 0);
+        return startUpload(uploadSource, initiallyReadOnly, uploadCmd, uploadCmdArgs);
+    }
+
+    /**
+     * Starts an upload into a slot whose READONLY? has already been read and which has already
+     * been made writable (e.g., in the pipelined slot preparation of a provisioning batch).
+     * @param uploadSource
+     * @param initiallyReadOnly : whether to make the slot read-only again after the upload.
+     * @return the new upload session (null if the device is not configured).
+     * @ref ChameleonProvisioningBatch
+     */
+    XModemSession uploadPreparedSlotByXModem(XModemUploadSource uploadSource, boolean initiallyReadOnly) {
+        if(!deviceSession.isConfigured())
+            return null;
+        return startUpload(uploadSource, initiallyReadOnly, UPLOAD_XMODEM, null);
+    }
+
+    private XModemSession startUpload(XModemUploadSource uploadSource, boolean initiallyReadOnly, StandardCommandSet uploadCmd, Object uploadCmdArgs) {
+        XModemSession transfer = new XModemSession(this, uploadSource, use1KBlocks, useCRC, useSHA256Digest);
+        transfer.initiallyReadOnly = initiallyReadOnly;
+        startTransfer(transfer, uploadCmd, uploadCmdArgs);
+        return transfer;
+    }
+
+    public XModemSession uploadCardFileByXModem(InputStream cardInputStream) {
+        return uploadCardFileByXModemRunner(new XModemUploadSource(cardInputStream), UPLOAD_XMODEM, null);
+    }
+
+    public XModemSession uploadCardFileByXModem(byte[] cardInputBytes) {
+        return uploadCardFileByXModemRunner(new XModemUploadSource(cardInputBytes), UPLOAD_XMODEM, null);
+    }
+
+    public XModemSession uploadEncryptedCardFileByXModem(byte[] cardInputBytes, int keyIndex, long timeStampSaltData) {
+        return uploadCardFileByXModemRunner(new XModemUploadSource(cardInputBytes), UPLOAD_ENCRYPTED, getEncryptedUploadArgs(keyIndex, timeStampSaltData));
+    }
+
+    /**
+     * Uploads a plaintext dump with UPLOAD_ENCRYPTED, encrypting it frame by frame with the
+     * device session's host side copy of the key at keyIndex as it is read from the stream.
+     * @param plainInputStream
+     * @param keyIndex
+     * @param timeStampSaltData
+     * @return the new upload session (null if no cipher scheme has been selected or
+     *         there is no key for keyIndex).
+     * @ref ChameleonUploadCipherCache
+     */
+    public XModemSession uploadAndEncryptCardFileByXModem(InputStream plainInputStream, int keyIndex, long timeStampSaltData) {
+        return uploadAndEncryptRunner(new XModemUploadSource(plainInputStream), keyIndex, timeStampSaltData);
+    }
+
+    public XModemSession uploadAndEncryptCardFileByXModem(byte[] plainInputBytes, int keyIndex, long timeStampSaltData) {
+        return uploadAndEncryptRunner(new XModemUploadSource(plainInputBytes), keyIndex, timeStampSaltData);
+    }
+
+    private XModemSession uploadAndEncryptRunner(XModemUploadSource plainSource, int keyIndex, long timeStampSaltData) {
+        try {
+            plainSource.setEncryptor(deviceSession.getUploadCipherCache().newEncryptor(keyIndex, timeStampSaltData));
+        } catch(GeneralSecurityException gse) {
+            ProtocolLogging.e(TAG, "Unable to encrypt the upload: " + gse.getMessage());
+            return null;
+        }
+        XModemSession transfer = uploadCardFileByXModemRunner(plainSource, UPLOAD_ENCRYPTED, getEncryptedUploadArgs(keyIndex, timeStampSaltData));
+        if(transfer == null) {
+            plainSource.release();
+        }
+        return transfer;
+    }
+
+    private static String getEncryptedUploadArgs(int keyIndex, long timeStampSaltData) {
+        return String.format(Locale.ENGLISH, "%d %x", keyIndex, timeStampSaltData);
+    }
+
+    /**
+     * Takes the serial port for the duration of the transfer, makes the transfer the current one,
+     * and issues the command which puts the device into XModem mode. The port is given back by the
+     * transfer once it ends, or right away here if the device never answers with
+     * 110:WAITING FOR XMODEM. The transfer fails to start if the port can not be obtained within
+     * SERIAL_USB_COMMAND_TIMEOUT.
+     * @param transfer
+     * @param transferCmd
+     * @param transferCmdArgs
+     * @return whether the transfer has started.
+     */
+    private boolean startTransfer(XModemSession transfer, StandardCommandSet transferCmd, Object transferCmdArgs) {
+        SerialUSBStateMachine serialStateMachine = deviceSession.getSerialStateMachine();
+        SerialUSBStateMachine.PortLease transferLease = serialStateMachine.acquirePort(ChameleonProtocolConfig.SERIAL_USB_COMMAND_TIMEOUT);
+        if(transferLease == null) {
+            ProtocolLogging.e(TAG, "Timed out waiting for the serial port to start " + transferCmd.name() + ".");
+            transfer.failToStart();
+            return false;
+        }
+        transfer.setPortLease(transferLease);
+        currentTransfer = transfer;
+        ChameleonCommandResult transferCmdResult = deviceSession.sendCommandToChameleon(transferCmd, transferCmdArgs, transferLease);
+        if(transferCmdResult.cmdResponseCode != ChameleonCommands.SerialRespCode.WAITING_FOR_MODEM.toInteger()) {
+            ProtocolLogging.e(TAG, "Device did not enter XModem mode for " + transferCmd.name() + ": " + transferCmdResult.toString());
+            serialStateMachine.releasePort(transferLease);
+            transfer.failToStart();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Starts downloading the active slot into cardOutFile, which is announced to the
+     * DownloadListener once complete.
+     * @param cardOutFile
+     * @return the new download session (null if the file can not be written).
+     */
+    public XModemSession downloadCardFileByXModem(File cardOutFile) {
+        return downloadCardFileByXModem(cardOutFile, true);
+    }
+
+    /**
+     * Starts downloading the active slot into cardOutFile.
+     * @param cardOutFile
+     * @param announceDownload : whether to pass the file to the DownloadListener once complete.
+     * @return the new download session (null if the file can not be written).
+     */
+    public XModemSession downloadCardFileByXModem(File cardOutFile, boolean announceDownload) {
+        if(cardOutFile == null) {
+            return null;
+        }
+        XModemDownloadSink downloadSink;
+        try {
+            downloadSink = new XModemDownloadSink.FileChannelSink(cardOutFile, announceDownload);
+        } catch(IOException ioe) {
+            ProtocolLogging.e(TAG, ioe.getMessage());
+            ioe.printStackTrace();
+            cardOutFile.delete();
+            return null;
+        }
+        return downloadCardFileByXModem(downloadSink);
+    }
+
+    /**
+     * Starts downloading the active slot into downloadSink.
+     * @param downloadSink
+     * @return the new download session.
+     */
+    public XModemSession downloadCardFileByXModem(XModemDownloadSink downloadSink) {
+        XModemSession transfer = new XModemSession(this, downloadSink, useCRC);
+        startTransfer(transfer, DOWNLOAD_XMODEM, null);
+        return transfer;
+    }
+
+}
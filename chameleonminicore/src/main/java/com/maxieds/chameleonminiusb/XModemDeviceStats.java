@@ -0,0 +1,195 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.XModemTransferStats.CancelReason;
+import com.maxieds.chameleonminiusb.XModemTransferStats.Direction;
+import com.maxieds.chameleonminiusb.XModemTransferStats.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <h1>XModem Device Stats</h1>
+ * The XModemTransferStats of all finished transfers of one board, added up: transfer and
+ * failure counts (with the cancel reasons), bytes, frames, NAKs and retransmitted frames, the
+ * handshake and wall times, and the merged ACK latency histogram. The stats are kept per USB
+ * serial number for the lifetime of the process, so they carry over when a board is detached
+ * and attached again; a board (or its cable) whose NAKs per frame, failure rate or ACK latency
+ * stand out from the rest of the fleet is the one to look at. A board without a USB serial
+ * number only gets stats for its session (see forSession), since the USB device name it is
+ * known by instead is handed to whichever board is attached to the port next.
+ *
+ * @ref XModem.getDeviceStats
+ * @ref ChameleonDeviceSession.getXModemStats
+ */
+public class XModemDeviceStats {
+
+    private static final ConcurrentHashMap<String, XModemDeviceStats> deviceStats = new ConcurrentHashMap<String, XModemDeviceStats>();
+
+    /**
+     * @param deviceSerialNumber
+     * @return the (shared) stats of the device, created on first use.
+     */
+    public static XModemDeviceStats forDevice(String deviceSerialNumber) {
+        String statsKey = deviceSerialNumber == null ? "" : deviceSerialNumber;
+        XModemDeviceStats stats = deviceStats.get(statsKey);
+        if(stats == null) {
+            XModemDeviceStats newStats = new XModemDeviceStats(statsKey);
+            stats = deviceStats.putIfAbsent(statsKey, newStats);
+            if(stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @param deviceName : the name of the device in the summaries.
+     * @return new stats for one session of a device without a USB serial number, which are not
+     *         part of the fleet (getAllDeviceStats).
+     */
+    public static XModemDeviceStats forSession(String deviceName) {
+        return new XModemDeviceStats(deviceName == null ? "" : deviceName);
+    }
+
+    /**
+     * @return the stats of every device which has been seen so far.
+     */
+    public static List<XModemDeviceStats> getAllDeviceStats() {
+        return new ArrayList<XModemDeviceStats>(deviceStats.values());
+    }
+
+    /**
+     * @return one summary line per device.
+     */
+    public static String[] getFleetSummary() {
+        List<XModemDeviceStats> allStats = getAllDeviceStats();
+        String[] summary = new String[allStats.size()];
+        for(int d = 0; d < summary.length; d++) {
+            summary[d] = allStats.get(d).toString();
+        }
+        return summary;
+    }
+
+    private final String serialNumber;
+    private long uploads, downloads, failedTransfers;
+    private final long[] cancelReasons = new long[CancelReason.values().length];
+    private long bytesTransferred, framesTransferred, naks, retransmittedFrames;
+    private int maxNAKsPerFrame;
+    private long crcFallbacks, fellBackTo128Blocks;
+    private long handshakes;
+    private double totalHandshakeMillis, maxHandshakeMillis;
+    private double totalWallTimeMillis;
+    private final LatencyHistogram ackLatency = new LatencyHistogram();
+    private XModemTransferStats lastTransferStats;
+
+    private XModemDeviceStats(String deviceSerialNumber) {
+        serialNumber = deviceSerialNumber;
+    }
+
+    public String getSerialNumber() { return serialNumber; }
+
+    /**
+     * Adds the stats of a finished transfer.
+     * @param transferStats
+     */
+    synchronized void record(XModemTransferStats transferStats) {
+        if(transferStats.getDirection() == Direction.UPLOAD) {
+            uploads++;
+        }
+        else {
+            downloads++;
+        }
+        if(!transferStats.succeeded()) {
+            failedTransfers++;
+        }
+        cancelReasons[transferStats.getCancelReason().ordinal()]++;
+        bytesTransferred += transferStats.getBytesTransferred();
+        framesTransferred += transferStats.getFramesTransferred();
+        naks += transferStats.getNAKCount();
+        retransmittedFrames += transferStats.getRetransmittedFrameCount();
+        maxNAKsPerFrame = Math.max(maxNAKsPerFrame, transferStats.getMaxNAKsPerFrame());
+        crcFallbacks += transferStats.isCRCFallback() ? 1 : 0;
+        fellBackTo128Blocks += transferStats.fellBackTo128Blocks() ? 1 : 0;
+        double handshakeMillis = transferStats.getHandshakeMillis();
+        if(handshakeMillis >= 0) {
+            handshakes++;
+            totalHandshakeMillis += handshakeMillis;
+            maxHandshakeMillis = Math.max(maxHandshakeMillis, handshakeMillis);
+        }
+        totalWallTimeMillis += transferStats.getWallTimeMillis();
+        ackLatency.addAll(transferStats.getACKLatencyHistogram());
+        lastTransferStats = transferStats;
+    }
+
+    public synchronized long getTransferCount() { return uploads + downloads; }
+    public synchronized long getUploadCount() { return uploads; }
+    public synchronized long getDownloadCount() { return downloads; }
+    public synchronized long getFailedTransferCount() { return failedTransfers; }
+    public synchronized long getCancelCount(CancelReason reason) { return cancelReasons[reason.ordinal()]; }
+    public synchronized long getBytesTransferred() { return bytesTransferred; }
+    public synchronized long getFramesTransferred() { return framesTransferred; }
+    public synchronized long getNAKCount() { return naks; }
+    public synchronized long getRetransmittedFrameCount() { return retransmittedFrames; }
+    public synchronized int getMaxNAKsPerFrame() { return maxNAKsPerFrame; }
+    public synchronized long getCRCFallbackCount() { return crcFallbacks; }
+    public synchronized long getFellBackTo128BlocksCount() { return fellBackTo128Blocks; }
+    public synchronized double getTotalWallTimeMillis() { return totalWallTimeMillis; }
+    public LatencyHistogram getACKLatencyHistogram() { return ackLatency; }
+    public synchronized XModemTransferStats getLastTransferStats() { return lastTransferStats; }
+
+    public synchronized double getFailureRate() {
+        long transfers = uploads + downloads;
+        return transfers == 0 ? 0.0 : failedTransfers / (double) transfers;
+    }
+
+    public synchronized double getNAKsPerFrame() {
+        return framesTransferred == 0 ? 0.0 : naks / (double) framesTransferred;
+    }
+
+    public synchronized double getMeanHandshakeMillis() {
+        return handshakes == 0 ? 0.0 : totalHandshakeMillis / handshakes;
+    }
+
+    public synchronized double getMaxHandshakeMillis() { return maxHandshakeMillis; }
+
+    /**
+     * @return the bytes of all transfers over their total wall time.
+     */
+    public synchronized double getThroughputBytesPerSecond() {
+        return totalWallTimeMillis <= 0 ? 0.0 : bytesTransferred * 1000.0 / totalWallTimeMillis;
+    }
+
+    public synchronized void reset() {
+        uploads = downloads = failedTransfers = 0;
+        Arrays.fill(cancelReasons, 0);
+        bytesTransferred = framesTransferred = naks = retransmittedFrames = 0;
+        maxNAKsPerFrame = 0;
+        crcFallbacks = fellBackTo128Blocks = handshakes = 0;
+        totalHandshakeMillis = maxHandshakeMillis = totalWallTimeMillis = 0.0;
+        ackLatency.clear();
+        lastTransferStats = null;
+    }
+
+    public synchronized String toString() {
+        StringBuilder cancelSummary = new StringBuilder();
+        for(CancelReason reason : CancelReason.values()) {
+            if(reason != CancelReason.NONE && cancelReasons[reason.ordinal()] > 0) {
+                cancelSummary.append(cancelSummary.length() == 0 ? " [" : ", ");
+                cancelSummary.append(reason.name()).append('=').append(cancelReasons[reason.ordinal()]);
+            }
+        }
+        if(cancelSummary.length() > 0) {
+            cancelSummary.append(']');
+        }
+        return String.format(Locale.ENGLISH, "XModemDeviceStats(SN:%s, uploads=%d, downloads=%d, failed=%d%s, " +
+                        "bytes=%d, frames=%d, NAKs/frame=%.3f, retransmitted=%d, maxNAKs/frame=%d, " +
+                        "handshake=%.1fms (max %.1fms), %.0f bytes/s, ACK latency: %s)",
+                serialNumber, uploads, downloads, failedTransfers, cancelSummary.toString(),
+                bytesTransferred, framesTransferred, getNAKsPerFrame(), retransmittedFrames, maxNAKsPerFrame,
+                getMeanHandshakeMillis(), maxHandshakeMillis, getThroughputBytesPerSecond(), ackLatency.toString());
+    }
+
+}
@@ -0,0 +1,251 @@
+package com.maxieds.chameleonminiusb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <h1>XModem Download Sink</h1>
+ * Where the data of an XModem download goes. Each verified frame is written straight from the
+ * received bytes; finish is called once after the sender's EOT, and abort instead of finish if
+ * the transfer fails. The sinks below keep the data in memory (e.g., to diff a slot against a
+ * dump without touching the file system), write it to a file through a buffered FileChannel,
+ * map the file into memory for large log downloads, or only digest the data (to verify an upload).
+ *
+ * @ref XModem.downloadCardFileByXModem
+ */
+public interface XModemDownloadSink {
+
+    void write(byte[] buf, int offset, int length) throws IOException;
+
+    void finish() throws IOException;
+
+    void abort();
+
+    /**
+     * @return the file to announce to the XModem.DownloadListener once the download has
+     *         completed, or null if the download should not be announced.
+     */
+    File getDownloadFile();
+
+    /**
+     * Keeps the download in a heap ByteBuffer, which grows if the initial capacity (e.g., the
+     * MEMSIZE of the device) turns out to be too small.
+     */
+    class ByteBufferSink implements XModemDownloadSink {
+
+        private ByteBuffer dataBuffer;
+
+        public ByteBufferSink(int initialCapacity) {
+            dataBuffer = ByteBuffer.allocate(Math.max(initialCapacity, XModem.XMODEM_1K_BLOCK_SIZE));
+        }
+
+        public void write(byte[] buf, int offset, int length) {
+            if(dataBuffer.remaining() < length) {
+                ByteBuffer largerBuffer = ByteBuffer.allocate(Math.max(2 * dataBuffer.capacity(), dataBuffer.position() + length));
+                dataBuffer.flip();
+                largerBuffer.put(dataBuffer);
+                dataBuffer = largerBuffer;
+            }
+            dataBuffer.put(buf, offset, length);
+        }
+
+        public void finish() {}
+
+        public void abort() {
+            dataBuffer.clear();
+        }
+
+        public File getDownloadFile() { return null; }
+
+        /**
+         * @return a read-only view of the downloaded bytes (the data is not copied).
+         */
+        public ByteBuffer getData() {
+            ByteBuffer dataView = dataBuffer.asReadOnlyBuffer();
+            dataView.flip();
+            return dataView;
+        }
+
+        public int size() { return dataBuffer.position(); }
+
+    }
+
+    /**
+     * Writes the download to a file through a FileChannel, collecting the frames in a write
+     * buffer which is only flushed when it fills up and once at EOT (rather than per frame).
+     */
+    class FileChannelSink implements XModemDownloadSink {
+
+        public static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+        private final File outFile;
+        private final boolean announceDownload;
+        private final FileOutputStream outStream;
+        private final FileChannel outChannel;
+        private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+
+        /**
+         * @param downloadFile
+         * @param announce : whether to pass the file to the XModem.DownloadListener
+         *                   (e.g., to register it with the Android DownloadManager) once complete.
+         * @throws IOException
+         */
+        public FileChannelSink(File downloadFile, boolean announce) throws IOException {
+            outFile = downloadFile;
+            announceDownload = announce;
+            outStream = new FileOutputStream(downloadFile);
+            outChannel = outStream.getChannel();
+        }
+
+        public void write(byte[] buf, int offset, int length) throws IOException {
+            if(writeBuffer.remaining() < length) {
+                flushWriteBuffer();
+            }
+            if(length > writeBuffer.capacity()) {
+                ByteBuffer frameData = ByteBuffer.wrap(buf, offset, length);
+                while(frameData.hasRemaining()) {
+                    outChannel.write(frameData);
+                }
+                return;
+            }
+            writeBuffer.put(buf, offset, length);
+        }
+
+        private void flushWriteBuffer() throws IOException {
+            writeBuffer.flip();
+            while(writeBuffer.hasRemaining()) {
+                outChannel.write(writeBuffer);
+            }
+            writeBuffer.clear();
+        }
+
+        public void finish() throws IOException {
+            try {
+                flushWriteBuffer();
+            } finally {
+                outStream.close();
+            }
+        }
+
+        public void abort() {
+            try {
+                outStream.close();
+            } catch(IOException ioe) {}
+            outFile.delete();
+        }
+
+        public File getDownloadFile() {
+            return announceDownload ? outFile : null;
+        }
+
+    }
+
+    /**
+     * Writes the download to a memory-mapped file, mapping regionSize bytes at a time. The file
+     * is truncated to the downloaded length at EOT.
+     */
+    class MappedFileSink implements XModemDownloadSink {
+
+        public static final int DEFAULT_REGION_SIZE = 1024 * 1024;
+
+        private final File outFile;
+        private final boolean announceDownload;
+        private final int regionSize;
+        private final RandomAccessFile outRandomAccessFile;
+        private final FileChannel outChannel;
+        private MappedByteBuffer mappedRegion;
+        private long bytesWritten;
+
+        public MappedFileSink(File downloadFile, boolean announce) throws IOException {
+            this(downloadFile, announce, DEFAULT_REGION_SIZE);
+        }
+
+        public MappedFileSink(File downloadFile, boolean announce, int mapRegionSize) throws IOException {
+            outFile = downloadFile;
+            announceDownload = announce;
+            regionSize = Math.max(mapRegionSize, XModem.XMODEM_1K_BLOCK_SIZE);
+            outRandomAccessFile = new RandomAccessFile(downloadFile, "rw");
+            outChannel = outRandomAccessFile.getChannel();
+        }
+
+        public void write(byte[] buf, int offset, int length) throws IOException {
+            while(length > 0) {
+                if(mappedRegion == null || !mappedRegion.hasRemaining()) {
+                    if(mappedRegion != null) {
+                        mappedRegion.force();
+                    }
+                    mappedRegion = outChannel.map(FileChannel.MapMode.READ_WRITE, bytesWritten, regionSize);
+                }
+                int regionBytes = Math.min(length, mappedRegion.remaining());
+                mappedRegion.put(buf, offset, regionBytes);
+                bytesWritten += regionBytes;
+                offset += regionBytes;
+                length -= regionBytes;
+            }
+        }
+
+        public void finish() throws IOException {
+            try {
+                if(mappedRegion != null) {
+                    mappedRegion.force();
+                    mappedRegion = null;
+                }
+                outChannel.truncate(bytesWritten);
+            } finally {
+                outRandomAccessFile.close();
+            }
+        }
+
+        public void abort() {
+            mappedRegion = null;
+            try {
+                outRandomAccessFile.close();
+            } catch(IOException ioe) {}
+            outFile.delete();
+        }
+
+        public File getDownloadFile() {
+            return announceDownload ? outFile : null;
+        }
+
+    }
+
+    /**
+     * Digests the first digestLength bytes of the download as they arrive, and only counts the
+     * rest (e.g., to compare the slot read back against the digest of an upload).
+     */
+    class DigestSink implements XModemDownloadSink {
+
+        private final TransferDigest dataDigest;
+        private final long digestLength;
+        private long bytesReceived;
+
+        public DigestSink(long digestLength, boolean computeSHA256) {
+            this.digestLength = digestLength;
+            dataDigest = new TransferDigest(computeSHA256);
+        }
+
+        public void write(byte[] buf, int offset, int length) {
+            long digestBytes = Math.min(length, Math.max(digestLength - bytesReceived, 0));
+            dataDigest.update(buf, offset, (int) digestBytes);
+            bytesReceived += length;
+        }
+
+        public void finish() {}
+
+        public void abort() {}
+
+        public File getDownloadFile() { return null; }
+
+        public TransferDigest getDigest() { return dataDigest; }
+
+        public long getBytesReceived() { return bytesReceived; }
+
+    }
+
+}
@@ -0,0 +1,187 @@
+package com.maxieds.chameleonminiusb;
+
+import static com.maxieds.chameleonminiusb.XModem.BYTE_CAN;
+import static com.maxieds.chameleonminiusb.XModem.BYTE_EOT;
+import static com.maxieds.chameleonminiusb.XModem.BYTE_SOH;
+import static com.maxieds.chameleonminiusb.XModem.BYTE_STX;
+import static com.maxieds.chameleonminiusb.XModem.XMODEM_1K_BLOCK_SIZE;
+import static com.maxieds.chameleonminiusb.XModem.XMODEM_BLOCK_SIZE;
+
+/**
+ * <h1>XModem Frame Assembler</h1>
+ * Incrementally reassembles the frames of an XModem download. The USB stack does not deliver
+ * one frame per read callback: with 64 byte USB packets a 132 byte frame is split across three
+ * callbacks, and a frame may also arrive glued to the start of the next one. Complete frames
+ * (and the sender's EOT / CAN) are handed to the listener as soon as they have arrived; frames
+ * which are complete within one packet are passed on in place, and only the bytes of a frame
+ * which straddles packets are collected in a reusable buffer. EOT and CAN are only taken as such
+ * where the next frame would begin. A frame boundary which does not hold an SOH / STX header
+ * (or whose frame number does not match its complement) means that the receiver has lost its
+ * place in the stream, and a 0x04 or 0x18 found by stepping through the bytes which follow could
+ * just as well be payload: everything is then discarded until the line goes quiet and the reset
+ * requested by the transfer's frame timeout (which NAKs the frame) puts the receiver back in step.
+ *
+ * @ref XModemSession.performXModemSerialDownload
+ * @ref ChameleonResponseFramer
+ */
+public class XModemFrameAssembler {
+
+    public interface FrameListener {
+        /**
+         * Called once per complete SOH / STX frame: frameBuf[offset] is the header byte, which
+         * is followed by the frame number, its complement, blockSize payload bytes and the
+         * checksum / CRC-16 trailer. The bytes are only valid for the duration of the call.
+         * @param frameBuf
+         * @param offset
+         * @param blockSize
+         */
+        void onDataFrame(byte[] frameBuf, int offset, int blockSize);
+
+        /**
+         * Called for an EOT or CAN from the sender.
+         * @param controlByte
+         */
+        void onControlByte(byte controlByte);
+    }
+
+    private static final int MAX_FRAME_LENGTH = XMODEM_1K_BLOCK_SIZE + 5;
+
+    private final byte[] assemblyBuffer = new byte[2 * MAX_FRAME_LENGTH];
+    private int bufferedBytes;
+    private int carriedBytes; // the part of bufferedBytes received in earlier packets
+    private int trailerLength = 1;
+    private volatile boolean resetRequested;
+    private volatile boolean discarding; // out of step with the frames, waiting for the line to go quiet
+    private final XModemTransferStats transferStats;
+
+    private int packetFrames;
+    private volatile long packetsReceived;
+    private long framesAssembled;
+    private long discardedBytes;
+
+    /**
+     * Constructor
+     * @param stats : the transfer stats which record the reassembly events (may be null).
+     */
+    public XModemFrameAssembler(XModemTransferStats stats) {
+        transferStats = stats;
+    }
+
+    /**
+     * Selects the trailer length of the frames: the two byte CRC-16, or the checksum byte.
+     * @param crcMode
+     */
+    public void setCRCMode(boolean crcMode) {
+        trailerLength = crcMode ? 2 : 1;
+    }
+
+    public void reset() {
+        bufferedBytes = 0;
+        carriedBytes = 0;
+        discarding = false;
+        resetRequested = false;
+    }
+
+    /**
+     * Thread-safe variant of reset(): the partial frame is discarded by the reader thread before
+     * it appends the next packet (e.g., after the partial frame timed out and was NAKed).
+     */
+    public void requestReset() {
+        resetRequested = true;
+    }
+
+    public int bufferedByteCount() { return bufferedBytes; }
+    public boolean isDiscarding() { return discarding; }
+    public long getPacketsReceived() { return packetsReceived; }
+    public long getFramesAssembled() { return framesAssembled; }
+    public long getDiscardedByteCount() { return discardedBytes; }
+
+    /**
+     * Appends the newly received bytes and emits every frame that is now complete.
+     * @param rxData
+     * @param frameListener
+     * @return number of complete frames (and control bytes) emitted for this packet.
+     */
+    public int onReceivedData(byte[] rxData, FrameListener frameListener) {
+        if(rxData == null || rxData.length == 0) {
+            return 0;
+        }
+        packetsReceived++;
+        if(resetRequested) {
+            reset();
+        }
+        packetFrames = 0;
+        if(discarding) {
+            discardedBytes += rxData.length;
+            return 0;
+        }
+        int rxPos = 0;
+        if(bufferedBytes == 0) {
+            // the usual case of whole frames: take them straight out of the packet
+            rxPos = emitFrames(rxData, 0, rxData.length, 0, frameListener);
+        }
+        while(rxPos < rxData.length) {
+            int appendBytes = Math.min(rxData.length - rxPos, assemblyBuffer.length - bufferedBytes);
+            System.arraycopy(rxData, rxPos, assemblyBuffer, bufferedBytes, appendBytes);
+            bufferedBytes += appendBytes;
+            rxPos += appendBytes;
+            int emitEnd = emitFrames(assemblyBuffer, 0, bufferedBytes, carriedBytes, frameListener);
+            bufferedBytes -= emitEnd;
+            System.arraycopy(assemblyBuffer, emitEnd, assemblyBuffer, 0, bufferedBytes);
+            carriedBytes = 0;
+        }
+        carriedBytes = bufferedBytes;
+        if(packetFrames > 1 && transferStats != null) {
+            transferStats.recordCoalescedPacket();
+        }
+        return packetFrames;
+    }
+
+    /**
+     * Emits the complete frames in buf[start, end), and switches to discarding at a frame
+     * boundary which does not start a valid frame.
+     * @param carriedEnd : frames starting before this index began in an earlier packet.
+     * @return the index of the first byte which is not part of an emitted (or discarded) frame.
+     */
+    private int emitFrames(byte[] buf, int start, int end, int carriedEnd, FrameListener frameListener) {
+        int pos = start;
+        while(pos < end) {
+            byte header = buf[pos];
+            if(header == BYTE_EOT || header == BYTE_CAN) {
+                pos++;
+                packetFrames++;
+                frameListener.onControlByte(header);
+                continue;
+            }
+            else if(header != BYTE_SOH && header != BYTE_STX) {
+                return discardUntilQuiet(pos, end);
+            }
+            else if(end - pos < 3) {
+                break;
+            }
+            else if(buf[pos + 1] != (byte) ~buf[pos + 2]) {
+                return discardUntilQuiet(pos, end);
+            }
+            int blockSize = (header == BYTE_STX) ? XMODEM_1K_BLOCK_SIZE : XMODEM_BLOCK_SIZE;
+            int frameLength = 3 + blockSize + trailerLength;
+            if(end - pos < frameLength) {
+                break;
+            }
+            if(pos < carriedEnd && transferStats != null) {
+                transferStats.recordReassembledFrame();
+            }
+            framesAssembled++;
+            packetFrames++;
+            frameListener.onDataFrame(buf, pos, blockSize);
+            pos += frameLength;
+        }
+        return pos;
+    }
+
+    private int discardUntilQuiet(int pos, int end) {
+        discarding = true;
+        discardedBytes += end - pos;
+        return end;
+    }
+
+}
@@ -0,0 +1,773 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates;
+import com.maxieds.chameleonminiusb.XModemTransferStats.CancelReason;
+import com.maxieds.chameleonminiusb.XModemTransferStats.Direction;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.SET_READONLY;
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.DOWNLOAD;
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.IDLE;
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.UPLOAD;
+import static com.maxieds.chameleonminiusb.XModem.ACK_BYTES;
+import static com.maxieds.chameleonminiusb.XModem.BYTE_ACK;
+import static com.maxieds.chameleonminiusb.XModem.BYTE_CAN;
+import static com.maxieds.chameleonminiusb.XModem.BYTE_CRC_REQUEST;
+import static com.maxieds.chameleonminiusb.XModem.BYTE_EOT;
+import static com.maxieds.chameleonminiusb.XModem.BYTE_NAK;
+import static com.maxieds.chameleonminiusb.XModem.BYTE_SOH;
+import static com.maxieds.chameleonminiusb.XModem.BYTE_STX;
+import static com.maxieds.chameleonminiusb.XModem.CAN_BYTES;
+import static com.maxieds.chameleonminiusb.XModem.CRC_REQUEST_BYTES;
+import static com.maxieds.chameleonminiusb.XModem.EOT_BYTES;
+import static com.maxieds.chameleonminiusb.XModem.FIRST_FRAME_NUMBER;
+import static com.maxieds.chameleonminiusb.XModem.MAX_NAK_COUNT;
+import static com.maxieds.chameleonminiusb.XModem.NAK_BYTES;
+import static com.maxieds.chameleonminiusb.XModem.XMODEM_1K_BLOCK_SIZE;
+import static com.maxieds.chameleonminiusb.XModem.XMODEM_BLOCK_SIZE;
+import static com.maxieds.chameleonminiusb.XModem.XMODEM_CRC_HANDSHAKE_ATTEMPTS;
+import static com.maxieds.chameleonminiusb.XModem.XMODEM_CRC_HANDSHAKE_TIMEOUT;
+import static com.maxieds.chameleonminiusb.XModem.XMODEM_EOT_ACK_TIMEOUT;
+import static com.maxieds.chameleonminiusb.XModem.XMODEM_FRAME_TIMEOUT;
+
+/**
+ * <h1>XModem Session</h1>
+ * One XModem upload or download: the frame buffers, frame and NAK counters, negotiated modes,
+ * statistics and completion future of a single transfer. A new session is created by XModem for
+ * every transfer, and only the device's current session is handed the received data, so a timer
+ * or a late packet belonging to an earlier (e.g., aborted) transfer is recognized by its session
+ * identity and dropped instead of disturbing the transfer which followed it.
+ *
+ * @ref XModem.getCurrentTransfer
+ */
+public class XModemSession {
+
+    private static final String TAG = XModemSession.class.getSimpleName();
+
+    private static final AtomicInteger nextTransferId = new AtomicInteger(1);
+
+    private final int transferId;
+    private final XModem xmodem;
+    private final ChameleonDeviceSession deviceSession;
+    private final Direction direction;
+    private final XModemTransferStats transferStats;
+    private final ChameleonFuture<Boolean> dataExchange;
+    private final ChameleonFuture<Boolean> completion;
+    private final boolean useCRC;
+    private volatile boolean EOT = false;
+    private volatile boolean transmissionErrorOccurred;
+    private volatile boolean completed;
+    private final AtomicBoolean finishing = new AtomicBoolean(false);
+    private volatile boolean handshakeBegun; // the device has entered XModem mode
+    private volatile SerialUSBStateMachine.PortLease portLease; // held from the transfer command to the end
+    // written by the serial reader thread, the upload steps and the frame timeout on the transfer
+    // executor; the download frames are accepted and rejected under the session's lock
+    private volatile byte CurrentFrameNumber = FIRST_FRAME_NUMBER;
+    private volatile int currentNAKCount; // of the current frame (or the EOT), reset once it is ACKed
+    private int fileSize = 0;
+    boolean initiallyReadOnly;
+
+    /**
+     * Upload state.
+     */
+    private static final int UPLOAD_WAITING_FOR_RECEIVER = 0;
+    private static final int UPLOAD_SENDING_FRAMES = 1;
+    private static final int UPLOAD_WAITING_FOR_EOT_ACK = 2;
+
+    private final XModemUploadSource uploadSource; // only read by the upload steps on the transfer executor
+    private volatile int uploadState = UPLOAD_WAITING_FOR_RECEIVER;
+    private volatile boolean uploadFrameInFlight; // sent, and not yet ACKed or NAKed for a fallback
+    private int uploadBlockSize;
+    private boolean uploadCRCMode;
+    private final byte[][][] uploadFrameBuffers = new byte[2][4][]; // [buffer set][CRC mode, 1K frame]
+    private int nextUploadBufferSet;
+    private byte[] currentUploadFrame;
+    private int currentUploadBlockSize;
+    private int currentUploadPayloadLength;
+    private byte[] nextUploadFrame; // read ahead while the current frame waits for its ACK
+    private int nextUploadBlockSize;
+    private int nextUploadPayloadLength;
+    private IOException uploadSourceError;
+    private boolean upload1KBlockAcked;
+    private final TransferDigest uploadDigest;
+    private long uploadFrameSentNanos; // for the ACK latency of the frame in flight
+
+    /**
+     * Download state.
+     */
+    private final XModemDownloadSink downloadSink;
+    private volatile boolean downloadCRCMode;
+    private volatile boolean downloadFrameReceived;
+    private int crcHandshakeAttempts;
+    private final XModemFrameAssembler frameAssembler;
+    private volatile long downloadReplySentNanos; // when the last ACK / NAK / 'C' went out
+    private volatile long downloadPacketNanos; // when the last download data arrived
+    private volatile boolean downloadFramePending; // a partial frame waits for its bytes, or the line for quiet
+    private final AtomicBoolean frameTimeoutScheduled = new AtomicBoolean(false);
+
+    private XModemSession(XModem owner, Direction transferDirection, XModemUploadSource source, boolean use1KBlocks,
+                          boolean sha256Digest, XModemDownloadSink sink, boolean crcEnabled) {
+        transferId = nextTransferId.getAndIncrement();
+        xmodem = owner;
+        deviceSession = owner.getDeviceSession();
+        direction = transferDirection;
+        transferStats = new XModemTransferStats(transferDirection);
+        useCRC = crcEnabled;
+        uploadSource = source;
+        uploadBlockSize = use1KBlocks ? XMODEM_1K_BLOCK_SIZE : XMODEM_BLOCK_SIZE;
+        downloadSink = sink;
+        uploadDigest = (transferDirection == Direction.UPLOAD) ? new TransferDigest(sha256Digest) : null;
+        frameAssembler = (transferDirection == Direction.DOWNLOAD) ? new XModemFrameAssembler(transferStats) : null;
+        if(transferDirection == Direction.DOWNLOAD) {
+            transferStats.setCRCMode(crcEnabled);
+        }
+        Callable<Boolean> transferSucceeded = new Callable<Boolean>() {
+            public Boolean call() {
+                return !transmissionErrorOccurred;
+            }
+        };
+        completion = new ChameleonFuture<Boolean>(transferSucceeded);
+        dataExchange = new ChameleonFuture<Boolean>(transferSucceeded);
+        dataExchange.addCallback(new ChameleonFuture.Callback<Boolean>() {
+            public void onSuccess(Boolean exchangeSucceeded) {
+                runCompletionStage();
+            }
+            public void onFailure(Throwable error) {
+                runCompletionStage();
+            }
+        });
+    }
+
+    /**
+     * A new upload of the data read from source.
+     * @param sha256Digest : whether the upload digest also computes a SHA-256 (it always has the CRC32C).
+     */
+    XModemSession(XModem owner, XModemUploadSource source, boolean use1KBlocks, boolean crcEnabled, boolean sha256Digest) {
+        this(owner, Direction.UPLOAD, source, use1KBlocks, sha256Digest, null, crcEnabled);
+    }
+
+    /**
+     * A new download into sink.
+     */
+    XModemSession(XModem owner, XModemDownloadSink sink, boolean crcEnabled) {
+        this(owner, Direction.DOWNLOAD, null, false, false, sink, crcEnabled);
+    }
+
+    public int getTransferId() { return transferId; }
+    public Direction getDirection() { return direction; }
+    public XModemTransferStats getTransferStats() { return transferStats; }
+
+    /**
+     * @return whether the data exchange has finished (the port may not have been given back yet).
+     */
+    public boolean isEOT() { return EOT; }
+    public boolean transmissionError() { return transmissionErrorOccurred; }
+
+    /**
+     * @return a future which completes (with whether the transfer succeeded) once the transfer
+     *         has finished and the serial port has been given back.
+     */
+    public ChameleonFuture<Boolean> getCompletion() { return completion; }
+
+    /**
+     * @return the digest of the data bytes of the frames ACKed so far (null for a download).
+     */
+    public TransferDigest getUploadDigest() { return uploadDigest; }
+
+    /**
+     * @return the first bytes sent by this upload (e.g., to verify the UID), or null for a download.
+     */
+    public byte[] getUploadHeadBytes() {
+        return uploadSource == null ? null : uploadSource.getHeadBytes();
+    }
+
+    /**
+     * Hands the transfer the lease on the port, which it gives back once it ends.
+     */
+    void setPortLease(SerialUSBStateMachine.PortLease lease) {
+        portLease = lease;
+    }
+
+    private boolean isCurrentTransfer() {
+        return xmodem.getCurrentTransfer() == this;
+    }
+
+    /**
+     * Stops the transfer (e.g., when the device is detached). A transfer whose command is still
+     * waiting for the device to enter XModem mode is ended by XModem.startTransfer (with
+     * failToStart) or, if the device does enter XModem mode, by beginTransferHandshake.
+     */
+    void abort() {
+        if(!EOT) {
+            transmissionErrorOccurred = true;
+            transferStats.recordCancel(CancelReason.ABORTED);
+        }
+        finishTransfer();
+    }
+
+    /**
+     * Ends a transfer which never started because the device did not enter XModem mode.
+     */
+    void failToStart() {
+        transmissionErrorOccurred = true;
+        transferStats.recordCancel(CancelReason.NOT_STARTED);
+        EOT = true;
+        if(downloadSink != null) {
+            downloadSink.abort();
+        }
+        complete();
+    }
+
+    private void complete() {
+        if(!completed) {
+            completed = true;
+            if(uploadSource != null) {
+                uploadSource.release();
+            }
+            if(transferStats.recordEnd(!transmissionErrorOccurred)) {
+                xmodem.getDeviceStats().record(transferStats);
+            }
+            completion.run();
+        }
+    }
+
+    /**
+     * Completes the download sink (or discards its data if the download failed), and announces
+     * the downloaded file to the XModem.DownloadListener if the sink asks for that.
+     */
+    private void finishDownloadSink() {
+        if(!transmissionErrorOccurred) {
+            try {
+                downloadSink.finish();
+            } catch(IOException ioe) {
+                ProtocolLogging.e(TAG, "Unable to complete the download: " + ioe.getMessage());
+                transmissionErrorOccurred = true;
+                transferStats.recordCancel(CancelReason.SINK_ERROR);
+            }
+        }
+        if(transmissionErrorOccurred) {
+            downloadSink.abort();
+            ProtocolLogging.e(TAG, "Download of data aborted (" + transferStats.getCancelReason().name() + ").");
+        }
+        else if(downloadSink.getDownloadFile() != null) {
+            XModem.notifyDownloadComplete(downloadSink.getDownloadFile());
+        }
+    }
+
+    /**
+     * Ends the data exchange as soon as the final EOT / ACK exchange (or a CAN) is over, which
+     * completes the dataExchange future and so starts the completion stage. Until the device has
+     * entered XModem mode, this only marks the transfer as over (see abort).
+     */
+    private void finishTransfer() {
+        EOT = true;
+        if(handshakeBegun && finishing.compareAndSet(false, true)) {
+            dataExchange.run();
+        }
+    }
+
+    /**
+     * The completion stage runs on the device session's transfer executor rather than on the
+     * serial reader thread, since restoring the read-only setting issues a command whose response
+     * has to be delivered by the reader thread.
+     */
+    private void runCompletionStage() {
+        try {
+            deviceSession.getTransferExecutor().execute(transferCompletionRunnable);
+        } catch(RejectedExecutionException ree) {
+            transferCompletionRunnable.run(); // the session has been closed
+        }
+    }
+
+    /**
+     * Runs a step of the upload on the device session's transfer executor, which is the only
+     * thread to read the upload source. The caller's InputStream may block (e.g., on the network),
+     * and must never hold up the serial reader thread, which delivers the receiver's ACKs and the
+     * responses to every other command. The executor runs the steps one after another, so each
+     * step sees the frames prepared by the one before it.
+     */
+    private void runUploadStep(Runnable uploadStep) {
+        try {
+            deviceSession.getTransferExecutor().execute(uploadStep);
+        } catch(RejectedExecutionException ree) {
+            ProtocolLogging.w(TAG, "Upload step not run, the session has been closed.");
+            transmissionErrorOccurred = true;
+            finishTransfer();
+        }
+    }
+
+    private void scheduleTimer(Runnable timer, int delayMillis) {
+        try {
+            deviceSession.getTransferExecutor().schedule(timer, delayMillis, TimeUnit.MILLISECONDS);
+        } catch(RejectedExecutionException ree) {
+            ProtocolLogging.w(TAG, "Transfer timer not scheduled, the session has been closed.");
+        }
+    }
+
+    /**
+     * Restores the read-only setting of the slot (under the transfer's own lease, so that no
+     * other command can change the active slot first) or finishes the download file, gives back
+     * the serial port, and then completes the transfer's future.
+     * @ref ExportTools.downloadByXModem
+     * @ref ExportTools.performXModemSerialDownload
+     */
+    private final Runnable transferCompletionRunnable = new Runnable() {
+
+        public void run() {
+            if(completed) {
+                return;
+            }
+            SerialUSBStateMachine serialStateMachine = deviceSession.getSerialStateMachine();
+            SerialUSBStates transferState = (direction == Direction.UPLOAD) ? UPLOAD : DOWNLOAD;
+            if(isCurrentTransfer()) {
+                serialStateMachine.transition(transferState, IDLE);
+            }
+            if(direction == Direction.DOWNLOAD) {
+                serialStateMachine.releasePort(portLease);
+                finishDownloadSink();
+            }
+            else {
+                if(initiallyReadOnly) {
+                    deviceSession.sendCommandToChameleon(SET_READONLY, 1, portLease);
+                }
+                serialStateMachine.releasePort(portLease);
+                if(transmissionErrorOccurred) {
+                    ProtocolLogging.e(TAG, "File transmission errors encountered. Upload of data aborted (" + transferStats.getCancelReason().name() + ").");
+                }
+            }
+            complete();
+        }
+    };
+
+    /**
+     * Called once the device is waiting in XModem mode: as the receiver of a download, we start
+     * the transfer with 'C' (CRC mode) or NAK (checksum mode). As the sender of an upload, we
+     * wait for the device to do the same (writing a NAK to the receiver would only be taken for
+     * line noise ahead of the first frame).
+     */
+    void beginTransferHandshake() {
+        handshakeBegun = true;
+        if(EOT) {
+            // aborted while the device was entering XModem mode:
+            deviceSession.writeSerialData(CAN_BYTES);
+            finishTransfer();
+            return;
+        }
+        if(direction == Direction.DOWNLOAD && useCRC) {
+            downloadCRCMode = true;
+            crcHandshakeAttempts = 1;
+            writeDownloadReply(CRC_REQUEST_BYTES);
+            scheduleTimer(crcHandshakeRunnable, XMODEM_CRC_HANDSHAKE_TIMEOUT);
+        }
+        else if(direction == Direction.DOWNLOAD) {
+            writeDownloadReply(NAK_BYTES);
+        }
+    }
+
+    /**
+     * Repeats the 'C' request of a download until the sender answers with a frame, and falls
+     * back to the checksum mode (NAK) if it never does.
+     */
+    private final Runnable crcHandshakeRunnable = new Runnable() {
+        public void run() {
+            if(EOT || downloadFrameReceived || !isCurrentTransfer()) {
+                return;
+            }
+            else if(++crcHandshakeAttempts <= XMODEM_CRC_HANDSHAKE_ATTEMPTS) {
+                writeDownloadReply(CRC_REQUEST_BYTES);
+                scheduleTimer(this, XMODEM_CRC_HANDSHAKE_TIMEOUT);
+                return;
+            }
+            ProtocolLogging.w(TAG, "Sender did not answer the XModem-CRC request, falling back to checksum mode.");
+            downloadCRCMode = false;
+            transferStats.setCRCFallback();
+            writeDownloadReply(NAK_BYTES);
+        }
+    };
+
+    private byte[] getUploadFrameBuffer(int bufferSet, int blockSize) {
+        int bufferIndex = (uploadCRCMode ? 2 : 0) + (blockSize == XMODEM_1K_BLOCK_SIZE ? 1 : 0);
+        if(uploadFrameBuffers[bufferSet][bufferIndex] == null) {
+            uploadFrameBuffers[bufferSet][bufferIndex] = new byte[blockSize + (uploadCRCMode ? 5 : 4)];
+        }
+        return uploadFrameBuffers[bufferSet][bufferIndex];
+    }
+
+    /**
+     * Reads ahead the frame to send after the current one into the other frame buffer set (on
+     * the transfer executor), so that it is ready to go out as soon as the current frame is ACKed.
+     * This is an STX frame while 1K blocks are in use and a full 1024 bytes remain, and an SOH
+     * frame otherwise; the final block is padded out with BYTE_EOF.
+     * @param frameNumber
+     * @throws IOException
+     */
+    private void prepareNextUploadFrame(byte frameNumber) throws IOException {
+        int blockSize = uploadBlockSize;
+        byte[] frame = getUploadFrameBuffer(nextUploadBufferSet, blockSize);
+        int payloadLength = uploadSource.read(frame, 3, blockSize);
+        if(blockSize == XMODEM_1K_BLOCK_SIZE && payloadLength < XMODEM_1K_BLOCK_SIZE) {
+            // the tail of the data goes out in 128 byte frames to keep the EOF padding short:
+            uploadSource.unread(frame, 3, payloadLength);
+            uploadBlockSize = blockSize = XMODEM_BLOCK_SIZE;
+            frame = getUploadFrameBuffer(nextUploadBufferSet, blockSize);
+            payloadLength = uploadSource.read(frame, 3, blockSize);
+        }
+        if(payloadLength == 0) {
+            nextUploadFrame = null;
+            return;
+        }
+        uploadSource.pad(frame, 3 + payloadLength, blockSize - payloadLength);
+        frame[0] = blockSize == XMODEM_1K_BLOCK_SIZE ? BYTE_STX : BYTE_SOH;
+        frame[1] = frameNumber;
+        frame[2] = (byte) (255 - frameNumber);
+        if(uploadCRCMode) {
+            int crc = XModem.CalcCRC16(frame, 3, blockSize);
+            frame[blockSize + 3] = (byte) (crc >>> 8);
+            frame[blockSize + 4] = (byte) crc;
+        }
+        else {
+            frame[blockSize + 3] = XModem.CalcChecksum(frame, 3, blockSize);
+        }
+        nextUploadFrame = frame;
+        nextUploadBlockSize = blockSize;
+        nextUploadPayloadLength = payloadLength;
+        nextUploadBufferSet ^= 1;
+    }
+
+    /**
+     * Sends the frame prepared by prepareNextUploadFrame (or EOT once the data is exhausted),
+     * and then reads ahead the frame after it while this one is in flight (upload steps only).
+     */
+    private void sendNextUploadFrame() {
+        if(EOT) {
+            return;
+        }
+        else if(uploadSourceError != null || nextUploadFrame == null) {
+            if(uploadSourceError != null) {
+                ProtocolLogging.e(TAG, "Unable to read the upload data: " + uploadSourceError.getMessage());
+                transmissionErrorOccurred = true;
+                transferStats.recordCancel(CancelReason.SOURCE_ERROR);
+                deviceSession.writeSerialData(CAN_BYTES);
+            }
+            else {
+                // the receiver ACKs the EOT: the transfer only ends then, so that its ACK can not
+                // turn up in the middle of the response to the next command
+                uploadState = UPLOAD_WAITING_FOR_EOT_ACK;
+                deviceSession.writeSerialData(EOT_BYTES);
+                scheduleTimer(eotAckTimeoutRunnable, XMODEM_EOT_ACK_TIMEOUT);
+                return;
+            }
+            finishTransfer();
+            return;
+        }
+        currentUploadFrame = nextUploadFrame;
+        currentUploadBlockSize = nextUploadBlockSize;
+        currentUploadPayloadLength = nextUploadPayloadLength;
+        CurrentFrameNumber = currentUploadFrame[1];
+        fileSize += nextUploadPayloadLength;
+        if(ProtocolLogging.isLoggable(ProtocolLogging.Level.DEBUG)) {
+            ProtocolLogging.d(TAG, "Upload Writing Data: frame=" + CurrentFrameNumber + ": " + ProtocolUtils.byteArrayToString(currentUploadFrame));
+        }
+        uploadFrameSentNanos = System.nanoTime();
+        uploadFrameInFlight = true;
+        deviceSession.writeSerialData(currentUploadFrame);
+        readAheadUploadFrame((byte) (CurrentFrameNumber + 1));
+    }
+
+    /**
+     * The upload steps run on the transfer executor: the first frame once the receiver has asked
+     * for it, each following frame once the one before it has been ACKed, and the re-send of
+     * the data as 128 byte frames once the receiver has turned down an XModem-1K frame.
+     */
+    private final Runnable sendFirstUploadFrameStep = new Runnable() {
+        public void run() {
+            readAheadUploadFrame(CurrentFrameNumber);
+            sendNextUploadFrame();
+        }
+    };
+
+    private final Runnable sendNextUploadFrameStep = new Runnable() {
+        public void run() {
+            sendNextUploadFrame();
+        }
+    };
+
+    private final Runnable fallBackTo128ByteFramesStep = new Runnable() {
+        public void run() {
+            uploadBlockSize = XMODEM_BLOCK_SIZE;
+            if(nextUploadFrame != null) {
+                uploadSource.unread(nextUploadFrame, 3, nextUploadPayloadLength);
+            }
+            uploadSource.unread(currentUploadFrame, 3, XMODEM_1K_BLOCK_SIZE);
+            fileSize -= XMODEM_1K_BLOCK_SIZE;
+            readAheadUploadFrame(CurrentFrameNumber);
+            sendNextUploadFrame();
+        }
+    };
+
+    /**
+     * Ends an upload whose EOT the receiver never acknowledged.
+     */
+    private final Runnable eotAckTimeoutRunnable = new Runnable() {
+        public void run() {
+            if(EOT || !isCurrentTransfer()) {
+                return;
+            }
+            ProtocolLogging.w(TAG, "Receiver did not acknowledge the EOT of the upload.");
+            finishTransfer();
+        }
+    };
+
+    private void readAheadUploadFrame(byte frameNumber) {
+        try {
+            prepareNextUploadFrame(frameNumber);
+        } catch(IOException ioe) {
+            nextUploadFrame = null;
+            uploadSourceError = ioe;
+        }
+    }
+
+    /**
+     * Implements the actual data exchange with the card in the upload process.
+     * @param liveLogData
+     */
+    void performXModemSerialUpload(byte[] liveLogData) {
+        if(EOT || liveLogData == null || liveLogData.length == 0) {
+            return;
+        }
+        if(ProtocolLogging.isLoggable(ProtocolLogging.Level.VERBOSE)) {
+            ProtocolLogging.v(TAG, "Received Upload Data (#=" + liveLogData.length + ") ... " + ProtocolUtils.byteArrayToString(liveLogData));
+        }
+        byte statusByte = liveLogData[0];
+        if(uploadState == UPLOAD_WAITING_FOR_RECEIVER) {
+            transferStats.recordHandshake();
+            // the receiver picks the error check: 'C' asks for CRC-16, NAK for the checksum
+            if(statusByte == BYTE_CRC_REQUEST && !useCRC) {
+                return; // wait for the receiver to fall back to NAK
+            }
+            uploadCRCMode = (statusByte == BYTE_CRC_REQUEST);
+            transferStats.setCRCMode(uploadCRCMode);
+            uploadState = UPLOAD_SENDING_FRAMES;
+            runUploadStep(sendFirstUploadFrameStep);
+        }
+        else if(uploadState == UPLOAD_WAITING_FOR_EOT_ACK) {
+            if(statusByte == BYTE_NAK && currentNAKCount < MAX_NAK_COUNT) {
+                currentNAKCount++;
+                deviceSession.writeSerialData(EOT_BYTES);
+                return;
+            }
+            finishTransfer();
+        }
+        else if(!uploadFrameInFlight && (statusByte == BYTE_ACK || statusByte == BYTE_NAK)) {
+            // a repeated handshake NAK, or a reply while the next frame is still being read:
+            return;
+        }
+        else if(statusByte == BYTE_ACK) {
+            uploadFrameInFlight = false;
+            currentNAKCount = 0;
+            upload1KBlockAcked |= (currentUploadBlockSize == XMODEM_1K_BLOCK_SIZE);
+            transferStats.recordACKLatency(System.nanoTime() - uploadFrameSentNanos);
+            transferStats.recordFrame(currentUploadBlockSize);
+            uploadDigest.update(currentUploadFrame, 3, currentUploadPayloadLength);
+            runUploadStep(sendNextUploadFrameStep);
+        }
+        else if(statusByte == BYTE_NAK && currentUploadBlockSize == XMODEM_1K_BLOCK_SIZE && !upload1KBlockAcked) {
+            // the receiver does not take XModem-1K frames, so the block is re-sent as 128 byte frames:
+            ProtocolLogging.w(TAG, "Receiver rejected the XModem-1K frame, falling back to " + XMODEM_BLOCK_SIZE + " byte frames.");
+            uploadFrameInFlight = false;
+            transferStats.recordNAK();
+            transferStats.setFellBackTo128Blocks();
+            runUploadStep(fallBackTo128ByteFramesStep);
+        }
+        else if(statusByte == BYTE_NAK && currentNAKCount < MAX_NAK_COUNT) {
+            currentNAKCount++;
+            transferStats.recordNAK();
+            uploadFrameSentNanos = System.nanoTime();
+            deviceSession.writeSerialData(currentUploadFrame);
+        }
+        else {
+            transmissionErrorOccurred = true;
+            transferStats.recordCancel(statusByte == BYTE_CAN ? CancelReason.REMOTE_CANCELLED :
+                    statusByte == BYTE_NAK ? CancelReason.NAK_LIMIT : CancelReason.PROTOCOL_ERROR);
+            deviceSession.writeSerialData(CAN_BYTES);
+            finishTransfer();
+        }
+    }
+
+    /**
+     * Receives the next chunk of download data. The USB packets do not line up with the XModem
+     * frames, so the bytes are passed through the frame assembler, which hands each complete
+     * frame (or the sender's EOT / CAN) to downloadFrameHandler. A frame left incomplete by a
+     * lost packet, or a damaged header after which the assembler discards the rest of the data,
+     * is dropped and NAKed after XMODEM_FRAME_TIMEOUT milliseconds without new data.
+     * @param liveLogData
+     */
+    void performXModemSerialDownload(byte[] liveLogData) {
+        if(EOT || liveLogData == null || liveLogData.length == 0)
+            return; // the download files are being cleaned up
+        if(!downloadFrameReceived && ChameleonResponseFramer.isLineBreakOnly(liveLogData))
+            return; // the end of the 110 line's line break, split off into its own packet
+        if(ProtocolLogging.isLoggable(ProtocolLogging.Level.VERBOSE)) {
+            ProtocolLogging.v(TAG, "Received XModem data (#bytes=" + liveLogData.length + ") ... [" + ProtocolUtils.byteArrayToString(liveLogData) + "]");
+        }
+        if(!downloadFrameReceived) {
+            downloadFrameReceived = true;
+            transferStats.recordHandshake();
+        }
+        frameAssembler.setCRCMode(downloadCRCMode);
+        frameAssembler.onReceivedData(liveLogData, downloadFrameHandler);
+        downloadPacketNanos = System.nanoTime();
+        downloadFramePending = !EOT && (frameAssembler.bufferedByteCount() > 0 || frameAssembler.isDiscarding());
+        if(downloadFramePending && frameTimeoutScheduled.compareAndSet(false, true)) {
+            scheduleTimer(frameTimeoutRunnable, XMODEM_FRAME_TIMEOUT);
+        }
+    }
+
+    /**
+     * NAKs a partial download frame, or the frame whose header the assembler could not make
+     * sense of, once no data has arrived for XMODEM_FRAME_TIMEOUT. There is
+     * at most one of these timers pending per transfer: a timer which finds that more data has
+     * come in since it was scheduled puts itself back for the rest of the timeout.
+     */
+    private final Runnable frameTimeoutRunnable = new Runnable() {
+        public void run() {
+            frameTimeoutScheduled.set(false);
+            if(EOT || !isCurrentTransfer() || !downloadFramePending) {
+                return;
+            }
+            long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - downloadPacketNanos);
+            if(idleMillis < XMODEM_FRAME_TIMEOUT) {
+                if(frameTimeoutScheduled.compareAndSet(false, true)) {
+                    scheduleTimer(this, (int) (XMODEM_FRAME_TIMEOUT - idleMillis));
+                }
+                return;
+            }
+            if(frameAssembler.isDiscarding()) {
+                ProtocolLogging.w(TAG, "Lost the frame boundary before XModem frame #" + CurrentFrameNumber + ", the line is quiet again.");
+            }
+            else {
+                ProtocolLogging.w(TAG, "Timed out waiting for the rest of XModem frame #" + CurrentFrameNumber + ".");
+            }
+            downloadFramePending = false;
+            frameAssembler.requestReset();
+            rejectDownloadFrame();
+        }
+    };
+
+    private final XModemFrameAssembler.FrameListener downloadFrameHandler = new XModemFrameAssembler.FrameListener() {
+
+        public void onDataFrame(byte[] frameBuf, int offset, int blockSize) {
+            if(!EOT) {
+                receiveDownloadFrame(frameBuf, offset, blockSize);
+            }
+        }
+
+        public void onControlByte(byte controlByte) {
+            if(EOT) {
+                return;
+            }
+            else if(controlByte == BYTE_EOT) {
+                try {
+                    writeDownloadReply(ACK_BYTES);
+                } catch (Exception ioe) {
+                    ioe.printStackTrace();
+                }
+            }
+            else {
+                ProtocolLogging.e(TAG, "The sender cancelled the XModem download.");
+                transmissionErrorOccurred = true;
+                transferStats.recordCancel(CancelReason.REMOTE_CANCELLED);
+            }
+            finishTransfer();
+        }
+
+    };
+
+    /**
+     * Handles one complete download frame: both 128 byte (SOH) and XModem-1K (STX) frames are
+     * accepted, with a CRC-16 trailer if CRC mode was negotiated and a checksum byte otherwise.
+     * The frame is checked and handed to the sink in place, without copying the payload.
+     * @param frameBuf
+     * @param offset : the index of the frame's header byte.
+     * @param blockSize
+     */
+    private synchronized void receiveDownloadFrame(byte[] frameBuf, int offset, int blockSize) {
+        int payloadOffset = offset + 3;
+        boolean frameIntact;
+        if(downloadCRCMode) {
+            int frameCRC = ((frameBuf[payloadOffset + blockSize] & 0xff) << 8) | (frameBuf[payloadOffset + blockSize + 1] & 0xff);
+            frameIntact = XModem.CalcCRC16(frameBuf, payloadOffset, blockSize) == frameCRC;
+        }
+        else {
+            frameIntact = XModem.CalcChecksum(frameBuf, payloadOffset, blockSize) == frameBuf[payloadOffset + blockSize];
+        }
+        byte frameNumber = frameBuf[offset + 1];
+        if(frameIntact && frameNumber == (byte) (CurrentFrameNumber - 1)) {
+            // a repeat of the previous frame (our ACK was lost), which is already in the sink:
+            writeDownloadReply(ACK_BYTES);
+            return;
+        }
+        else if(!frameIntact || frameNumber != CurrentFrameNumber) {
+            rejectDownloadFrame();
+            return;
+        }
+        try {
+            fileSize += blockSize;
+            if(ProtocolLogging.isLoggable(ProtocolLogging.Level.DEBUG)) {
+                ProtocolLogging.d(TAG, "Download Writing Data: frame=" + CurrentFrameNumber + ": " + ProtocolUtils.byteArrayToString(Arrays.copyOfRange(frameBuf, payloadOffset, payloadOffset + blockSize)));
+            }
+            downloadSink.write(frameBuf, payloadOffset, blockSize);
+            transferStats.recordACKLatency(System.nanoTime() - downloadReplySentNanos);
+            transferStats.recordFrame(blockSize);
+            CurrentFrameNumber++;
+            currentNAKCount = 0;
+            writeDownloadReply(ACK_BYTES);
+        } catch (Exception e) {
+            e.printStackTrace();
+            transmissionErrorOccurred = true;
+            transferStats.recordCancel(CancelReason.SINK_ERROR);
+            deviceSession.writeSerialData(CAN_BYTES);
+            finishTransfer();
+        }
+    }
+
+    /**
+     * Asks the sender to repeat the current frame, or cancels the download once the frame has
+     * been NAKed MAX_NAK_COUNT times. Called by the serial reader thread for a damaged frame and
+     * by the frame timeout on the transfer executor for a partial one.
+     */
+    private synchronized void rejectDownloadFrame() {
+        if(currentNAKCount >= MAX_NAK_COUNT) {
+            transmissionErrorOccurred = true;
+            transferStats.recordCancel(CancelReason.NAK_LIMIT);
+            deviceSession.writeSerialData(CAN_BYTES);
+            finishTransfer();
+            return;
+        }
+        writeDownloadReply(NAK_BYTES);
+        transferStats.recordNAK();
+        currentNAKCount++;
+    }
+
+    /**
+     * Sends an ACK / NAK / 'C' to the sender of a download, noting the time for the latency of
+     * the frame it asks for.
+     */
+    private void writeDownloadReply(byte[] replyBytes) {
+        downloadReplySentNanos = System.nanoTime();
+        deviceSession.writeSerialData(replyBytes);
+    }
+
+    public String toString() {
+        return "XModemSession(#" + transferId + ", " + direction.name() + (EOT ? ", EOT" : "") +
+                (transmissionErrorOccurred ? ", error" : "") + ")";
+    }
+
+}
@@ -0,0 +1,305 @@
+package com.maxieds.chameleonminiusb;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * <h1>XModem Transfer Stats</h1>
+ * What was negotiated for (and happened during) one XModem transfer: the direction, the
+ * error check (CRC-16 or the additive checksum), whether XModem-1K frames were used, the
+ * frame, byte and NAK counts, and (for downloads) how often frames had to be reassembled from
+ * several USB packets or arrived several to a packet. The timing side records the time from
+ * the transfer command to the first handshake, a log-scale histogram of the per-frame ACK
+ * latency, the total wall time and the effective throughput; a failed transfer records why
+ * it was cancelled. The stats of a finished transfer are also added to the XModemDeviceStats
+ * of its device.
+ *
+ * @ref XModem.getLastTransferStats
+ * @ref XModemDeviceStats
+ */
+public class XModemTransferStats {
+
+    public static enum Direction {
+        UPLOAD,
+        DOWNLOAD,
+    };
+
+    /**
+     * Why a transfer was cancelled (NONE for a transfer which completed).
+     */
+    public static enum CancelReason {
+        NONE,
+        NOT_STARTED,        // the device did not enter XModem mode
+        NAK_LIMIT,          // more than MAX_NAK_COUNT NAKs
+        REMOTE_CANCELLED,   // the device sent CAN
+        PROTOCOL_ERROR,     // an unexpected reply to a frame
+        SOURCE_ERROR,       // the upload data could not be read
+        SINK_ERROR,         // the download data could not be stored
+        ABORTED,            // stopped locally (e.g., the device was detached)
+    };
+
+    /**
+     * Histogram of the NAKs each frame took before its ACK: 0, 1, ... and the last bucket for
+     * NAKS_PER_FRAME_BUCKETS - 1 or more.
+     */
+    public static final int NAKS_PER_FRAME_BUCKETS = 5;
+
+    /**
+     * Log-scale latency histogram: bucket i holds the samples up to BASE_MICROS * 2^i (the last
+     * bucket also holds everything above), from 125us to about 65s.
+     */
+    public static class LatencyHistogram {
+
+        public static final int BUCKETS = 20;
+        public static final double BASE_MICROS = 125.0;
+
+        private final long[] bucketCounts = new long[BUCKETS];
+        private long samples;
+        private long totalMicros, maxMicros;
+
+        synchronized void addSample(long latencyMicros) {
+            bucketCounts[bucketIndex(latencyMicros)]++;
+            samples++;
+            totalMicros += latencyMicros;
+            maxMicros = Math.max(maxMicros, latencyMicros);
+        }
+
+        synchronized void addAll(LatencyHistogram other) {
+            long[] otherCounts;
+            long otherSamples, otherTotal, otherMax;
+            synchronized(other) {
+                otherCounts = other.bucketCounts.clone();
+                otherSamples = other.samples;
+                otherTotal = other.totalMicros;
+                otherMax = other.maxMicros;
+            }
+            for(int b = 0; b < BUCKETS; b++) {
+                bucketCounts[b] += otherCounts[b];
+            }
+            samples += otherSamples;
+            totalMicros += otherTotal;
+            maxMicros = Math.max(maxMicros, otherMax);
+        }
+
+        synchronized void clear() {
+            Arrays.fill(bucketCounts, 0);
+            samples = totalMicros = maxMicros = 0;
+        }
+
+        public synchronized long getSampleCount() { return samples; }
+        public synchronized long[] getBucketCounts() { return bucketCounts.clone(); }
+
+        public synchronized double getMeanMillis() {
+            return samples == 0 ? 0.0 : totalMicros / (1000.0 * samples);
+        }
+
+        public synchronized double getMaxMillis() {
+            return maxMicros / 1000.0;
+        }
+
+        /**
+         * @param fraction : e.g., 0.99 for the 99th percentile.
+         * @return the upper bound of the bucket holding the percentile, capped at the largest
+         *         sample (0 without samples).
+         */
+        public synchronized double getPercentileMillis(double fraction) {
+            if(samples == 0) {
+                return 0.0;
+            }
+            long rank = (long) Math.ceil(fraction * samples);
+            long cumulativeCount = 0;
+            int b = 0;
+            while(b < BUCKETS - 1 && (cumulativeCount += bucketCounts[b]) < rank) {
+                b++;
+            }
+            return Math.min(getBucketUpperBoundMicros(b), maxMicros) / 1000.0;
+        }
+
+        public static double getBucketUpperBoundMicros(int bucket) {
+            return BASE_MICROS * (1L << bucket);
+        }
+
+        private static int bucketIndex(long latencyMicros) {
+            int bucket = 0;
+            while(bucket < BUCKETS - 1 && latencyMicros > getBucketUpperBoundMicros(bucket)) {
+                bucket++;
+            }
+            return bucket;
+        }
+
+        public String toString() {
+            return String.format(Locale.ENGLISH, "n=%d, mean=%.2fms, p50=%.2fms, p99=%.2fms, max=%.2fms",
+                    getSampleCount(), getMeanMillis(), getPercentileMillis(0.50), getPercentileMillis(0.99), getMaxMillis());
+        }
+
+    }
+
+    private final Direction direction;
+    private volatile boolean crcMode;
+    private volatile boolean used1KBlocks;
+    private volatile boolean fellBackTo128Blocks;
+    private volatile boolean crcFallback;
+    private volatile int framesTransferred;
+    private volatile long bytesTransferred;
+    private volatile int naks;
+    private volatile int reassembledFrames;
+    private volatile int coalescedPackets;
+
+    private final long startTimeNanos;
+    private volatile long handshakeTimeNanos = -1;
+    private volatile long endTimeNanos = -1;
+    private volatile boolean succeeded;
+    private volatile CancelReason cancelReason = CancelReason.NONE;
+    private int currentFrameNAKs;
+    private volatile int maxNAKsPerFrame;
+    private final int[] naksPerFrame = new int[NAKS_PER_FRAME_BUCKETS];
+    private final LatencyHistogram ackLatency = new LatencyHistogram();
+
+    XModemTransferStats(Direction transferDirection) {
+        direction = transferDirection;
+        startTimeNanos = System.nanoTime();
+    }
+
+    public Direction getDirection() { return direction; }
+
+    /**
+     * @return whether the frames were protected by the CRC-16 (rather than the 8-bit checksum).
+     */
+    public boolean isCRCMode() { return crcMode; }
+    public boolean used1KBlocks() { return used1KBlocks; }
+    public boolean fellBackTo128Blocks() { return fellBackTo128Blocks; }
+
+    /**
+     * @return whether CRC mode was asked for but the other side only spoke the checksum mode.
+     */
+    public boolean isCRCFallback() { return crcFallback; }
+    public int getFramesTransferred() { return framesTransferred; }
+    public long getBytesTransferred() { return bytesTransferred; }
+    public int getNAKCount() { return naks; }
+    public int getReassembledFrameCount() { return reassembledFrames; }
+    public int getCoalescedPacketCount() { return coalescedPackets; }
+
+    /**
+     * @return whether the transfer has finished (successfully or not).
+     */
+    public boolean isComplete() { return endTimeNanos >= 0; }
+    public boolean succeeded() { return succeeded; }
+    public CancelReason getCancelReason() { return cancelReason; }
+
+    /**
+     * @return milliseconds from the transfer command to the first handshake: the receiver's
+     *         'C' / NAK for an upload, and the sender's first frame for a download (or -1 if
+     *         there was none).
+     */
+    public double getHandshakeMillis() {
+        long handshakeTime = handshakeTimeNanos;
+        return handshakeTime < 0 ? -1.0 : (handshakeTime - startTimeNanos) / 1.0e6;
+    }
+
+    /**
+     * @return milliseconds from the transfer command to the end of the transfer (or to now,
+     *         while it is still running).
+     */
+    public double getWallTimeMillis() {
+        long endTime = endTimeNanos;
+        return ((endTime < 0 ? System.nanoTime() : endTime) - startTimeNanos) / 1.0e6;
+    }
+
+    /**
+     * @return the data bytes of the acknowledged frames per second of wall time.
+     */
+    public double getThroughputBytesPerSecond() {
+        double wallTimeMillis = getWallTimeMillis();
+        return wallTimeMillis <= 0 ? 0.0 : bytesTransferred * 1000.0 / wallTimeMillis;
+    }
+
+    /**
+     * The latency of each frame: from sending it to its ACK for an upload, and from our ACK
+     * (or NAK / handshake request) to the next complete frame for a download.
+     */
+    public LatencyHistogram getACKLatencyHistogram() { return ackLatency; }
+
+    /**
+     * @return how many frames took 0, 1, ..., NAKS_PER_FRAME_BUCKETS - 1 (or more) NAKs.
+     */
+    public synchronized int[] getNAKsPerFrameHistogram() { return naksPerFrame.clone(); }
+    public int getMaxNAKsPerFrame() { return maxNAKsPerFrame; }
+
+    /**
+     * @return the number of frames which had to be sent more than once.
+     */
+    public synchronized int getRetransmittedFrameCount() {
+        return framesTransferred - naksPerFrame[0];
+    }
+
+    void setCRCMode(boolean enable) { crcMode = enable; }
+    void setCRCFallback() { crcFallback = true; crcMode = false; }
+    void setFellBackTo128Blocks() { fellBackTo128Blocks = true; }
+
+    synchronized void recordFrame(int blockSize) {
+        framesTransferred++;
+        bytesTransferred += blockSize;
+        used1KBlocks |= (blockSize == XModem.XMODEM_1K_BLOCK_SIZE);
+        naksPerFrame[Math.min(currentFrameNAKs, NAKS_PER_FRAME_BUCKETS - 1)]++;
+        maxNAKsPerFrame = Math.max(maxNAKsPerFrame, currentFrameNAKs);
+        currentFrameNAKs = 0;
+    }
+
+    synchronized void recordNAK() {
+        naks++;
+        currentFrameNAKs++;
+    }
+
+    void recordReassembledFrame() {
+        reassembledFrames++;
+    }
+
+    void recordCoalescedPacket() {
+        coalescedPackets++;
+    }
+
+    void recordHandshake() {
+        if(handshakeTimeNanos < 0) {
+            handshakeTimeNanos = System.nanoTime();
+        }
+    }
+
+    void recordACKLatency(long latencyNanos) {
+        ackLatency.addSample(latencyNanos / 1000L);
+    }
+
+    /**
+     * Records the first reason given for cancelling the transfer.
+     */
+    void recordCancel(CancelReason reason) {
+        if(cancelReason == CancelReason.NONE) {
+            cancelReason = reason;
+        }
+    }
+
+    /**
+     * Marks the end of the transfer.
+     * @return false if the end had already been recorded.
+     */
+    synchronized boolean recordEnd(boolean transferSucceeded) {
+        if(endTimeNanos >= 0) {
+            return false;
+        }
+        endTimeNanos = System.nanoTime();
+        succeeded = transferSucceeded;
+        return true;
+    }
+
+    public String toString() {
+        return "XModemTransfer(" + direction.name() + ", " + (crcMode ? "CRC-16" : "checksum") +
+                (crcFallback ? " (CRC refused)" : "") + (used1KBlocks ? ", 1K blocks" : "") +
+                (fellBackTo128Blocks ? ", fell back to 128 byte blocks" : "") +
+                ", frames=" + framesTransferred + ", bytes=" + bytesTransferred + ", NAKs=" + naks +
+                (reassembledFrames > 0 ? ", reassembled=" + reassembledFrames : "") +
+                (coalescedPackets > 0 ? ", coalesced=" + coalescedPackets : "") +
+                (isComplete() ? String.format(Locale.ENGLISH, ", %s, %.1f ms, %.0f bytes/s",
+                        succeeded ? "ok" : "cancelled: " + cancelReason.name(), getWallTimeMillis(),
+                        getThroughputBytesPerSecond()) : "") + ")";
+    }
+
+}
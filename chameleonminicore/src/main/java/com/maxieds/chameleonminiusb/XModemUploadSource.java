@@ -0,0 +1,191 @@
+package com.maxieds.chameleonminiusb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * <h1>XModem Upload Source</h1>
+ * The data being uploaded by XModem, read block by block from either a byte array or an
+ * arbitrary InputStream. Streams are read until each block is full (or the stream ends)
+ * rather than trusting InputStream.available(), which reports zero for many network and
+ * compressed streams, and they never need to support mark / reset: bytes which have to be
+ * sent again in different frames (e.g., after a fallback from XModem-1K) are pushed back with
+ * unread, and the first bytes of the upload are kept for verifying the UID afterwards.
+ * With an encryptor set, the data is encrypted in place as it comes out of the source (and
+ * before it can be pushed back), while the head bytes are kept as plaintext. At the end of the
+ * source, the encryptor goes on with up to a 1K block of BYTE_EOF padding before it is finished,
+ * so that pad fills the final frame with the continuation of the encrypted stream; it is
+ * released instead when the upload ends early.
+ *
+ * @ref XModem.performXModemSerialUpload
+ */
+public class XModemUploadSource {
+
+    /**
+     * Number of bytes from the start of the upload kept for getHeadBytes().
+     */
+    public static final int HEAD_BYTES_SIZE = XModem.XMODEM_BLOCK_SIZE;
+
+    private final InputStream srcStream;
+    private final byte[] srcBytes;
+    private int srcBytesIndex;
+    private boolean endOfSource;
+    private byte[] pushbackBuf;
+    private int pushbackIndex;
+    private final byte[] headBytes = new byte[HEAD_BYTES_SIZE];
+    private int headLength;
+    private long sourceBytesRead;
+    private ChameleonUploadCipherCache.StreamEncryptor sourceEncryptor;
+    private byte[] encryptedPadding; // the padding after the end of the source, with an encryptor
+
+    public XModemUploadSource(InputStream dataStream) {
+        srcStream = dataStream;
+        srcBytes = null;
+    }
+
+    public XModemUploadSource(byte[] dataBytes) {
+        srcStream = null;
+        srcBytes = dataBytes;
+    }
+
+    /**
+     * Encrypts the data with encryptor as it is read (for UPLOAD_ENCRYPTED); set before the first read.
+     * @param encryptor
+     */
+    public void setEncryptor(ChameleonUploadCipherCache.StreamEncryptor encryptor) {
+        sourceEncryptor = encryptor;
+    }
+
+    /**
+     * Reads up to numBytes bytes, blocking until that many bytes have been read or the source ends.
+     * @param destBuf
+     * @param destOffset
+     * @param numBytes
+     * @return the number of bytes read (less than numBytes only at the end of the source).
+     * @throws IOException
+     */
+    public int read(byte[] destBuf, int destOffset, int numBytes) throws IOException {
+        int bytesRead = 0;
+        int pushbackBytesRead = 0;
+        if(pushbackBuf != null) {
+            int pushbackBytes = Math.min(numBytes, pushbackBuf.length - pushbackIndex);
+            System.arraycopy(pushbackBuf, pushbackIndex, destBuf, destOffset, pushbackBytes);
+            pushbackIndex += pushbackBytes;
+            bytesRead += pushbackBytes;
+            pushbackBytesRead = pushbackBytes;
+            if(pushbackIndex == pushbackBuf.length) {
+                pushbackBuf = null;
+            }
+        }
+        while(bytesRead < numBytes && !endOfSource) {
+            int readCount;
+            if(srcBytes != null) {
+                readCount = Math.min(numBytes - bytesRead, srcBytes.length - srcBytesIndex);
+                System.arraycopy(srcBytes, srcBytesIndex, destBuf, destOffset + bytesRead, readCount);
+                srcBytesIndex += readCount;
+                endOfSource = (srcBytesIndex == srcBytes.length);
+            }
+            else if(srcStream != null) {
+                readCount = srcStream.read(destBuf, destOffset + bytesRead, numBytes - bytesRead);
+                if(readCount < 0) {
+                    endOfSource = true;
+                    break;
+                }
+            }
+            else {
+                endOfSource = true;
+                break;
+            }
+            recordHeadBytes(destBuf, destOffset + bytesRead, readCount);
+            sourceBytesRead += readCount;
+            bytesRead += readCount;
+        }
+        if(sourceEncryptor != null) {
+            // the bytes which were pushed back have been encrypted already:
+            sourceEncryptor.encrypt(destBuf, destOffset + pushbackBytesRead, bytesRead - pushbackBytesRead);
+            if(endOfSource && encryptedPadding == null) {
+                encryptedPadding = new byte[XModem.XMODEM_1K_BLOCK_SIZE];
+                Arrays.fill(encryptedPadding, XModem.BYTE_EOF);
+                sourceEncryptor.encrypt(encryptedPadding, 0, encryptedPadding.length);
+                sourceEncryptor.finish();
+            }
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Pads out the final block, which the last read left short, with BYTE_EOF (encrypted along
+     * with the data, if there is an encryptor). The padding continues right after the end of the
+     * source however the data is split up into frames, so pushing the final block back and
+     * reading it again in a different frame size pads it with the same bytes.
+     * @param destBuf
+     * @param destOffset : just after the last byte of data in destBuf.
+     * @param numBytes : at most XMODEM_1K_BLOCK_SIZE.
+     */
+    public void pad(byte[] destBuf, int destOffset, int numBytes) {
+        if(encryptedPadding != null) {
+            System.arraycopy(encryptedPadding, 0, destBuf, destOffset, numBytes);
+        }
+        else {
+            Arrays.fill(destBuf, destOffset, destOffset + numBytes, XModem.BYTE_EOF);
+        }
+    }
+
+    private void recordHeadBytes(byte[] buf, int offset, int count) {
+        int headBytesCount = Math.min(count, HEAD_BYTES_SIZE - headLength);
+        if(headBytesCount > 0) {
+            System.arraycopy(buf, offset, headBytes, headLength, headBytesCount);
+            headLength += headBytesCount;
+        }
+    }
+
+    /**
+     * Pushes bytes which have already been read back to the front of the source, so that the
+     * next read returns them again (in order) before any further source data.
+     */
+    public void unread(byte[] buf, int offset, int count) {
+        if(count <= 0) {
+            return;
+        }
+        int pushbackBytes = pushbackBuf == null ? 0 : pushbackBuf.length - pushbackIndex;
+        byte[] nextPushbackBuf = new byte[count + pushbackBytes];
+        System.arraycopy(buf, offset, nextPushbackBuf, 0, count);
+        if(pushbackBytes > 0) {
+            System.arraycopy(pushbackBuf, pushbackIndex, nextPushbackBuf, count, pushbackBytes);
+        }
+        pushbackBuf = nextPushbackBuf;
+        pushbackIndex = 0;
+    }
+
+    /**
+     * Releases the encryptor when the upload is over, whether or not the end of the source has
+     * been reached. The caller's InputStream is left open.
+     */
+    public void release() {
+        if(sourceEncryptor != null) {
+            sourceEncryptor.release();
+        }
+    }
+
+    /**
+     * @return whether all of the data has been read (and none is pushed back).
+     */
+    public boolean isExhausted() {
+        return endOfSource && pushbackBuf == null;
+    }
+
+    /**
+     * @return the first (up to HEAD_BYTES_SIZE) bytes which were read from the source.
+     */
+    public byte[] getHeadBytes() {
+        byte[] headBytesCopy = new byte[headLength];
+        System.arraycopy(headBytes, 0, headBytesCopy, 0, headLength);
+        return headBytesCopy;
+    }
+
+    public long getSourceBytesRead() {
+        return sourceBytesRead;
+    }
+
+}
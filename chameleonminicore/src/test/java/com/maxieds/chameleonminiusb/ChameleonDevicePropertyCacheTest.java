@@ -0,0 +1,100 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.ChameleonCommands.ChameleonCommandResult;
+import com.maxieds.chameleonminiusb.ChameleonProtocolConfig.ChameleonBoardType_t;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.GET_VERSION;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.QUERY_CONFIG;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.QUERY_UID;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.SET_ACTIVE_SLOT;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.SET_CONFIG;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChameleonDevicePropertyCacheTest {
+
+    private SimulatedChameleon device;
+    private ChameleonDeviceSession session;
+
+    @Before
+    public void setUp() {
+        device = new SimulatedChameleon();
+        session = new ChameleonDeviceSession(new ScriptedSerialTransport(device, 1, 0), ChameleonBoardType_t.REVG, "SIM-CACHE");
+    }
+
+    @After
+    public void tearDown() {
+        session.close();
+    }
+
+    private String query(ChameleonCommands.StandardCommandSet cmd) {
+        ChameleonCommandResult result = session.sendCommandToChameleon(cmd, null);
+        assertTrue(result.toString(), result.isValid);
+        return result.cmdResponseData;
+    }
+
+    @Test
+    public void answersRepeatedQueryFromCache() {
+        int linesBefore = device.commandLines;
+        assertEquals("NONE", query(QUERY_CONFIG));
+        assertEquals("NONE", query(QUERY_CONFIG));
+        assertEquals(1, device.commandLines - linesBefore);
+        assertEquals(1, session.getPropertyCache().getCacheHits());
+    }
+
+    @Test
+    public void setterInvalidatesChangedProperty() {
+        assertEquals("NONE", query(QUERY_CONFIG));
+        session.sendCommandToChameleon(SET_CONFIG, "MF_ULTRALIGHT");
+        assertEquals("MF_ULTRALIGHT", query(QUERY_CONFIG));
+    }
+
+    @Test
+    public void slotChangeInvalidatesOnlySlotProperties() {
+        query(GET_VERSION);
+        query(QUERY_CONFIG);
+        session.sendCommandToChameleon(SET_ACTIVE_SLOT, 2);
+        int linesBefore = device.commandLines;
+        query(GET_VERSION);
+        assertEquals(0, device.commandLines - linesBefore);
+        query(QUERY_CONFIG);
+        assertEquals(1, device.commandLines - linesBefore);
+    }
+
+    @Test
+    public void rawCommandInvalidatesEverything() {
+        query(GET_VERSION);
+        query(QUERY_UID);
+        session.sendRawStringToChameleon("CLEAR", true);
+        int linesBefore = device.commandLines;
+        query(GET_VERSION);
+        query(QUERY_UID);
+        assertEquals(2, device.commandLines - linesBefore);
+    }
+
+    @Test
+    public void batchQueryAfterSetterIsNotAnsweredFromCache() {
+        assertEquals("NONE", query(QUERY_CONFIG));
+        List<ChameleonCommandResult> results = session.sendCommandsToChameleon(
+                Arrays.asList(SET_CONFIG, QUERY_CONFIG), Arrays.<Object>asList("MF_CLASSIC_4K", null));
+        assertEquals("MF_CLASSIC_4K", results.get(1).cmdResponseData);
+        assertEquals("MF_CLASSIC_4K", query(QUERY_CONFIG));
+    }
+
+    @Test
+    public void disabledCacheSendsEveryQuery() {
+        session.getPropertyCache().setEnabled(false);
+        int linesBefore = device.commandLines;
+        query(GET_VERSION);
+        query(GET_VERSION);
+        assertEquals(2, device.commandLines - linesBefore);
+    }
+
+}
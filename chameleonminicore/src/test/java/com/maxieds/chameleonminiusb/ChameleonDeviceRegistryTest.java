@@ -0,0 +1,35 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.ChameleonProtocolConfig.ChameleonBoardType_t;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ChameleonDeviceRegistryTest {
+
+    private static ChameleonDeviceSession newSession(String serialNumber) {
+        return new ChameleonDeviceSession(new ScriptedSerialTransport(new SimulatedChameleon(), 1, 0),
+                ChameleonBoardType_t.REVG, serialNumber);
+    }
+
+    @After
+    public void tearDown() {
+        ChameleonDeviceRegistry.closeAllSessions();
+    }
+
+    @Test
+    public void unregisteringStaleSessionKeepsItsReplacement() {
+        ChameleonDeviceSession staleSession = newSession("SIM-REG");
+        ChameleonDeviceRegistry.registerSession(staleSession);
+        ChameleonDeviceSession reconnectedSession = newSession("SIM-REG");
+        ChameleonDeviceRegistry.registerSession(reconnectedSession);
+        ChameleonDeviceRegistry.unregisterSession(staleSession);
+        assertSame(reconnectedSession, ChameleonDeviceRegistry.getSession("SIM-REG"));
+        ChameleonDeviceRegistry.unregisterSession(reconnectedSession);
+        assertNull(ChameleonDeviceRegistry.getSession("SIM-REG"));
+    }
+
+}
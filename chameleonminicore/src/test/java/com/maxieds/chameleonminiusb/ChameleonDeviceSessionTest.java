@@ -0,0 +1,221 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.ChameleonCommands.ChameleonCommandResult;
+import com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet;
+import com.maxieds.chameleonminiusb.ChameleonProtocolConfig.ChameleonBoardType_t;
+import com.maxieds.chameleonminiusb.SerialUSBStateMachine.PortLease;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.GET_ACTIVE_SLOT;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.GET_MEMORY_SIZE;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.GET_RSSI_VOLTAGE;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.QUERY_CONFIG;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.QUERY_UID;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.SET_ACTIVE_SLOT;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.SET_CONFIG;
+import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.SET_READONLY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChameleonDeviceSessionTest {
+
+    private SimulatedChameleon device;
+    private ScriptedSerialTransport transport;
+    private ChameleonDeviceSession session;
+    private int defaultCommandTimeout;
+
+    @Before
+    public void setUp() {
+        defaultCommandTimeout = ChameleonProtocolConfig.SERIAL_USB_COMMAND_TIMEOUT;
+        ChameleonProtocolConfig.SERIAL_USB_COMMAND_TIMEOUT = 1000; // the limit of the commands without timing samples
+        device = new SimulatedChameleon();
+        transport = new ScriptedSerialTransport(device, 2, 0);
+        session = new ChameleonDeviceSession(transport, ChameleonBoardType_t.REVG, "SIM-1");
+        session.getPropertyCache().setEnabled(false); // every query goes to the device
+    }
+
+    @After
+    public void tearDown() {
+        session.close();
+        ChameleonProtocolConfig.SERIAL_USB_COMMAND_TIMEOUT = defaultCommandTimeout;
+    }
+
+    /**
+     * Gives the adaptive timeouts of the queries enough samples to drop below SERIAL_USB_COMMAND_TIMEOUT.
+     */
+    private void warmUpTimeouts() {
+        for(int q = 0; q < 30; q++) {
+            session.sendCommandToChameleon(GET_RSSI_VOLTAGE, null);
+            session.sendCommandToChameleon(GET_ACTIVE_SLOT, null);
+            session.sendCommandToChameleon(QUERY_UID, null);
+        }
+    }
+
+    @Test
+    public void answersQuery() {
+        ChameleonCommandResult result = session.sendCommandToChameleon(GET_RSSI_VOLTAGE, null);
+        assertTrue(result.isValid);
+        assertEquals(101, result.cmdResponseCode);
+        assertEquals("4200 mV", result.cmdResponseData);
+    }
+
+    @Test
+    public void answersQueryDeliveredInSmallPackets() {
+        transport.setPacketSize(3);
+        ChameleonCommandResult result = session.sendCommandToChameleon(QUERY_CONFIG, null);
+        assertTrue(result.isValid);
+        assertEquals("NONE", result.cmdResponseData);
+    }
+
+    @Test
+    public void ignoresLineFeedSplitFromItsResponse() {
+        final List<String> errors = new ArrayList<String>();
+        ProtocolLogging.setLogSink(new ProtocolLogging.LogSink() {
+            public boolean isLoggable(ProtocolLogging.Level level) {
+                return level == ProtocolLogging.Level.ERROR;
+            }
+            public void log(ProtocolLogging.Level level, String TAG, String MSG) {
+                synchronized(errors) {
+                    errors.add(MSG);
+                }
+            }
+        });
+        try {
+            transport.setPacketSize("101:OK WITH TEXT\r\n4200 mV\r\n".length() - 1); // the final LF comes on its own
+            assertEquals("4200 mV", session.sendCommandToChameleon(GET_RSSI_VOLTAGE, null).cmdResponseData);
+            assertEquals("4200 mV", session.sendCommandToChameleon(GET_RSSI_VOLTAGE, null).cmdResponseData);
+        } finally {
+            ProtocolLogging.setLogSink(null);
+        }
+        synchronized(errors) {
+            assertEquals(Collections.<String>emptyList(), errors);
+        }
+    }
+
+    @Test
+    public void issuesCommandUnderCallersOwnLease() {
+        PortLease lease = session.getSerialStateMachine().acquirePort(1000);
+        assertNotNull(lease);
+        try {
+            assertEquals("4200 mV", session.sendCommandToChameleon(GET_RSSI_VOLTAGE, null, lease).cmdResponseData);
+            assertTrue(session.getSerialStateMachine().holdsPort(lease)); // the caller gives it back
+        } finally {
+            session.getSerialStateMachine().releasePort(lease);
+        }
+    }
+
+    @Test
+    public void refusesCommandUnderLeaseWhichDoesNotHoldPort() {
+        PortLease releasedLease = session.getSerialStateMachine().acquirePort(1000);
+        session.getSerialStateMachine().releasePort(releasedLease);
+        int linesBefore = device.commandLines;
+        assertFalse(session.sendCommandToChameleon(GET_RSSI_VOLTAGE, null, releasedLease).isValid);
+        assertFalse(session.sendRawStringToChameleon("RSSI?", releasedLease).isValid);
+        assertEquals(linesBefore, device.commandLines);
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void refusesCommandWithoutLockOrLease() {
+        PortLease otherLease = session.getSerialStateMachine().acquirePort(1000);
+        try {
+            assertFalse(session.sendCommandToChameleon(GET_RSSI_VOLTAGE, null, false).isValid);
+            assertFalse(session.sendRawStringToChameleon("RSSI?", false).isValid);
+        } finally {
+            session.getSerialStateMachine().releasePort(otherLease);
+        }
+    }
+
+    @Test
+    public void writesOnlyTheCommandFromTheReusedBuffer() {
+        session.sendCommandToChameleon(SET_CONFIG, "MF_CLASSIC_1K");
+        session.sendCommandToChameleon(GET_RSSI_VOLTAGE, null);
+        List<byte[]> writes = transport.getWrites();
+        assertEquals("RSSI?\n\r", new String(writes.get(writes.size() - 1), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void sendsBatchInOneWriteAndDemultiplexesResponses() {
+        transport.setPacketSize(7); // responses both split and coalesced
+        int writesBefore = transport.getWriteCount();
+        List<ChameleonCommandResult> results = session.sendCommandsToChameleon(
+                Arrays.asList(SET_ACTIVE_SLOT, SET_CONFIG, QUERY_CONFIG, GET_MEMORY_SIZE, GET_ACTIVE_SLOT),
+                Arrays.<Object>asList(3, "MF_CLASSIC_1K", null, null, null));
+        assertNotNull(results);
+        assertEquals(writesBefore + 1, transport.getWriteCount());
+        assertEquals(5, results.size());
+        assertEquals(100, results.get(0).cmdResponseCode);
+        assertEquals(100, results.get(1).cmdResponseCode);
+        assertEquals("MF_CLASSIC_1K", results.get(2).cmdResponseData);
+        assertEquals("1024", results.get(3).cmdResponseData);
+        assertEquals("3", results.get(4).cmdResponseData);
+        assertEquals(3, device.getActiveSlot());
+    }
+
+    @Test
+    public void batchKeepsPositionOfRejectedCommand() {
+        List<ChameleonCommandResult> results = session.sendCommandsToChameleon(
+                Arrays.asList(SET_ACTIVE_SLOT, GET_ACTIVE_SLOT, GET_RSSI_VOLTAGE), Arrays.<Object>asList(9, null, null));
+        assertFalse(results.get(0).isValid);
+        assertEquals(202, results.get(0).cmdResponseCode);
+        assertEquals("1", results.get(1).cmdResponseData);
+        assertEquals("4200 mV", results.get(2).cmdResponseData);
+    }
+
+    @Test
+    public void lateResponseIsNotTakenForTheNextCommand() {
+        warmUpTimeouts();
+        device.dropResponses = 1;
+        device.dropResponsesTo = "RSSI?";
+        device.lateResponseMillis = 400; // well past the adaptive timeout
+        ChameleonCommandResult rssiResult = session.sendCommandToChameleon(GET_RSSI_VOLTAGE, null);
+        assertTrue(rssiResult.isValid);
+        assertEquals("4200 mV", rssiResult.cmdResponseData);
+        ChameleonCommandResult uidResult = session.sendCommandToChameleon(QUERY_UID, null);
+        assertTrue(uidResult.isValid);
+        assertEquals("00000000", uidResult.cmdResponseData);
+    }
+
+    @Test
+    public void retriesBatchOfQueriesAfterLostResponse() {
+        warmUpTimeouts();
+        device.dropResponses = 1;
+        device.dropResponsesTo = "UID?";
+        int linesBefore = device.commandLines;
+        List<StandardCommandSet> queries = Arrays.asList(GET_RSSI_VOLTAGE, GET_ACTIVE_SLOT, QUERY_UID);
+        List<ChameleonCommandResult> results = session.sendCommandsToChameleon(queries, null);
+        assertEquals(2 * queries.size(), device.commandLines - linesBefore);
+        for(ChameleonCommandResult result : results) {
+            assertTrue(result.toString(), result.isValid);
+        }
+        assertEquals("00000000", results.get(2).cmdResponseData);
+    }
+
+    @Test
+    public void doesNotRetryBatchWithSetter() {
+        warmUpTimeouts();
+        device.dropResponses = 1;
+        device.dropResponsesTo = "UID?";
+        int linesBefore = device.commandLines;
+        List<ChameleonCommandResult> results = session.sendCommandsToChameleon(
+                Arrays.asList(GET_RSSI_VOLTAGE, SET_READONLY, QUERY_UID), Arrays.<Object>asList(null, 0, null));
+        assertEquals(3, device.commandLines - linesBefore);
+        assertTrue(results.get(0).isValid);
+        assertTrue(results.get(1).isValid);
+        assertTrue(results.get(2).isTimedOut());
+        // the session is usable again once the lost response has been given up on:
+        assertEquals("4200 mV", session.sendCommandToChameleon(GET_RSSI_VOLTAGE, null).cmdResponseData);
+    }
+
+}
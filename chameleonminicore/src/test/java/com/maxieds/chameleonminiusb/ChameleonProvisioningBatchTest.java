@@ -0,0 +1,137 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.ChameleonProtocolConfig.ChameleonBoardType_t;
+import com.maxieds.chameleonminiusb.ChameleonProtocolConfig.ChameleonEmulatedConfigType_t;
+import com.maxieds.chameleonminiusb.ChameleonProvisioningBatch.Report;
+import com.maxieds.chameleonminiusb.ChameleonProvisioningBatch.SlotImage;
+import com.maxieds.chameleonminiusb.ChameleonProvisioningBatch.SlotResult;
+import com.maxieds.chameleonminiusb.UploadVerificationReport.Method;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ChameleonProvisioningBatchTest {
+
+    private SimulatedChameleon device;
+    private ChameleonDeviceSession session;
+
+    @Before
+    public void setUp() {
+        device = new SimulatedChameleon();
+        session = new ChameleonDeviceSession(new ScriptedSerialTransport(device, 1, 0), ChameleonBoardType_t.REVG, "SIM-PROVISION");
+        session.getXModem().setUseCRC(false);
+    }
+
+    @After
+    public void tearDown() {
+        session.close();
+    }
+
+    private static List<SlotImage> slotImages(int... slotNumbers) {
+        List<SlotImage> images = new ArrayList<SlotImage>();
+        Random random = new Random(slotNumbers.length);
+        for(int slotNumber : slotNumbers) {
+            byte[] image = new byte[1024];
+            random.nextBytes(image);
+            images.add(new SlotImage(slotNumber, ChameleonEmulatedConfigType_t.MF_CLASSIC_1K, image));
+        }
+        return images;
+    }
+
+    private static class RecordingListener implements ChameleonProvisioningBatch.ProgressListener {
+        final List<Integer> startedItems = new ArrayList<Integer>();
+        final List<Integer> finishedItems = new ArrayList<Integer>();
+        Report batchReport;
+
+        public synchronized void onSlotStarted(int itemIndex, SlotImage slotImage) { startedItems.add(itemIndex); }
+        public synchronized void onSlotFinished(int itemIndex, SlotResult slotResult) { finishedItems.add(itemIndex); }
+        public synchronized void onBatchFinished(Report report) { batchReport = report; }
+    }
+
+    @Test
+    public void provisionsEverySlotInOrder() {
+        List<SlotImage> images = slotImages(1, 2, 5);
+        RecordingListener progressListener = new RecordingListener();
+        Report batchReport = session.provisionSlots(images, false, progressListener);
+        assertTrue(batchReport.toString(), batchReport.allVerified());
+        for(SlotImage slotImage : images) {
+            assertArrayEquals(slotImage.imageData, device.getSlotMemory(slotImage.slotNumber));
+        }
+        assertEquals(3 * 1024, batchReport.getBytesUploaded());
+        assertEquals(Arrays.asList(0, 1, 2), progressListener.startedItems);
+        assertEquals(Arrays.asList(0, 1, 2), progressListener.finishedItems);
+        assertSame(batchReport, progressListener.batchReport);
+    }
+
+    @Test
+    public void verifiesUploadsByReadBack() {
+        Report batchReport = session.provisionSlots(slotImages(3, 4), true, null);
+        assertTrue(batchReport.allVerified());
+        for(SlotResult slotResult : batchReport.getSlotResults()) {
+            assertEquals(Method.READBACK, slotResult.getVerificationReport().getMethod());
+        }
+    }
+
+    @Test
+    public void restoresReadOnlySlots() {
+        device.setReadOnly(2, true);
+        List<SlotImage> images = slotImages(2, 6);
+        assertTrue(session.provisionSlots(images, false, null).allVerified());
+        assertTrue(device.isReadOnly(2));
+        assertFalse(device.isReadOnly(6));
+        assertArrayEquals(images.get(0).imageData, device.getSlotMemory(2));
+    }
+
+    @Test
+    public void skipsSlotsWhichStillHoldTheirImage() {
+        device.setReadOnly(1, true);
+        List<SlotImage> images = slotImages(1, 2);
+        assertTrue(session.provisionSlots(images, false, null).allVerified());
+        int framesReceivedBefore = device.framesReceived;
+        Report batchReport = session.provisionSlots(images, false, null);
+        assertTrue(batchReport.allVerified());
+        assertEquals(2, batchReport.getSlotsSkipped());
+        assertEquals(0, batchReport.getBytesUploaded());
+        assertEquals(framesReceivedBefore, device.framesReceived);
+        // the read-only slot is confirmed by the queries, the writable one by reading it back:
+        assertNull(batchReport.getSlotResults().get(0).getVerificationReport().getReadbackDigest());
+        assertNotNull(batchReport.getSlotResults().get(1).getVerificationReport().getReadbackDigest());
+    }
+
+    @Test
+    public void uploadsAgainWhenSlotWasChanged() {
+        List<SlotImage> images = slotImages(4);
+        assertTrue(session.provisionSlots(images, false, null).allVerified());
+        device.getSlotMemory(4)[900] ^= 0x01;
+        Report batchReport = session.provisionSlots(images, false, null);
+        assertTrue(batchReport.allVerified());
+        assertEquals(0, batchReport.getSlotsSkipped());
+        assertArrayEquals(images.get(0).imageData, device.getSlotMemory(4));
+    }
+
+    @Test
+    public void reportsSlotWhichCanNotBePrepared() {
+        List<SlotImage> images = slotImages(1, 9, 3);
+        Report batchReport = session.provisionSlots(images, false, null);
+        assertEquals(3, batchReport.getSlotResults().size());
+        assertTrue(batchReport.getSlotResults().get(0).isVerified());
+        assertFalse(batchReport.getSlotResults().get(1).isVerified());
+        assertTrue(batchReport.getSlotResults().get(2).isVerified());
+        assertEquals(2, batchReport.getSlotsVerified());
+    }
+
+}
@@ -0,0 +1,135 @@
+package com.maxieds.chameleonminiusb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChameleonResponseFramerTest {
+
+    private ChameleonResponseFramer framer;
+    private final List<String> frames = new ArrayList<String>();
+
+    private final ChameleonResponseFramer.ResponseFrameListener frameCollector = new ChameleonResponseFramer.ResponseFrameListener() {
+        public void onResponseFrame(byte[] frameBuf, int frameLength) {
+            frames.add(new String(frameBuf, 0, frameLength, StandardCharsets.ISO_8859_1));
+        }
+    };
+
+    @Before
+    public void setUp() {
+        framer = new ChameleonResponseFramer();
+        frames.clear();
+    }
+
+    private int receive(String packet) {
+        return framer.onReceivedData(packet.getBytes(StandardCharsets.ISO_8859_1), frameCollector);
+    }
+
+    @Test
+    public void emitsStatusLineResponse() {
+        assertEquals(1, receive("100:OK\r\n"));
+        assertEquals(Arrays.asList("100:OK"), frames);
+        assertEquals(0, framer.bufferedByteCount());
+    }
+
+    @Test
+    public void emitsTextResponseWithItsDataLine() {
+        receive("101:OK WITH TEXT\r\n4200 mV\r\n");
+        assertEquals(Arrays.asList("101:OK WITH TEXT\r\n4200 mV"), frames);
+    }
+
+    @Test
+    public void reassemblesResponseSplitAcrossPackets() {
+        assertEquals(0, receive("10"));
+        assertEquals(0, receive("1:OK WITH"));
+        assertEquals(0, receive(" TEXT\r\n42"));
+        assertEquals(1, receive("00 mV\r")); // the line is complete at its CR
+        assertEquals(0, receive("\n"));
+        assertEquals(Arrays.asList("101:OK WITH TEXT\r\n4200 mV"), frames);
+        assertTrue(framer.getPartialPacketCount() > 0);
+    }
+
+    @Test
+    public void splitsCoalescedResponses() {
+        assertEquals(3, receive("100:OK\r\n101:OK WITH TEXT\r\nNONE\r\n202:INVALID PARAMETER\r\n"));
+        assertEquals(Arrays.asList("100:OK", "101:OK WITH TEXT\r\nNONE", "202:INVALID PARAMETER"), frames);
+        assertEquals(1, framer.getMergedPacketCount());
+    }
+
+    @Test
+    public void discardsLinesWithoutStatusCode() {
+        receive("OK\r\njunk 200:x\r\n100:OK\r\n");
+        assertEquals(Arrays.asList("100:OK"), frames);
+        assertEquals("OK\r\njunk 200:x\r\n".length() - 4, framer.getDiscardedByteCount()); // the line breaks are not counted
+    }
+
+    @Test
+    public void discardsLineWithoutStatusCodeSplitAcrossPackets() {
+        receive("garb");
+        receive("age\r");
+        receive("\n100:O");
+        receive("K\r\n");
+        assertEquals(Arrays.asList("100:OK"), frames);
+    }
+
+    @Test
+    public void dropsControlBytesInFrontOfStatusLine() {
+        receive("\u0015\u0015100:OK\r\n");
+        receive("\u0006");
+        receive("110:WAITING FOR XMODEM\r\n");
+        assertEquals(Arrays.asList("100:OK", "110:WAITING FOR XMODEM"), frames);
+        assertEquals(3, framer.getDiscardedByteCount());
+    }
+
+    @Test
+    public void requestedResetDropsPartialFrame() {
+        receive("101:OK WITH TEXT\r\n42");
+        framer.requestReset();
+        receive("100:OK\r\n");
+        assertEquals(Arrays.asList("100:OK"), frames);
+    }
+
+    @Test
+    public void handsOverBytesAfterWaitingLine() {
+        final List<byte[]> handedOver = new ArrayList<byte[]>();
+        byte[] packet = "110:WAITING FOR XMODEM\r\n\u0015".getBytes(StandardCharsets.ISO_8859_1);
+        framer.onReceivedData(packet, new ChameleonResponseFramer.ResponseFrameListener() {
+            public void onResponseFrame(byte[] frameBuf, int frameLength) {
+                handedOver.add(framer.takeBufferedBytes());
+            }
+        });
+        assertEquals(1, handedOver.size());
+        assertArrayEquals(new byte[] { XModem.BYTE_NAK }, handedOver.get(0));
+        assertEquals(0, framer.bufferedByteCount());
+    }
+
+    @Test
+    public void recoversFromRingBufferOverflow() {
+        ChameleonResponseFramer smallFramer = new ChameleonResponseFramer(64);
+        char[] noise = new char[100];
+        Arrays.fill(noise, '1');
+        smallFramer.onReceivedData(new String(noise).getBytes(StandardCharsets.ISO_8859_1), frameCollector);
+        smallFramer.onReceivedData("100:OK\r\n".getBytes(StandardCharsets.ISO_8859_1), frameCollector);
+        assertEquals(Arrays.asList("100:OK"), frames);
+    }
+
+    @Test
+    public void countsPacketLargerThanRingBufferAsDiscarded() {
+        ChameleonResponseFramer smallFramer = new ChameleonResponseFramer(64);
+        smallFramer.onReceivedData("100:".getBytes(StandardCharsets.ISO_8859_1), frameCollector);
+        smallFramer.onReceivedData(new byte[100], frameCollector);
+        assertEquals(104, smallFramer.getDiscardedByteCount());
+        assertEquals(1, smallFramer.getOverflowResetCount());
+        smallFramer.onReceivedData("100:OK\r\n".getBytes(StandardCharsets.ISO_8859_1), frameCollector);
+        assertEquals(Arrays.asList("100:OK"), frames);
+    }
+
+}
@@ -0,0 +1,131 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet;
+import com.maxieds.chameleonminiusb.ChameleonProtocolConfig.ChameleonBoardType_t;
+import com.maxieds.chameleonminiusb.UploadVerificationReport.Method;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChameleonSlotDigestCacheTest {
+
+    private static final int SLOT = 3;
+
+    private SimulatedChameleon device;
+    private ChameleonDeviceSession session;
+
+    @Before
+    public void setUp() {
+        device = new SimulatedChameleon();
+        session = new ChameleonDeviceSession(new ScriptedSerialTransport(device, 1, 0), ChameleonBoardType_t.REVG, "SIM-SLOTCACHE");
+        session.getXModem().setUseCRC(false);
+    }
+
+    @After
+    public void tearDown() {
+        session.close();
+    }
+
+    private static byte[] randomImage(long seed) {
+        byte[] image = new byte[1024];
+        new Random(seed).nextBytes(image);
+        return image;
+    }
+
+    private UploadVerificationReport uploadToSlot(byte[] image) {
+        UploadVerificationReport verifyReport = session.chameleonUploadToSlot(SLOT, null, image, false);
+        assertTrue(verifyReport.toString(), verifyReport.isVerified());
+        return verifyReport;
+    }
+
+    @Test
+    public void trustsQueriesForSlotWhichStayedReadOnly() {
+        device.setReadOnly(SLOT, true);
+        byte[] image = randomImage(1);
+        assertEquals(Method.UID, uploadToSlot(image).getMethod());
+        assertTrue(device.isReadOnly(SLOT));
+        assertTrue(session.getSlotDigestCache().getRecord(SLOT).readOnly);
+        int framesSentBefore = device.framesSent;
+        UploadVerificationReport verifyReport = uploadToSlot(image);
+        assertEquals(Method.SLOT_CACHE, verifyReport.getMethod());
+        assertNull(verifyReport.getReadbackDigest());
+        assertEquals(framesSentBefore, device.framesSent);
+    }
+
+    @Test
+    public void readsBackWritableSlot() {
+        byte[] image = randomImage(2);
+        uploadToSlot(image);
+        assertFalse(session.getSlotDigestCache().getRecord(SLOT).readOnly);
+        int framesReceivedBefore = device.framesReceived;
+        UploadVerificationReport verifyReport = uploadToSlot(image);
+        assertEquals(Method.SLOT_CACHE, verifyReport.getMethod());
+        assertNotNull(verifyReport.getReadbackDigest());
+        assertTrue(device.framesSent > 0);
+        assertEquals(framesReceivedBefore, device.framesReceived);
+    }
+
+    @Test
+    public void detectsWriteToWritableSlotWhichKeepsItsFingerprint() {
+        byte[] image = randomImage(3);
+        uploadToSlot(image);
+        device.getSlotMemory(SLOT)[600] ^= 0x5a; // e.g., written by a reader: CONFIG?, MEMSIZE? and UID? are unchanged
+        int framesReceivedBefore = device.framesReceived;
+        UploadVerificationReport verifyReport = uploadToSlot(image);
+        assertEquals(Method.UID, verifyReport.getMethod());
+        assertTrue(device.framesReceived > framesReceivedBefore);
+        assertArrayEquals(image, device.getSlotMemory(SLOT));
+    }
+
+    @Test
+    public void readsBackSlotOnceItWasSeenWritable() {
+        device.setReadOnly(SLOT, true);
+        byte[] image = randomImage(4);
+        uploadToSlot(image);
+        session.sendCommandsToChameleon(Arrays.asList(StandardCommandSet.SET_ACTIVE_SLOT, StandardCommandSet.SET_READONLY),
+                Arrays.<Object>asList(SLOT, 0));
+        assertFalse(session.getSlotDigestCache().getRecord(SLOT).readOnly);
+        device.setReadOnly(SLOT, true); // read-only again, but the slot may have been written to meanwhile
+        UploadVerificationReport verifyReport = uploadToSlot(image);
+        assertEquals(Method.SLOT_CACHE, verifyReport.getMethod());
+        assertNotNull(verifyReport.getReadbackDigest());
+    }
+
+    @Test
+    public void keepsReadOnlyFlagInStoredRecords() throws Exception {
+        File storageDir = File.createTempFile("slotdigests", "");
+        assertTrue(storageDir.delete());
+        ChameleonSlotDigestCache.setStorageDirectory(storageDir);
+        try {
+            TransferDigest imageDigest = new TransferDigest(true);
+            byte[] image = randomImage(5);
+            imageDigest.update(image, 0, image.length);
+            ChameleonSlotDigestCache slotCache = new ChameleonSlotDigestCache("SIM-STORE");
+            slotCache.store(new ChameleonSlotDigestCache.SlotRecord(1, "", "NONE", "1024", "01020304", true, imageDigest, 0));
+            slotCache.store(new ChameleonSlotDigestCache.SlotRecord(2, "", "NONE", "1024", "01020304", false, imageDigest, 0));
+            ChameleonSlotDigestCache reloadedCache = new ChameleonSlotDigestCache("SIM-STORE");
+            assertTrue(reloadedCache.getRecord(1).readOnly);
+            assertFalse(reloadedCache.getRecord(2).readOnly);
+            assertTrue(reloadedCache.getRecord(1).matchesImage("", imageDigest));
+        } finally {
+            ChameleonSlotDigestCache.setStorageDirectory(null);
+            for(File storeFile : storageDir.listFiles()) {
+                storeFile.delete();
+            }
+            storageDir.delete();
+        }
+    }
+
+}
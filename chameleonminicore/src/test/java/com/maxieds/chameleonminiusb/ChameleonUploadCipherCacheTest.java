@@ -0,0 +1,131 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.ChameleonProtocolConfig.ChameleonBoardType_t;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.spec.IvParameterSpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChameleonUploadCipherCacheTest {
+
+    private static final int KEY_INDEX = 2;
+    private static final long SALT = 0x5f3e2a10L;
+
+    /**
+     * A scheme for the simulated firmware (the library has none of its own): AES-CTR with the
+     * key index and the salt in the initial counter block.
+     */
+    private static final ChameleonUploadCipherCache.UploadCipherScheme TEST_SCHEME = new ChameleonUploadCipherCache.UploadCipherScheme() {
+        public String getTransformation() {
+            return "AES/CTR/NoPadding";
+        }
+        public AlgorithmParameterSpec getParameters(int keyIndex, long timestampSaltData) {
+            byte[] counterBlock = new byte[16];
+            counterBlock[0] = (byte) keyIndex;
+            for(int b = 0; b < 8; b++) {
+                counterBlock[b + 1] = (byte) (timestampSaltData >>> (56 - 8 * b));
+            }
+            return new IvParameterSpec(counterBlock);
+        }
+    };
+
+    private SimulatedChameleon device;
+    private ChameleonDeviceSession session;
+
+    @Before
+    public void setUp() {
+        byte[] key = new byte[16];
+        new Random(16).nextBytes(key);
+        device = new SimulatedChameleon(4096);
+        device.uploadScheme = TEST_SCHEME;
+        device.uploadKey = key;
+        session = new ChameleonDeviceSession(new ScriptedSerialTransport(device, 1, 0), ChameleonBoardType_t.REVE_REBOOTED, "SIM-ENCRYPT");
+        session.getXModem().setUseCRC(false);
+        session.getUploadCipherCache().setKey(KEY_INDEX, key);
+        session.getUploadCipherCache().setCipherScheme(TEST_SCHEME);
+    }
+
+    @After
+    public void tearDown() {
+        session.close();
+    }
+
+    private static byte[] randomImage(int length, long seed) {
+        byte[] image = new byte[length];
+        new Random(seed).nextBytes(image);
+        return image;
+    }
+
+    /**
+     * The data the device decrypted: the image, padded out to the frame boundary with BYTE_EOF.
+     */
+    private void assertDecryptedUpload(byte[] image, int paddedLength) {
+        byte[] expected = Arrays.copyOf(image, paddedLength);
+        Arrays.fill(expected, image.length, paddedLength, XModem.BYTE_EOF);
+        assertArrayEquals(expected, device.lastUpload.toByteArray());
+        assertArrayEquals(image, Arrays.copyOf(device.getSlotMemory(device.getActiveSlot()), image.length));
+    }
+
+    @Test
+    public void encryptsPaddingOfFinalFrame() {
+        byte[] image = randomImage(1000, 1);
+        assertTrue(session.chameleonUploadAndEncrypt(image, KEY_INDEX, SALT));
+        assertEquals(8, device.framesReceived);
+        assertDecryptedUpload(image, 1024);
+    }
+
+    @Test
+    public void encryptsStreamSplitInto1KAnd128ByteFrames() {
+        session.getXModem().setUse1KBlocks(true);
+        byte[] image = randomImage(2100, 2);
+        assertTrue(session.chameleonUploadAndEncrypt(new ByteArrayInputStream(image), KEY_INDEX, SALT));
+        assertEquals(3, device.framesReceived); // two 1K frames, and the tail in an SOH frame
+        assertDecryptedUpload(image, 2176);
+    }
+
+    @Test
+    public void encryptsStreamResentIn128ByteFramesWhen1KIsRefused() {
+        device.accept1KFrames = false;
+        session.getXModem().setUse1KBlocks(true);
+        byte[] image = randomImage(1500, 3);
+        assertTrue(session.chameleonUploadAndEncrypt(image, KEY_INDEX, SALT));
+        assertDecryptedUpload(image, 1536);
+    }
+
+    @Test
+    public void reusesCipherOfKeyForNextUpload() {
+        byte[] image = randomImage(640, 4);
+        assertTrue(session.chameleonUploadAndEncrypt(image, KEY_INDEX, SALT));
+        assertTrue(session.chameleonUploadAndEncrypt(image, KEY_INDEX, SALT + 1));
+        assertDecryptedUpload(image, 640);
+        assertEquals(1, session.getUploadCipherCache().getCipherCacheMisses());
+        assertEquals(1, session.getUploadCipherCache().getCipherCacheHits());
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void refusesToEncryptWithoutScheme() throws GeneralSecurityException {
+        ChameleonUploadCipherCache cipherCache = new ChameleonUploadCipherCache();
+        cipherCache.setKey(KEY_INDEX, new byte[16]);
+        cipherCache.newEncryptor(KEY_INDEX, SALT);
+    }
+
+    @Test
+    public void doesNotUploadWithoutKey() {
+        assertFalse(session.chameleonUploadAndEncrypt(randomImage(256, 5), KEY_INDEX + 1, SALT));
+        assertEquals(0, device.framesReceived);
+    }
+
+}
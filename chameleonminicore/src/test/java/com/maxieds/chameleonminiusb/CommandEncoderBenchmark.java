@@ -0,0 +1,99 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet;
+import com.maxieds.chameleonminiusb.ChameleonProtocolConfig.ChameleonBoardType_t;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the precompiled command templates of ChameleonCommandEncoder against the
+ * String.format path every command went through before (format string lookup, String.format,
+ * the line terminator appended, then getBytes).
+ */
+public class CommandEncoderBenchmark {
+
+    private static final int ITERATIONS = 50000;
+    private static final int ROUNDS = 5;
+    private static final byte[] UID = new byte[] { (byte) 0xbc, 0x59, 0x26, (byte) 0xc8, 0x01, 0x02, 0x03 };
+
+    private static byte[] formatCommand(ChameleonBoardType_t boardType, StandardCommandSet cmd, Object cmdArg) {
+        boolean revE = ChameleonCommandEncoder.isRevisionEBoard(boardType);
+        String cmdFormatStr = ChameleonCommands.getCommandFormatString(cmd)[revE ? 0 : 1];
+        if(cmdArg instanceof byte[]) {
+            cmdArg = ProtocolUtils.byteArrayToString((byte[]) cmdArg);
+        }
+        String fullCmdStr = String.format(Locale.ENGLISH, cmdFormatStr, cmdArg) + (revE ? "\r\n" : "\n\r");
+        return fullCmdStr.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] encodeCommand(ChameleonBoardType_t boardType, StandardCommandSet cmd, Object cmdArg) {
+        ChameleonCommandEncoder.CommandBuffer cmdBuf = new ChameleonCommandEncoder.CommandBuffer();
+        ChameleonCommandEncoder.forBoard(boardType).encode(cmd, cmdArg, cmdBuf);
+        return Arrays.copyOf(cmdBuf.array(), cmdBuf.length());
+    }
+
+    @Test
+    public void encodesSameBytesAsFormatString() {
+        for(ChameleonBoardType_t boardType : new ChameleonBoardType_t[] { ChameleonBoardType_t.REVE_REBOOTED, ChameleonBoardType_t.REVG }) {
+            assertArrayEquals(formatCommand(boardType, StandardCommandSet.SET_UID, UID),
+                    encodeCommand(boardType, StandardCommandSet.SET_UID, UID));
+            assertArrayEquals(formatCommand(boardType, StandardCommandSet.SET_ACTIVE_SLOT, 7),
+                    encodeCommand(boardType, StandardCommandSet.SET_ACTIVE_SLOT, 7));
+            assertArrayEquals(formatCommand(boardType, StandardCommandSet.SET_CONFIG, "MF_CLASSIC_1K"),
+                    encodeCommand(boardType, StandardCommandSet.SET_CONFIG, "MF_CLASSIC_1K"));
+            assertArrayEquals(formatCommand(boardType, StandardCommandSet.QUERY_UID, null),
+                    encodeCommand(boardType, StandardCommandSet.QUERY_UID, null));
+        }
+    }
+
+    private static long timeFormatPath(ChameleonBoardType_t boardType) {
+        long checksum = 0;
+        long startTime = System.nanoTime();
+        for(int i = 0; i < ITERATIONS; i++) {
+            checksum += formatCommand(boardType, StandardCommandSet.SET_UID, UID).length;
+            checksum += formatCommand(boardType, StandardCommandSet.SET_ACTIVE_SLOT, i & 7).length;
+        }
+        long elapsed = System.nanoTime() - startTime;
+        assertTrue(checksum > 0);
+        return elapsed;
+    }
+
+    private static long timeEncoder(ChameleonBoardType_t boardType) {
+        ChameleonCommandEncoder cmdEncoder = ChameleonCommandEncoder.forBoard(boardType);
+        ChameleonCommandEncoder.CommandBuffer cmdBuf = new ChameleonCommandEncoder.CommandBuffer();
+        long checksum = 0;
+        long startTime = System.nanoTime();
+        for(int i = 0; i < ITERATIONS; i++) {
+            cmdBuf.reset();
+            checksum += cmdEncoder.encode(StandardCommandSet.SET_UID, UID, cmdBuf);
+            cmdBuf.reset();
+            checksum += cmdEncoder.encode(StandardCommandSet.SET_ACTIVE_SLOT, i & 7, cmdBuf);
+        }
+        long elapsed = System.nanoTime() - startTime;
+        assertTrue(checksum > 0);
+        return elapsed;
+    }
+
+    @Test
+    public void encoderIsFasterThanFormatString() {
+        ChameleonBoardType_t boardType = ChameleonBoardType_t.REVG;
+        long bestFormatNanos = Long.MAX_VALUE, bestEncoderNanos = Long.MAX_VALUE;
+        for(int round = 0; round < ROUNDS; round++) { // the first rounds warm up the JIT
+            bestFormatNanos = Math.min(bestFormatNanos, timeFormatPath(boardType));
+            bestEncoderNanos = Math.min(bestEncoderNanos, timeEncoder(boardType));
+        }
+        double formatNanosPerCmd = bestFormatNanos / (2.0 * ITERATIONS);
+        double encoderNanosPerCmd = bestEncoderNanos / (2.0 * ITERATIONS);
+        System.out.println(String.format(Locale.ENGLISH, "Command encoding: String.format %.1f ns/cmd, encoder %.1f ns/cmd (%.1fx)",
+                formatNanosPerCmd, encoderNanosPerCmd, formatNanosPerCmd / encoderNanosPerCmd));
+        assertTrue(encoderNanosPerCmd < formatNanosPerCmd);
+    }
+
+}
@@ -0,0 +1,122 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.ChameleonCommands.ChameleonCommandResult;
+import com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet;
+import com.maxieds.chameleonminiusb.ChameleonProtocolConfig.ChameleonBoardType_t;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trip times of single queries through the simulated device: the session (which wakes
+ * the caller as soon as the response is framed) against the loop the commands used to wait
+ * in, which polled the serial state every 50 ms.
+ */
+public class CommandLatencyBenchmark {
+
+    private static final int DEVICE_LATENCY_MILLIS = 2;
+    private static final int POLL_INTERVAL_MILLIS = 50;
+    private static final int SESSION_SAMPLES = 200;
+    private static final int POLLING_SAMPLES = 20;
+
+    private static long[] sessionRoundTrips() {
+        ScriptedSerialTransport transport = new ScriptedSerialTransport(new SimulatedChameleon(), DEVICE_LATENCY_MILLIS, 0);
+        ChameleonDeviceSession session = new ChameleonDeviceSession(transport, ChameleonBoardType_t.REVG, "SIM-LATENCY");
+        session.getPropertyCache().setEnabled(false);
+        try {
+            for(int w = 0; w < 20; w++) {
+                session.sendCommandToChameleon(StandardCommandSet.GET_RSSI_VOLTAGE, null);
+            }
+            long[] roundTrips = new long[SESSION_SAMPLES];
+            for(int s = 0; s < SESSION_SAMPLES; s++) {
+                long startTime = System.nanoTime();
+                ChameleonCommandResult result = session.sendCommandToChameleon(StandardCommandSet.GET_RSSI_VOLTAGE, null);
+                roundTrips[s] = System.nanoTime() - startTime;
+                assertTrue(result.isValid);
+            }
+            return roundTrips;
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * The old wait: write the command, then sleep in 50 ms steps until the reader thread has
+     * flagged the response.
+     */
+    private static long[] pollingRoundTrips() throws InterruptedException {
+        ScriptedSerialTransport transport = new ScriptedSerialTransport(new SimulatedChameleon(), DEVICE_LATENCY_MILLIS, 0);
+        final ChameleonResponseFramer framer = new ChameleonResponseFramer();
+        final boolean[] responseReceived = new boolean[1];
+        final ChameleonResponseFramer.ResponseFrameListener frameListener = new ChameleonResponseFramer.ResponseFrameListener() {
+            public void onResponseFrame(byte[] frameBuf, int frameLength) {
+                synchronized(responseReceived) {
+                    responseReceived[0] = true;
+                }
+            }
+        };
+        transport.setReadListener(new SerialTransport.ReadListener() {
+            public void onReceivedData(byte[] rxData) {
+                framer.onReceivedData(rxData, frameListener);
+            }
+        });
+        byte[] cmdBytes = "RSSI?\n\r".getBytes(StandardCharsets.US_ASCII);
+        try {
+            long[] roundTrips = new long[POLLING_SAMPLES];
+            for(int s = 0; s < POLLING_SAMPLES; s++) {
+                synchronized(responseReceived) {
+                    responseReceived[0] = false;
+                }
+                long startTime = System.nanoTime();
+                transport.write(cmdBytes, cmdBytes.length);
+                while(true) {
+                    synchronized(responseReceived) {
+                        if(responseReceived[0]) {
+                            break;
+                        }
+                    }
+                    Thread.sleep(POLL_INTERVAL_MILLIS);
+                }
+                roundTrips[s] = System.nanoTime() - startTime;
+            }
+            return roundTrips;
+        } finally {
+            transport.close();
+        }
+    }
+
+    private static double percentileMillis(long[] sortedNanos, double percentile) {
+        int index = Math.min(sortedNanos.length - 1, (int) Math.ceil(percentile / 100.0 * sortedNanos.length) - 1);
+        return sortedNanos[Math.max(index, 0)] / 1.0e6;
+    }
+
+    private static double meanMillis(long[] nanos) {
+        long sum = 0;
+        for(long n : nanos) {
+            sum += n;
+        }
+        return sum / (1.0e6 * nanos.length);
+    }
+
+    private static String summarize(String label, long[] roundTrips) {
+        Arrays.sort(roundTrips);
+        return String.format(Locale.ENGLISH, "%s: mean %.2f ms, p50 %.2f ms, p99 %.2f ms (%d samples)", label,
+                meanMillis(roundTrips), percentileMillis(roundTrips, 50), percentileMillis(roundTrips, 99), roundTrips.length);
+    }
+
+    @Test
+    public void eventDrivenWaitBeatsPollingLoop() throws InterruptedException {
+        long[] sessionRTTs = sessionRoundTrips();
+        long[] pollingRTTs = pollingRoundTrips();
+        System.out.println(summarize("Command RTT (event-driven)", sessionRTTs));
+        System.out.println(summarize("Command RTT (50 ms polling)", pollingRTTs));
+        assertTrue(percentileMillis(pollingRTTs, 50) >= POLL_INTERVAL_MILLIS);
+        assertTrue(percentileMillis(sessionRTTs, 50) < POLL_INTERVAL_MILLIS / 5);
+    }
+
+}
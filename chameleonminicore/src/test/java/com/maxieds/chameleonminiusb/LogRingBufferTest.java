@@ -0,0 +1,147 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.ProtocolLogging.Level;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LogRingBufferTest {
+
+    private static final int ENTRY_BYTES = 100;
+
+    private static List<Integer> range(int first, int last) {
+        List<Integer> entries = new ArrayList<Integer>();
+        for(int e = first; e <= last; e++) {
+            entries.add(e);
+        }
+        return entries;
+    }
+
+    @Test
+    public void keepsNewestEntriesWithinEntryBudget() {
+        LogRingBuffer<Integer> logStore = new LogRingBuffer<Integer>(10, 1L << 20);
+        for(int e = 0; e < 25; e++) {
+            logStore.append(e, Level.VERBOSE, ENTRY_BYTES);
+        }
+        assertEquals(range(15, 24), logStore.snapshot());
+        assertEquals(10, logStore.size());
+        assertEquals(10 * ENTRY_BYTES, logStore.getByteCount());
+        assertEquals(15, logStore.getEvictionCount(Level.VERBOSE));
+    }
+
+    @Test
+    public void evictsOldestEntriesOverByteBudget() {
+        LogRingBuffer<Integer> logStore = new LogRingBuffer<Integer>(100, 10 * ENTRY_BYTES);
+        for(int e = 0; e < 30; e++) {
+            logStore.append(e, Level.INFO, ENTRY_BYTES);
+        }
+        assertEquals(range(20, 29), logStore.snapshot());
+        assertEquals(10 * ENTRY_BYTES, logStore.getByteCount());
+        assertEquals(11 * ENTRY_BYTES, logStore.getPeakByteCount());
+    }
+
+    @Test
+    public void evictsLowestSeverityFirst() {
+        LogRingBuffer<Integer> logStore = new LogRingBuffer<Integer>(10, 1L << 20);
+        logStore.setReservedEntries(Level.VERBOSE, 2);
+        for(int e = 0; e < 5; e++) {
+            logStore.append(e, Level.ERROR, ENTRY_BYTES);
+        }
+        for(int e = 5; e < 30; e++) {
+            logStore.append(e, Level.VERBOSE, ENTRY_BYTES);
+        }
+        assertEquals(range(0, 4), logStore.snapshot(Level.ERROR));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 25, 26, 27, 28, 29), logStore.snapshot());
+        assertEquals(0, logStore.getEvictionCount(Level.ERROR));
+    }
+
+    @Test
+    public void keepsReservedEntriesOfLowerSeverity() {
+        LogRingBuffer<Integer> logStore = new LogRingBuffer<Integer>(10, 1L << 20);
+        logStore.setReservedEntries(Level.VERBOSE, 4);
+        logStore.setReservedEntries(Level.ERROR, 0);
+        for(int e = 0; e < 6; e++) {
+            logStore.append(e, Level.VERBOSE, ENTRY_BYTES);
+        }
+        for(int e = 6; e < 30; e++) {
+            logStore.append(e, Level.ERROR, ENTRY_BYTES);
+        }
+        // the burst of errors evicts the verbose entries down to their reserve, then older errors:
+        assertEquals(Arrays.asList(2, 3, 4, 5, 24, 25, 26, 27, 28, 29), logStore.snapshot());
+        assertEquals(2, logStore.getEvictionCount(Level.VERBOSE));
+    }
+
+    @Test
+    public void clearKeepsCounts() {
+        LogRingBuffer<Integer> logStore = new LogRingBuffer<Integer>(4, 1L << 20);
+        for(int e = 0; e < 6; e++) {
+            logStore.append(e, Level.WARN, ENTRY_BYTES);
+        }
+        logStore.clear();
+        assertEquals(0, logStore.size());
+        assertEquals(0, logStore.getByteCount());
+        assertTrue(logStore.snapshot().isEmpty());
+        assertEquals(6, logStore.getAppendCount(Level.WARN));
+        assertEquals(2, logStore.getEvictionCount(Level.WARN));
+        logStore.append(6, Level.WARN, ENTRY_BYTES);
+        assertEquals(Arrays.asList(6), logStore.snapshot());
+    }
+
+    @Test
+    public void staysWithinBudgetsUnderConcurrentAppends() throws InterruptedException {
+        final int threadCount = 8;
+        final int appendsPerThread = 20000;
+        final int entryBudget = 256;
+        final LogRingBuffer<Integer> logStore = new LogRingBuffer<Integer>(entryBudget, 200L * ENTRY_BYTES);
+        final Level[] levels = Level.values();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        Thread[] appenders = new Thread[threadCount];
+        for(int t = 0; t < threadCount; t++) {
+            final int threadIndex = t;
+            appenders[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch(InterruptedException ie) {
+                        return;
+                    }
+                    for(int a = 0; a < appendsPerThread; a++) {
+                        logStore.append(threadIndex * appendsPerThread + a, levels[(a + threadIndex) % levels.length], ENTRY_BYTES);
+                    }
+                }
+            });
+            appenders[t].start();
+        }
+        startLatch.countDown();
+        for(Thread appender : appenders) {
+            appender.join();
+        }
+        long appendCount = 0;
+        for(Level severity : levels) {
+            appendCount += logStore.getAppendCount(severity);
+        }
+        List<Integer> storedEntries = logStore.snapshot();
+        assertEquals(threadCount * appendsPerThread, appendCount);
+        assertEquals(appendCount - logStore.getEvictionCount(), logStore.size());
+        assertEquals(storedEntries.size(), logStore.size());
+        assertEquals((long) logStore.size() * ENTRY_BYTES, logStore.getByteCount());
+        assertTrue(logStore.toString(), logStore.size() <= 200);
+        assertTrue(logStore.getPeakByteCount() <= (200L + threadCount) * ENTRY_BYTES);
+        // the entries of each thread come out in the order that thread appended them:
+        int[] lastEntries = new int[threadCount];
+        Arrays.fill(lastEntries, -1);
+        for(int storedEntry : storedEntries) {
+            int threadIndex = storedEntry / appendsPerThread;
+            assertTrue(storedEntry > lastEntries[threadIndex]);
+            lastEntries[threadIndex] = storedEntry;
+        }
+    }
+
+}
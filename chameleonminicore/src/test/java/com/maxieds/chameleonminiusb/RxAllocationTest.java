@@ -0,0 +1,128 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.ChameleonProtocolConfig.ChameleonBoardType_t;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Counts the bytes allocated by the serial read path for each received XModem download frame
+ * (with verbose logging off). The frames are handed to the session's read listener on the test
+ * thread, so the thread's allocation counter covers the whole path from the listener through
+ * the frame assembler to the ACK written back and the sink.
+ */
+public class RxAllocationTest {
+
+    private static final int WARMUP_FRAMES = 16;
+    private static final int MEASURED_FRAMES = 48;
+    private static final int TOTAL_FRAMES = WARMUP_FRAMES + MEASURED_FRAMES;
+    private static final long MAX_BYTES_PER_FRAME = 16;
+
+    /**
+     * Hands every write to nobody: the test plays the device by calling the read listener.
+     */
+    private static class LoopbackTransport implements SerialTransport {
+        volatile ReadListener readListener;
+        final CountDownLatch downloadCommandWritten = new CountDownLatch(1);
+        public void write(byte[] txData, int length) {
+            if(length > 1 && txData[0] == 'D') { // the DOWNLOAD command (not an ACK / NAK)
+                downloadCommandWritten.countDown();
+            }
+        }
+        public void setReadListener(ReadListener listener) { readListener = listener; }
+        public void close() {}
+    }
+
+    private com.sun.management.ThreadMXBean threadBean;
+    private LoopbackTransport transport;
+    private ChameleonDeviceSession session;
+
+    @Before
+    public void setUp() {
+        java.lang.management.ThreadMXBean platformBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(platformBean instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) platformBean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        transport = new LoopbackTransport();
+        session = new ChameleonDeviceSession(transport, ChameleonBoardType_t.REVG, "SIM-RXALLOC");
+        session.getXModem().setUseCRC(false);
+        ProtocolLogging.setLogSink(null); // nothing below WARN is loggable
+    }
+
+    @After
+    public void tearDown() {
+        if(session != null) {
+            session.close();
+        }
+    }
+
+    private long allocatedBytes() {
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static byte[] checksumFrame(int frameNumber, byte[] payload) {
+        byte[] frame = new byte[3 + payload.length + 1];
+        frame[0] = XModem.BYTE_SOH;
+        frame[1] = (byte) frameNumber;
+        frame[2] = (byte) ~frameNumber;
+        System.arraycopy(payload, 0, frame, 3, payload.length);
+        frame[frame.length - 1] = XModem.CalcChecksum(payload, 0, payload.length);
+        return frame;
+    }
+
+    @Test
+    public void downloadFramesDoNotAllocate() throws Exception {
+        final XModemDownloadSink.ByteBufferSink downloadSink = new XModemDownloadSink.ByteBufferSink(TOTAL_FRAMES * XModem.XMODEM_BLOCK_SIZE);
+        Thread downloadStarter = new Thread(new Runnable() {
+            public void run() {
+                session.getXModem().downloadCardFileByXModem(downloadSink);
+            }
+        });
+        downloadStarter.start();
+        assertTrue(transport.downloadCommandWritten.await(5, TimeUnit.SECONDS));
+        transport.readListener.onReceivedData("110:WAITING FOR XMODEM\r\n".getBytes(StandardCharsets.US_ASCII));
+        downloadStarter.join(5000);
+
+        Random payloadRandom = new Random(6);
+        byte[][] frames = new byte[TOTAL_FRAMES][];
+        for(int f = 0; f < TOTAL_FRAMES; f++) {
+            byte[] payload = new byte[XModem.XMODEM_BLOCK_SIZE];
+            payloadRandom.nextBytes(payload);
+            frames[f] = checksumFrame(f + 1, payload);
+        }
+        SerialTransport.ReadListener readListener = transport.readListener;
+        for(int f = 0; f < WARMUP_FRAMES; f++) {
+            readListener.onReceivedData(frames[f]);
+        }
+        long beanOverhead = allocatedBytes();
+        beanOverhead = allocatedBytes() - beanOverhead;
+        long startBytes = allocatedBytes();
+        for(int f = WARMUP_FRAMES; f < TOTAL_FRAMES; f++) {
+            readListener.onReceivedData(frames[f]);
+        }
+        long frameBytes = allocatedBytes() - startBytes - beanOverhead;
+        readListener.onReceivedData(new byte[] { XModem.BYTE_EOT });
+
+        ByteBuffer downloaded = downloadSink.getData();
+        assertEquals(TOTAL_FRAMES * XModem.XMODEM_BLOCK_SIZE, downloaded.remaining());
+        long bytesPerFrame = frameBytes / MEASURED_FRAMES;
+        System.out.println(String.format(Locale.ENGLISH, "XModem download RX path: %d bytes allocated over %d frames (%d bytes/frame)",
+                frameBytes, MEASURED_FRAMES, bytesPerFrame));
+        assertTrue(bytesPerFrame + " bytes/frame", bytesPerFrame <= MAX_BYTES_PER_FRAME);
+    }
+
+}
@@ -0,0 +1,139 @@
+package com.maxieds.chameleonminiusb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h1>Scripted Serial Transport</h1>
+ * In-memory SerialTransport for the tests. Every write of the session is handed to a Device
+ * script, and the bytes the script answers with are delivered to the session's read listener
+ * on a single reader thread (as from a USB serial port), after the configured latency and cut
+ * into packets of the configured size.
+ *
+ * @ref SimulatedChameleon
+ */
+public class ScriptedSerialTransport implements SerialTransport {
+
+    /**
+     * The device end of the connection.
+     */
+    public interface Device {
+        /**
+         * Called on the writing thread with each write of the host.
+         * @param txData
+         * @param transport : to answer with reply / replyAfter.
+         */
+        void onHostWrite(byte[] txData, ScriptedSerialTransport transport);
+    }
+
+    private final Device device;
+    private final ScheduledExecutorService readerThread;
+    private final List<byte[]> hostWrites = new ArrayList<byte[]>();
+    private volatile ReadListener readListener;
+    private volatile int latencyMillis;
+    private volatile int packetSize;
+    private volatile boolean closed;
+
+    /**
+     * @param device
+     * @param latencyMillis : the delay of each reply.
+     * @param packetSize : the most bytes delivered per read callback (0 delivers each reply whole).
+     */
+    public ScriptedSerialTransport(Device device, int latencyMillis, int packetSize) {
+        this.device = device;
+        this.latencyMillis = latencyMillis;
+        this.packetSize = packetSize;
+        readerThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread rxThread = new Thread(r, "ScriptedSerial-RX");
+                rxThread.setDaemon(true);
+                return rxThread;
+            }
+        });
+    }
+
+    public void setLatencyMillis(int latency) { latencyMillis = latency; }
+    public void setPacketSize(int size) { packetSize = size; }
+
+    public void write(byte[] txData, int length) {
+        if(closed) {
+            return;
+        }
+        byte[] writtenData = Arrays.copyOf(txData, length);
+        synchronized(hostWrites) {
+            hostWrites.add(writtenData);
+        }
+        device.onHostWrite(writtenData, this);
+    }
+
+    public void setReadListener(ReadListener listener) {
+        readListener = listener;
+    }
+
+    public void close() {
+        closed = true;
+        readerThread.shutdownNow();
+    }
+
+    /**
+     * Delivers rxData to the host after the configured latency.
+     */
+    public void reply(byte[] rxData) {
+        replyAfter(rxData, latencyMillis);
+    }
+
+    /**
+     * Delivers rxData to the host after delayMillis (replies with the same delay arrive in
+     * the order they were made).
+     */
+    public void replyAfter(byte[] rxData, long delayMillis) {
+        int chunkSize = packetSize <= 0 ? rxData.length : packetSize;
+        for(int pos = 0; pos < rxData.length; pos += chunkSize) {
+            final byte[] packet = Arrays.copyOfRange(rxData, pos, Math.min(rxData.length, pos + chunkSize));
+            try {
+                readerThread.schedule(new Runnable() {
+                    public void run() {
+                        ReadListener listener = readListener;
+                        if(listener != null && !closed) {
+                            listener.onReceivedData(packet);
+                        }
+                    }
+                }, delayMillis, TimeUnit.MILLISECONDS);
+            } catch(RejectedExecutionException ree) {
+                return; // closed
+            }
+        }
+    }
+
+    public int getWriteCount() {
+        synchronized(hostWrites) {
+            return hostWrites.size();
+        }
+    }
+
+    public List<byte[]> getWrites() {
+        synchronized(hostWrites) {
+            return new ArrayList<byte[]>(hostWrites);
+        }
+    }
+
+    /**
+     * @return how many of the host's writes were the single byte b.
+     */
+    public int countSingleByteWrites(byte b) {
+        int count = 0;
+        for(byte[] txData : getWrites()) {
+            if(txData.length == 1 && txData[0] == b) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+}
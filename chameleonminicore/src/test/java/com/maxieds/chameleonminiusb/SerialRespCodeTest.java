@@ -0,0 +1,43 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.ChameleonCommands.SerialRespCode;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@SuppressWarnings("deprecation")
+public class SerialRespCodeTest {
+
+    @Test
+    public void looksUpByResponseCode() {
+        assertSame(SerialRespCode.OK_WITH_TEXT, SerialRespCode.lookupByResponseCode(101));
+        assertNull(SerialRespCode.lookupByResponseCode(999));
+        assertNull(SerialRespCode.lookupByResponseCode(-1));
+    }
+
+    @Test
+    public void keepsLegacyTextMaps() {
+        assertEquals(SerialRespCode.values().length, SerialRespCode.RESP_CODE_TEXT_MAP.size());
+        assertSame(SerialRespCode.WAITING_FOR_MODEM, SerialRespCode.RESP_CODE_TEXT_MAP.get("110:WAITING FOR MODEM"));
+        assertSame(SerialRespCode.INVALID_PARAMETER, SerialRespCode.RESP_CODE_TEXT_MAP2.get("202"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void legacyTextMapsAreReadOnly() {
+        SerialRespCode.RESP_CODE_TEXT_MAP2.put("999", SerialRespCode.OK);
+    }
+
+    @Test
+    public void recognizesCommandResponses() {
+        assertTrue(ChameleonCommands.ChameleonCommandResult.isCommandResponse("100:OK\r\n".getBytes(StandardCharsets.US_ASCII)));
+        assertFalse(ChameleonCommands.ChameleonCommandResult.isCommandResponse("OK\r\n".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+}
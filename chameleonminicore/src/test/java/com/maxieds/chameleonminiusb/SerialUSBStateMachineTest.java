@@ -0,0 +1,113 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.SerialUSBStateMachine.PortLease;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.DOWNLOAD;
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.IDLE;
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.UPLOAD;
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.WAITING_FOR_RESPONSE;
+import static com.maxieds.chameleonminiusb.ChameleonProtocolConfig.SerialUSBStates.WAITING_FOR_XMODEM_UPLOAD;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SerialUSBStateMachineTest {
+
+    private SerialUSBStateMachine stateMachine;
+
+    @Before
+    public void setUp() {
+        stateMachine = new SerialUSBStateMachine();
+    }
+
+    @Test
+    public void followsLegalTransitions() {
+        assertTrue(stateMachine.transition(IDLE, WAITING_FOR_XMODEM_UPLOAD));
+        assertTrue(stateMachine.transition(WAITING_FOR_XMODEM_UPLOAD, UPLOAD));
+        assertTrue(stateMachine.transition(UPLOAD, IDLE));
+        assertEquals(IDLE, stateMachine.getState());
+        assertEquals(0, stateMachine.getIllegalTransitionCount());
+    }
+
+    @Test
+    public void rejectsAndCountsIllegalTransition() {
+        assertFalse(stateMachine.transition(IDLE, DOWNLOAD));
+        assertEquals(IDLE, stateMachine.getState());
+        assertEquals(1, stateMachine.getIllegalTransitionCount());
+    }
+
+    @Test
+    public void transitionFailsFromAnotherState() {
+        assertTrue(stateMachine.transition(IDLE, WAITING_FOR_RESPONSE));
+        assertFalse(stateMachine.transition(IDLE, WAITING_FOR_RESPONSE));
+        assertEquals(WAITING_FOR_RESPONSE, stateMachine.getState());
+    }
+
+    @Test
+    public void onlyOneOfRacingThreadsWinsTransition() throws InterruptedException {
+        final int numThreads = 8;
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final AtomicInteger winners = new AtomicInteger();
+        Thread[] racers = new Thread[numThreads];
+        for(int t = 0; t < numThreads; t++) {
+            racers[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch(InterruptedException ie) {
+                        return;
+                    }
+                    if(stateMachine.transition(IDLE, WAITING_FOR_RESPONSE)) {
+                        winners.incrementAndGet();
+                    }
+                }
+            });
+            racers[t].start();
+        }
+        startLatch.countDown();
+        for(Thread racer : racers) {
+            racer.join();
+        }
+        assertEquals(1, winners.get());
+    }
+
+    @Test
+    public void beginOperationRequiresCurrentLease() {
+        PortLease lease = stateMachine.acquirePort(100);
+        assertNotNull(lease);
+        assertFalse(stateMachine.beginOperation(null, WAITING_FOR_RESPONSE));
+        assertFalse(stateMachine.beginOperation(new PortLease(lease.getGeneration(), "impostor"), WAITING_FOR_RESPONSE));
+        assertTrue(stateMachine.beginOperation(lease, WAITING_FOR_RESPONSE));
+    }
+
+    @Test
+    public void staleReleaseDoesNotFreeNextLease() {
+        PortLease firstLease = stateMachine.acquirePort(100);
+        assertTrue(stateMachine.releasePort(firstLease));
+        PortLease secondLease = stateMachine.acquirePort(100);
+        assertNotNull(secondLease);
+        assertFalse(stateMachine.releasePort(firstLease));
+        assertEquals(1, stateMachine.getSpuriousReleaseCount());
+        assertTrue(stateMachine.holdsPort(secondLease));
+        assertNull(stateMachine.acquirePort(50)); // still held
+    }
+
+    @Test
+    public void revokedLeaseNoLongerHoldsPort() {
+        PortLease lease = stateMachine.acquirePort(100);
+        assertSame(lease, stateMachine.revokePort());
+        assertFalse(stateMachine.holdsPort(lease));
+        assertFalse(stateMachine.releasePort(lease));
+        assertNotNull(stateMachine.acquirePort(100));
+    }
+
+}
@@ -0,0 +1,417 @@
+package com.maxieds.chameleonminiusb;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * <h1>Simulated Chameleon</h1>
+ * A RevG Chameleon Mini for the ScriptedSerialTransport: it answers the terminal commands the
+ * library sends (VERSION?, SETTING=, CONFIG?, UID?, READONLY?, MEMSIZE?, CLEAR, ...), keeps a
+ * memory image per slot, and runs the device side of the XModem transfers (the receiver of
+ * UPLOAD and the sender of DOWNLOAD, in checksum or CRC-16 mode, with 128 byte or 1K frames).
+ * The RevE rebooted forms of the commands ("uidmy?", "uploadmy", ...) are answered as well, and
+ * its UPLOAD_ENCRYPTED is received like UPLOAD, with the frames decrypted by the uploadScheme and
+ * uploadKey the test gives it in place of the firmware's own.
+ * The public fields script the misbehaviour a test needs (lost responses, NAKed or cancelled
+ * frames, an unacknowledged EOT, ...).
+ */
+public class SimulatedChameleon implements ScriptedSerialTransport.Device {
+
+    public static final int SLOT_COUNT = 8;
+
+    private static final Pattern REVE_COMMAND = Pattern.compile("([a-z]+)my([?=].*)?");
+
+    private static final int MODE_COMMANDS = 0;
+    private static final int MODE_RECEIVING = 1;
+    private static final int MODE_SENDING = 2;
+
+    private final int memorySize;
+    private final byte[][] slotMemory = new byte[SLOT_COUNT + 1][];
+    private final String[] slotConfig = new String[SLOT_COUNT + 1];
+    private final boolean[] slotReadOnly = new boolean[SLOT_COUNT + 1];
+    private int activeSlot = 1;
+    private int mode = MODE_COMMANDS;
+
+    /**** Scripted behaviour: ****/
+    public volatile int uidSize = 4;
+    public volatile boolean accept1KFrames = true;
+    public volatile boolean receiveWithCRC = false; // as the upload receiver, ask for CRC-16 with 'C'
+    public volatile boolean send1KFrames = false; // as the download sender, send STX frames while 1K of the slot is left
+    public volatile boolean handshakeWithWaitingLine = true; // send the receiver's first NAK / 'C' in the packet of the 110 line
+    public volatile int nakFrameOnce = -1; // NAK the first copy of this upload frame number
+    public volatile int nakEveryFrameTimes; // NAK the first copies of every upload frame this many times
+    public volatile int cancelAtFrame = -1; // answer this upload frame number with CAN
+    public volatile boolean ackEOT = true;
+    public volatile int corruptDownloadFrameOnce = -1; // send a bad checksum for the first copy of this download frame
+    public volatile int truncateDownloadFrameOnce = -1; // send only the first half of this download frame once
+    public volatile int corruptDownloadHeaderOnce = -1; // send a bad frame number complement for the first copy of this download frame
+    public volatile int dropResponses; // number of command responses to lose
+    public volatile String dropResponsesTo; // only lose the responses to this command (null: to any)
+    public volatile int lateResponseMillis = -1; // deliver the lost responses this late (instead of never)
+    public volatile boolean answerTransferCommands = true;
+    public volatile ChameleonUploadCipherCache.UploadCipherScheme uploadScheme; // decrypts UPLOAD_ENCRYPTED (refused without one)
+    public volatile byte[] uploadKey;
+
+    /**** Upload receiver state: ****/
+    private byte expectedFrameNumber;
+    private boolean receiveCRCMode;
+    private int writePosition;
+    private boolean nakSent, cancelSent;
+    private int frameNAKsSent;
+    private Cipher uploadDecryptor; // for UPLOAD_ENCRYPTED
+
+    /**** Download sender state: ****/
+    private boolean sendCRCMode;
+    private int readPosition;
+    private byte sendFrameNumber;
+    private int sendBlockSize;
+    private boolean eotSent, frameCorrupted, frameTruncated, headerCorrupted;
+
+    /**** Counters: ****/
+    public volatile int commandLines, framesReceived, framesRejected, framesSent, eotsReceived;
+    public final ByteArrayOutputStream lastUpload = new ByteArrayOutputStream();
+
+    public SimulatedChameleon(int memorySize) {
+        this.memorySize = memorySize;
+        for(int s = 1; s <= SLOT_COUNT; s++) {
+            slotMemory[s] = new byte[memorySize];
+            slotConfig[s] = "NONE";
+        }
+    }
+
+    public SimulatedChameleon() {
+        this(1024);
+    }
+
+    public synchronized byte[] getSlotMemory(int slot) { return slotMemory[slot]; }
+    public synchronized boolean isReadOnly(int slot) { return slotReadOnly[slot]; }
+    public synchronized void setReadOnly(int slot, boolean readOnly) { slotReadOnly[slot] = readOnly; }
+    public synchronized int getActiveSlot() { return activeSlot; }
+    public synchronized boolean isInXModemMode() { return mode != MODE_COMMANDS; }
+
+    public synchronized void onHostWrite(byte[] txData, ScriptedSerialTransport transport) {
+        if(mode == MODE_RECEIVING) {
+            receiveUploadData(txData, transport);
+        }
+        else if(mode == MODE_SENDING) {
+            sendDownloadData(txData, transport);
+        }
+        else {
+            runCommandLines(new String(txData, StandardCharsets.US_ASCII), transport);
+        }
+    }
+
+    private void runCommandLines(String cmdLines, ScriptedSerialTransport transport) {
+        StringBuilder responses = new StringBuilder();
+        // like the firmware's command line, control bytes (e.g., a CAN sent after the transfer ended) are ignored:
+        for(String cmdLine : cmdLines.replaceAll("[\\x00-\\x09\\x0b\\x0c\\x0e-\\x1f\\x7f]", "").split("[\r\n]+")) {
+            if(cmdLine.isEmpty()) {
+                continue;
+            }
+            commandLines++;
+            String response = runCommand(cmdLine);
+            if(response == null) {
+                continue;
+            }
+            else if(dropResponses > 0 && (dropResponsesTo == null || cmdLine.startsWith(dropResponsesTo))) {
+                dropResponses--;
+                if(lateResponseMillis >= 0) {
+                    transport.replyAfter(response.getBytes(StandardCharsets.US_ASCII), lateResponseMillis);
+                    sendReceiverHandshake(transport, lateResponseMillis);
+                }
+                continue;
+            }
+            responses.append(response);
+        }
+        if(responses.length() > 0) {
+            transport.reply(responses.toString().getBytes(StandardCharsets.US_ASCII));
+            sendReceiverHandshake(transport, -1);
+        }
+    }
+
+    /**
+     * Sends the upload receiver's first NAK / 'C' after the 110 line, unless it went out with it.
+     */
+    private void sendReceiverHandshake(ScriptedSerialTransport transport, int delayMillis) {
+        if(mode == MODE_RECEIVING && !handshakeWithWaitingLine && writePosition == 0) {
+            byte[] handshake = new byte[] { receiveCRCMode ? XModem.BYTE_CRC_REQUEST : XModem.BYTE_NAK };
+            if(delayMillis < 0) {
+                transport.reply(handshake);
+            }
+            else {
+                transport.replyAfter(handshake, delayMillis);
+            }
+        }
+    }
+
+    /**
+     * @return the response lines to the command (null if the device does not answer).
+     */
+    private String runCommand(String cmdLine) {
+        Matcher reveCmdMatcher = REVE_COMMAND.matcher(cmdLine);
+        if(reveCmdMatcher.matches()) {
+            cmdLine = reveCmdMatcher.group(1).toUpperCase(Locale.ENGLISH) +
+                    (reveCmdMatcher.group(2) == null ? "" : reveCmdMatcher.group(2));
+        }
+        if(cmdLine.equals("UPLOAD") || cmdLine.startsWith("UPLOAD_ENCRYPTED ")) {
+            if(!answerTransferCommands) {
+                return null;
+            }
+            uploadDecryptor = null;
+            if(cmdLine.startsWith("UPLOAD_ENCRYPTED ")) {
+                uploadDecryptor = newUploadDecryptor(cmdLine.substring("UPLOAD_ENCRYPTED ".length()).split(" "));
+                if(uploadDecryptor == null) {
+                    return "202:INVALID PARAMETER\r\n";
+                }
+            }
+            mode = MODE_RECEIVING;
+            expectedFrameNumber = 1;
+            receiveCRCMode = receiveWithCRC;
+            writePosition = 0;
+            nakSent = cancelSent = false;
+            frameNAKsSent = 0;
+            lastUpload.reset();
+            String waitingLine = "110:WAITING FOR XMODEM\r\n";
+            return handshakeWithWaitingLine ? waitingLine + (char) (receiveCRCMode ? XModem.BYTE_CRC_REQUEST : XModem.BYTE_NAK) : waitingLine;
+        }
+        else if(cmdLine.equals("DOWNLOAD")) {
+            if(!answerTransferCommands) {
+                return null;
+            }
+            mode = MODE_SENDING;
+            readPosition = -1;
+            sendFrameNumber = 1;
+            eotSent = frameCorrupted = frameTruncated = headerCorrupted = false;
+            return "110:WAITING FOR XMODEM\r\n";
+        }
+        int argPos = cmdLine.indexOf('=');
+        String cmdName = argPos < 0 ? cmdLine : cmdLine.substring(0, argPos + 1);
+        String cmdArg = argPos < 0 ? null : cmdLine.substring(argPos + 1);
+        if(cmdName.equals("VERSION?")) {
+            return textResponse("ChameleonMini RevG Simulated");
+        }
+        else if(cmdName.equals("CONFIG?")) {
+            return textResponse(slotConfig[activeSlot]);
+        }
+        else if(cmdName.equals("UID?")) {
+            return textResponse(ProtocolUtils.byteArrayToString(Arrays.copyOf(slotMemory[activeSlot], uidSize)).replace(" ", ""));
+        }
+        else if(cmdName.equals("UIDSIZE?")) {
+            return textResponse(Integer.toString(uidSize));
+        }
+        else if(cmdName.equals("READONLY?")) {
+            return textResponse(slotReadOnly[activeSlot] ? "1" : "0");
+        }
+        else if(cmdName.equals("MEMSIZE?")) {
+            return textResponse(Integer.toString(memorySize));
+        }
+        else if(cmdName.equals("SETTING?")) {
+            return textResponse(Integer.toString(activeSlot));
+        }
+        else if(cmdName.equals("RSSI?")) {
+            return textResponse("4200 mV");
+        }
+        else if(cmdName.equals("SETTING=")) {
+            int slot = Integer.parseInt(cmdArg.trim());
+            if(slot < 1 || slot > SLOT_COUNT) {
+                return "202:INVALID PARAMETER\r\n";
+            }
+            activeSlot = slot;
+            return "100:OK\r\n";
+        }
+        else if(cmdName.equals("CONFIG=")) {
+            slotConfig[activeSlot] = cmdArg;
+            return "100:OK\r\n";
+        }
+        else if(cmdName.equals("READONLY=")) {
+            slotReadOnly[activeSlot] = !cmdArg.trim().equals("0");
+            return "100:OK\r\n";
+        }
+        else if(cmdName.equals("UID=")) {
+            byte[] uidBytes = ProtocolUtils.byteArrayFromString(cmdArg);
+            System.arraycopy(uidBytes, 0, slotMemory[activeSlot], 0, Math.min(uidBytes.length, memorySize));
+            return "100:OK\r\n";
+        }
+        else if(cmdName.equals("CLEAR")) {
+            Arrays.fill(slotMemory[activeSlot], (byte) 0);
+            return "100:OK\r\n";
+        }
+        return "200:UNKNOWN COMMAND\r\n";
+    }
+
+    private static String textResponse(String text) {
+        return "101:OK WITH TEXT\r\n" + text + "\r\n";
+    }
+
+    /**
+     * @param uploadArgs : the key index and the hex timestamp salt of UPLOAD_ENCRYPTED.
+     * @return the decrypting Cipher (null if there is no scheme / key or the arguments are invalid).
+     */
+    private Cipher newUploadDecryptor(String[] uploadArgs) {
+        ChameleonUploadCipherCache.UploadCipherScheme scheme = uploadScheme;
+        if(scheme == null || uploadKey == null || uploadArgs.length != 2) {
+            return null;
+        }
+        try {
+            int keyIndex = Integer.parseInt(uploadArgs[0]);
+            long timestampSaltData = new BigInteger(uploadArgs[1], 16).longValue();
+            String transformation = scheme.getTransformation();
+            Cipher decryptor = Cipher.getInstance(transformation);
+            SecretKeySpec keySpec = new SecretKeySpec(uploadKey, transformation.split("/")[0]);
+            AlgorithmParameterSpec parameters = scheme.getParameters(keyIndex, timestampSaltData);
+            if(parameters == null) {
+                decryptor.init(Cipher.DECRYPT_MODE, keySpec);
+            }
+            else {
+                decryptor.init(Cipher.DECRYPT_MODE, keySpec, parameters);
+            }
+            return decryptor;
+        } catch(NumberFormatException nfe) {
+            return null;
+        } catch(GeneralSecurityException gse) {
+            return null;
+        }
+    }
+
+    private void receiveUploadData(byte[] txData, ScriptedSerialTransport transport) {
+        byte header = txData[0];
+        if(txData.length == 1 && header == XModem.BYTE_EOT) {
+            eotsReceived++;
+            if(ackEOT) {
+                mode = MODE_COMMANDS;
+                transport.reply(XModem.ACK_BYTES);
+            }
+            return;
+        }
+        else if(txData.length == 1 && header == XModem.BYTE_CAN) {
+            mode = MODE_COMMANDS;
+            return;
+        }
+        else if(header != XModem.BYTE_SOH && header != XModem.BYTE_STX) {
+            return; // like the firmware, only a frame header starts a frame
+        }
+        else if(txData.length < 3) {
+            framesRejected++;
+            transport.reply(XModem.NAK_BYTES);
+            return;
+        }
+        int blockSize = header == XModem.BYTE_STX ? XModem.XMODEM_1K_BLOCK_SIZE : XModem.XMODEM_BLOCK_SIZE;
+        byte frameNumber = txData[1];
+        if(frameNumber == cancelAtFrame && !cancelSent) {
+            cancelSent = true;
+            mode = MODE_COMMANDS;
+            transport.reply(XModem.CAN_BYTES);
+            return;
+        }
+        boolean frameIntact = (header == XModem.BYTE_SOH || (header == XModem.BYTE_STX && accept1KFrames)) &&
+                txData.length == blockSize + (receiveCRCMode ? 5 : 4) && txData[2] == (byte) (255 - frameNumber);
+        if(frameIntact && receiveCRCMode) {
+            int frameCRC = ((txData[blockSize + 3] & 0xff) << 8) | (txData[blockSize + 4] & 0xff);
+            frameIntact = XModem.CalcCRC16(txData, 3, blockSize) == frameCRC;
+        }
+        else if(frameIntact) {
+            frameIntact = XModem.CalcChecksum(txData, 3, blockSize) == txData[blockSize + 3];
+        }
+        if(frameIntact && frameNumber == nakFrameOnce && !nakSent) {
+            nakSent = true;
+            frameIntact = false;
+        }
+        else if(frameIntact && frameNumber == expectedFrameNumber && frameNAKsSent < nakEveryFrameTimes) {
+            frameNAKsSent++;
+            frameIntact = false;
+        }
+        if(!frameIntact) {
+            framesRejected++;
+            transport.reply(XModem.NAK_BYTES);
+            return;
+        }
+        if(frameNumber == expectedFrameNumber) {
+            framesReceived++;
+            byte[] payload = Arrays.copyOfRange(txData, 3, 3 + blockSize);
+            if(uploadDecryptor != null) {
+                payload = uploadDecryptor.update(payload);
+            }
+            int copyLength = Math.max(0, Math.min(blockSize, memorySize - writePosition));
+            System.arraycopy(payload, 0, slotMemory[activeSlot], writePosition, copyLength);
+            lastUpload.write(payload, 0, blockSize);
+            writePosition += blockSize;
+            expectedFrameNumber++;
+            frameNAKsSent = 0;
+        }
+        transport.reply(XModem.ACK_BYTES);
+    }
+
+    private void sendDownloadData(byte[] txData, ScriptedSerialTransport transport) {
+        byte replyByte = txData[0];
+        if(readPosition < 0) {
+            if(replyByte != XModem.BYTE_NAK && replyByte != XModem.BYTE_CRC_REQUEST) {
+                return;
+            }
+            sendCRCMode = (replyByte == XModem.BYTE_CRC_REQUEST);
+            readPosition = 0;
+        }
+        else if(replyByte == XModem.BYTE_ACK) {
+            if(eotSent) {
+                mode = MODE_COMMANDS;
+                return;
+            }
+            readPosition += sendBlockSize;
+            sendFrameNumber++;
+        }
+        else if(replyByte == XModem.BYTE_CAN) {
+            mode = MODE_COMMANDS;
+            return;
+        }
+        if(readPosition >= memorySize) {
+            eotSent = true;
+            transport.reply(XModem.EOT_BYTES);
+            return;
+        }
+        int blockSize = (send1KFrames && memorySize - readPosition >= XModem.XMODEM_1K_BLOCK_SIZE) ?
+                XModem.XMODEM_1K_BLOCK_SIZE : XModem.XMODEM_BLOCK_SIZE;
+        sendBlockSize = blockSize;
+        byte[] frame = new byte[blockSize + (sendCRCMode ? 5 : 4)];
+        frame[0] = blockSize == XModem.XMODEM_1K_BLOCK_SIZE ? XModem.BYTE_STX : XModem.BYTE_SOH;
+        frame[1] = sendFrameNumber;
+        frame[2] = (byte) (255 - sendFrameNumber);
+        System.arraycopy(slotMemory[activeSlot], readPosition, frame, 3, blockSize);
+        if(sendCRCMode) {
+            int crc = XModem.CalcCRC16(frame, 3, blockSize);
+            frame[blockSize + 3] = (byte) (crc >>> 8);
+            frame[blockSize + 4] = (byte) crc;
+        }
+        else {
+            frame[blockSize + 3] = XModem.CalcChecksum(frame, 3, blockSize);
+        }
+        if(sendFrameNumber == corruptDownloadFrameOnce && !frameCorrupted) {
+            frameCorrupted = true;
+            frame[blockSize + 2] ^= 0x55;
+        }
+        else if(sendFrameNumber == truncateDownloadFrameOnce && !frameTruncated) {
+            frameTruncated = true;
+            frame = Arrays.copyOf(frame, frame.length / 2);
+        }
+        else if(sendFrameNumber == corruptDownloadHeaderOnce && !headerCorrupted) {
+            headerCorrupted = true;
+            frame[2] ^= 0x01;
+        }
+        framesSent++;
+        transport.reply(frame);
+    }
+
+    public String toString() {
+        return String.format(Locale.ENGLISH, "SimulatedChameleon(slot=%d, commands=%d, framesReceived=%d, framesRejected=%d, framesSent=%d)",
+                activeSlot, commandLines, framesReceived, framesRejected, framesSent);
+    }
+
+}
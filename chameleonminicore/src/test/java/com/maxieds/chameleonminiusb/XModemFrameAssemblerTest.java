@@ -0,0 +1,104 @@
+package com.maxieds.chameleonminiusb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class XModemFrameAssemblerTest {
+
+    private XModemFrameAssembler assembler;
+    private ByteArrayOutputStream payloads;
+    private ByteArrayOutputStream controlBytes;
+
+    private final XModemFrameAssembler.FrameListener frameListener = new XModemFrameAssembler.FrameListener() {
+        public void onDataFrame(byte[] frameBuf, int offset, int blockSize) {
+            payloads.write(frameBuf, offset + 3, blockSize);
+        }
+        public void onControlByte(byte controlByte) {
+            controlBytes.write(controlByte);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        assembler = new XModemFrameAssembler(null);
+        payloads = new ByteArrayOutputStream();
+        controlBytes = new ByteArrayOutputStream();
+    }
+
+    private static byte[] payloadFullOfControlBytes() {
+        byte[] payload = new byte[XModem.XMODEM_BLOCK_SIZE];
+        for(int pos = 0; pos < payload.length; pos++) {
+            payload[pos] = (pos % 3 == 0) ? XModem.BYTE_EOT : (pos % 3 == 1) ? XModem.BYTE_CAN : XModem.BYTE_SOH;
+        }
+        return payload;
+    }
+
+    private static byte[] checksumFrame(int frameNumber, byte[] payload) {
+        byte[] frame = new byte[payload.length + 4];
+        frame[0] = XModem.BYTE_SOH;
+        frame[1] = (byte) frameNumber;
+        frame[2] = (byte) (255 - frameNumber);
+        System.arraycopy(payload, 0, frame, 3, payload.length);
+        frame[payload.length + 3] = XModem.CalcChecksum(payload, 0, payload.length);
+        return frame;
+    }
+
+    @Test
+    public void reassemblesFrameSplitAcrossPackets() {
+        byte[] payload = payloadFullOfControlBytes();
+        byte[] frame = checksumFrame(1, payload);
+        assertEquals(0, assembler.onReceivedData(Arrays.copyOfRange(frame, 0, 64), frameListener));
+        assertEquals(0, assembler.onReceivedData(Arrays.copyOfRange(frame, 64, 128), frameListener));
+        assertEquals(1, assembler.onReceivedData(Arrays.copyOfRange(frame, 128, frame.length), frameListener));
+        assertArrayEquals(payload, payloads.toByteArray());
+        assertEquals(0, controlBytes.size());
+    }
+
+    @Test
+    public void takesEOTAtFrameBoundary() {
+        byte[] payload = payloadFullOfControlBytes();
+        byte[] frame = checksumFrame(1, payload);
+        byte[] packet = Arrays.copyOf(frame, frame.length + 1);
+        packet[frame.length] = XModem.BYTE_EOT;
+        assertEquals(2, assembler.onReceivedData(packet, frameListener));
+        assertArrayEquals(payload, payloads.toByteArray());
+        assertArrayEquals(new byte[] { XModem.BYTE_EOT }, controlBytes.toByteArray());
+    }
+
+    @Test
+    public void discardsPayloadAfterCorruptHeaderUntilReset() {
+        byte[] frame = checksumFrame(2, payloadFullOfControlBytes());
+        frame[2] ^= 0x01;
+        assembler.onReceivedData(Arrays.copyOfRange(frame, 0, 64), frameListener);
+        assertTrue(assembler.isDiscarding());
+        assertEquals(0, assembler.onReceivedData(Arrays.copyOfRange(frame, 64, frame.length), frameListener));
+        assertEquals(0, payloads.size());
+        assertEquals(0, controlBytes.size()); // the 0x04 / 0x18 payload bytes are not taken for EOT / CAN
+        assertEquals(frame.length, assembler.getDiscardedByteCount());
+        assembler.requestReset();
+        byte[] payload = payloadFullOfControlBytes();
+        assertEquals(1, assembler.onReceivedData(checksumFrame(2, payload), frameListener));
+        assertFalse(assembler.isDiscarding());
+        assertArrayEquals(payload, payloads.toByteArray());
+    }
+
+    @Test
+    public void discardsAfterByteWhichCanNotStartFrame() {
+        byte[] frame = checksumFrame(1, payloadFullOfControlBytes());
+        byte[] packet = new byte[frame.length + 1];
+        packet[0] = (byte) 'x';
+        System.arraycopy(frame, 0, packet, 1, frame.length);
+        assertEquals(0, assembler.onReceivedData(packet, frameListener));
+        assertTrue(assembler.isDiscarding());
+        assertEquals(0, controlBytes.size());
+    }
+
+}
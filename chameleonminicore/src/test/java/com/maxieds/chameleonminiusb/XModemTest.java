@@ -0,0 +1,279 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.ChameleonProtocolConfig.ChameleonBoardType_t;
+import com.maxieds.chameleonminiusb.XModemTransferStats.CancelReason;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class XModemTest {
+
+    private SimulatedChameleon device;
+    private ScriptedSerialTransport transport;
+    private ChameleonDeviceSession session;
+    private int defaultEOTAckTimeout, defaultFrameTimeout, defaultMaxNAKCount;
+
+    @Before
+    public void setUp() {
+        defaultEOTAckTimeout = XModem.XMODEM_EOT_ACK_TIMEOUT;
+        defaultFrameTimeout = XModem.XMODEM_FRAME_TIMEOUT;
+        defaultMaxNAKCount = XModem.MAX_NAK_COUNT;
+        XModem.XMODEM_EOT_ACK_TIMEOUT = 200;
+        XModem.XMODEM_FRAME_TIMEOUT = 200;
+        device = new SimulatedChameleon(4096);
+        transport = new ScriptedSerialTransport(device, 1, 0);
+        session = new ChameleonDeviceSession(transport, ChameleonBoardType_t.REVG, "SIM-XMODEM");
+        session.getXModem().setUse1KBlocks(false);
+        session.getXModem().setUseCRC(false);
+    }
+
+    @After
+    public void tearDown() {
+        session.close();
+        XModem.XMODEM_EOT_ACK_TIMEOUT = defaultEOTAckTimeout;
+        XModem.XMODEM_FRAME_TIMEOUT = defaultFrameTimeout;
+        XModem.MAX_NAK_COUNT = defaultMaxNAKCount;
+    }
+
+    private static byte[] randomImage(int length, long seed) {
+        byte[] image = new byte[length];
+        new Random(seed).nextBytes(image);
+        return image;
+    }
+
+    private byte[] activeSlotMemory() {
+        return device.getSlotMemory(device.getActiveSlot());
+    }
+
+    private XModemTransferStats lastTransferStats() {
+        return session.getXModem().getCurrentTransfer().getTransferStats();
+    }
+
+    private static byte[] toArray(ByteBuffer data) {
+        byte[] dataBytes = new byte[data.remaining()];
+        data.get(dataBytes);
+        return dataBytes;
+    }
+
+    @Test
+    public void uploadsWithChecksumFrames() {
+        byte[] image = randomImage(4096, 1);
+        assertTrue(session.chameleonUpload(image));
+        assertArrayEquals(image, activeSlotMemory());
+        assertEquals(32, device.framesReceived);
+        assertEquals(1, device.eotsReceived);
+        assertFalse(device.isInXModemMode());
+    }
+
+    @Test
+    public void uploadsWhenHandshakeFollowsWaitingLine() {
+        device.handshakeWithWaitingLine = false;
+        transport.setPacketSize(5);
+        byte[] image = randomImage(1024, 2);
+        assertTrue(session.chameleonUpload(image));
+        assertArrayEquals(image, device.lastUpload.toByteArray());
+    }
+
+    @Test
+    public void uploadsWith1KFrames() {
+        session.getXModem().setUse1KBlocks(true);
+        byte[] image = randomImage(4096, 4);
+        assertTrue(session.chameleonUpload(image));
+        assertArrayEquals(image, activeSlotMemory());
+        assertEquals(4, device.framesReceived);
+        assertTrue(lastTransferStats().used1KBlocks());
+    }
+
+    @Test
+    public void fallsBackTo128ByteFramesWhen1KIsRefused() {
+        device.accept1KFrames = false;
+        session.getXModem().setUse1KBlocks(true);
+        byte[] image = randomImage(4096, 5);
+        assertTrue(session.chameleonUpload(image));
+        assertArrayEquals(image, activeSlotMemory());
+        assertTrue(lastTransferStats().fellBackTo128Blocks());
+        assertEquals(32, device.framesReceived);
+    }
+
+    @Test
+    public void downloadsChecksumFrames() {
+        byte[] image = randomImage(4096, 9);
+        System.arraycopy(image, 0, activeSlotMemory(), 0, image.length);
+        ByteBuffer downloaded = session.chameleonDownloadToMemory();
+        assertNotNull(downloaded);
+        assertArrayEquals(image, toArray(downloaded));
+    }
+
+    @Test
+    public void downloads1KFrames() {
+        device.send1KFrames = true;
+        byte[] image = randomImage(4096, 11);
+        System.arraycopy(image, 0, activeSlotMemory(), 0, image.length);
+        ByteBuffer downloaded = session.chameleonDownloadToMemory();
+        assertNotNull(downloaded);
+        assertArrayEquals(image, toArray(downloaded));
+        assertEquals(4, device.framesSent);
+    }
+
+    @Test
+    public void uploadsWithCRCFrames() {
+        device.receiveWithCRC = true;
+        session.getXModem().setUseCRC(true);
+        byte[] image = randomImage(4096, 3);
+        assertTrue(session.chameleonUpload(image));
+        assertArrayEquals(image, activeSlotMemory());
+        assertTrue(lastTransferStats().isCRCMode());
+    }
+
+    @Test
+    public void downloadsCRCFrames() {
+        session.getXModem().setUseCRC(true);
+        byte[] image = randomImage(4096, 14);
+        System.arraycopy(image, 0, activeSlotMemory(), 0, image.length);
+        ByteBuffer downloaded = session.chameleonDownloadToMemory();
+        assertNotNull(downloaded);
+        assertArrayEquals(image, toArray(downloaded));
+        assertTrue(lastTransferStats().isCRCMode());
+    }
+
+    @Test
+    public void computesCRC16CheckValue() {
+        byte[] checkInput = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(0x31c3, XModem.CalcCRC16(checkInput, 0, checkInput.length));
+    }
+
+    @Test
+    public void resendsNAKedUploadFrame() {
+        device.nakFrameOnce = 3;
+        byte[] image = randomImage(1024, 6);
+        assertTrue(session.chameleonUpload(image));
+        assertArrayEquals(image, device.lastUpload.toByteArray());
+        assertEquals(1, device.framesRejected);
+        assertEquals(1, lastTransferStats().getNAKCount());
+        assertEquals(1, lastTransferStats().getRetransmittedFrameCount());
+    }
+
+    @Test
+    public void endsUploadCancelledByReceiver() {
+        device.cancelAtFrame = 4;
+        assertFalse(session.chameleonUpload(randomImage(1024, 7)));
+        assertEquals(CancelReason.REMOTE_CANCELLED, lastTransferStats().getCancelReason());
+        assertFalse(device.isInXModemMode());
+        assertEquals("4200 mV", session.sendCommandToChameleon(ChameleonCommands.StandardCommandSet.GET_RSSI_VOLTAGE, null).cmdResponseData);
+    }
+
+    @Test
+    public void endsUploadWhoseEOTIsNotAcknowledged() throws Exception {
+        device.ackEOT = false;
+        XModemSession transfer = session.getXModem().uploadCardFileByXModem(randomImage(512, 8));
+        assertNotNull(transfer);
+        transfer.getCompletion().get(5, TimeUnit.SECONDS);
+        assertTrue(transfer.isEOT());
+        assertEquals(1, device.eotsReceived);
+        assertEquals(4, device.framesReceived);
+    }
+
+    @Test
+    public void startsEachTransferWithItsOwnSession() {
+        device.cancelAtFrame = 2;
+        assertFalse(session.chameleonUpload(randomImage(1024, 15)));
+        XModemSession cancelledTransfer = session.getXModem().getCurrentTransfer();
+        device.cancelAtFrame = -1;
+        byte[] image = randomImage(1024, 16);
+        assertTrue(session.chameleonUpload(image));
+        assertArrayEquals(image, device.lastUpload.toByteArray());
+        assertNotSame(cancelledTransfer, session.getXModem().getCurrentTransfer());
+        assertEquals(CancelReason.REMOTE_CANCELLED, cancelledTransfer.getTransferStats().getCancelReason());
+        assertEquals(0, lastTransferStats().getNAKCount());
+    }
+
+    @Test
+    public void downloadsCRCFramesInSmallPackets() {
+        session.getXModem().setUseCRC(true);
+        transport.setPacketSize(20);
+        byte[] image = randomImage(4096, 10);
+        System.arraycopy(image, 0, activeSlotMemory(), 0, image.length);
+        ByteBuffer downloaded = session.chameleonDownloadToMemory();
+        assertNotNull(downloaded);
+        assertArrayEquals(image, toArray(downloaded));
+        assertTrue(lastTransferStats().isCRCMode());
+        assertTrue(lastTransferStats().getReassembledFrameCount() > 0);
+    }
+
+    @Test
+    public void rejectsCorruptDownloadFrame() {
+        device.corruptDownloadFrameOnce = 3;
+        byte[] image = randomImage(4096, 12);
+        System.arraycopy(image, 0, activeSlotMemory(), 0, image.length);
+        ByteBuffer downloaded = session.chameleonDownloadToMemory();
+        assertNotNull(downloaded);
+        assertArrayEquals(image, toArray(downloaded));
+        assertEquals(1, lastTransferStats().getNAKCount());
+    }
+
+    @Test
+    public void rejectsTruncatedDownloadFrameAfterTimeout() {
+        device.truncateDownloadFrameOnce = 2;
+        byte[] image = randomImage(4096, 13);
+        System.arraycopy(image, 0, activeSlotMemory(), 0, image.length);
+        ByteBuffer downloaded = session.chameleonDownloadToMemory();
+        assertNotNull(downloaded);
+        assertArrayEquals(image, toArray(downloaded));
+        assertEquals(1, lastTransferStats().getNAKCount());
+    }
+
+    @Test
+    public void resyncsAfterCorruptHeaderInsteadOfTakingPayloadForEOT() {
+        device.corruptDownloadHeaderOnce = 2;
+        byte[] image = randomImage(4096, 17);
+        for(int pos = 128; pos < 256; pos += 16) {
+            image[pos] = XModem.BYTE_EOT;
+            image[pos + 1] = XModem.BYTE_CAN;
+            image[pos + 2] = XModem.BYTE_SOH;
+        }
+        System.arraycopy(image, 0, activeSlotMemory(), 0, image.length);
+        transport.setPacketSize(64);
+        ByteBuffer downloaded = session.chameleonDownloadToMemory();
+        assertNotNull(downloaded);
+        assertArrayEquals(image, toArray(downloaded));
+        assertEquals(1, lastTransferStats().getNAKCount());
+        assertTrue(lastTransferStats().succeeded());
+    }
+
+    @Test
+    public void countsNAKsPerFrame() {
+        XModem.MAX_NAK_COUNT = 2;
+        device.nakEveryFrameTimes = 2;
+        byte[] image = randomImage(512, 18);
+        assertTrue(session.chameleonUpload(image));
+        assertArrayEquals(image, device.lastUpload.toByteArray());
+        XModemTransferStats transferStats = lastTransferStats();
+        assertEquals(8, transferStats.getNAKCount());
+        assertEquals(4, transferStats.getNAKsPerFrameHistogram()[2]);
+        assertEquals(2, transferStats.getMaxNAKsPerFrame());
+        assertEquals(4, transferStats.getRetransmittedFrameCount());
+    }
+
+    @Test
+    public void cancelsUploadOnceFrameExceedsNAKLimit() {
+        XModem.MAX_NAK_COUNT = 2;
+        device.nakEveryFrameTimes = 3;
+        assertFalse(session.chameleonUpload(randomImage(512, 19)));
+        assertEquals(CancelReason.NAK_LIMIT, lastTransferStats().getCancelReason());
+        assertEquals(0, device.framesReceived);
+    }
+
+}
@@ -0,0 +1,91 @@
+package com.maxieds.chameleonminiusb;
+
+import com.maxieds.chameleonminiusb.ChameleonProtocolConfig.ChameleonBoardType_t;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Throughput of 4K slot uploads and downloads through the simulated device with 128 byte
+ * frames against XModem-1K frames. With a per-packet link latency, the transfer time is
+ * dominated by the frame round trips, which the 1K frames cut by a factor of eight.
+ */
+public class XModemThroughputBenchmark {
+
+    private static final int SLOT_SIZE = 4096;
+    private static final int LINK_LATENCY_MILLIS = 1;
+    private static final int ROUNDS = 3;
+
+    private static double uploadBytesPerSecond(boolean use1KBlocks) {
+        SimulatedChameleon device = new SimulatedChameleon(SLOT_SIZE);
+        ScriptedSerialTransport transport = new ScriptedSerialTransport(device, LINK_LATENCY_MILLIS, 0);
+        ChameleonDeviceSession session = new ChameleonDeviceSession(transport, ChameleonBoardType_t.REVG, "SIM-THROUGHPUT");
+        session.getXModem().setUse1KBlocks(use1KBlocks);
+        try {
+            byte[] image = new byte[SLOT_SIZE];
+            new Random(13).nextBytes(image);
+            double bestBytesPerSecond = 0;
+            for(int round = 0; round < ROUNDS; round++) {
+                assertTrue(session.chameleonUpload(image));
+                assertArrayEquals(image, device.getSlotMemory(device.getActiveSlot()));
+                XModemTransferStats transferStats = session.getXModem().getCurrentTransfer().getTransferStats();
+                assertEquals(use1KBlocks, transferStats.used1KBlocks());
+                bestBytesPerSecond = Math.max(bestBytesPerSecond, transferStats.getThroughputBytesPerSecond());
+            }
+            return bestBytesPerSecond;
+        } finally {
+            session.close();
+        }
+    }
+
+    private static double downloadBytesPerSecond(boolean send1KFrames) {
+        SimulatedChameleon device = new SimulatedChameleon(SLOT_SIZE);
+        device.send1KFrames = send1KFrames;
+        new Random(13).nextBytes(device.getSlotMemory(device.getActiveSlot()));
+        ScriptedSerialTransport transport = new ScriptedSerialTransport(device, LINK_LATENCY_MILLIS, 0);
+        ChameleonDeviceSession session = new ChameleonDeviceSession(transport, ChameleonBoardType_t.REVG, "SIM-THROUGHPUT");
+        try {
+            double bestBytesPerSecond = 0;
+            for(int round = 0; round < ROUNDS; round++) {
+                ByteBuffer downloaded = session.chameleonDownloadToMemory();
+                assertNotNull(downloaded);
+                assertEquals(SLOT_SIZE, downloaded.remaining());
+                XModemTransferStats transferStats = session.getXModem().getCurrentTransfer().getTransferStats();
+                bestBytesPerSecond = Math.max(bestBytesPerSecond, transferStats.getThroughputBytesPerSecond());
+            }
+            return bestBytesPerSecond;
+        } finally {
+            session.close();
+        }
+    }
+
+    private static void report(String label, double bytesPerSecond128, double bytesPerSecond1K) {
+        System.out.println(String.format(Locale.ENGLISH, "XModem %s: 128 byte frames %.0f B/s, 1K frames %.0f B/s (%.1fx)",
+                label, bytesPerSecond128, bytesPerSecond1K, bytesPerSecond1K / bytesPerSecond128));
+    }
+
+    @Test
+    public void uploadWith1KFramesIsFaster() {
+        double bytesPerSecond128 = uploadBytesPerSecond(false);
+        double bytesPerSecond1K = uploadBytesPerSecond(true);
+        report("upload", bytesPerSecond128, bytesPerSecond1K);
+        assertTrue(bytesPerSecond1K > 2 * bytesPerSecond128);
+    }
+
+    @Test
+    public void downloadWith1KFramesIsFaster() {
+        double bytesPerSecond128 = downloadBytesPerSecond(false);
+        double bytesPerSecond1K = downloadBytesPerSecond(true);
+        report("download", bytesPerSecond128, bytesPerSecond1K);
+        assertTrue(bytesPerSecond1K > 2 * bytesPerSecond128);
+    }
+
+}
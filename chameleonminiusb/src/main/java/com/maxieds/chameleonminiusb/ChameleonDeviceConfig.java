@@ -1,59 +1,31 @@
 package com.maxieds.chameleonminiusb;
 
-import android.app.PendingIntent;
+import android.app.DownloadManager;
 import android.content.Context;
 import android.content.Intent;
 import android.hardware.usb.UsbDevice;
-import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbManager;
 import android.support.annotation.IntRange;
 
-import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.CLEAR_ACTIVE_SLOT;
-import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.GET_ACTIVE_SLOT;
-import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.GET_MEMORY_SIZE;
-import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.GET_RSSI_VOLTAGE;
-import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.GET_UID_SIZE;
-import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.GET_VERSION;
-import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.QUERY_CONFIG;
-import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.QUERY_READONLY;
-import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.QUERY_UID;
-import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.SET_ACTIVE_SLOT;
-import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.SET_CONFIG;
-import static com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet.SET_UID;
-import static com.maxieds.chameleonminiusb.ChameleonDeviceConfig.SerialUSBStates.DOWNLOAD;
-import static com.maxieds.chameleonminiusb.ChameleonDeviceConfig.SerialUSBStates.EXPECTING_BINARY_DATA;
-import static com.maxieds.chameleonminiusb.ChameleonDeviceConfig.SerialUSBStates.IDLE;
-import static com.maxieds.chameleonminiusb.ChameleonDeviceConfig.SerialUSBStates.PAUSED;
-import static com.maxieds.chameleonminiusb.ChameleonDeviceConfig.SerialUSBStates.UPLOAD;
-import static com.maxieds.chameleonminiusb.ChameleonDeviceConfig.SerialUSBStates.WAITING_FOR_RESPONSE;
-import static com.maxieds.chameleonminiusb.ChameleonDeviceConfig.SerialUSBStates.WAITING_FOR_XMODEM_DOWNLOAD;
-import static com.maxieds.chameleonminiusb.ChameleonDeviceConfig.SerialUSBStates.WAITING_FOR_XMODEM_UPLOAD;
-import static com.maxieds.chameleonminiusb.Utils.BYTE;
-import static com.maxieds.chameleonminiusb.XModem.BYTE_NAK;
-
 import com.felhr.usbserial.UsbSerialDevice;
-import com.felhr.usbserial.UsbSerialInterface;
 import com.maxieds.chameleonminiusb.ChameleonCommands.ChameleonCommandResult;
 import com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet;
 
 import java.io.File;
-import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Callable;
 
-public class ChameleonDeviceConfig implements ChameleonUSBInterface {
+public class ChameleonDeviceConfig extends ChameleonProtocolConfig implements ChameleonUSBInterface, ChameleonUSBAsyncInterface {
 
     private static final String TAG = ChameleonDeviceConfig.class.getSimpleName();
 
-    public static final int SHORT_PAUSE = 25;
-    public static final int MEDIUM_PAUSE = 1250;
-
     /**** This is the global Chameleon Board device configuration that should be refered to from
      **** all instances in *both* this library code *AND* in the customized day-to-day Android
      **** code being developed for the client bread company! Create an array here if you end up
@@ -62,6 +34,8 @@ public class ChameleonDeviceConfig implements ChameleonUSBInterface {
      **** mechanism for uniquely identifying devices (i.e., only by vendor and product IDs) on the
      **** fly. However, the RevG devices do have built-in unique device identifiers, so this
      **** could be a possibility at some point if the specs grow or change...
+     **** (The per-board connection state now lives in ChameleonDeviceSession objects kept in
+     **** the ChameleonDeviceRegistry; this instance drives the default session.)
      ****/
     public static ChameleonDeviceConfig THE_CHAMELEON_DEVICE;
 
@@ -70,7 +44,7 @@ public class ChameleonDeviceConfig implements ChameleonUSBInterface {
     }
 
     public boolean isConfigured() {
-        return usbReceiversRegistered && chameleonDeviceConfigured;
+        return usbReceiversRegistered && defaultDeviceSession != null && defaultDeviceSession.isConfigured();
     }
 
     /**** This is the core of the serial USB comminucation setup and configuration for
@@ -84,417 +58,244 @@ public class ChameleonDeviceConfig implements ChameleonUSBInterface {
      **** time rather than just a single plug-and-play use followed by immediate disconnection:
      ****/
 
-    /**** Constants and helper functions for determining the Chameleon Mini Revision types: ****/
-    public static final int CMUSB_REVG_VENDORID = 0x16d0;
-    public static final int CMUSB_REVG_PRODUCTID = 0x04b2;
-    public static final int CMUSB_REVE_VENDORID = 0x03eb;
-    public static final int CMUSB_REVE_PRODUCTID = 0x2044;
-
-    public static enum ChameleonBoardType_t {
-        REVE_REBOOTED,
-        REVG,
-        REVE_OTHER,
-        REV_CUSTOM_FIRMWARE,
-        REV_OLDER_FIRMWARE,
-    };
-
-    public static ChameleonBoardType_t getChameleonBoardRevision(int usbVendorID, int usbProductID) {
-        if(usbVendorID == CMUSB_REVE_VENDORID && usbProductID == CMUSB_REVE_PRODUCTID) {
-            return ChameleonBoardType_t.REVE_REBOOTED;
-        }
-        else if(usbVendorID == CMUSB_REVE_VENDORID) {
-            return ChameleonBoardType_t.REVE_OTHER;
-        }
-        else if(usbVendorID == CMUSB_REVG_VENDORID && usbProductID == CMUSB_REVG_PRODUCTID) {
-            return ChameleonBoardType_t.REVG;
-        }
-        else if(usbVendorID == CMUSB_REVG_VENDORID) {
-            return ChameleonBoardType_t.REV_CUSTOM_FIRMWARE;
-        }
-        else {
-            return ChameleonBoardType_t.REV_OLDER_FIRMWARE;
-        }
+    public static ChameleonBoardType_t getChameleonBoardType() {
+        return chameleonDeviceIsConfigured() ? getDefaultSession().getChameleonBoardType() : null;
     }
 
-    protected static ChameleonBoardType_t localChameleonBoardRev;
-    public static ChameleonBoardType_t getChameleonBoardType() { return localChameleonBoardRev; }
-    public static String getChameleonBoardTypeByName() { return localChameleonBoardRev.name(); }
+    public static String getChameleonBoardTypeByName() { return getChameleonBoardType().name(); }
 
     public static boolean isRevisionEDevice() {
-        return localChameleonBoardRev == ChameleonBoardType_t.REVE_REBOOTED || localChameleonBoardRev == ChameleonBoardType_t.REVE_OTHER;
+        return chameleonDeviceIsConfigured() && getDefaultSession().isRevisionEDevice();
     }
 
     public static boolean isRevisionGDevice() {
-        return localChameleonBoardRev == ChameleonBoardType_t.REVG;
+        return chameleonDeviceIsConfigured() && getDefaultSession().isRevisionGDevice();
     }
 
-    /**** Handle the setup of the serial USB communications: ****/
-    public static UsbSerialDevice serialPort;
-    public static UsbDevice chameleonUSBDevice;
-    public static final Semaphore serialPortLock = new Semaphore(1, true);
+    /**** Handle the setup of the serial USB communications. The per-device connection state
+     **** lives in a ChameleonDeviceSession (one per attached board, see ChameleonDeviceRegistry);
+     **** the static command API below operates on the default session, which is the first
+     **** Chameleon found when the library is initialized: ****/
+    private static volatile ChameleonDeviceSession defaultDeviceSession;
     public static boolean usbReceiversRegistered = false;
-    private static boolean chameleonDeviceConfigured = false;
     public static final int USB_DATA_BITS = 16; // 8
     public static final int USB_BAUD_RATE = 256000; // 115200
 
-    public static enum SerialUSBStates {
-        IDLE,
-        PAUSED,
-        WAITING_FOR_RESPONSE,
-        EXPECTING_BINARY_DATA,
-        UPLOAD,
-        WAITING_FOR_XMODEM_UPLOAD,
-        DOWNLOAD,
-        WAITING_FOR_XMODEM_DOWNLOAD,
-        ERROR_OCCURED,
-        UNEXPECTED_INCOMING_RXDATA,
-    };
-
-    public static SerialUSBStates serialUSBState = IDLE;
-    public static int SERIAL_USB_COMMAND_TIMEOUT = 3000; // in milliseconds
-    public static byte[] serialUSBFullCommandResponse, serialUSBBinaryDataResponse;
-    public static ChameleonCommandResult parsedSerialUSBCmdResponse;
-    public static String LAST_CHAMELEON_CMD = "";
-
-    public static UsbSerialDevice configureSerialPort(UsbSerialInterface.UsbReadCallback readerCallback) {
-
-        if(serialPort != null) {
+    public static ChameleonDeviceSession getDefaultSession() {
+        return defaultDeviceSession;
+    }
+
+    /**
+     * Opens the serial USB connection to the passed Chameleon device and wraps it in a new
+     * (not yet registered) device session, whose property cache is filled right away.
+     * @param usbManager
+     * @param usbDevice
+     * @return the new session, or null if the device could not be opened.
+     */
+    public static ChameleonDeviceSession openSession(UsbManager usbManager, UsbDevice usbDevice) {
+        UsbSerialTransport serialTransport = UsbSerialTransport.open(usbManager, usbDevice);
+        if(serialTransport == null) {
+            return null;
+        }
+        ChameleonBoardType_t boardRev = getChameleonBoardRevision(usbDevice.getVendorId(), usbDevice.getProductId());
+        ChameleonDeviceSession session = new ChameleonDeviceSession(serialTransport, boardRev, UsbSerialTransport.getDeviceSerialNumber(usbDevice),
+                UsbSerialTransport.hasUSBSerialNumber(usbDevice));
+        if(!session.refreshDeviceProperties()) {
+            LibraryLogging.w(TAG, "Unable to read all of the device properties for " + session.getSerialNumber());
+        }
+        return session;
+    }
+
+    /**
+     * Opens (and registers) a session for every attached Chameleon device that does not
+     * already have a live session in the ChameleonDeviceRegistry.
+     * @return the number of registered sessions afterwards.
+     */
+    public static int openAllChameleonDevices() {
+        UsbManager usbManager = (UsbManager) mainApplicationActivity.getDefaultContext().getSystemService(Context.USB_SERVICE);
+        HashMap<String, UsbDevice> usbDevices = usbManager.getDeviceList();
+        if(usbDevices != null) {
+            for(UsbDevice device : usbDevices.values()) {
+                if(!UsbSerialTransport.isChameleonUSBDevice(device)) {
+                    continue;
+                }
+                ChameleonDeviceSession session = ChameleonDeviceRegistry.getSession(UsbSerialTransport.getDeviceSerialNumber(device));
+                if(session != null && session.isConfigured()) {
+                    continue;
+                }
+                session = openSession(usbManager, device);
+                if(session != null) {
+                    ChameleonDeviceRegistry.registerSession(session);
+                }
+            }
+        }
+        return ChameleonDeviceRegistry.getSessionCount();
+    }
+
+    private static UsbSerialTransport getUsbTransport(ChameleonDeviceSession session) {
+        SerialTransport serialTransport = session == null ? null : session.getSerialTransport();
+        return serialTransport instanceof UsbSerialTransport ? (UsbSerialTransport) serialTransport : null;
+    }
+
+    /**
+     * Opens the serial USB connection to the first attached Chameleon device and makes it the
+     * default session (any previous default session is closed first).
+     * @return the serial port of the new default session, or null if no device could be opened.
+     */
+    public static UsbSerialDevice configureSerialPort() {
+
+        if(defaultDeviceSession != null) {
             shutdownSerialConnection();
-            serialPort = null;
         }
 
         UsbManager usbManager = (UsbManager) mainApplicationActivity.getDefaultContext().getSystemService(Context.USB_SERVICE);
-        UsbDevice device = null;
-        UsbDeviceConnection connection = null;
         HashMap<String, UsbDevice> usbDevices = usbManager.getDeviceList();
         if(usbDevices != null && !usbDevices.isEmpty()) {
             for(Map.Entry<String, UsbDevice> entry : usbDevices.entrySet()) {
-                device = entry.getValue();
-                if(device == null)
+                UsbDevice device = entry.getValue();
+                if(!UsbSerialTransport.isChameleonUSBDevice(device)) {
                     continue;
-                int deviceVID = device.getVendorId();
-                int devicePID = device.getProductId();
-                if(deviceVID == CMUSB_REVG_VENDORID && devicePID == CMUSB_REVG_PRODUCTID) {
-                    connection = usbManager.openDevice(device);
-                    localChameleonBoardRev = getChameleonBoardRevision(deviceVID, devicePID);
-                    break;
                 }
-                else if(deviceVID == CMUSB_REVE_VENDORID && devicePID == CMUSB_REVE_PRODUCTID) {
-                    connection = usbManager.openDevice(device);
-                    localChameleonBoardRev = getChameleonBoardRevision(deviceVID, devicePID);
+                ChameleonDeviceSession session = ChameleonDeviceRegistry.getSession(UsbSerialTransport.getDeviceSerialNumber(device));
+                if(session == null || !session.isConfigured()) {
+                    session = openSession(usbManager, device);
+                }
+                if(session != null) {
+                    ChameleonDeviceRegistry.registerSession(session);
+                    defaultDeviceSession = session;
                     break;
                 }
             }
         }
-        if(device == null || connection == null) {
+        if(defaultDeviceSession == null) {
             LibraryLogging.e(TAG, "USB STATUS: Connection to device unavailable.");
-            serialPort = null;
-            return serialPort;
-        }
-        else {
-            PendingIntent permIntent = PendingIntent.getBroadcast(mainApplicationActivity.getDefaultContext(), 0, new Intent("com.android.example.USB_PERMISSION"), 0);
-            usbManager.requestPermission(device, permIntent);
-            if(!usbManager.hasPermission(device)) {
-                LibraryLogging.w(TAG, "ChameleonMiniUSB library does not have permission to access the USB device!");
-                serialPort = null;
-                return serialPort;
-            }
-            chameleonUSBDevice = device;
-        }
-        serialPort = UsbSerialDevice.createUsbSerialDevice(device, connection);
-        if(serialPort != null && serialPort.open()) {
-            serialPort.setBaudRate(USB_BAUD_RATE); // 115200
-            serialPort.setDataBits(USB_DATA_BITS); // slight optimization from UsbSerialInterface.DATA_BITS_8? ... yes, better
-            serialPort.setStopBits(UsbSerialInterface.STOP_BITS_1);
-            serialPort.setParity(UsbSerialInterface.PARITY_NONE);
-            serialPort.setFlowControl(UsbSerialInterface.FLOW_CONTROL_OFF);
-            serialPort.read(readerCallback);
+            return null;
         }
         usbReceiversRegistered = true;
-        chameleonDeviceConfigured = true;
-        return serialPort;
+        UsbSerialTransport usbTransport = getUsbTransport(defaultDeviceSession);
+        return usbTransport == null ? null : usbTransport.getSerialPort();
 
     }
 
     public static boolean shutdownSerialConnection() {
-        if(serialPort != null) {
-            serialPort.close();
-            serialPort = null;
+        if(defaultDeviceSession != null) {
+            ChameleonDeviceRegistry.unregisterSession(defaultDeviceSession);
+            defaultDeviceSession.close();
+            defaultDeviceSession = null;
         }
-        chameleonDeviceConfigured = false;
-        serialUSBState = IDLE;
-        XModem.EOT = true;
         return true;
 
     }
 
-    /**
-     * Sets up the handling of the serial data responses received from the device
-     * (command responses and spontaneous LIVE log data).
-     */
-    public static UsbSerialInterface.UsbReadCallback usbReaderCallback = new UsbSerialInterface.UsbReadCallback() {
-
-        @Override
-        public void onReceivedData(byte[] liveRxData) {
-
-            // typically generate logs of the bytes in human-readable format for parsing and/or verifying in realtime:
-            String hexDataStr = Utils.trimString(Utils.byteArrayToString(liveRxData), 48);
-            String asciiDataStr = Utils.trimString(Utils.bytes2Ascii(liveRxData), 48);
-            String summaryByteStr = String.format(Locale.ENGLISH, "[%s]\n[%s]",
-                    hexDataStr.length() == 0 ? "NO-DATA" : hexDataStr,
-                    asciiDataStr.length() == 0 ? "NO-DATA" : asciiDataStr);
-            if(serialUSBState.compareTo(WAITING_FOR_RESPONSE) == 0 || serialUSBState.compareTo(EXPECTING_BINARY_DATA) == 0) {
-                summaryByteStr = "ISSUING CMD: \"" + LAST_CHAMELEON_CMD + "\"\n" + summaryByteStr;
-            }
-            else {
-                summaryByteStr = "SERIAL USB STATE: \"" + serialUSBState.name() + "\"\n" + summaryByteStr;
-            }
-            final String summaryPrintStr = summaryByteStr;
-            mainApplicationActivity.getRunOnUiThreadHandler(new Runnable() {
-                public void run() {
-                    LibraryLogging.v(TAG, summaryPrintStr);
-                }
-            });
-
-            if(liveRxData.length == 0) {
-                return;
-            }
-            else if(serialUSBState.compareTo(PAUSED) == 0) {
-                return;
-            }
-            else if(serialUSBState.compareTo(DOWNLOAD) == 0) {
-                XModem.performXModemSerialDownload(liveRxData);
-                return;
-            }
-            else if(serialUSBState.compareTo(UPLOAD) == 0) {
-                XModem.performXModemSerialUpload(liveRxData);
-                return;
-            }
-            else if(serialUSBState.compareTo(WAITING_FOR_XMODEM_UPLOAD) == 0) {
-                String strLogData = new String(liveRxData);
-                if(strLogData.length() >= 11 && strLogData.substring(0, 11).equals("110:WAITING")) {
-                    LibraryLogging.d(TAG, "Now ready to upload card data -> STATE:UPLOAD.");
-                    serialUSBState = UPLOAD;
-                    serialPort.write(new byte[]{BYTE_NAK});
-                    XModem.eotSleepHandler.postDelayed(XModem.eotSleepRunnable, 50);
-                    return;
-                }
-            }
-            else if(serialUSBState.compareTo(WAITING_FOR_XMODEM_DOWNLOAD) == 0) {
-                String strLogData = new String(liveRxData);
-                if(strLogData.length() >= 11 && strLogData.substring(0, 11).equals("110:WAITING")) {
-                    serialUSBState = DOWNLOAD;
-                    serialPort.write(new byte[]{BYTE_NAK});
-                    XModem.eotSleepHandler.postDelayed(XModem.eotSleepRunnable, 50);
-                    return;
-                }
-            }
-            else if(serialUSBState.compareTo(WAITING_FOR_RESPONSE) == 0 || serialUSBState.compareTo(EXPECTING_BINARY_DATA) == 0) {
-                serialUSBFullCommandResponse = liveRxData;
-                ChameleonCommandResult parsedCmdResult = new ChameleonCommandResult();
-                parsedCmdResult.processCommandResponse(liveRxData);
-                parsedSerialUSBCmdResponse = parsedCmdResult;
-                int binaryBufSize = liveRxData.length - parsedCmdResult.cmdResponseMsg.length() - 2;
-                if(binaryBufSize > 0) {
-                    serialUSBBinaryDataResponse = new byte[binaryBufSize];
-                    System.arraycopy(liveRxData, liveRxData.length - binaryBufSize, serialUSBBinaryDataResponse, 0, binaryBufSize);
-                }
-                else {
-                    serialUSBBinaryDataResponse = null;
-                }
-                serialUSBState = IDLE;
-            }
-            else {
-                LibraryLogging.e(TAG, "UNEXPECTED_RXDATA: [" + Utils.byteArrayToString(liveRxData) + "] (Current State = " + serialUSBState.name() + ")");
-            }
-        }
-    };
-
     /**
      * We seek to generate an exhaustive list of properties and settings for the attached
      * Chameleon device for verbose debugging and error-checking purposes:
      */
     public static String[] getChameleonMiniUSBDeviceParams() {
-        if(chameleonUSBDevice == null) {
+        if(defaultDeviceSession == null) {
             LibraryLogging.w(TAG, "The chameleon UsbDevice is NULL!");
             return new String[] { "CHAMELEON USBDEVICE STRUCT IS NULL!" };
         }
-        else if(!THE_CHAMELEON_DEVICE.isConfigured()) {
-            LibraryLogging.i(TAG, "The chameleon UsbDevice is NULL!");
+        UsbSerialTransport usbTransport = getUsbTransport(defaultDeviceSession);
+        if(usbTransport == null) {
             return new String[] { "CHAMELEON DEVICE NOT CONFIGURED!" };
         }
-        return new String[] {
+        UsbDevice chameleonUSBDevice = usbTransport.getUsbDevice();
+        List<String> deviceParams = new ArrayList<String>(Arrays.asList(
                 "USB Vendor ID: " + chameleonUSBDevice.getVendorId(),
                 "USB Product ID: " + chameleonUSBDevice.getProductId(),
                 "USB Manufacturer: " + chameleonUSBDevice.getManufacturerName(),
                 "USB Product Name: " + chameleonUSBDevice.getProductName(),
                 "USB Serial Number: " + chameleonUSBDevice.getSerialNumber(),
-                "USB Version: " + chameleonUSBDevice.getVersion(),
-                "SUSB Version:" + sendCommandToChameleon(GET_VERSION, null).cmdResponseData,
-                "SUSB Config: " + sendCommandToChameleon(QUERY_CONFIG, null).cmdResponseData,
-                "SUSB UID: " + sendCommandToChameleon(QUERY_UID, null).cmdResponseData,
-                "SUSB Readonly: " + sendCommandToChameleon(QUERY_READONLY, null).cmdResponseData,
-                "SUSB MemSize: " + sendCommandToChameleon(GET_MEMORY_SIZE, null).cmdResponseData,
-                "SUSB UIDSize: " + sendCommandToChameleon(GET_UID_SIZE, null).cmdResponseData,
-                "SUSB ActiveSlot: " + sendCommandToChameleon(GET_ACTIVE_SLOT, null).cmdResponseData,
-                "SUSB RSSI: " + sendCommandToChameleon(GET_RSSI_VOLTAGE, null).cmdResponseData,
-        };
+                "USB Version: " + chameleonUSBDevice.getVersion()
+        ));
+        deviceParams.addAll(Arrays.asList(defaultDeviceSession.getChameleonMiniDeviceParams()));
+        return deviceParams.toArray(new String[deviceParams.size()]);
     }
 
-    /**** Handle actual communicating with the Chameleon Mini over serial USB. This includes
-     **** providing an easy-to-use mechanism for translating between the RevE versus RevG
-     **** variants of the common RevE command set. ****/
+    /**
+     * The observed command round trip times and the adaptive timeouts derived from them
+     * for the default device (one line per command issued so far).
+     * @ref CommandTimingStats
+     */
+    public static String[] getCommandTimingEstimates() {
+        if(defaultDeviceSession == null) {
+            return new String[0];
+        }
+        return defaultDeviceSession.getCommandTimingStats().getEstimateSummary();
+    }
 
+    /**
+     * The XModem transfer stats (NAKs per frame, failures, throughput, ACK latency) of every
+     * board seen so far (one line per device).
+     * @ref XModemDeviceStats
+     */
+    public static String[] getXModemTransferStats() {
+        return XModemDeviceStats.getFleetSummary();
+    }
+
+    /**** Handle actual communicating with the Chameleon Mini over serial USB (on the default
+     **** device session). ****/
+
+    /**
+     * @deprecated without acquireSerialPortLock the command fails: a caller which already holds
+     *             the port passes its PortLease to ChameleonDeviceSession.sendRawStringToChameleon.
+     */
+    @Deprecated
     public static ChameleonCommandResult sendRawStringToChameleon(String cmdString, boolean acquireSerialPortLock) {
-        ChameleonCommandResult cmdResult = new ChameleonCommands.ChameleonCommandResult();
-        if(acquireSerialPortLock) {
-            try {
-                if(!serialPortLock.tryAcquire(SERIAL_USB_COMMAND_TIMEOUT, TimeUnit.MILLISECONDS)) {
-                    return cmdResult;
-                }
-            } catch (InterruptedException ie) {
-                return cmdResult;
-            }
-        }
-        LAST_CHAMELEON_CMD = cmdString;
         if(!chameleonDeviceIsConfigured()) {
             LibraryLogging.e(TAG, "Chameleon device not configured for command \"" + cmdString + "\"");
             return null;
         }
-        cmdResult.issuingCmd = cmdString;
-        cmdString += (isRevisionEDevice() ? "\r\n" : "\n\r");
-        byte[] sendBuf = cmdString.getBytes(StandardCharsets.UTF_8);
-        SerialUSBStates nextSerialUSBState = WAITING_FOR_RESPONSE;
-        if(cmdResult.issuingCmd.length() >= 6 && cmdResult.issuingCmd.substring(0, 6).equalsIgnoreCase("upload")) {
-            nextSerialUSBState = WAITING_FOR_XMODEM_UPLOAD;
-        }
-        else if(cmdResult.issuingCmd.length() >= 8 && cmdResult.issuingCmd.substring(0, 8).equalsIgnoreCase("download")) {
-            nextSerialUSBState = WAITING_FOR_XMODEM_DOWNLOAD;
-        }
-        serialUSBState = nextSerialUSBState;
-        serialPort.write(sendBuf);
-        for(int i = 0; i < SERIAL_USB_COMMAND_TIMEOUT / 50; i++) {
-            if(serialUSBState != nextSerialUSBState)
-                break;
-            try {
-                Thread.sleep(50);
-            } catch(InterruptedException ie) {
-                break;
-            }
-        }
-        if(serialUSBState == nextSerialUSBState) {
-            LibraryLogging.e(TAG, "Unable to get response for command: \"" + cmdResult.issuingCmd + "\"");
-            serialUSBState = IDLE;
-            cmdResult.isValid = false;
-            serialPortLock.release();
-            return cmdResult;
-        }
-        cmdResult.processCommandResponse(serialUSBFullCommandResponse);
-        if(acquireSerialPortLock)
-            serialPortLock.release();
-        return cmdResult;
+        return defaultDeviceSession.sendRawStringToChameleon(cmdString, acquireSerialPortLock);
     }
 
     public static ChameleonCommandResult sendRawStringToChameleon(String cmdString) {
-        return sendRawStringToChameleon(cmdString, true);
+        if(!chameleonDeviceIsConfigured()) {
+            LibraryLogging.e(TAG, "Chameleon device not configured for command \"" + cmdString + "\"");
+            return null;
+        }
+        return defaultDeviceSession.sendRawStringToChameleon(cmdString);
     }
 
+    /**
+     * @deprecated without acquireSerialPortLock the command fails: a caller which already holds
+     *             the port passes its PortLease to ChameleonDeviceSession.sendCommandToChameleon.
+     */
+    @Deprecated
     public static <CmdArgType> ChameleonCommandResult sendCommandToChameleon(StandardCommandSet cmd, CmdArgType cmdArg, boolean acquireSerialPortLock) {
-        int RevEGBoardIndex = isRevisionEDevice() ? 0 : 1;
-        String cmdFormatStr = ChameleonCommands.getCommandFormatString(cmd)[RevEGBoardIndex];
-        String fullCmdStr = String.format(Locale.ENGLISH, cmdFormatStr, cmdArg);
-        return sendRawStringToChameleon(fullCmdStr, acquireSerialPortLock);
+        if(!chameleonDeviceIsConfigured()) {
+            LibraryLogging.e(TAG, "Chameleon device not configured for command " + cmd.name());
+            return null;
+        }
+        return defaultDeviceSession.sendCommandToChameleon(cmd, cmdArg, acquireSerialPortLock);
     }
 
     public static <CmdArgType> ChameleonCommandResult sendCommandToChameleon(StandardCommandSet cmd, CmdArgType cmdArg) {
-        return sendCommandToChameleon(cmd, cmdArg, true);
+        if(!chameleonDeviceIsConfigured()) {
+            LibraryLogging.e(TAG, "Chameleon device not configured for command " + cmd.name());
+            return null;
+        }
+        return defaultDeviceSession.sendCommandToChameleon(cmd, cmdArg);
     }
 
-    /**** Chameleon Board UID configuration and real-time / live setting functions ****/
-    public static byte[] chameleonUIDPrefixBytes = Utils.byteArrayFromString("BC5926C8");
-    public static int chameleonUIDNumBytes = 8;
-
-    public static enum ChameleonUIDTypeSpec_t {
-        TRULY_RANDOM,
-        PREFIXED_RANDOMIZED,
-        INCREMENT_EXISTING,
-        SPECIFY_SUFFIX_BYTES,
-    };
+    /**
+     * Issues a pipelined batch of commands to the default Chameleon device.
+     * @ref ChameleonDeviceSession.sendCommandsToChameleon
+     */
+    public static List<ChameleonCommandResult> sendCommandsToChameleon(List<StandardCommandSet> cmds, List<?> cmdArgs) {
+        if(!chameleonDeviceIsConfigured()) {
+            LibraryLogging.e(TAG, "Chameleon device not configured for batch commands.");
+            return null;
+        }
+        return defaultDeviceSession.sendCommandsToChameleon(cmds, cmdArgs);
+    }
 
     public static boolean changeChameleonUID(ChameleonUIDTypeSpec_t uidOperation, String suffixBytes) {
-
         if(!chameleonDeviceIsConfigured()) {
             return false;
         }
-        else if(uidOperation == ChameleonUIDTypeSpec_t.SPECIFY_SUFFIX_BYTES && suffixBytes == null) {
-            return false;
-        }
-        try {
-            chameleonUIDNumBytes = Integer.parseInt(sendCommandToChameleon(GET_UID_SIZE, null).cmdResponseData);
-        } catch(Exception nfe) {}
-        if(uidOperation == ChameleonUIDTypeSpec_t.SPECIFY_SUFFIX_BYTES &&
-                chameleonUIDNumBytes != chameleonUIDPrefixBytes.length + suffixBytes.length() / 2) {
-            return false;
-        }
-
-        byte[] nextUIDBytes = new byte[chameleonUIDNumBytes];
-        if(uidOperation == ChameleonUIDTypeSpec_t.INCREMENT_EXISTING) {
-            String priorUIDString = sendCommandToChameleon(QUERY_UID, null).cmdResponseData;
-            if(priorUIDString == null) {
-                return false;
-            }
-            byte[] priorBytes = Utils.byteArrayFromString(priorUIDString);
-            boolean searchingForNoCarry = true;
-            for(int b = priorBytes.length - 1; b >= 0; b--) {
-                byte lsb = priorBytes[b];
-                if(lsb == BYTE(0xff))
-                    continue;
-                priorBytes[b] = BYTE(lsb + BYTE(0x01));
-                searchingForNoCarry = false;
-            }
-            if(searchingForNoCarry) {
-                Arrays.fill(priorBytes, BYTE(0x00));
-            }
-            nextUIDBytes = priorBytes;
-        }
-        else if(uidOperation == ChameleonUIDTypeSpec_t.TRULY_RANDOM) {
-            nextUIDBytes = Utils.generateRandomBytes(chameleonUIDNumBytes);
-        }
-        else if(uidOperation == ChameleonUIDTypeSpec_t.PREFIXED_RANDOMIZED) {
-            nextUIDBytes = Utils.generateRandomBytes(chameleonUIDPrefixBytes, chameleonUIDNumBytes - chameleonUIDPrefixBytes.length);
-        }
-
-        String uidTextString = Utils.byteArrayToString(nextUIDBytes);
-        ChameleonCommandResult uidSetCmdResult = sendCommandToChameleon(SET_UID, uidTextString);
-        LibraryLogging.i(TAG, "UID Reset to:\n" + uidSetCmdResult.toString());
-        return true;
-
-    }
-
-    /**** NFC Tag Types that the Chameleon Boards can emulate (all may not be enabled by
-     **** default in the standard compile of the firmware...):
-     ****/
-
-    /**
-     * All possible emulated tag configurations that can be enabled in the RevE Rebooted source.
-     * @ref https://github.com/iceman1001/ChameleonMini-rebooted/blob/master/Firmware/Chameleon-Mini/Configuration.h
-     * @since 2018.08.08 (last access date of the RevE firmware source)
-     */
-    public static enum ChameleonEmulatedConfigType_t {
-        NONE,
-        MF_ULTRALIGHT,
-        MF_ULTRALIGHT_EV1_80B,
-        MF_ULTRALIGHT_EV1_164B,
-        MF_CLASSIC_1K,
-        MF_CLASSIC_1K_7B,
-        MF_CLASSIC_4K,
-        MF_CLASSIC_4K_7B,
-        MF_DETECTION,
-        ISO15693_GEN,
-        ISO14443A_SNIFF,
-        ISO14443A_READER,
-        ISO15693_SNIFF,
-        COUNT, // NOT an actual configuration, just here for convenience
+        return defaultDeviceSession.changeChameleonUID(uidOperation, suffixBytes);
     }
 
     /**** ChameleonUSBInterface implementation: ****/
@@ -512,6 +313,19 @@ public class ChameleonDeviceConfig implements ChameleonUSBInterface {
         LibraryLogging.localLoggingLevel = localLoggingLevel;
         THE_CHAMELEON_DEVICE = this;
 
+        // route the logs and completed downloads from the protocol core back through Android:
+        ProtocolLogging.setLogSink(LibraryLogging.PROTOCOL_LOG_SINK);
+        XModem.setDownloadListener(new XModem.DownloadListener() {
+            public void onDownloadComplete(File downloadFile) {
+                DownloadManager downloadManager = (DownloadManager) mainApplicationActivity.getDefaultContext().getSystemService(Context.DOWNLOAD_SERVICE);
+                downloadManager.addCompletedDownload(downloadFile.getName(), downloadFile.getName(), true, "application/octet-stream",
+                        downloadFile.getAbsolutePath(), downloadFile.length(), true);
+            }
+        });
+
+        // keep the slot digest records (to skip redundant uploads) across restarts of the app:
+        ChameleonSlotDigestCache.setStorageDirectory(new File(mainApplicationActivity.getDefaultContext().getFilesDir(), "slotdigests"));
+
         // permissions we will need to run the service (and in general):
         String[] permissions = {
                 "android.permission.READ_EXTERNAL_STORAGE",
@@ -522,7 +336,7 @@ public class ChameleonDeviceConfig implements ChameleonUSBInterface {
         mainApplicationActivity.getRequestPermissionsHandler(permissions, 0);
 
         // setup the serial port (if possible):
-        serialPort = configureSerialPort(usbReaderCallback);
+        configureSerialPort();
 
         return true;
 
@@ -535,7 +349,7 @@ public class ChameleonDeviceConfig implements ChameleonUSBInterface {
         String intentAction = intent.getAction();
         if(intentAction.equals("ACTION_USB_DEVICE_ATTACHED")) {
             shutdownSerialConnection();
-            serialPort = configureSerialPort(usbReaderCallback);
+            configureSerialPort();
         }
         else if(intentAction.equals("ACTION_USB_DEVICE_DETACHED")) {
             shutdownSerialConnection();
@@ -544,6 +358,7 @@ public class ChameleonDeviceConfig implements ChameleonUSBInterface {
 
     public boolean chameleonUSBInterfaceShutdown() {
         shutdownSerialConnection();
+        ChameleonDeviceRegistry.closeAllSessions();
         if(LibraryLogging.writeLogsToFileOnShutdown) {
             LibraryLogging.LogEntry.writeLogsToXMLFile();
             LibraryLogging.LogEntry.writeLogsToPlainTextFile();
@@ -554,147 +369,99 @@ public class ChameleonDeviceConfig implements ChameleonUSBInterface {
 
     public boolean chameleonPresent() {
         shutdownSerialConnection();
-        serialPort = configureSerialPort(usbReaderCallback);
-        return serialPort != null && chameleonDeviceConfigured;
+        configureSerialPort();
+        return chameleonDeviceIsConfigured();
     }
 
     public boolean chameleonPresent(ChameleonBoardType_t expectedRevType) {
-        return chameleonPresent() && expectedRevType == localChameleonBoardRev;
+        return chameleonPresent() && expectedRevType == getChameleonBoardType();
     }
 
     public boolean prepareChameleonEmulationSlot(@IntRange(from=1,to=8) int slotNumber, boolean clearSlot) {
-        ChameleonCommandResult setSlotResult = sendCommandToChameleon(SET_ACTIVE_SLOT, slotNumber);
-        if(clearSlot) {
-            ChameleonCommandResult clearSlotResult = sendCommandToChameleon(CLEAR_ACTIVE_SLOT, null);
-            return setSlotResult.isValid && clearSlotResult.isValid;
-        }
-        return setSlotResult.isValid;
+        return chameleonDeviceIsConfigured() && defaultDeviceSession.prepareChameleonEmulationSlot(slotNumber, clearSlot, null);
     }
 
     public boolean prepareChameleonEmulationSlot(@IntRange(from=1,to=8) int slotNumber, boolean clearSlot,
                                                  ChameleonEmulatedConfigType_t chameleonConfigType) {
-        boolean slotOpSuccess = prepareChameleonEmulationSlot(slotNumber, clearSlot);
-        ChameleonCommandResult setConfigResult = sendCommandToChameleon(SET_CONFIG, chameleonConfigType.name());
-        return slotOpSuccess && setConfigResult.isValid;
-    }
-
-    private boolean executeChameleonUpload() {
-        while(!XModem.EOT) {
-            try {
-                Thread.sleep(2 * SHORT_PAUSE);
-            } catch(InterruptedException ie) {
-                break;
-            }
-        }
-        try {
-            Thread.sleep(MEDIUM_PAUSE);
-        } catch(InterruptedException ie) {}
-        if(XModem.uploadUseInputStream() && ChameleonDeviceConfig.THE_CHAMELEON_DEVICE.verifyChameleonUpload(XModem.getUploadInputStream())) {
-            return true;
-        }
-        else if(!XModem.uploadUseInputStream() && ChameleonDeviceConfig.THE_CHAMELEON_DEVICE.verifyChameleonUpload(XModem.getUploadByteStream())) {
-            return true;
-        }
-        else {
-            return false;
-        }
+        return chameleonDeviceIsConfigured() && defaultDeviceSession.prepareChameleonEmulationSlot(slotNumber, clearSlot, chameleonConfigType);
     }
 
     public boolean chameleonUpload(InputStream dumpDataStream) {
-        XModem.uploadCardFileByXModem(dumpDataStream);
-        return executeChameleonUpload();
+        return chameleonDeviceIsConfigured() && defaultDeviceSession.chameleonUpload(dumpDataStream);
     }
 
     public boolean chameleonUpload(byte[] dumpDataBytes) {
-        XModem.uploadCardFileByXModem(dumpDataBytes);
-        return executeChameleonUpload();
+        return chameleonDeviceIsConfigured() && defaultDeviceSession.chameleonUpload(dumpDataBytes);
     }
 
-    private int getChameleonUIDSize() {
-        int uidSize = 4;
-        try {
-            uidSize = Integer.parseInt(sendCommandToChameleon(GET_UID_SIZE, null).cmdResponseData);
-        } catch(NumberFormatException nfe) {
-            uidSize = 4;
-        }
-        return uidSize;
+    /**
+     * @return the verification report of the upload, or null if no device is configured.
+     * @ref ChameleonDeviceSession.chameleonUploadAndVerify
+     */
+    public UploadVerificationReport chameleonUploadAndVerify(InputStream dumpDataStream, boolean readBack) {
+        return chameleonDeviceIsConfigured() ? defaultDeviceSession.chameleonUploadAndVerify(dumpDataStream, readBack) : null;
     }
 
-    private byte[] getCardSourceUIDBytes(InputStream dumpInputStream, int uidByteSize) {
-        if(dumpInputStream == null || uidByteSize <= 0) {
-            return null;
-        }
-        try {
-            dumpInputStream.reset();
-            if(dumpInputStream.available() < uidByteSize) {
-                return null;
-            }
-            byte[] uidBytes = new byte[uidByteSize];
-            dumpInputStream.read(uidBytes, 0, uidByteSize);
-            return uidBytes;
-        } catch(IOException ioe) {
-            LibraryLogging.e(TAG, ioe.getMessage());
-            ioe.printStackTrace();
-            return null;
-        }
+    public UploadVerificationReport chameleonUploadAndVerify(byte[] dumpDataBytes, boolean readBack) {
+        return chameleonDeviceIsConfigured() ? defaultDeviceSession.chameleonUploadAndVerify(dumpDataBytes, readBack) : null;
     }
 
-    private byte[] getCardSourceUIDBytes(byte[] dumpInputBytes, int uidByteSize) {
-        if(dumpInputBytes == null || uidByteSize <= 0 || dumpInputBytes.length < uidByteSize) {
-            return null;
-        }
-        byte[] uidBytes = new byte[uidByteSize];
-        System.arraycopy(dumpInputBytes, 0, uidBytes, 0, uidByteSize);
-        return uidBytes;
+    /**
+     * @return the verification report of the upload, or null if no device is configured.
+     * @ref ChameleonDeviceSession.chameleonUploadToSlot
+     */
+    public UploadVerificationReport chameleonUploadToSlot(int slotNumber, ChameleonEmulatedConfigType_t chameleonConfigType,
+                                                          byte[] dumpDataBytes, boolean readBack) {
+        return chameleonDeviceIsConfigured() ? defaultDeviceSession.chameleonUploadToSlot(slotNumber, chameleonConfigType, dumpDataBytes, readBack) : null;
     }
 
-    private boolean diffChameleonUIDBytes(byte[] actualUIDBytes) {
-        try {
-            String actualUIDStr = Utils.byteArrayToString(actualUIDBytes).replace(" ", "");
-            String reportedUIDStr = sendCommandToChameleon(QUERY_UID, null).cmdResponseData;
-            if(actualUIDStr.equalsIgnoreCase(reportedUIDStr)) {
-                return true;
-            }
-        } catch(Exception ioe) {
-            LibraryLogging.e(TAG, "Unable to verify card upload: " + ioe.getMessage());
-            ioe.printStackTrace();
-        }
-        return false;
+    /**
+     * @return the provisioning report, or null if no device is configured.
+     * @ref ChameleonDeviceSession.provisionSlots
+     */
+    public ChameleonProvisioningBatch.Report provisionSlots(List<ChameleonProvisioningBatch.SlotImage> slotImages, boolean readBack,
+                                                           ChameleonProvisioningBatch.ProgressListener progressListener) {
+        return chameleonDeviceIsConfigured() ? defaultDeviceSession.provisionSlots(slotImages, readBack, progressListener) : null;
     }
 
-    private boolean verifyChameleonUpload(InputStream dumpInputStream) {
-        byte[] uidBytes = getCardSourceUIDBytes(dumpInputStream, getChameleonUIDSize());
-        return diffChameleonUIDBytes(uidBytes);
+    public boolean chameleonDownload(File cardOutFile) {
+        return chameleonDeviceIsConfigured() && defaultDeviceSession.chameleonDownload(cardOutFile);
     }
 
-    private boolean verifyChameleonUpload(byte[] dumpInputBytes) {
-        byte[] uidBytes = getCardSourceUIDBytes(dumpInputBytes, getChameleonUIDSize());
-        return diffChameleonUIDBytes(uidBytes);
+    public boolean chameleonDownload(File cardOutFile, boolean registerDownload) {
+        return chameleonDeviceIsConfigured() && defaultDeviceSession.chameleonDownload(cardOutFile, registerDownload);
     }
 
-    public boolean chameleonDownload(File cardOutFile) {
-        XModem.downloadCardFileByXModem(cardOutFile);
-        while(!XModem.EOT) {
-            try {
-                Thread.sleep(2 * SHORT_PAUSE);
-            } catch(InterruptedException ie) {
-                break;
-            }
-        }
-        try {
-            Thread.sleep(MEDIUM_PAUSE);
-        } catch(InterruptedException ie) {}
-        if(!XModem.transmissionError()) {
-            return true;
-        }
-        else {
-            return false;
-        }
+    public ByteBuffer chameleonDownloadToMemory() {
+        return chameleonDeviceIsConfigured() ? defaultDeviceSession.chameleonDownloadToMemory() : null;
     }
 
     public boolean chameleonUploadEncrypted(byte[] dumpDataBytes, int keyIndex, long timeStampSaltData) {
-        XModem.uploadEncryptedCardFileByXModem(dumpDataBytes, keyIndex, timeStampSaltData);
-        return executeChameleonUpload();
+        return chameleonDeviceIsConfigured() && defaultDeviceSession.chameleonUploadEncrypted(dumpDataBytes, keyIndex, timeStampSaltData);
+    }
+
+    public boolean chameleonUploadAndEncrypt(InputStream plainDataStream, int keyIndex, long timeStampSaltData) {
+        return chameleonDeviceIsConfigured() && defaultDeviceSession.chameleonUploadAndEncrypt(plainDataStream, keyIndex, timeStampSaltData);
+    }
+
+    public boolean chameleonUploadAndEncrypt(byte[] plainDataBytes, int keyIndex, long timeStampSaltData) {
+        return chameleonDeviceIsConfigured() && defaultDeviceSession.chameleonUploadAndEncrypt(plainDataBytes, keyIndex, timeStampSaltData);
+    }
+
+    /**
+     * Remembers the key data stored on the board at keyIndex for chameleonUploadAndEncrypt.
+     * @param keyIndex
+     * @param keyDataHex
+     */
+    private void storeUploadKey(int keyIndex, String keyDataHex) {
+        if(defaultDeviceSession == null || keyDataHex == null) {
+            return;
+        }
+        try {
+            defaultDeviceSession.getUploadCipherCache().setKey(keyIndex, Utils.byteArrayFromString(keyDataHex.replace(" ", "").trim()));
+        } catch(IllegalArgumentException iae) {
+            LibraryLogging.w(TAG, "Not keeping a copy of key #" + keyIndex + ": " + iae.getMessage());
+        }
     }
 
     public boolean authenticateToChangeKeyData(String authPassphrase, int numChangesAllowed) {
@@ -710,9 +477,13 @@ public class ChameleonDeviceConfig implements ChameleonUSBInterface {
     public boolean updateKeyData(int keyIndex, String keyData) {
         String cmdArgsString = String.format(Locale.ENGLISH, "%d %s", keyIndex, keyData);
         int cmdSuccessCode = sendCommandToChameleon(StandardCommandSet.SETKEY, cmdArgsString).cmdResponseCode;
-        return cmdSuccessCode == ChameleonCommands.SerialRespCode.OK.toInteger() ||
+        boolean keyUpdated = cmdSuccessCode == ChameleonCommands.SerialRespCode.OK.toInteger() ||
                 cmdSuccessCode == ChameleonCommands.SerialRespCode.OK_WITH_TEXT.toInteger() ||
                 cmdSuccessCode == ChameleonCommands.SerialRespCode.TRUE.toInteger();
+        if(keyUpdated) {
+            storeUploadKey(keyIndex, keyData);
+        }
+        return keyUpdated;
     }
 
     public boolean updateKeyData(int keyIndex, byte[] keyData) {
@@ -724,11 +495,162 @@ public class ChameleonDeviceConfig implements ChameleonUSBInterface {
         String cmdArgsString = String.format(Locale.ENGLISH, "%d %s", keyIndex, initPassphrase);
         ChameleonCommandResult cmdSuccessCode = sendCommandToChameleon(StandardCommandSet.GENKEY, cmdArgsString);
         if(cmdSuccessCode.cmdResponseCode == ChameleonCommands.SerialRespCode.OK_WITH_TEXT.toInteger()) {
+            storeUploadKey(keyIndex, cmdSuccessCode.cmdResponseData);
             return cmdSuccessCode.cmdResponseData;
         }
         return null;
 
     }
 
-}
+    /**** ChameleonUSBAsyncInterface implementation (queued on the default session): ****/
+
+    private static <T> ChameleonFuture<T> submitAsync(Callable<T> asyncOperation) {
+        ChameleonDeviceSession session = defaultDeviceSession;
+        if(session == null || !chameleonDeviceIsConfigured()) {
+            ChameleonFuture<T> failedResult = new ChameleonFuture<T>(new Callable<T>() {
+                public T call() {
+                    throw new IllegalStateException("Chameleon device not configured.");
+                }
+            });
+            failedResult.run();
+            return failedResult;
+        }
+        return session.submitAsync(asyncOperation);
+    }
+
+    public ChameleonFuture<ChameleonCommandResult> sendCommandToChameleonAsync(final StandardCommandSet cmd, final Object cmdArg) {
+        return submitAsync(new Callable<ChameleonCommandResult>() {
+            public ChameleonCommandResult call() {
+                return sendCommandToChameleon(cmd, cmdArg);
+            }
+        });
+    }
+
+    public ChameleonFuture<List<ChameleonCommandResult>> sendCommandsToChameleonAsync(final List<StandardCommandSet> cmds, final List<?> cmdArgs) {
+        return submitAsync(new Callable<List<ChameleonCommandResult>>() {
+            public List<ChameleonCommandResult> call() {
+                return sendCommandsToChameleon(cmds, cmdArgs);
+            }
+        });
+    }
+
+    public ChameleonFuture<Boolean> prepareChameleonEmulationSlotAsync(@IntRange(from=1,to=8) int slotNumber, boolean clearSlot) {
+        return prepareChameleonEmulationSlotAsync(slotNumber, clearSlot, null);
+    }
+
+    public ChameleonFuture<Boolean> prepareChameleonEmulationSlotAsync(@IntRange(from=1,to=8) final int slotNumber, final boolean clearSlot,
+                                                                       final ChameleonEmulatedConfigType_t chameleonConfigType) {
+        return submitAsync(new Callable<Boolean>() {
+            public Boolean call() {
+                return prepareChameleonEmulationSlot(slotNumber, clearSlot, chameleonConfigType);
+            }
+        });
+    }
+
+    public ChameleonFuture<Boolean> chameleonUploadAsync(final InputStream dumpDataStream) {
+        return submitAsync(new Callable<Boolean>() {
+            public Boolean call() {
+                return chameleonUpload(dumpDataStream);
+            }
+        });
+    }
+
+    public ChameleonFuture<Boolean> chameleonUploadAsync(final byte[] dumpDataBytes) {
+        return submitAsync(new Callable<Boolean>() {
+            public Boolean call() {
+                return chameleonUpload(dumpDataBytes);
+            }
+        });
+    }
+
+    public ChameleonFuture<UploadVerificationReport> chameleonUploadAndVerifyAsync(final InputStream dumpDataStream, final boolean readBack) {
+        return submitAsync(new Callable<UploadVerificationReport>() {
+            public UploadVerificationReport call() {
+                return chameleonUploadAndVerify(dumpDataStream, readBack);
+            }
+        });
+    }
+
+    public ChameleonFuture<UploadVerificationReport> chameleonUploadAndVerifyAsync(final byte[] dumpDataBytes, final boolean readBack) {
+        return submitAsync(new Callable<UploadVerificationReport>() {
+            public UploadVerificationReport call() {
+                return chameleonUploadAndVerify(dumpDataBytes, readBack);
+            }
+        });
+    }
+
+    public ChameleonFuture<UploadVerificationReport> chameleonUploadToSlotAsync(final int slotNumber, final ChameleonEmulatedConfigType_t chameleonConfigType,
+                                                                           final byte[] dumpDataBytes, final boolean readBack) {
+        return submitAsync(new Callable<UploadVerificationReport>() {
+            public UploadVerificationReport call() {
+                return chameleonUploadToSlot(slotNumber, chameleonConfigType, dumpDataBytes, readBack);
+            }
+        });
+    }
 
+    public ChameleonFuture<ChameleonProvisioningBatch.Report> provisionSlotsAsync(final List<ChameleonProvisioningBatch.SlotImage> slotImages, final boolean readBack,
+                                                                                  final ChameleonProvisioningBatch.ProgressListener progressListener) {
+        return submitAsync(new Callable<ChameleonProvisioningBatch.Report>() {
+            public ChameleonProvisioningBatch.Report call() {
+                return provisionSlots(slotImages, readBack, progressListener);
+            }
+        });
+    }
+
+    public ChameleonFuture<Boolean> chameleonUploadEncryptedAsync(final byte[] dumpDataBytes, final int keyIndex, final long timestampSaltData) {
+        return submitAsync(new Callable<Boolean>() {
+            public Boolean call() {
+                return chameleonUploadEncrypted(dumpDataBytes, keyIndex, timestampSaltData);
+            }
+        });
+    }
+
+    public ChameleonFuture<Boolean> chameleonUploadAndEncryptAsync(final InputStream plainDataStream, final int keyIndex, final long timestampSaltData) {
+        return submitAsync(new Callable<Boolean>() {
+            public Boolean call() {
+                return chameleonUploadAndEncrypt(plainDataStream, keyIndex, timestampSaltData);
+            }
+        });
+    }
+
+    public ChameleonFuture<Boolean> chameleonDownloadAsync(final File cardOutFile) {
+        return submitAsync(new Callable<Boolean>() {
+            public Boolean call() {
+                return chameleonDownload(cardOutFile);
+            }
+        });
+    }
+
+    public ChameleonFuture<ByteBuffer> chameleonDownloadToMemoryAsync() {
+        return submitAsync(new Callable<ByteBuffer>() {
+            public ByteBuffer call() {
+                return chameleonDownloadToMemory();
+            }
+        });
+    }
+
+    public ChameleonFuture<Boolean> authenticateToChangeKeyDataAsync(final String authPassphrase, final int numChangesAllowed) {
+        return submitAsync(new Callable<Boolean>() {
+            public Boolean call() {
+                return authenticateToChangeKeyData(authPassphrase, numChangesAllowed);
+            }
+        });
+    }
+
+    public ChameleonFuture<Boolean> updateKeyDataAsync(final int keyIndex, final String keyData) {
+        return submitAsync(new Callable<Boolean>() {
+            public Boolean call() {
+                return updateKeyData(keyIndex, keyData);
+            }
+        });
+    }
+
+    public ChameleonFuture<String> generateKeyDataAsync(final int keyIndex, final String initPassphrase) {
+        return submitAsync(new Callable<String>() {
+            public String call() {
+                return generateKeyData(keyIndex, initPassphrase);
+            }
+        });
+    }
+
+}
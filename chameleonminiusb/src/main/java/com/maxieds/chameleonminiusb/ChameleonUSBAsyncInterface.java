@@ -0,0 +1,96 @@
+package com.maxieds.chameleonminiusb;
+
+import android.support.annotation.IntRange;
+
+import com.maxieds.chameleonminiusb.ChameleonCommands.ChameleonCommandResult;
+import com.maxieds.chameleonminiusb.ChameleonCommands.StandardCommandSet;
+import com.maxieds.chameleonminiusb.ChameleonProtocolConfig.ChameleonEmulatedConfigType_t;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Non-blocking variants of the ChameleonUSBInterface operations. Each call is queued on the
+ * I/O thread of the (default) Chameleon device session and returns immediately with a
+ * ChameleonFuture, to which callbacks can be attached for the result. Operations on the same
+ * device run in the order they were issued, so an app can, e.g., queue the slot preparation
+ * and the upload back to back and go on with its UI work in the meantime.
+ * If the library is not configured, the returned futures have already failed.
+ *
+ * @ref ChameleonUSBInterface
+ * @ref ChameleonFuture
+ * @ref ChameleonDeviceSession.submitAsync
+ */
+public interface ChameleonUSBAsyncInterface {
+
+    ChameleonFuture<ChameleonCommandResult> sendCommandToChameleonAsync(StandardCommandSet cmd, Object cmdArg);
+    ChameleonFuture<List<ChameleonCommandResult>> sendCommandsToChameleonAsync(List<StandardCommandSet> cmds, List<?> cmdArgs);
+
+    /**
+     * @ref ChameleonUSBInterface.prepareChameleonEmulationSlot
+     */
+    ChameleonFuture<Boolean> prepareChameleonEmulationSlotAsync(@IntRange(from=1,to=8) int slotNumber, boolean clearSlot);
+    ChameleonFuture<Boolean> prepareChameleonEmulationSlotAsync(@IntRange(from=1,to=8) int slotNumber, boolean clearSlot,
+                                                                ChameleonEmulatedConfigType_t chameleonConfigType);
+
+    /**
+     * @ref ChameleonUSBInterface.chameleonUpload
+     * @ref ChameleonUSBInterface.chameleonUploadEncrypted
+     */
+    ChameleonFuture<Boolean> chameleonUploadAsync(InputStream dumpDataStream);
+    ChameleonFuture<Boolean> chameleonUploadAsync(byte[] dumpDataBytes);
+    ChameleonFuture<Boolean> chameleonUploadEncryptedAsync(byte[] dumpDataBytes, int keyIndex, long timestampSaltData);
+
+    /**
+     * @ref ChameleonUSBInterface.chameleonUploadAndEncrypt
+     */
+    ChameleonFuture<Boolean> chameleonUploadAndEncryptAsync(InputStream plainDataStream, int keyIndex, long timestampSaltData);
+
+    /**
+     * Uploads the dump and reports how it was verified, including the digest of the uploaded
+     * bytes; with readBack the slot is read back afterwards and its digest compared.
+     * @param readBack
+     * @return a future for the verification report (null if no device is configured).
+     */
+    ChameleonFuture<UploadVerificationReport> chameleonUploadAndVerifyAsync(InputStream dumpDataStream, boolean readBack);
+    ChameleonFuture<UploadVerificationReport> chameleonUploadAndVerifyAsync(byte[] dumpDataBytes, boolean readBack);
+
+    /**
+     * Uploads the dump into the slot, unless the slot digest cache shows that the slot already
+     * holds it (see ChameleonSlotDigestCache).
+     * @return a future for the verification report (null if no device is configured).
+     */
+    ChameleonFuture<UploadVerificationReport> chameleonUploadToSlotAsync(@IntRange(from=1,to=8) int slotNumber, ChameleonEmulatedConfigType_t chameleonConfigType,
+                                                                        byte[] dumpDataBytes, boolean readBack);
+
+    /**
+     * Fills several slots in one pipelined pass (see ChameleonProvisioningBatch).
+     * @return a future for the provisioning report (null if no device is configured).
+     */
+    ChameleonFuture<ChameleonProvisioningBatch.Report> provisionSlotsAsync(List<ChameleonProvisioningBatch.SlotImage> slotImages, boolean readBack,
+                                                                          ChameleonProvisioningBatch.ProgressListener progressListener);
+
+    /**
+     * Downloads the contents of the active slot via XModem into the passed file.
+     * @param cardOutFile
+     */
+    ChameleonFuture<Boolean> chameleonDownloadAsync(File cardOutFile);
+
+    /**
+     * Downloads the contents of the active slot via XModem into memory.
+     * @return a future for a read-only view of the slot data (null if the download failed).
+     */
+    ChameleonFuture<ByteBuffer> chameleonDownloadToMemoryAsync();
+
+    /**
+     * @ref ChameleonUSBInterface.authenticateToChangeKeyData
+     * @ref ChameleonUSBInterface.updateKeyData
+     * @ref ChameleonUSBInterface.generateKeyData
+     */
+    ChameleonFuture<Boolean> authenticateToChangeKeyDataAsync(String authPassphrase, int numChangesAllowed);
+    ChameleonFuture<Boolean> updateKeyDataAsync(int keyIndex, String keyData);
+    ChameleonFuture<String> generateKeyDataAsync(int keyIndex, String initPassphrase);
+
+}
@@ -3,8 +3,8 @@ package com.maxieds.chameleonminiusb;
 import android.content.Intent;
 import android.support.annotation.IntRange;
 
-import com.maxieds.chameleonminiusb.ChameleonDeviceConfig.ChameleonBoardType_t;
-import com.maxieds.chameleonminiusb.ChameleonDeviceConfig.ChameleonEmulatedConfigType_t;
+import com.maxieds.chameleonminiusb.ChameleonProtocolConfig.ChameleonBoardType_t;
+import com.maxieds.chameleonminiusb.ChameleonProtocolConfig.ChameleonEmulatedConfigType_t;
 import com.maxieds.chameleonminiusb.LibraryLogging.LocalLoggingLevel;
 
 import java.io.InputStream;
@@ -116,6 +116,20 @@ public interface ChameleonUSBInterface {
      */
     boolean chameleonUploadEncrypted(byte[] dumpDataBytes, int keyIndex, long timestampSaltData);
 
+    /**
+     * Uploads a plaintext dump image by UPLOAD_ENCRYPTED, encrypting it on the fly (frame by
+     * frame as it is read) with our copy of the key at keyIndex. The keys passed to updateKeyData
+     * or returned by generateKeyData are remembered for this; the scheme the firmware decrypts
+     * with is selected with ChameleonUploadCipherCache.setCipherScheme.
+     * @param plainDataStream
+     * @param keyIndex
+     * @param timestampSaltData
+     * @ref chameleonUploadEncrypted
+     * @ref ChameleonUploadCipherCache
+     */
+    boolean chameleonUploadAndEncrypt(InputStream plainDataStream, int keyIndex, long timestampSaltData);
+    boolean chameleonUploadAndEncrypt(byte[] plainDataBytes, int keyIndex, long timestampSaltData);
+
     /**
      * Key management requires authenticating to give the user permission to change the
      * stored key data on the Chameleon board. For the time being, this authentication is
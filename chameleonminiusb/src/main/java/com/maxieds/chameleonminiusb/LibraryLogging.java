@@ -8,8 +8,9 @@ import android.util.Log;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static android.content.ContentValues.TAG;
 import static com.maxieds.chameleonminiusb.LibraryLogging.LocalLoggingLevel.LOG_ADB_OFF;
@@ -52,14 +53,44 @@ public class LibraryLogging {
         public static String lastMethodName;
 
         /**
-         * Accounting for the library's logging functionality:
+         * Accounting for the library's logging functionality. The logs are kept in a bounded
+         * ring buffer (see configureLogStore), which evicts the oldest verbose and debug logs
+         * first once its entry or byte budget is used up. Enqueueing does not take a lock,
+         * so the USB read thread can log its packets without waiting on other threads.
          */
-        public static long uniqueLogCounter = 0L;
-        public static ArrayList<LogEntry> loggingQueue = new ArrayList<LogEntry>();
+        public static final AtomicLong uniqueLogCounter = new AtomicLong();
+        public static volatile LogRingBuffer<LogEntry> loggingQueue = new LogRingBuffer<LogEntry>();
+
+        /**
+         * Replaces the log store with one of the given budgets, keeping the most recent logs
+         * which fit into it.
+         * @param maxEntries
+         * @param maxBytes : the estimated memory held by the log messages.
+         * @ref LogRingBuffer
+         */
+        public static synchronized void configureLogStore(int maxEntries, long maxBytes) {
+            LogRingBuffer<LogEntry> oldLogStore = loggingQueue;
+            LogRingBuffer<LogEntry> newLogStore = new LogRingBuffer<LogEntry>(maxEntries, maxBytes);
+            for(ProtocolLogging.Level severity : ProtocolLogging.Level.values()) {
+                newLogStore.setReservedEntries(severity, oldLogStore.getReservedEntries(severity));
+            }
+            for(LogEntry logEntry : oldLogStore.snapshot()) {
+                logEntry.storeInto(newLogStore);
+            }
+            loggingQueue = newLogStore;
+        }
+
+        public static List<LogEntry> getStoredLogs() {
+            return loggingQueue.snapshot();
+        }
+
+        public static String getLogStoreSummary() {
+            return loggingQueue.toString();
+        }
 
         public static LogEntry enqueueNewLog(LocalLoggingLevel level, String TAG, String[] message) {
             LogEntry logEntry = LogEntry.newInstance(level, TAG, message);
-            loggingQueue.add(logEntry);
+            logEntry.storeInto(loggingQueue);
             if(broadcastAllLogsToReceivers) {
                 logEntry.broadcastAsIntent();
             }
@@ -68,7 +99,7 @@ public class LibraryLogging {
 
         public static LogEntry enqueueNewLog(ChameleonCommands.ChameleonCommandResult cmdRxResp) {
             LogEntry logEntry = LogEntry.newInstance(cmdRxResp);
-            loggingQueue.add(logEntry);
+            logEntry.storeInto(loggingQueue);
             if(broadcastAllLogsToReceivers) {
                 logEntry.broadcastAsIntent();
             }
@@ -79,6 +110,7 @@ public class LibraryLogging {
         private long uniqueLogID;
         private String logTimestamp;
         private String logSeverity;
+        private ProtocolLogging.Level storeSeverity;
         private String invokingClassTag;
         private int invokingLineNumber;
         private String invokingMethodName;
@@ -87,9 +119,10 @@ public class LibraryLogging {
         public static LogEntry newInstance(LocalLoggingLevel level, String TAG, String[] message) {
             LogEntry le = new LogEntry();
             le.usesSourceCodeAcct = true;
-            le.uniqueLogID = ++uniqueLogCounter;
+            le.uniqueLogID = uniqueLogCounter.incrementAndGet();
             le.logTimestamp = Utils.getTimestamp();
             le.logSeverity = level.name();
+            le.storeSeverity = toProtocolLevel(level);
             le.invokingClassTag = TAG;
             le.invokingLineNumber = LINE();
             le.invokingMethodName = FUNC();
@@ -100,9 +133,10 @@ public class LibraryLogging {
         public static LogEntry newInstance(ChameleonCommands.ChameleonCommandResult cmdRxResp) {
             LogEntry le = new LogEntry();
             le.usesSourceCodeAcct = false;
-            le.uniqueLogID = ++uniqueLogCounter;
+            le.uniqueLogID = uniqueLogCounter.incrementAndGet();
             le.logTimestamp = Utils.getTimestamp();
             le.logSeverity = "COMMAND_RESULT";
+            le.storeSeverity = ProtocolLogging.Level.INFO;
             le.invokingClassTag = "";
             le.invokingLineNumber = -1;
             le.invokingMethodName = "";
@@ -110,6 +144,15 @@ public class LibraryLogging {
             return le;
         }
 
+        private void storeInto(LogRingBuffer<LogEntry> logStore) {
+            int sizeBytes = 96 + LogRingBuffer.estimateStringBytes(logTimestamp) +
+                    LogRingBuffer.estimateStringBytes(invokingClassTag) + LogRingBuffer.estimateStringBytes(invokingMethodName);
+            for(String logMsg : logMsgs) {
+                sizeBytes += 8 + LogRingBuffer.estimateStringBytes(logMsg);
+            }
+            logStore.append(this, storeSeverity, sizeBytes);
+        }
+
         public Intent broadcastAsIntent() {
             if(ChameleonDeviceConfig.THE_CHAMELEON_DEVICE.mainApplicationActivity == null) {
                 return null;
@@ -133,8 +176,7 @@ public class LibraryLogging {
             File xmlOutFile = createTimestampedXMLLogFile();
             try {
                 FileWriter fileWriter = new FileWriter(xmlOutFile);
-                for(int log = 0; log < loggingQueue.size(); log++) {
-                    LogEntry le = loggingQueue.get(log);
+                for(LogEntry le : getStoredLogs()) {
                     String[] logXMLEntry = new String[] {
                             "<LogEntry>",
                             XMLTAG("LogID", String.valueOf(le.uniqueLogID)),
@@ -165,8 +207,7 @@ public class LibraryLogging {
             File ptextOutFile = createTimestampedPlaintextLogFile();
             try {
                 FileWriter fileWriter = new FileWriter(ptextOutFile);
-                for(int log = 0; log < loggingQueue.size(); log++) {
-                    LogEntry le = loggingQueue.get(log);
+                for(LogEntry le : getStoredLogs()) {
                     String[] ptLogs = new String[] {
                             String.format(Locale.ENGLISH, "============================== #% 8x @ %s ==============================", le.uniqueLogID, le.logTimestamp),
                             String.format(Locale.ENGLISH, "   [LEVEL] %s\n", le.logSeverity),
@@ -236,6 +277,68 @@ public class LibraryLogging {
             Log.e(TAG + "::" + localLoggingLevel.name(), MSG);
     }
 
+    /**
+     * Forwards the logs from the (platform independent) protocol core to the functions above.
+     * Only the levels enabled by localLoggingLevel are reported as loggable, so that the core
+     * can skip rendering its (per-frame) verbose diagnostics altogether otherwise.
+     * @ref ProtocolLogging.setLogSink
+     */
+    public static final ProtocolLogging.LogSink PROTOCOL_LOG_SINK = new ProtocolLogging.LogSink() {
+        public boolean isLoggable(ProtocolLogging.Level level) {
+            LocalLoggingLevel localLevel = toLocalLoggingLevel(level);
+            return localLevel.compareTo(localLoggingLevel) <= 0 && localLoggingLevel.compareTo(LOG_ADB_OFF) != 0;
+        }
+        public void log(ProtocolLogging.Level level, String TAG, String MSG) {
+            switch(level) {
+                case VERBOSE:
+                    v(TAG, MSG);
+                    break;
+                case DEBUG:
+                    d(TAG, MSG);
+                    break;
+                case INFO:
+                    i(TAG, MSG);
+                    break;
+                case WARN:
+                    w(TAG, MSG);
+                    break;
+                default:
+                    e(TAG, MSG);
+                    break;
+            }
+        }
+    };
+
+    private static LocalLoggingLevel toLocalLoggingLevel(ProtocolLogging.Level level) {
+        switch(level) {
+            case VERBOSE:
+                return LocalLoggingLevel.LOG_ADB_VERBOSE;
+            case DEBUG:
+                return LocalLoggingLevel.LOG_ADB_DEBUG;
+            case INFO:
+                return LocalLoggingLevel.LOG_ADB_INFO;
+            case WARN:
+                return LocalLoggingLevel.LOG_ADB_WARN;
+            default:
+                return LocalLoggingLevel.LOG_ADB_ERROR;
+        }
+    }
+
+    private static ProtocolLogging.Level toProtocolLevel(LocalLoggingLevel level) {
+        switch(level) {
+            case LOG_ADB_VERBOSE:
+                return ProtocolLogging.Level.VERBOSE;
+            case LOG_ADB_DEBUG:
+                return ProtocolLogging.Level.DEBUG;
+            case LOG_ADB_INFO:
+                return ProtocolLogging.Level.INFO;
+            case LOG_ADB_WARN:
+                return ProtocolLogging.Level.WARN;
+            default:
+                return ProtocolLogging.Level.ERROR;
+        }
+    }
+
     /**** Creating and writing logs to file ****/
     public static final String localLoggingBaseDirectory = "ChameleonMiniOperationLogs";
     public static final String localXMLLoggingFilePrefix = "ChameleonMiniUSBLibrary-XMLLog-";
@@ -0,0 +1,136 @@
+package com.maxieds.chameleonminiusb;
+
+import android.app.PendingIntent;
+import android.content.Intent;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbManager;
+
+import com.felhr.usbserial.UsbSerialDevice;
+import com.felhr.usbserial.UsbSerialInterface;
+
+import java.util.Arrays;
+
+/**
+ * <h1>USB Serial Transport</h1>
+ * The Android implementation of the SerialTransport used by ChameleonDeviceSession: a serial
+ * USB connection to one attached Chameleon board (through the felHR85 UsbSerial library).
+ *
+ * @ref SerialTransport
+ * @ref ChameleonDeviceConfig.openSession
+ */
+public class UsbSerialTransport implements SerialTransport {
+
+    private static final String TAG = UsbSerialTransport.class.getSimpleName();
+
+    private final UsbDevice chameleonUSBDevice;
+    private final UsbSerialDevice serialPort;
+    private volatile ReadListener readListener;
+
+    private UsbSerialTransport(UsbDevice usbDevice, UsbSerialDevice serialDevice) {
+        chameleonUSBDevice = usbDevice;
+        serialPort = serialDevice;
+    }
+
+    /**
+     * Returns the key used to identify the device in the session registry: the USB serial
+     * number when the board reports one, and otherwise the (per-port) USB device name.
+     * @param usbDevice
+     * @return String device key
+     */
+    public static String getDeviceSerialNumber(UsbDevice usbDevice) {
+        String serialNumber = usbDevice.getSerialNumber();
+        if(serialNumber == null || serialNumber.length() == 0) {
+            serialNumber = usbDevice.getDeviceName();
+        }
+        return serialNumber;
+    }
+
+    /**
+     * @param usbDevice
+     * @return whether the board reports a USB serial number (rather than being keyed by its
+     *         USB device name, which belongs to the port and not to the board).
+     */
+    public static boolean hasUSBSerialNumber(UsbDevice usbDevice) {
+        String serialNumber = usbDevice.getSerialNumber();
+        return serialNumber != null && serialNumber.length() > 0;
+    }
+
+    public static boolean isChameleonUSBDevice(UsbDevice usbDevice) {
+        if(usbDevice == null) {
+            return false;
+        }
+        int deviceVID = usbDevice.getVendorId();
+        int devicePID = usbDevice.getProductId();
+        return (deviceVID == ChameleonProtocolConfig.CMUSB_REVG_VENDORID && devicePID == ChameleonProtocolConfig.CMUSB_REVG_PRODUCTID) ||
+                (deviceVID == ChameleonProtocolConfig.CMUSB_REVE_VENDORID && devicePID == ChameleonProtocolConfig.CMUSB_REVE_PRODUCTID);
+    }
+
+    /**
+     * Opens and configures the serial USB connection to the passed Chameleon device.
+     * @param usbManager
+     * @param usbDevice
+     * @return the open transport, or null if the device could not be opened.
+     */
+    public static UsbSerialTransport open(UsbManager usbManager, UsbDevice usbDevice) {
+        if(!isChameleonUSBDevice(usbDevice)) {
+            return null;
+        }
+        UsbDeviceConnection connection = usbManager.openDevice(usbDevice);
+        if(connection == null) {
+            LibraryLogging.e(TAG, "USB STATUS: Connection to device unavailable.");
+            return null;
+        }
+        PendingIntent permIntent = PendingIntent.getBroadcast(ChameleonDeviceConfig.mainApplicationActivity.getDefaultContext(), 0, new Intent("com.android.example.USB_PERMISSION"), 0);
+        usbManager.requestPermission(usbDevice, permIntent);
+        if(!usbManager.hasPermission(usbDevice)) {
+            LibraryLogging.w(TAG, "ChameleonMiniUSB library does not have permission to access the USB device!");
+            return null;
+        }
+        UsbSerialDevice serialPort = UsbSerialDevice.createUsbSerialDevice(usbDevice, connection);
+        if(serialPort == null || !serialPort.open()) {
+            LibraryLogging.e(TAG, "USB STATUS: Unable to open the serial port for device " + getDeviceSerialNumber(usbDevice));
+            return null;
+        }
+        serialPort.setBaudRate(ChameleonDeviceConfig.USB_BAUD_RATE); // 115200
+        serialPort.setDataBits(ChameleonDeviceConfig.USB_DATA_BITS); // slight optimization from UsbSerialInterface.DATA_BITS_8? ... yes, better
+        serialPort.setStopBits(UsbSerialInterface.STOP_BITS_1);
+        serialPort.setParity(UsbSerialInterface.PARITY_NONE);
+        serialPort.setFlowControl(UsbSerialInterface.FLOW_CONTROL_OFF);
+        UsbSerialTransport transport = new UsbSerialTransport(usbDevice, serialPort);
+        serialPort.read(transport.usbReaderCallback);
+        return transport;
+    }
+
+    public UsbDevice getUsbDevice() { return chameleonUSBDevice; }
+    public UsbSerialDevice getSerialPort() { return serialPort; }
+
+    private final UsbSerialInterface.UsbReadCallback usbReaderCallback = new UsbSerialInterface.UsbReadCallback() {
+        @Override
+        public void onReceivedData(byte[] liveRxData) {
+            ReadListener listener = readListener;
+            if(listener != null) {
+                listener.onReceivedData(liveRxData);
+            }
+        }
+    };
+
+    /**
+     * UsbSerialDevice.write copies the data into its own write buffer before it returns, so the
+     * caller's array is not kept (the array is only trimmed to length when the caller's buffer
+     * holds more than the data).
+     */
+    public void write(byte[] txData, int length) {
+        serialPort.write(length == txData.length ? txData : Arrays.copyOf(txData, length));
+    }
+
+    public void setReadListener(ReadListener listener) {
+        readListener = listener;
+    }
+
+    public void close() {
+        readListener = null;
+        serialPort.close();
+    }
+
+}
@@ -2,8 +2,6 @@ package com.maxieds.chameleonminiusb;
 
 import android.text.format.Time;
 import org.apache.commons.lang3.ArrayUtils;
-import java.util.Locale;
-import java.util.Random;
 import java.util.jar.Manifest;
 
 
@@ -14,6 +12,7 @@ import java.util.jar.Manifest;
  * @author  Maxie D. Schmidt
  * @email maxieds@gmail.com
  * @since 8/8/2018 (partially modified from the Chameleon Mini Live Debugger source since 12/31/17)
+ * @ref ProtocolUtils (the byte / string helpers are shared with the protocol core module)
  * @ref
  * @ref
  */
@@ -26,7 +25,7 @@ public class Utils {
     public static boolean FLAG_IS_OTHER(int flagParam) { return flagParam != FLAG_FALSE && flagParam != FLAG_TRUE; }
 
     public static byte BYTE(int intFormat0xab) {
-        return (byte) intFormat0xab;
+        return ProtocolUtils.BYTE(intFormat0xab);
     }
 
     public static byte MSB(int int32Param) {
@@ -45,11 +44,7 @@ public class Utils {
      * @return
      */
     public static byte[] generateRandomBytes(int numBytes) {
-        Random rnGen = new Random(System.currentTimeMillis());
-        byte[] randomBytes = new byte[numBytes];
-        for(int b = 0; b < numBytes; b++)
-            randomBytes[b] = (byte) rnGen.nextInt(0xff);
-        return randomBytes;
+        return ProtocolUtils.generateRandomBytes(numBytes);
     }
 
     /**
@@ -59,13 +54,7 @@ public class Utils {
      * @return null (if parameters are non-sensical) or a prefixed byte array with randomly generated suffix bits
      */
     public static byte[] generateRandomBytes(byte[] prefixBytes, int desiredArrayLength) {
-        int numRandomBytes = desiredArrayLength - prefixBytes.length;
-        if(desiredArrayLength <= 0 || numRandomBytes < 0)
-            return null;
-        else if(numRandomBytes == 0)
-            return prefixBytes;
-        byte[] randomSuffixBytes = generateRandomBytes(numRandomBytes);
-        return ArrayUtils.toPrimitive(arrayJoin(ArrayUtils.toObject(prefixBytes), ArrayUtils.toObject(randomSuffixBytes)));
+        return ProtocolUtils.generateRandomBytes(prefixBytes, desiredArrayLength);
     }
 
     /**
@@ -76,15 +65,7 @@ public class Utils {
      * @return String hex string representation
      */
     public static String byteArrayToString(byte[] bytes) {
-        if (bytes == null)
-            return null;
-        else if (bytes.length == 0)
-            return "";
-        StringBuilder hstr = new StringBuilder();
-        hstr.append(String.format(Locale.ENGLISH, "%02x", bytes[0]));
-        for (int b = 1; b < bytes.length; b++)
-            hstr.append(String.format(Locale.ENGLISH, "%02x", bytes[b]));
-        return hstr.toString();
+        return ProtocolUtils.byteArrayToString(bytes);
     }
 
     /**
@@ -93,12 +74,7 @@ public class Utils {
      * @return byte representation of the String
      */
     public static byte hexString2Byte(String byteStr) {
-        if (byteStr.length() != 2) {
-            return 0x00;
-        }
-        int lsb = Character.digit(byteStr.charAt(1), 16);
-        int msb = Character.digit(byteStr.charAt(0), 16);
-        return (byte) (lsb | msb << 4);
+        return ProtocolUtils.hexString2Byte(byteStr);
     }
 
     /**
@@ -107,13 +83,7 @@ public class Utils {
      * @return Array of bytes of size (byteStr.length) / 2.
      */
     public static byte[] byteArrayFromString(String byteStr) {
-        if (byteStr.length() % 2 != 0) { // left-pad the string:
-            byteStr = "0" + byteStr;
-        }
-        byte[] byteRep = new byte[byteStr.length() / 2];
-        for(int b = 0; b < byteStr.length(); b += 2)
-            byteRep[b / 2] = hexString2Byte(byteStr.substring(b, b + 2));
-        return byteRep;
+        return ProtocolUtils.byteArrayFromString(byteStr);
     }
 
     /**
@@ -122,13 +92,7 @@ public class Utils {
      * @return char print character (or '.')
      */
     public static char byte2Ascii(byte b) {
-        int decAsciiCode = (int) b;
-        if (b >= 32 && b <= 127) {
-            char ch = (char) b;
-            return ch;
-        }
-        else
-            return '.';
+        return ProtocolUtils.byte2Ascii(b);
     }
 
     /**
@@ -137,10 +101,7 @@ public class Utils {
      * @return String ascii representation of the byte array
      */
     public static String bytes2Ascii(byte[] bytes) {
-        StringBuilder byteStr = new StringBuilder();
-        for(int b = 0; b < bytes.length; b++)
-            byteStr.append(String.valueOf(byte2Ascii(bytes[b])));
-        return byteStr.toString();
+        return ProtocolUtils.bytes2Ascii(bytes);
     }
 
     /**
@@ -151,9 +112,7 @@ public class Utils {
      * @return Truncated input string
      */
     public static String trimString(String str, int maxNumChars) {
-        if(str.length() <= maxNumChars)
-            return str;
-        return str.substring(0, maxNumChars) + "...";
+        return ProtocolUtils.trimString(str, maxNumChars);
     }
 
     /**
@@ -230,15 +189,7 @@ public class Utils {
     }
 
     public static String stringJoin(String delimiter, String[] strArray) {
-        if(strArray == null)
-            return null;
-        else if(strArray.length == 0)
-            return "";
-        String retStr = strArray[0];
-        for(int s = 1; s < strArray.length; s++) {
-            retStr += delimiter + strArray[s];
-        }
-        return retStr;
+        return ProtocolUtils.stringJoin(delimiter, strArray);
     }
 
 }